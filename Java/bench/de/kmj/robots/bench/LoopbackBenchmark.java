@@ -0,0 +1,109 @@
+package de.kmj.robots.bench;
+
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.CommandMessageHandler;
+import de.kmj.robots.messaging.MessageClient;
+import de.kmj.robots.messaging.MessageServer;
+import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.StatusMessageHandler;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip of a command from a MessageClient to a
+ * MessageServer on the loopback interface and of the "finished" status back
+ * to the client.
+ * <p>
+ * Runs in sample mode, so the results contain the latency percentiles.
+ *
+ * @author Kathrin Janowski
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    /**
+     * The transport of the server: "socket" or "channel".
+     */
+    @Param({"socket", "channel"})
+    public String transport;
+
+    private MessageServer mServer;
+    private MessageClient mClient;
+    private final SynchronousQueue<StatusMessage> mReplies = new SynchronousQueue<StatusMessage>();
+
+    private CommandMessage[] mCommands;
+    private int mIndex;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<CommandMessage> commands = Payloads.loadCommands();
+        mCommands = commands.toArray(new CommandMessage[commands.size()]);
+        mIndex = 0;
+
+        int serverPort = Integer.getInteger("bench.serverPort", 17341);
+        int clientPort = Integer.getInteger("bench.clientPort", 17342);
+
+        mServer = new MessageServer(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                mServer.sendStatusMessage(new StatusMessage(message.getTaskID(), "finished"));
+            }
+        }, 4096, "127.0.0.1", serverPort);
+        mServer.setLogLevel(Level.WARNING);
+        mServer.setUseChannel(transport.equals("channel"));
+        mServer.start();
+
+        mClient = new MessageClient(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                try {
+                    mReplies.put(message);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 4096, "127.0.0.1", clientPort, "127.0.0.1", serverPort);
+        mClient.setLogLevel(Level.WARNING);
+        mClient.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mClient.abort();
+        mServer.abort();
+        mClient.awaitTermination();
+        mServer.awaitTermination();
+    }
+
+    @Benchmark
+    public StatusMessage roundTrip() throws InterruptedException {
+        CommandMessage cmd = mCommands[mIndex];
+        mIndex = (mIndex + 1 == mCommands.length) ? 0 : mIndex + 1;
+
+        mClient.sendCommandMessage(cmd);
+        StatusMessage reply = mReplies.poll(1, TimeUnit.SECONDS);
+        if (reply == null) {
+            throw new IllegalStateException("no reply for task " + cmd.getTaskID());
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,74 @@
+package de.kmj.robots.bench;
+
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.StatusMessage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing and serializing of the XML messages.
+ * <p>
+ * Each invocation processes the next message of the payload list, so the
+ * results are averaged over the whole mix of command types.
+ *
+ * @author Kathrin Janowski
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private CommandMessage[] mCommands;
+    private String[] mCommandStrings;
+    private String[] mStatusStrings;
+    private int mIndex;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<CommandMessage> commands = Payloads.loadCommands();
+        List<StatusMessage> status = Payloads.createStatus(commands);
+
+        mCommands = commands.toArray(new CommandMessage[commands.size()]);
+        mCommandStrings = new String[mCommands.length];
+        mStatusStrings = new String[mCommands.length];
+        for (int i = 0; i < mCommands.length; i++) {
+            mCommandStrings[i] = mCommands[i].toString();
+            mStatusStrings[i] = status.get(i).toString();
+        }
+        mIndex = 0;
+    }
+
+    private int next() {
+        int index = mIndex;
+        mIndex = (index + 1 == mCommands.length) ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public CommandMessage parseCommand() {
+        return new CommandMessage(mCommandStrings[next()]);
+    }
+
+    @Benchmark
+    public String serializeCommand() {
+        return mCommands[next()].toString();
+    }
+
+    @Benchmark
+    public StatusMessage parseStatus() {
+        return new StatusMessage(mStatusStrings[next()]);
+    }
+}
@@ -0,0 +1,79 @@
+package de.kmj.robots.bench;
+
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.StatusMessage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Realistic message payloads for the benchmarks.
+ * <p>
+ * The commands are taken from a command pool file, by default
+ * "res/Danube.commands". A different file can be chosen with the system
+ * property "bench.commands".
+ *
+ * @author Kathrin Janowski
+ */
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    /**
+     * @return all commands of the command pool file
+     * @throws Exception if the file can't be read
+     */
+    static List<CommandMessage> loadCommands() throws Exception {
+        File file = new File(System.getProperty("bench.commands", "res/Danube.commands"));
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+
+        List<CommandMessage> commands = new ArrayList<CommandMessage>();
+        NodeList nodes = doc.getElementsByTagName("command");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element elem = (Element) nodes.item(i);
+            CommandMessage cmd = new CommandMessage(elem.getAttribute("task"),
+                    elem.getAttribute("type"));
+
+            NamedNodeMap attributes = elem.getAttributes();
+            for (int j = 0; j < attributes.getLength(); j++) {
+                Node attr = attributes.item(j);
+                String name = attr.getNodeName();
+                if (!name.equals("task") && !name.equals("type") && !name.equals("name")) {
+                    cmd.addParameter(name, attr.getNodeValue());
+                }
+            }
+            commands.add(cmd);
+        }
+
+        if (commands.isEmpty()) {
+            throw new IllegalStateException("no commands in " + file);
+        }
+        return commands;
+    }
+
+    /**
+     * @param commands the commands
+     * @return a typical status message for each command
+     */
+    static List<StatusMessage> createStatus(List<CommandMessage> commands) {
+        String[] labels = new String[]{"started", "finished", "rejected"};
+
+        List<StatusMessage> status = new ArrayList<StatusMessage>();
+        for (int i = 0; i < commands.size(); i++) {
+            StatusMessage msg = new StatusMessage(commands.get(i).getTaskID(),
+                    labels[i % labels.length]);
+            if (i % labels.length == 2) {
+                msg.addDetail("reason", "unknown command type: " + commands.get(i).getCommandType());
+            }
+            status.add(msg);
+        }
+        return status;
+    }
+}
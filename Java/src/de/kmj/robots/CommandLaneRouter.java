@@ -0,0 +1,340 @@
+package de.kmj.robots;
+
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.CommandMessageHandler;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Distributes the commands of a {@link de.kmj.robots.RobotEngine} to
+ * independent execution lanes.
+ * <p>
+ * Speech, gaze, LEDs, audio and motion are usually independent actuators. If
+ * all of them are handled by the same thread, a long animation delays an
+ * unrelated LED command. With this router, the engine registers one
+ * CommandMessageHandler per command type and assigns it to a named lane. Each
+ * lane has its own single-threaded executor, so commands within a lane run
+ * in order while different lanes run in parallel.
+ * <p>
+ * A command type of the form "stopX" is a stop command for the lane it is
+ * assigned to, by default the lane of type "x". A stop command does not wait
+ * in the lane: the commands which are still queued in the lane are rejected,
+ * the running command is interrupted, and the handler of the stop command is
+ * called right away on the thread which called {@link #route(CommandMessage)}.
+ * Handlers which block should therefore react to
+ * {@link java.lang.Thread#interrupt()}, and the handlers of stop commands
+ * should return quickly.
+ * <p>
+ * To use this class in your RobotEngine, do the following:
+ * <ol>
+ * <li>create a router in the engine's start() method and register the
+ * handlers with {@link #registerHandler(String, CommandMessageHandler)} or
+ * {@link #registerHandler(String, String, CommandMessageHandler)}</li>
+ * <li>pass each command to {@link #route(CommandMessage)} in
+ * executeCommand()</li>
+ * <li>call {@link #shutdown()} in the engine's stop() method</li>
+ * </ol>
+ * Commands without a registered handler are rejected.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandLaneRouter {
+
+    private static final Logger cLogger = Logger.getLogger(CommandLaneRouter.class.getName());
+
+    /**
+     * The engine which receives rejections.
+     */
+    private final RobotEngine mEngine;
+
+    /**
+     * The handler for each command type.
+     */
+    private final Map<String, CommandMessageHandler> mHandlers;
+
+    /**
+     * The lane name for each command type.
+     */
+    private final Map<String, String> mLaneNames;
+
+    /**
+     * The executor of each lane.
+     */
+    private final Map<String, Lane> mLanes;
+
+    /**
+     * Creates a router without any handlers.
+     *
+     * @param engine the engine which rejects commands without a handler
+     */
+    public CommandLaneRouter(RobotEngine engine) {
+        mEngine = engine;
+        mHandlers = new ConcurrentHashMap<String, CommandMessageHandler>();
+        mLaneNames = new ConcurrentHashMap<String, String>();
+        mLanes = new ConcurrentHashMap<String, Lane>();
+    }
+
+    //==========================================================================
+    // registration
+    //==========================================================================
+    /**
+     * Registers the handler for a command type in the default lane of that
+     * type.
+     * <p>
+     * The default lane of "stopX" is "x", the default lane of every other
+     * type is the type itself.
+     *
+     * @param commandType the command type
+     * @param handler executes the commands of that type
+     */
+    public void registerHandler(String commandType, CommandMessageHandler handler) {
+        registerHandler(getDefaultLane(commandType), commandType, handler);
+    }
+
+    /**
+     * Registers the handler for a command type in the given lane.
+     *
+     * @param laneName the name of the lane, which is created if necessary
+     * @param commandType the command type
+     * @param handler executes the commands of that type
+     */
+    public synchronized void registerHandler(String laneName, String commandType,
+            CommandMessageHandler handler) {
+        if (!mLanes.containsKey(laneName)) {
+            mLanes.put(laneName, new Lane(laneName));
+            cLogger.log(Level.FINE, "created lane \"{0}\"", laneName);
+        }
+
+        mHandlers.put(commandType, handler);
+        mLaneNames.put(commandType, laneName);
+    }
+
+    /**
+     * @param commandType a command type
+     * @return the lane name for that command type, or null if no handler is
+     * registered
+     */
+    public String getLane(String commandType) {
+        return mLaneNames.get(commandType);
+    }
+
+    /**
+     * @param commandType a command type
+     * @return true if the type has the form "stopX"
+     */
+    public static boolean isStopCommand(String commandType) {
+        return commandType.length() > 4 && commandType.startsWith("stop");
+    }
+
+    /**
+     * Determines the default lane name for a command type.
+     *
+     * @param commandType the command type
+     * @return "x" for "stopX", otherwise the command type
+     */
+    public static String getDefaultLane(String commandType) {
+        if (isStopCommand(commandType)) {
+            return Character.toLowerCase(commandType.charAt(4)) + commandType.substring(5);
+        }
+        return commandType;
+    }
+
+    //==========================================================================
+    // execution
+    //==========================================================================
+    /**
+     * Queues a command in the lane of its type. Commands without a registered
+     * handler are rejected.
+     * <p>
+     * A stop command cancels its lane and is executed immediately instead.
+     *
+     * @param command the command
+     * @return true if the command was queued or executed, false if it was
+     * rejected
+     */
+    public boolean route(final CommandMessage command) {
+        final String type = command.getCommandType();
+        final CommandMessageHandler handler = mHandlers.get(type);
+        if (handler == null) {
+            cLogger.log(Level.WARNING, "no handler for command type \"{0}\"", type);
+            mEngine.rejectCommand(command.getTaskID(), "unknown command type: " + type);
+            return false;
+        }
+
+        Lane lane = mLanes.get(mLaneNames.get(type));
+        if (isStopCommand(type)) {
+            if (lane.mExecutor.isShutdown()) {
+                mEngine.rejectCommand(command.getTaskID(), "engine stopped");
+                return false;
+            }
+            cancel(lane, type);
+            execute(handler, command);
+            return true;
+        }
+
+        try {
+            lane.mExecutor.execute(new LaneTask(lane, handler, command));
+            return true;
+        } catch (RejectedExecutionException e) {
+            cLogger.log(Level.WARNING, "lane \"{0}\" is shut down", lane.mName);
+            mEngine.rejectCommand(command.getTaskID(), "engine stopped");
+            return false;
+        }
+    }
+
+    /**
+     * Stops all lanes. Commands which are still queued are discarded and the
+     * running commands are interrupted.
+     */
+    public synchronized void shutdown() {
+        for (Lane lane : mLanes.values()) {
+            lane.mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Rejects the queued commands of a lane and interrupts its running
+     * command.
+     *
+     * @param lane the lane
+     * @param stopType the type of the stop command, for the rejection reason
+     */
+    private void cancel(Lane lane, String stopType) {
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        lane.mExecutor.getQueue().drainTo(queued);
+        for (Runnable task : queued) {
+            mEngine.rejectCommand(((LaneTask) task).mCommand.getTaskID(),
+                    "cancelled by " + stopType);
+        }
+
+        synchronized (lane) {
+            // tasks which have just been taken from the queue won't start
+            lane.mGeneration++;
+            if (lane.mRunning != null) {
+                cLogger.log(Level.FINE, "interrupting command \"{0}\" in lane \"{1}\"",
+                        new Object[]{lane.mRunning.mCommand.getTaskID(), lane.mName});
+                lane.mThread.interrupt();
+            }
+        }
+        if (!queued.isEmpty()) {
+            cLogger.log(Level.FINE, "{0} cancelled {1} queued commands in lane \"{2}\"",
+                    new Object[]{stopType, queued.size(), lane.mName});
+        }
+    }
+
+    private static void execute(CommandMessageHandler handler, CommandMessage command) {
+        try {
+            handler.handleCommandMessage(command);
+        } catch (RuntimeException e) {
+            cLogger.log(Level.SEVERE, "could not handle command \"{0}\": {1}",
+                    new Object[]{command.getTaskID(), e.toString()});
+        }
+    }
+
+    //==========================================================================
+    // lanes
+    //==========================================================================
+    /**
+     * A lane with its executor and the command which is currently running.
+     */
+    private static class Lane {
+
+        final String mName;
+        final ThreadPoolExecutor mExecutor;
+
+        /**
+         * The running task and its thread, guarded by the lane.
+         */
+        LaneTask mRunning;
+        Thread mThread;
+
+        /**
+         * Incremented by every stop command, guarded by the lane.
+         */
+        int mGeneration;
+
+        Lane(String name) {
+            mName = name;
+            mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new LaneThreadFactory(name));
+        }
+    }
+
+    /**
+     * Executes one command in its lane.
+     */
+    private class LaneTask implements Runnable {
+
+        final Lane mLane;
+        final CommandMessageHandler mHandler;
+        final CommandMessage mCommand;
+
+        /**
+         * The generation of the lane when the command was queued.
+         */
+        final int mGeneration;
+
+        LaneTask(Lane lane, CommandMessageHandler handler, CommandMessage command) {
+            mLane = lane;
+            mHandler = handler;
+            mCommand = command;
+            synchronized (lane) {
+                mGeneration = lane.mGeneration;
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean cancelled;
+            synchronized (mLane) {
+                cancelled = (mLane.mGeneration != mGeneration);
+                if (!cancelled) {
+                    mLane.mRunning = this;
+                    mLane.mThread = Thread.currentThread();
+                }
+            }
+            if (cancelled) {
+                mEngine.rejectCommand(mCommand.getTaskID(), "cancelled by stop command");
+                return;
+            }
+
+            try {
+                execute(mHandler, mCommand);
+            } finally {
+                synchronized (mLane) {
+                    mLane.mRunning = null;
+                    mLane.mThread = null;
+                    // an interrupt which came too late must not hit the next command
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates named daemon threads for a lane.
+     */
+    private static class LaneThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        LaneThreadFactory(String laneName) {
+            mName = "CommandLane-" + laneName;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
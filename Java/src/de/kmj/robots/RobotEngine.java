@@ -3,6 +3,7 @@ package de.kmj.robots;
 import de.kmj.robots.messaging.StatusMessageHandler;
 import de.kmj.robots.messaging.CommandMessage;
 import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.util.EngineMetrics;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -26,6 +27,9 @@ public abstract class RobotEngine {
     
     /** The engine's configuration parameters. */
     protected Properties mEngineConfig;
+
+    /** Records the time until each task has finished, may be null. */
+    private EngineMetrics mMetrics;
     
     
 //    /**
@@ -176,8 +180,12 @@ public abstract class RobotEngine {
      * 
      * If the command is supported and valid, the appropriate method is called.
      * Otherwise, the command is rejected and a warning is printed to the console.
-     * 
-     * @param command the command message 
+     * <p>
+     * Engines with independent actuators can pass the command on to a
+     * {@link de.kmj.robots.CommandLaneRouter} so that each modality is
+     * executed on its own thread.
+     *
+     * @param command the command message
      */
     public abstract void executeCommand(CommandMessage command);
 
@@ -260,12 +268,33 @@ public abstract class RobotEngine {
         return mStatusMessageHandler;
     }
         
+    /**
+     * Sets the metrics which record the time from receiving each command
+     * until its "finished" status.
+     * @param metrics the metrics, or null for disabling them
+     */
+    public final void setMetrics(EngineMetrics metrics)
+    {
+        mMetrics = metrics;
+    }
+    
+    /**
+     * @return the metrics, or null if they are disabled
+     */
+    public final EngineMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+        
     /**
      * Forwards a status message to the status message handler
      * @param status the status message
      */
     public final void sendStatusMessage(StatusMessage status)
     {
+        if(mMetrics != null)
+            mMetrics.statusSent(status);
+        
         if(mStatusMessageHandler != null)
             mStatusMessageHandler.handleStatusMessage(status);
     }
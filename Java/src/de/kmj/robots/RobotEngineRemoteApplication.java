@@ -2,11 +2,18 @@ package de.kmj.robots;
 
 
 import de.kmj.robots.messaging.StatusMessageHandler;
-import de.kmj.robots.messaging.MessageServer;
 import java.lang.reflect.Constructor;
+import de.kmj.robots.messaging.CommandCoalescer;
+import de.kmj.robots.messaging.CommandDispatcher;
 import de.kmj.robots.messaging.CommandMessage;
 import de.kmj.robots.messaging.CommandMessageHandler;
+import de.kmj.robots.messaging.MessageJournal;
+import de.kmj.robots.messaging.ServerTransport;
 import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.Transports;
+import de.kmj.robots.util.AsyncLogHandler;
+import de.kmj.robots.util.BasicLogFormatter;
+import de.kmj.robots.util.EngineMetrics;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
@@ -14,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Properties;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +39,53 @@ import java.util.logging.Logger;
  * <li>network.localPort: the port on which this application receives commands for the engine</li>
  * <li>network.bufferSize: the size of the message buffer</li>
  * </ul>
+ * Optional parameters:
+ * <ul>
+ * <li>network.transport: the name of the
+ * {@link de.kmj.robots.messaging.TransportProvider} which receives the
+ * commands, e.g. "udp" or "inprocess" for a control application in the same
+ * JVM (default: "udp")</li>
+ * <li>network.channel: the channel name of the "inprocess" transport
+ * (default: "default")</li>
+ * <li>network.useChannel: "true" for receiving via a NIO DatagramChannel
+ * with pooled direct buffers (default: "false")</li>
+ * <li>network.taskTTL: the number of seconds after which the client address
+ * of an unfinished task is forgotten if no status is sent (default: "600")</li>
+ * <li>network.maxTasks: the maximum number of unfinished tasks whose client
+ * addresses are kept (default: "10000")</li>
+ * <li>network.duplicateWindow: the number of task IDs whose last sequence
+ * number is remembered for ignoring commands which a reliable client has
+ * sent again (default: "4096")</li>
+ * <li>engine.dispatch.workers: the number of worker threads which execute
+ * network commands, or "0" for executing them on the receiving thread
+ * (default: "0")</li>
+ * <li>engine.dispatch.queueSize: the maximum number of waiting commands per
+ * worker thread (default: "64")</li>
+ * <li>engine.coalesce: a comma separated list of command types of which only
+ * the newest command per actuator is executed, e.g. "gaze,pose,facs"; older
+ * commands are rejected as "superseded", see
+ * {@link de.kmj.robots.messaging.CommandCoalescer} (default: "", disabled)</li>
+ * <li>metrics.enabled: "true" for recording latencies and counters of the
+ * command handling, which are published via JMX (default: "false")</li>
+ * <li>metrics.jmxName: the JMX object name of the metrics
+ * (default: "de.kmj.robots:type=EngineMetrics")</li>
+ * <li>metrics.logInterval: the number of seconds between two metrics
+ * snapshots in the log, or "0" for no snapshots (default: "0")</li>
+ * <li>journal.directory: the directory in which a
+ * {@link de.kmj.robots.messaging.MessageJournal} records all received commands
+ * and sent statuses, or "" for no journal (default: "")</li>
+ * <li>journal.name: the name of the journal files, which is followed by the
+ * start time of the session (default: "session")</li>
+ * <li>journal.segmentSize: the size of a journal segment file in MB
+ * (default: "64")</li>
+ * <li>logging.async: "true" for writing the log output on a background
+ * thread, see {@link de.kmj.robots.util.AsyncLogHandler} (default: "false")</li>
+ * <li>logging.bufferSize: the maximum number of log records which wait for
+ * output in asynchronous mode (default: "4096")</li>
+ * <li>logging.timestamps: "true" for formatting the log output with a
+ * {@link de.kmj.robots.util.BasicLogFormatter} which starts each line with a
+ * monotonic timestamp in microseconds (default: "false")</li>
+ * </ul>
  * 
  * @author Kathrin Janowski
  */
@@ -40,7 +95,19 @@ public class RobotEngineRemoteApplication
     private static final Logger cLogger = Logger.getLogger(RobotEngineRemoteApplication.class.getName());
             
     /** Handles the remote connection to the control application. */
-    MessageServer mMessageServer;
+    ServerTransport mMessageServer;
+
+    /** Executes network commands on worker threads, if enabled. */
+    CommandDispatcher mDispatcher;
+
+    /** Drops superseded continuous commands, if enabled. */
+    CommandCoalescer mCoalescer;
+
+    /** Records latencies and counters, if enabled. */
+    EngineMetrics mMetrics;
+
+    /** Records all messages, if enabled. */
+    MessageJournal mJournal;
 
     /** The RobotEngine instance. */
     RobotEngine mEngine;
@@ -110,7 +177,8 @@ public class RobotEngineRemoteApplication
      * Tries to create an instance of the {@link de.kmj.robots.RobotEngine}
      * implementation which is specified in the application configuration.
      * 
-     * Afterwards, a {@link de.kmj.robots.messaging.MessageServer} is created
+     * Afterwards, a {@link de.kmj.robots.messaging.ServerTransport} (by
+     * default a {@link de.kmj.robots.messaging.MessageServer}) is created
      * based on the network settings in the same configuration.
      * If the creation of the MessageServer fails, the application will issue
      * a warning and start without the option for network input. 
@@ -128,6 +196,32 @@ public class RobotEngineRemoteApplication
             return false;
         }
         
+        //----------------------------------------------------------------------
+        // log output
+        //----------------------------------------------------------------------
+        
+        if(Boolean.parseBoolean(mAppConfig.getProperty("logging.timestamps", "false")))
+        {
+            BasicLogFormatter formatter = new BasicLogFormatter(true);
+            for(Handler handler: Logger.getLogger("").getHandlers())
+                handler.setFormatter(formatter);
+        }
+        
+        if(Boolean.parseBoolean(mAppConfig.getProperty("logging.async", "false")))
+        {
+            String logBufferSize = mAppConfig.getProperty("logging.bufferSize",
+                    String.valueOf(AsyncLogHandler.DEFAULT_CAPACITY));
+            try{
+                AsyncLogHandler.wrapHandlers(Logger.getLogger(""),
+                        Integer.parseInt(logBufferSize));
+            }
+            catch(IllegalArgumentException iae)
+            {
+                cLogger.log(Level.WARNING, "invalid log buffer size: {0}"
+                        + "\n\t-> writing log output synchronously", iae.toString());
+            }
+        }
+        
         //----------------------------------------------------------------------
         // engine
         //----------------------------------------------------------------------
@@ -157,6 +251,30 @@ public class RobotEngineRemoteApplication
             return false;
         }
 
+        //----------------------------------------------------------------------
+        // metrics
+        //----------------------------------------------------------------------
+        
+        String metricsEnabled = mAppConfig.getProperty("metrics.enabled", "false");
+        if(Boolean.parseBoolean(metricsEnabled))
+        {
+            mMetrics = new EngineMetrics();
+            mMetrics.register(mAppConfig.getProperty("metrics.jmxName",
+                    EngineMetrics.DEFAULT_OBJECT_NAME));
+            
+            String logInterval = mAppConfig.getProperty("metrics.logInterval", "0");
+            try{
+                long interval = Long.parseLong(logInterval);
+                if(interval > 0)
+                    mMetrics.startLogging(interval*1000L);
+            }
+            catch(NumberFormatException nfe)
+            {
+                cLogger.log(Level.WARNING, "invalid metrics log interval: {0}", logInterval);
+            }
+            mEngine.setMetrics(mMetrics);
+        }
+        
         mEngine.setStatusMessageHandler(this);
         mEngine.start(engineConfig);
         
@@ -166,16 +284,73 @@ public class RobotEngineRemoteApplication
         // network connection
         //----------------------------------------------------------------------
         
-        String localIP = mAppConfig.getProperty("network.localIP", "127.0.0.1");
-        String localPort = mAppConfig.getProperty("network.localPort", "1241");
-                
-        String bufferSize = mAppConfig.getProperty("network.bufferSize", "4096");
+        String transport = mAppConfig.getProperty("network.transport",
+                Transports.DEFAULT_TRANSPORT);
 
+        CommandMessageHandler commandHandler = this;
         
+        String dispatchWorkers = mAppConfig.getProperty("engine.dispatch.workers", "0");
+        String dispatchQueueSize = mAppConfig.getProperty("engine.dispatch.queueSize", "64");
         try{
-            mMessageServer = new MessageServer(this, bufferSize,
-                localIP, localPort);
-
+            int workers = Integer.parseInt(dispatchWorkers);
+            if(workers > 0)
+            {
+                mDispatcher = new CommandDispatcher(this, this, workers,
+                        Integer.parseInt(dispatchQueueSize));
+                mDispatcher.setMetrics(mMetrics);
+                mDispatcher.start();
+                commandHandler = mDispatcher;
+            }
+        }
+        catch(IllegalArgumentException iae)
+        {
+            cLogger.log(Level.WARNING, "invalid dispatch configuration: {0}"
+                    + "\n\t-> executing commands on the receiving thread", 
+                    iae.toString()
+                );
+            mDispatcher = null;
+        }
+        
+        String coalesceTypes = mAppConfig.getProperty("engine.coalesce", "").trim();
+        if(!coalesceTypes.isEmpty())
+        {
+            mCoalescer = new CommandCoalescer(commandHandler, this,
+                    coalesceTypes.split("\\s*,\\s*"));
+            mCoalescer.setMetrics(mMetrics);
+            mCoalescer.start();
+            commandHandler = mCoalescer;
+        }
+        
+        try{
+            mMessageServer = Transports.get(transport).createServer(
+                    commandHandler, mAppConfig);
+            mMessageServer.setMetrics(mMetrics);
+            
+            String journalDir = mAppConfig.getProperty("journal.directory", "").trim();
+            if(!journalDir.isEmpty())
+            {
+                String segmentSize = mAppConfig.getProperty("journal.segmentSize", 
+                        String.valueOf(MessageJournal.DEFAULT_SEGMENT_SIZE >> 20));
+                try{
+                    mJournal = new MessageJournal(new File(journalDir),
+                            mAppConfig.getProperty("journal.name", "session"),
+                            Integer.parseInt(segmentSize) << 20);
+                    mMessageServer.setJournal(mJournal);
+                }
+                catch(IOException ioe)
+                {
+                    cLogger.log(Level.SEVERE, "could not create journal: {0}", 
+                            ioe.toString());
+                    mJournal = null;
+                }
+                catch(IllegalArgumentException iae)
+                {
+                    cLogger.log(Level.WARNING, "invalid journal configuration: {0}"
+                            + "\n\t-> no journal", iae.toString());
+                    mJournal = null;
+                }
+            }
+            
             mMessageServer.start();
         }
         catch(IllegalArgumentException iae)
@@ -185,6 +360,14 @@ public class RobotEngineRemoteApplication
                     iae.toString()
                 );
             mMessageServer = null;
+        }
+        catch(IllegalStateException ise)
+        {
+            cLogger.log(Level.SEVERE, "could not start the transport: {0}"
+                    + "\n\t-> only console input available", 
+                    ise.getMessage()
+                );
+            mMessageServer = null;
         }        
         
         
@@ -206,7 +389,8 @@ public class RobotEngineRemoteApplication
         try{
             Level logLevel = Level.parse(logLevelStr.toUpperCase());
             cLogger.log(Level.INFO, "message server log level: {0}", logLevel.getName());
-            mMessageServer.setLogLevel(logLevel);
+            if(mMessageServer != null)
+                mMessageServer.setLogLevel(logLevel);
         }catch(IllegalArgumentException e)
         {
             cLogger.log(Level.SEVERE, "could not parse messaging log level: {0}", e.getMessage());
@@ -222,18 +406,53 @@ public class RobotEngineRemoteApplication
      * Shuts down the RobotEngine and the MessageServer before exiting.
      */
     public void quit()
+    {
+        shutdown();
+        System.exit(0);
+    }
+    
+    /**
+     * Shuts down the RobotEngine and the MessageServer without exiting the
+     * JVM, e.g. when the application was launched in the same JVM as its
+     * control application.
+     */
+    public void shutdown()
     {
         mEngine.stop();
         
-        mMessageServer.abort();       
-        try {
-            mMessageServer.join();
-        } catch (InterruptedException ie) {
-            cLogger.log(Level.FINE, "interrupted while stopping the message server");
+        if(mMessageServer != null)
+        {
+            mMessageServer.abort();       
+            try {
+                mMessageServer.awaitTermination();
+            } catch (InterruptedException ie) {
+                cLogger.log(Level.FINE, "interrupted while stopping the message server");
+            }
+        }
+        
+        if(mJournal != null)
+            mJournal.close();
+        
+        if(mCoalescer != null)
+            mCoalescer.abort();
+        
+        if(mDispatcher != null)
+            mDispatcher.abort();
+        
+        if(mMetrics != null)
+        {
+            cLogger.log(Level.INFO, "metrics: {0}", mMetrics.getSnapshot());
+            mMetrics.close();
         }
 
         cLogger.log(Level.INFO, "shutdown complete");
-        System.exit(0);
+        
+        //write the remaining log output
+        for(Handler handler: Logger.getLogger("").getHandlers())
+        {
+            if(handler instanceof AsyncLogHandler)
+                handler.close();
+        }
     }
     
     
@@ -371,7 +590,12 @@ public class RobotEngineRemoteApplication
     public void handleCommandMessage(CommandMessage message)
     {
         try{
+            long parseTime = (mMetrics != null) ? mMetrics.getParseTime(message.getTaskID()) : -1;
+            
             mEngine.executeCommand(message);
+            
+            if(mMetrics != null)
+                mMetrics.commandExecuted(parseTime);
         }catch(Exception e)
         {
             cLogger.log(Level.SEVERE, "could not handle command: {0}", e.toString());
@@ -51,7 +51,7 @@ public class DefaultControlApplication implements StatusMessageHandler{
         {
             mClient.abort();
             try{
-                mClient.join();
+                mClient.awaitTermination();
             }catch(InterruptedException ie)
             {
                 Logger.getLogger(DefaultControlApplication.class.getName()).
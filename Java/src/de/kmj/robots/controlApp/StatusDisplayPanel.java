@@ -4,35 +4,74 @@ import de.kmj.robots.messaging.StatusMessage;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.TimeZone;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JButton;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.Timer;
 import javax.swing.border.EtchedBorder;
 import javax.swing.border.TitledBorder;
-import javax.swing.table.DefaultTableModel;
 
 /**
  * GUI component for displaying the StatusMessages received from the connected
  * RobotEngine.
+ * <p>
+ * {@link #showStatus(StatusMessage)} may be called from any thread. The rows
+ * are collected in a queue and added to the table in one batch on the event
+ * dispatch thread, at most once per flush interval. Only the most recent
+ * rows are kept.
  * 
  * @see de.kmj.robots.messaging.StatusMessage
  * @author Kathrin Janowski
  */
 public class StatusDisplayPanel extends JPanel implements ActionListener{
     
+    /** Default maximum number of displayed status messages. */
+    public static final int DEFAULT_CAPACITY = 1000;
+    
+    /** Default time between two table updates in milliseconds. */
+    public static final int DEFAULT_FLUSH_INTERVAL = 100;
+    
     private final JTable mStatusTable;
-    private final DefaultTableModel mStatusModel;
+    private final StatusTableModel mStatusModel;
     private final GregorianCalendar mCalendar;
     private final JButton mClearButton;
     
+    /** The rows which wait for the next table update. */
+    private final ConcurrentLinkedQueue<Object[]> mPendingRows;
+    
+    /** The number of waiting rows. */
+    private final AtomicInteger mPendingCount;
+    
+    /** Flag which is set while a table update is scheduled. */
+    private final AtomicBoolean mFlushScheduled;
+    
+    /** Triggers the table update on the event dispatch thread. */
+    private final Timer mFlushTimer;
+    
     public StatusDisplayPanel()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL);
+    }
+    
+    /**
+     * @param capacity the maximum number of displayed status messages
+     * @param flushInterval the minimum time between two table updates in
+     * milliseconds
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public StatusDisplayPanel(int capacity, int flushInterval)
+            throws IllegalArgumentException
     {
         super(new BorderLayout());
         
@@ -42,7 +81,7 @@ public class StatusDisplayPanel extends JPanel implements ActionListener{
         String[] columnNames = new String[]{
             "time", "task ID", "status", "details"
         };
-        mStatusModel = new DefaultTableModel(columnNames, 0);
+        mStatusModel = new StatusTableModel(columnNames, capacity);
         mStatusTable = new JTable(mStatusModel);
         
         JScrollPane scrollPane = new JScrollPane(mStatusTable);
@@ -54,25 +93,45 @@ public class StatusDisplayPanel extends JPanel implements ActionListener{
         add(mClearButton, BorderLayout.SOUTH);
         
         mCalendar = new GregorianCalendar(TimeZone.getTimeZone("CET"));
+        
+        mPendingRows = new ConcurrentLinkedQueue<Object[]>();
+        mPendingCount = new AtomicInteger();
+        mFlushScheduled = new AtomicBoolean(false);
+        
+        mFlushTimer = new Timer(Math.max(0, flushInterval), new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        mFlushTimer.setRepeats(false);
+        mFlushTimer.setCoalesce(true);
     }
     
+    /**
+     * Adds a status message to the table during the next update.
+     * May be called from any thread.
+     * @param status the received status message
+     */
     public void showStatus(StatusMessage status)
     {
-        Date now = new Date();
-        mCalendar.setTime(now);
-        
         //get the timestamp
-        int hour = mCalendar.get(Calendar.HOUR_OF_DAY);
-        int minute = mCalendar.get(Calendar.MINUTE);
-        int second = mCalendar.get(Calendar.SECOND);
-        int millis = mCalendar.get(Calendar.MILLISECOND);
+        int hour, minute, second, millis;
+        synchronized(mCalendar)
+        {
+            mCalendar.setTime(new Date());
+            hour = mCalendar.get(Calendar.HOUR_OF_DAY);
+            minute = mCalendar.get(Calendar.MINUTE);
+            second = mCalendar.get(Calendar.SECOND);
+            millis = mCalendar.get(Calendar.MILLISECOND);
+        }
 
         String timestamp = String.format("%02d:%02d:%02d.%03d",
                 hour, minute, second, millis);
 
         String detailText = "";
         
-        TreeMap<String, String> details = status.getStatusDetails();
+        NavigableMap<String, String> details = status.getStatusDetails();
         if(!details.isEmpty())
         {
             StringBuilder detailBuilder = new StringBuilder();
@@ -92,17 +151,45 @@ public class StatusDisplayPanel extends JPanel implements ActionListener{
         }
         
         
-        mStatusModel.addRow(new String[]{
+        mPendingRows.add(new String[]{
             timestamp, status.getTaskID(), status.getStatus(), detailText
         });
+        
+        //rows beyond the capacity would be replaced anyway
+        if(mPendingCount.incrementAndGet() > mStatusModel.getCapacity())
+        {
+            if(mPendingRows.poll() != null)
+                mPendingCount.decrementAndGet();
+        }
+        
+        if(mFlushScheduled.compareAndSet(false, true))
+            mFlushTimer.restart();
+    }
+    
+    /**
+     * Moves the waiting rows to the table. Runs on the event dispatch thread.
+     */
+    private void flush()
+    {
+        mFlushScheduled.set(false);
+        
+        ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        Object[] row;
+        while((row = mPendingRows.poll()) != null)
+        {
+            mPendingCount.decrementAndGet();
+            rows.add(row);
+        }
+        mStatusModel.addRows(rows);
     }
 
     @Override
     public void actionPerformed(ActionEvent e) {
         if(e.getActionCommand().equals("clear"))
         {
-            while(mStatusModel.getRowCount()>0)
-                mStatusModel.removeRow(0);
+            while(mPendingRows.poll() != null)
+                mPendingCount.decrementAndGet();
+            mStatusModel.clear();
         }
     }
 }
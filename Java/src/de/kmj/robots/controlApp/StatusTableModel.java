@@ -0,0 +1,135 @@
+package de.kmj.robots.controlApp;
+
+import java.util.List;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model which keeps only the most recent rows.
+ * <p>
+ * The rows are stored in a ring buffer of fixed capacity. When it is full,
+ * every new row replaces the oldest one, and clearing the model takes
+ * constant time regardless of the number of rows.
+ * <p>
+ * Like all Swing models, this class must only be accessed on the event
+ * dispatch thread.
+ *
+ * @see de.kmj.robots.controlApp.StatusDisplayPanel
+ * @author Kathrin Janowski
+ */
+public class StatusTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String[] mColumnNames;
+
+    /**
+     * The ring buffer.
+     */
+    private final Object[][] mRows;
+
+    /**
+     * Index of the oldest row in the ring buffer.
+     */
+    private int mHead;
+
+    /**
+     * Number of rows in the ring buffer.
+     */
+    private int mSize;
+
+    /**
+     * Creates an empty model.
+     *
+     * @param columnNames the column names
+     * @param capacity the maximum number of rows
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public StatusTableModel(String[] columnNames, int capacity) throws IllegalArgumentException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mColumnNames = columnNames.clone();
+        mRows = new Object[capacity][];
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return the maximum number of rows
+     */
+    public int getCapacity() {
+        return mRows.length;
+    }
+
+    /**
+     * Appends rows, removing the oldest rows if the capacity is exceeded.
+     *
+     * @param rows the new rows, each with one value per column
+     */
+    public void addRows(List<Object[]> rows) {
+        int count = rows.size();
+        if (count == 0) {
+            return;
+        }
+
+        int capacity = mRows.length;
+        int first = Math.max(0, count - capacity);
+        int removed = Math.max(0, mSize + (count - first) - capacity);
+
+        for (int i = first; i < count; i++) {
+            if (mSize < capacity) {
+                mRows[(mHead + mSize) % capacity] = rows.get(i);
+                mSize++;
+            } else {
+                mRows[mHead] = rows.get(i);
+                mHead = (mHead + 1) % capacity;
+            }
+        }
+
+        if (removed >= mSize) {
+            fireTableDataChanged();
+        } else {
+            if (removed > 0) {
+                fireTableRowsDeleted(0, removed - 1);
+            }
+            fireTableRowsInserted(mSize - (count - first), mSize - 1);
+        }
+    }
+
+    /**
+     * Removes all rows.
+     */
+    public void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        int oldSize = mSize;
+        mHead = 0;
+        mSize = 0;
+        fireTableRowsDeleted(0, oldSize - 1);
+    }
+
+    @Override
+    public int getRowCount() {
+        return mSize;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return mColumnNames[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        if (rowIndex < 0 || rowIndex >= mSize) {
+            throw new IndexOutOfBoundsException("row " + rowIndex + " of " + mSize);
+        }
+        Object[] row = mRows[(mHead + rowIndex) % mRows.length];
+        return (columnIndex < row.length) ? row[columnIndex] : null;
+    }
+}
@@ -5,7 +5,9 @@
  */
 package de.kmj.robots.controlApp.automation;
 
+import de.kmj.robots.controlApp.ConnectionSetting;
 import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.MultiplexedMessageClient;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -38,14 +40,51 @@ public class AutomationPool {
     private final TreeMap<String, AutomationThread> mAutomations;
     private File mFile;
     
+    /** The client which is shared by all automations. */
+    private MultiplexedMessageClient mClient;
+    
     public AutomationPool()
     {
         mAutomations = new TreeMap<String, AutomationThread>();
         mFile=null;
+        mClient=null;
+    }
+    
+    /**
+     * Opens the client which is shared by all automations of this pool.
+     * The client is bound to a free local port, so the ports of the
+     * automations are not used.
+     * @param connection the connection to the RobotEngine
+     * @return true if the client is connected
+     */
+    public boolean connect(ConnectionSetting connection)
+    {
+        if(mClient!=null)
+            mClient.abort();
+        
+        mClient = new MultiplexedMessageClient(1024, connection.getLocalIP(),
+                connection.getRemoteIP(), connection.getRemotePort());
+        mClient.start();
+        
+        for(AutomationThread thread: mAutomations.values())
+            thread.connect(mClient);
+        
+        return mClient.isConnected();
+    }
+    
+    /**
+     * @return the client which is shared by all automations, or null if the
+     * pool is not connected
+     */
+    public MultiplexedMessageClient getClient()
+    {
+        return mClient;
     }
     
     public void add(AutomationThread thread)
     {
+        if(mClient!=null)
+            thread.connect(mClient);
         mAutomations.put(thread.getName(), thread);
     }
     
@@ -87,6 +126,7 @@ public class AutomationPool {
                 autoElem.setAttribute("randomize", Boolean.toString(thread.getRandomize()));
                 autoElem.setAttribute("minDelay", Integer.toString(thread.getMinDelay()));
                 autoElem.setAttribute("maxDelay", Integer.toString(thread.getMaxDelay()));
+                autoElem.setAttribute("taskTimeout", Integer.toString(thread.getTaskTimeout()));
                 autoElem.setAttribute("port", Integer.toString(thread.getPort()));
                 
                 ArrayList<CommandMessage> cmds = thread.getCommands();
@@ -145,7 +185,7 @@ public class AutomationPool {
                 // stop and clear all threads
                 //--------------------------------------------------------------
                 for(AutomationThread thread: mAutomations.values())
-                    thread.interrupt();
+                    thread.abort();
                 mAutomations.clear();
                                         
                 Element root = xml.getDocumentElement();
@@ -189,6 +229,18 @@ public class AutomationPool {
                         }else
                             thread.setMaxDelay(0);
 
+                        //optional, the default timeout is kept otherwise
+                        String timeoutStr = autoElem.getAttribute("taskTimeout");
+                        if(timeoutStr!=null && !timeoutStr.isEmpty())
+                        {
+                            try{
+                                thread.setTaskTimeout(Integer.parseInt(timeoutStr));
+                            }catch(NumberFormatException nfe)
+                            {
+                                cLogger.log(Level.WARNING, "invalid task timeout for automation#"+i+": "+timeoutStr);
+                            }
+                        }
+
                         String portStr = autoElem.getAttribute("port");
                         if(portStr!=null)
                         {
@@ -213,6 +265,8 @@ public class AutomationPool {
                             thread.addCommand(cmd);
                         }
                         
+                        if(mClient!=null)
+                            thread.connect(mClient);
                         mAutomations.put(name, thread);
                     }
                 }
@@ -44,7 +44,6 @@ public class AutomationPoolPanel extends JPanel implements ActionListener{
     private final JButton mSaveThreadsBtn;
     private final JButton mLoadThreadsBtn;
     private final JTextField mNameTF;
-    private final JTextField mPortTF;
     
     private final JFileChooser mFileChooser;
     
@@ -68,15 +67,12 @@ public class AutomationPoolPanel extends JPanel implements ActionListener{
         //----------------------------------------------------------------------
         JPanel creationPanel =new JPanel(new BorderLayout());
         
-        JPanel infoPanel = new JPanel(new GridLayout(2,2));
+        //no port field: all automations share the client of the pool
+        JPanel infoPanel = new JPanel(new GridLayout(1,2));
         JLabel nameLabel = new JLabel("name:");
         infoPanel.add(nameLabel);     
         mNameTF = new JTextField("(unnamed)");
         infoPanel.add(mNameTF);
-        JLabel portLabel = new JLabel("port:");
-        infoPanel.add(portLabel);
-        mPortTF = new JTextField("1234");
-        infoPanel.add(mPortTF);
         
         
         JPanel buttonPanel = new JPanel(new GridLayout(2, 2));
@@ -131,11 +127,8 @@ public class AutomationPoolPanel extends JPanel implements ActionListener{
     {
         mBaseConnection = new ConnectionSetting(remoteIP, localIP, localPort, remoteIP, remotePort);
     
-        for(AutomationThreadPanel panel: mThreadPanels.values())
-        {
-            AutomationThread thread = panel.getThread();
-            if(thread != null) thread.connect(mBaseConnection);
-        }
+        //all automations share one client
+        mAutomationPool.connect(mBaseConnection);
     }
     
     private void addAutomation(){
@@ -146,19 +139,9 @@ public class AutomationPoolPanel extends JPanel implements ActionListener{
         }
             
         
-        int port;
-        try{
-            port = Integer.parseInt(mPortTF.getText());
-        }catch(NumberFormatException nfe)
-        {
-            JOptionPane.showMessageDialog(this, "Please enter a valid port number.", "Illegal Port", JOptionPane.ERROR_MESSAGE);
-            return;
-        }
-        
         String name = mNameTF.getText();
         
         AutomationThread thread = new AutomationThread(name);
-        thread.setPort(port);
         
         mAutomationPool.add(thread);
         createThreadPanel(thread);
@@ -235,8 +218,6 @@ public class AutomationPoolPanel extends JPanel implements ActionListener{
     
     
     private void createThreadPanel(AutomationThread thread){
-        thread.connect(mBaseConnection);
-        thread.start();
         AutomationThreadPanel panel = new AutomationThreadPanel(mEditor, thread);
         mThreadPanels.put(thread.getName(), panel);
         mThreadPanelsPanel.add(panel);
@@ -8,65 +8,111 @@ package de.kmj.robots.controlApp.automation;
 import de.kmj.robots.controlApp.ConnectionSetting;
 import de.kmj.robots.messaging.CommandMessage;
 import de.kmj.robots.messaging.MessageClient;
+import de.kmj.robots.messaging.MultiplexedMessageClient;
 import de.kmj.robots.messaging.StatusMessage;
 import de.kmj.robots.messaging.StatusMessageHandler;
+import de.kmj.robots.util.RobotThreadFactory;
 import java.util.ArrayList;
 import java.util.Random;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Repeatedly sends a list of commands to a RobotEngine, waiting for each
+ * command to finish and for a random delay before sending the next one.
+ * <p>
+ * Despite its name, an automation does not own a thread. The playback of all
+ * automations is driven by a single shared scheduler: sending the next
+ * command is scheduled when the previous one has finished or was rejected,
+ * so idle automations don't occupy any thread while they wait.
+ * <p>
+ * Only the final status of the task which was sent last ends the wait, late
+ * statuses of earlier tasks are ignored. If no final status arrives within
+ * the task timeout, the automation moves on to the next command anyway.
+ * <p>
+ * The playback state is only modified on the scheduler thread.
+ * <p>
+ * An automation either shares a {@link MultiplexedMessageClient} with other
+ * automations, or it opens its own {@link MessageClient} on its port. When it
+ * shares a client, the task IDs of its commands are prefixed with the
+ * automation's name to keep them unique.
  *
  * @author Kathrin
  */
-public class AutomationThread extends Thread implements StatusMessageHandler{
+public class AutomationThread implements StatusMessageHandler{
     private static final Random sRandom = new Random();
-    
+
+    /** Delay for retrying when there is nothing to send. */
+    private static final long RETRY_DELAY = 1000;
+
+    /** Default time to wait for the final status of a task. */
+    private static final int DEFAULT_TASK_TIMEOUT = 60000;
+
+    /** Schedules the playback of all automations. */
+    private static final ScheduledExecutorService sScheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                    new RobotThreadFactory("AutomationScheduler", true));
+
+    private final String mName;
+
     private final Logger mLogger;
-    
+
     private MessageClient mClient;
+    private MultiplexedMessageClient mSharedClient;
     private ConnectionSetting mBaseConnection;
     private int mPort;
-    private final ReentrantLock mClientLock = new ReentrantLock();
-    private final Condition mClientCond = mClientLock.newCondition();
-    
+    private final Object mClientLock = new Object();
+
     private final ArrayList<CommandMessage> mCommands;
-    
-    private boolean mActive;
-    private final ReentrantLock mActiveLock = new ReentrantLock(true);
-    private final Condition mActiveCond = mActiveLock.newCondition();
-    
+
+    private volatile boolean mActive;
+
+    //playback state, only accessed on the scheduler thread
+    private int mGeneration;
+    private int mIndex;
     private boolean mPlaying;
-    private final ReentrantLock mPlayingLock = new ReentrantLock(true);
-    private final Condition mPlayingCond = mPlayingLock.newCondition();
-    
+    private String mCurrentTaskID;
+    private ScheduledFuture<?> mNextPlay;
+    private ScheduledFuture<?> mTimeout;
+
     //play mode
-    private boolean mRandomize;
-    
+    private volatile boolean mRandomize;
+
     //delays
-    private int mMinDelay;
-    private int mMaxDelay;
+    private volatile int mMinDelay;
+    private volatile int mMaxDelay;
+    private volatile int mTaskTimeout;
+
 
-    
     public AutomationThread(String name)
     {
-        super(name);
-        mLogger = Logger.getLogger("AutomationThread-"+this.getName());
-        
+        mName = name;
+        mLogger = Logger.getLogger("AutomationThread-"+name);
+
         mCommands = new ArrayList<CommandMessage>();
         mClient = null;
+        mSharedClient = null;
         mBaseConnection=null;
-        
+
         //default values
         mRandomize = false;
-        
+
         mMinDelay = 1000;
         mMaxDelay = 1000;
-        
+        mTaskTimeout = DEFAULT_TASK_TIMEOUT;
+
         mActive=false;
         mPlaying=false;
+        mGeneration=0;
+        mIndex=-1;
+    }
+
+    public String getName(){
+        return mName;
     }
 
     public void setPort(int port){
@@ -77,34 +123,49 @@ public class AutomationThread extends Thread implements StatusMessageHandler{
 
     public boolean isConnected()
     {
-        try{
-            mClientLock.lock();
+        synchronized(mClientLock){
+            if(mSharedClient != null)
+                return mSharedClient.isConnected();
             if(mClient == null)
                 return false;
-        
+
             return mClient.isConnected();
-        }finally{
-            if(mClientLock.isHeldByCurrentThread())
-                mClientLock.unlock();
         }
     }
 
     public boolean connect(ConnectionSetting connection){
-        try{
-            mClientLock.lock();
-        
+        synchronized(mClientLock){
             mBaseConnection = connection;
-        
+            mSharedClient = null;
+
             return reconnect();
-        }finally{
-            if(mClientLock.isHeldByCurrentThread())
-                mClientLock.unlock();
         }
     }
-    
+
+    /**
+     * Sends the commands via a client which is shared with other automations.
+     * The own client is closed, and the port is no longer used.
+     * @param client the shared client
+     * @return true if the shared client is connected
+     */
+    public boolean connect(MultiplexedMessageClient client){
+        synchronized(mClientLock){
+            if(mClient!=null)
+                mClient.abort();
+            mClient = null;
+            mSharedClient = client;
+
+            return client.isConnected();
+        }
+    }
+
     public boolean reconnect(){
-        try{
-            mClientLock.lock();
+        synchronized(mClientLock){
+            if(mSharedClient != null)
+                return mSharedClient.isConnected();
+            if(mBaseConnection == null)
+                return false;
+
             if(mClient!=null)
                 mClient.abort();
             mClient = new MessageClient(this, 1024,
@@ -112,16 +173,11 @@ public class AutomationThread extends Thread implements StatusMessageHandler{
                             mBaseConnection.getRemoteIP(), mBaseConnection.getRemotePort()
                             );
             mClient.start();
-            mClientCond.signalAll();
-            
-            boolean success = (mClient!=null)&&mClient.isConnected();
-            mLogger.log(Level.INFO, "connected: "+success);
+
+            boolean success = mClient.isConnected();
+            mLogger.log(Level.INFO, "connected: {0}", success);
             return success;
         }
-        finally{
-            if(mClientLock.isHeldByCurrentThread())
-                mClientLock.unlock();
-        }
     }
 
     public boolean addCommand(CommandMessage cmd){
@@ -134,277 +190,312 @@ public class AutomationThread extends Thread implements StatusMessageHandler{
     public boolean removeCommand(int index){
         if(index<0)
             return false;
-        
+
         synchronized(mCommands){
             if(index >= mCommands.size())
                 return false;
-            
-            CommandMessage old = mCommands.remove(index);            
+
+            CommandMessage old = mCommands.remove(index);
             return (old!=null);
         }
     }
-    
+
     public ArrayList getCommands()
     {
         return mCommands;
     }
-    
+
     public boolean isActive(){
-        boolean active = false;
-        try{
-            mActiveLock.lock();
-            active = mActive;
-        }finally{
-            if(mActiveLock.isHeldByCurrentThread())
-                mActiveLock.unlock();
-        }
-        return active;
+        return mActive;
     }
-    
-    
+
+
 
     public void setRandomize(boolean randomize)
     {
         mRandomize = randomize;
     }
-    
+
     public boolean getRandomize()
     {
         return mRandomize;
     }
-    
+
     public int setMinDelay(int minDelay)
     {
         //limited to [0 sec; 5 min]
         minDelay = Math.max(0, minDelay);
-        minDelay = Math.min(300000, minDelay);        
+        minDelay = Math.min(300000, minDelay);
         mMinDelay = minDelay;
         return mMinDelay;
     }
-    
+
     public int getMinDelay(){
         return mMinDelay;
     }
-    
+
     public int setMaxDelay(int maxDelay)
     {
         //limited to [0 sec; 5 min]
         maxDelay = Math.max(0, maxDelay);
-        maxDelay = Math.min(300000, maxDelay);        
+        maxDelay = Math.min(300000, maxDelay);
         mMaxDelay = maxDelay;
         return mMaxDelay;
     }
-    
+
     public int getMaxDelay(){
         return mMaxDelay;
     }
-    
+
+    /**
+     * Sets the time to wait for the final status of a command. When it has
+     * passed, the command is considered lost and the next one is sent.
+     * @param timeout the timeout in milliseconds, or 0 for waiting forever
+     * @return the timeout which is actually used
+     */
+    public int setTaskTimeout(int timeout)
+    {
+        //limited to [0 sec; 1 hour]
+        timeout = Math.max(0, timeout);
+        timeout = Math.min(3600000, timeout);
+        mTaskTimeout = timeout;
+        return mTaskTimeout;
+    }
+
+    public int getTaskTimeout(){
+        return mTaskTimeout;
+    }
+
     public int getPort(){
         return mPort;
     }
-        
+
     public void setActive(boolean active)
     {
-        try{
-            mActiveLock.lock();
-            
-            if(active)
-                resetPlayState();
-            
-            mActive = active;
-            mActiveCond.signalAll();            
-        }
-        finally{
-            if(mActiveLock.isHeldByCurrentThread())
-                mActiveLock.unlock();
-        }
-        
-        if(!isConnected())
+        mActive = active;
+        resetPlayState();
+
+        if(active && !isConnected())
             reconnect();
     }
-    
+
+    /**
+     * Stops waiting for the current command and starts over with the next one
+     * if the automation is active.
+     */
     public void resetPlayState()
     {
-        try{
-            mPlayingLock.lock();
-            mPlaying = false;
-            mPlayingCond.signalAll();
-        }finally{
-            if(mPlayingLock.isHeldByCurrentThread())
-                mPlayingLock.unlock();
+        sScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                restart();
+            }
+        });
+    }
+
+    /**
+     * Stops the playback and closes the connection.
+     */
+    public void abort()
+    {
+        mActive = false;
+        resetPlayState();
+
+        synchronized(mClientLock){
+            if(mClient!=null)
+                mClient.abort();
+            mClient = null;
+            mSharedClient = null;
         }
     }
-    
-    
-    @Override
-    public void run(){
-        long chosenDelay;
-        int chosenIndex = 0;
-        boolean active;
-        boolean playing;
-        boolean running = true;
-        
-        while(running){
-            
-            //wait until the thread is activated -------------------------------
-            try{
-                mActiveLock.lock();
-                active = mActive;
-                
-                while(!active)
-                {
-                    mLogger.log(Level.INFO, "waiting for activation...");
-                    mActiveCond.await();
-                    active = mActive;
-                }
-            }catch(InterruptedException e)
-            {
-                running = false;
-            }finally{
-                if(mActiveLock.isHeldByCurrentThread())
-                    mActiveLock.unlock();
-            }
-            
-            
-            if(!running)
-                return;
-            
-            //------------------------------------------------------------------
-            
-            boolean connected = false;
-            try{
-                mClientLock.lock();
-                connected = isConnected();
-                
-                while(!connected){
-                    mLogger.log(Level.INFO, "waiting for connection ("
-                            +mBaseConnection.getLocalIP()+":"+mPort+"->"
-                            +mBaseConnection.getRemoteIP()+":"+mBaseConnection.getRemotePort()+") ...");
-                    mClientCond.await();
-                    connected = isConnected();
-                }
-            }catch(InterruptedException e){
-                running = false;
-            }
-            finally{
-                if(mClientLock.isHeldByCurrentThread())
-                    mClientLock.unlock();
+
+
+    //==========================================================================
+    // playback, running on the scheduler thread
+    //==========================================================================
+
+    private void restart()
+    {
+        mGeneration++;
+        stopWaiting();
+        if(mNextPlay != null)
+        {
+            mNextPlay.cancel(false);
+            mNextPlay = null;
+        }
+
+        if(mActive)
+            schedulePlay(0);
+        else mLogger.log(Level.INFO, "waiting for activation...");
+    }
+
+    private void schedulePlay(long delay)
+    {
+        final int generation = mGeneration;
+        mNextPlay = sScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(generation == mGeneration)
+                    playNext();
             }
-            
-            if(!running)
-                return;
-            
-            if(connected){
-                //choose the next command ------------------------------------------
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void playNext()
+    {
+        mNextPlay = null;
+        if(!mActive)
+            return;
+
+        MessageClient client;
+        MultiplexedMessageClient sharedClient;
+        synchronized(mClientLock){
+            client = (mClient != null && mClient.isConnected()) ? mClient : null;
+            sharedClient = (mSharedClient != null && mSharedClient.isConnected()) ? mSharedClient : null;
+        }
+        if(client == null && sharedClient == null)
+        {
+            if(mBaseConnection != null)
+                mLogger.log(Level.INFO, "waiting for connection ("
+                        +mBaseConnection.getLocalIP()+":"+mPort+"->"
+                        +mBaseConnection.getRemoteIP()+":"+mBaseConnection.getRemotePort()+") ...");
+            schedulePlay(RETRY_DELAY);
+            return;
+        }
+
+        //choose the next command ------------------------------------------
+        CommandMessage nextCmd;
+        synchronized(mCommands){
+            if(mCommands.isEmpty())
+            {
+                nextCmd = null;
+            }else{
                 if(mRandomize)
                 {
-                    chosenIndex = sRandom.nextInt(mCommands.size());
+                    mIndex = sRandom.nextInt(mCommands.size());
                 }else{
-                    chosenIndex++;
-                    if(chosenIndex >= mCommands.size())
-                        chosenIndex=0;
+                    mIndex++;
+                    if(mIndex >= mCommands.size())
+                        mIndex=0;
                 }
+                nextCmd = mCommands.get(mIndex);
+            }
+        }
 
-                //send the command -------------------------------------------------
+        if(nextCmd == null)
+        {
+            schedulePlay(Math.max(mMinDelay, RETRY_DELAY));
+            return;
+        }
 
-                CommandMessage nextCmd;
-                synchronized(mCommands){
-                    if(mCommands.isEmpty())
-                    {
-                        nextCmd = null;
-                    }else 
-                        nextCmd = mCommands.get(chosenIndex);
-                }
+        //send the command and wait for the end ----------------------------
+        if(sharedClient != null)
+            nextCmd = prefixTaskID(nextCmd);
+        mPlaying = true;
+        mCurrentTaskID = nextCmd.getTaskID();
+        scheduleTimeout(mCurrentTaskID);
 
-                if(nextCmd != null){
-                    mClient.sendCommandMessage(mCommands.get(chosenIndex));
-
-                    try{
-                        mPlayingLock.lock();
-                        mPlaying = true;
-                    }
-                    finally{
-                        if(mPlayingLock.isHeldByCurrentThread())
-                            mPlayingLock.unlock();
-                    }
-
-                    //wait for end
-                    playing = true;            
-                    try{
-                        mPlayingLock.lock();
-                        playing = mPlaying;
-
-                        while(playing)
-                        {
-                            mLogger.log(Level.INFO, "waiting for task completion...");
-
-                            mPlayingCond.await();
-                            playing = mPlaying;
-                        }
-                    }catch(InterruptedException e)
-                    {
-                        running = false;
-                    }
-                    finally{
-                        if(mPlayingLock.isHeldByCurrentThread())
-                            mPlayingLock.unlock();
-                    }
-
-                    if(!running)
-                        return;
-
-                    //sleep until next command -----------------------------------------
-
-                    if(mMaxDelay>mMinDelay)
-                        chosenDelay = sRandom.nextInt(mMaxDelay-mMinDelay) + mMinDelay;
-                    else chosenDelay = mMinDelay;
-                    try{
-                        mLogger.log(Level.INFO, "sleeping for "+chosenDelay+" ms...");
-                        sleep(chosenDelay);
-                    }catch(InterruptedException e)
-                    {
-                        running = false;
-                    }
+        if(sharedClient != null)
+            sharedClient.sendCommandMessage(nextCmd, this);
+        else client.sendCommandMessage(nextCmd);
+        mLogger.log(Level.FINE, "waiting for task completion...");
+    }
+
+    private void scheduleTimeout(final String taskID)
+    {
+        final int timeout = mTaskTimeout;
+        if(timeout <= 0)
+            return;
 
+        mTimeout = sScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(mPlaying && taskID.equals(mCurrentTaskID))
+                {
+                    mLogger.log(Level.WARNING, "no final status for task {0} after {1} ms",
+                            new Object[]{taskID, timeout});
+                    taskEnded(taskID);
                 }
             }
-            
-            if(isInterrupted())
-                running=false;
-        }        
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopWaiting()
+    {
+        mPlaying = false;
+        mCurrentTaskID = null;
+        if(mTimeout != null)
+        {
+            mTimeout.cancel(false);
+            mTimeout = null;
+        }
+    }
+
+    /**
+     * Creates a copy of the command whose task ID is unique among all
+     * automations which share a client.
+     */
+    private CommandMessage prefixTaskID(CommandMessage cmd)
+    {
+        return new CommandMessage(mName+"/"+cmd.getTaskID(), cmd);
     }
-    
+
+    private void taskEnded(String taskID)
+    {
+        if(!mPlaying || !taskID.equals(mCurrentTaskID))
+        {
+            mLogger.log(Level.FINE, "ignoring the status of task {0}", taskID);
+            return;
+        }
+        stopWaiting();
+
+        if(!mActive)
+            return;
+
+        //wait until next command ------------------------------------------
+        int minDelay = mMinDelay;
+        int maxDelay = mMaxDelay;
+        long chosenDelay;
+        if(maxDelay>minDelay)
+            chosenDelay = sRandom.nextInt(maxDelay-minDelay) + minDelay;
+        else chosenDelay = minDelay;
+
+        mLogger.log(Level.FINE, "next command in {0} ms", chosenDelay);
+        schedulePlay(chosenDelay);
+    }
+
+    //==========================================================================
+
     @Override
     public void finalize() throws Throwable{
         if(mClient!=null)
             mClient.abort();
         super.finalize();
     }
-    
+
     @Override
     public void handleStatusMessage(StatusMessage message) {
         String status = message.getStatus();
-        
+        final String taskID = message.getTaskID();
+
         if(status.equals("finished") || status.equals("rejected"))
         {
-            try{
-                mPlayingLock.lock();
-                mPlaying = false;
-                mPlayingCond.signalAll();
-            }finally{
-                if(mPlayingLock.isHeldByCurrentThread())
-                    mPlayingLock.unlock();
-            }
-            
+            sScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    taskEnded(taskID);
+                }
+            });
+
             if(status.equals("rejected"))
             {
                 String reason = message.getDetail("reason");
-                mLogger.log(Level.WARNING, "command rejected, reason: "+reason);
+                mLogger.log(Level.WARNING, "command rejected, reason: {0}", reason);
             }
         }
         //otherwise ignore
     }
-    
-    
-    
+
+
+
 }
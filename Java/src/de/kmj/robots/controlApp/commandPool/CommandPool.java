@@ -100,6 +100,14 @@ public class CommandPool{
     {
         return mCategoryModel;
     }
+
+    /**
+     * @return the category which contains all commands and subcategories
+     */
+    public Category getRootCategory()
+    {
+        return mRootCategory;
+    }
     
     protected final void buildTree()
     {
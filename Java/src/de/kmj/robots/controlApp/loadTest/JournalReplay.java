@@ -0,0 +1,614 @@
+package de.kmj.robots.controlApp.loadTest;
+
+import de.kmj.robots.RobotEngineRemoteApplication;
+import de.kmj.robots.messaging.ClientTransport;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.JournalEntry;
+import de.kmj.robots.messaging.JournalReader;
+import de.kmj.robots.messaging.StatusFanOut;
+import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.StatusMessageHandler;
+import de.kmj.robots.messaging.Transports;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays the commands of a recorded
+ * {@link de.kmj.robots.messaging.MessageJournal} session against a RobotEngine
+ * and checks the result for regressions.
+ * <p>
+ * The commands are sent in their recorded order, either with their original
+ * time intervals (optionally scaled) or as fast as possible with a limited
+ * number of open tasks. Each command gets the task ID "replay&lt;n&gt;",
+ * where n is its index in the session, so the statuses can be matched to
+ * the commands even if the session has reused task IDs. Commands which only
+ * control the subscription to all statuses are skipped.
+ * <p>
+ * For every command, the sequence of returned status labels (e.g.
+ * "started,finished") and the latency from sending to the final status are
+ * recorded. The result is compared to a baseline:
+ * <ul>
+ * <li>a baseline file which was saved by an earlier replay: the status
+ * sequences and the latency percentiles are compared</li>
+ * <li>otherwise the statuses recorded in the journal: only the status
+ * sequences are compared</li>
+ * </ul>
+ * The replay fails if more status sequences differ than allowed or if the
+ * p50, p90 or p99 latency exceeds the baseline by more than the relative and
+ * the absolute tolerance together. The process then exits with code 1, and
+ * with code 2 if the replay could not be run at all, so the tool can be used
+ * in scripts.
+ * <p>
+ * The RobotEngine is reached via any {@link de.kmj.robots.messaging.Transports
+ * transport}. With "replay.launch", a
+ * {@link de.kmj.robots.RobotEngineRemoteApplication} is started in the same
+ * JVM first; its configuration should then contain
+ * "network.transport=inprocess".
+ * <p>
+ * To run this application, a configuration file with the following
+ * parameters is required:
+ * <ul>
+ * <li>replay.journal: the directory of the journal files</li>
+ * </ul>
+ * Optional parameters:
+ * <ul>
+ * <li>replay.session: the name of the session to replay (default: the last
+ * session in the directory)</li>
+ * <li>replay.speed: "original" for the recorded timing, "max" for sending as
+ * fast as possible, or a factor by which the recorded timing is accelerated
+ * (default: "original")</li>
+ * <li>replay.concurrency: the maximum number of open tasks at maximum speed
+ * (default: "16")</li>
+ * <li>replay.timeout: the number of milliseconds after which an open task is
+ * counted as lost (default: "5000")</li>
+ * <li>replay.baseline: the path of a baseline file to compare with (default:
+ * none, compare with the journal)</li>
+ * <li>replay.saveBaseline: the path of a file which receives the result as a
+ * new baseline (default: none)</li>
+ * <li>replay.maxMismatches: the number of differing status sequences which
+ * is still accepted (default: "0")</li>
+ * <li>replay.tolerance: the accepted relative latency increase
+ * (default: "0.2")</li>
+ * <li>replay.toleranceMs: the accepted absolute latency increase in
+ * milliseconds, in addition to the relative one (default: "1")</li>
+ * <li>replay.launch: the path of a RobotEngineRemoteApplication
+ * configuration which is launched in the same JVM (default: none)</li>
+ * <li>network.transport: the transport name, e.g. "udp" or "inprocess"
+ * (default: "udp")</li>
+ * <li>the connection parameters of the transport, see
+ * {@link de.kmj.robots.messaging.UdpTransportProvider} and
+ * {@link de.kmj.robots.messaging.InProcessTransportProvider}</li>
+ * </ul>
+ *
+ * @author Kathrin Janowski
+ */
+public class JournalReplay implements StatusMessageHandler {
+
+    private static final Logger cLogger = Logger.getLogger(JournalReplay.class.getName());
+
+    /** Prefix of the replayed task IDs. */
+    private static final String TASK_PREFIX = "replay";
+
+    /** The percentiles which are compared with the baseline. */
+    private static final int[] cPercentiles = new int[]{50, 90, 99};
+
+    /**
+     * The statuses of a replayed task.
+     */
+    private static class TaskRecord {
+
+        final int mIndex;
+        final long mSent;
+        final StringBuilder mStatuses;
+
+        TaskRecord(int index, long sent) {
+            mIndex = index;
+            mSent = sent;
+            mStatuses = new StringBuilder();
+        }
+
+        synchronized void add(String status) {
+            if (mStatuses.length() > 0) {
+                mStatuses.append(',');
+            }
+            mStatuses.append(status);
+        }
+
+        synchronized String getSequence() {
+            return mStatuses.toString();
+        }
+    }
+
+    /** The commands of the session. */
+    private final List<CommandMessage> mCommands;
+
+    /** The recorded reception time of each command in nanoseconds. */
+    private final long[] mOffsets;
+
+    /** The recorded status sequence of each command. */
+    private final String[] mRecordedSequences;
+
+    /** The open tasks. */
+    private final ConcurrentHashMap<String, TaskRecord> mOpenTasks;
+
+    /** The status sequence of each command in the current run. */
+    private String[] mSequences;
+
+    /** The latency of each command in the current run, or -1. */
+    private long[] mLatencies;
+
+    /** One permit per task which may still be opened, or null. */
+    private Semaphore mPermits;
+
+    private int mConcurrency;
+    private long mTimeout;
+
+    /**
+     * Creates a replay of the recorded commands.
+     *
+     * @param entries the messages of a journal session
+     * @throws IllegalArgumentException if there are no commands
+     */
+    public JournalReplay(List<JournalEntry> entries) throws IllegalArgumentException {
+        mCommands = new ArrayList<CommandMessage>();
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        ArrayList<StringBuilder> sequences = new ArrayList<StringBuilder>();
+        HashMap<String, StringBuilder> open = new HashMap<String, StringBuilder>();
+
+        for (JournalEntry entry : entries) {
+            if (entry.isCommand()) {
+                String type = entry.getCommand().getCommandType();
+                if (type.equals(StatusFanOut.SUBSCRIBE_TYPE)
+                        || type.equals(StatusFanOut.UNSUBSCRIBE_TYPE)) {
+                    continue;
+                }
+                StringBuilder sequence = new StringBuilder();
+                mCommands.add(entry.getCommand());
+                offsets.add(entry.getTimestamp());
+                sequences.add(sequence);
+                open.put(entry.getTaskID(), sequence);
+            } else {
+                String status = entry.getStatus().getStatus();
+                StringBuilder sequence = (status.equals("finished") || status.equals("rejected"))
+                        ? open.remove(entry.getTaskID())
+                        : open.get(entry.getTaskID());
+                if (sequence != null) {
+                    if (sequence.length() > 0) {
+                        sequence.append(',');
+                    }
+                    sequence.append(status);
+                }
+            }
+        }
+        if (mCommands.isEmpty()) {
+            throw new IllegalArgumentException("no commands to replay");
+        }
+
+        mOffsets = new long[offsets.size()];
+        mRecordedSequences = new String[sequences.size()];
+        for (int i = 0; i < mOffsets.length; i++) {
+            mOffsets[i] = offsets.get(i) - offsets.get(0);
+            mRecordedSequences[i] = sequences.get(i).toString();
+        }
+
+        mOpenTasks = new ConcurrentHashMap<String, TaskRecord>();
+        mConcurrency = 16;
+        mTimeout = 5000;
+    }
+
+    //==========================================================================
+    // configuration
+    //==========================================================================
+    /**
+     * @param concurrency the maximum number of open tasks at maximum speed
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setConcurrency(int concurrency) throws IllegalArgumentException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("invalid concurrency: " + concurrency);
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * @param timeout the number of milliseconds after which an open task is
+     * counted as lost
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("invalid timeout: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
+    /**
+     * @return the number of commands which are replayed
+     */
+    public int getCommandCount() {
+        return mCommands.size();
+    }
+
+    /**
+     * @return the recorded duration of the session in milliseconds
+     */
+    public long getRecordedDuration() {
+        return mOffsets[mOffsets.length - 1] / 1000000L;
+    }
+
+    //==========================================================================
+    // running
+    //==========================================================================
+    /**
+     * Sends all commands and waits for their final statuses.
+     *
+     * @param client the connected client, whose status handler is this object
+     * @param speed the factor by which the recorded timing is accelerated, or
+     * 0 for sending as fast as the open tasks allow
+     * @return the result as a baseline, see {@link #compare(Properties, Properties,
+     * int, double, double)}
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public Properties run(ClientTransport client, double speed) throws InterruptedException {
+        int count = mCommands.size();
+        mSequences = new String[count];
+        mLatencies = new long[count];
+        Arrays.fill(mLatencies, -1);
+        mOpenTasks.clear();
+        mPermits = (speed > 0) ? null : new Semaphore(mConcurrency);
+
+        long begin = System.nanoTime();
+        int sent = 0;
+        for (int i = 0; i < count; i++) {
+            if (mPermits != null) {
+                mPermits.acquire();
+            } else {
+                long wait = begin + (long) (mOffsets[i] / speed) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            CommandMessage template = mCommands.get(i);
+            String taskID = TASK_PREFIX + i;
+            CommandMessage cmd = new CommandMessage(taskID, template);
+
+            TaskRecord record = new TaskRecord(i, System.nanoTime());
+            mOpenTasks.put(taskID, record);
+            if (client.sendCommandMessage(cmd)) {
+                sent++;
+            } else {
+                mOpenTasks.remove(taskID);
+                mSequences[i] = "unsent";
+                if (mPermits != null) {
+                    mPermits.release();
+                }
+            }
+        }
+        long sendTime = System.nanoTime() - begin;
+
+        //wait for the remaining tasks
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeout);
+        while (!mOpenTasks.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        int lost = 0;
+        for (TaskRecord record : mOpenTasks.values()) {
+            record.add("lost");
+            mSequences[record.mIndex] = record.getSequence();
+            lost++;
+        }
+        mOpenTasks.clear();
+
+        Properties result = new Properties();
+        result.setProperty("tasks", String.valueOf(count));
+        for (int i = 0; i < count; i++) {
+            result.setProperty("status." + i, (mSequences[i] != null) ? mSequences[i] : "");
+        }
+        long[] latencies = new long[count];
+        int measured = 0;
+        for (long latency : mLatencies) {
+            if (latency >= 0) {
+                latencies[measured++] = latency;
+            }
+        }
+        Arrays.sort(latencies, 0, measured);
+        if (measured > 0) {
+            for (int p : cPercentiles) {
+                result.setProperty("latency.p" + p, String.valueOf(
+                        latencies[(int) (measured * p / 100.0)] / 1000));
+            }
+            result.setProperty("latency.max", String.valueOf(latencies[measured - 1] / 1000));
+        }
+
+        cLogger.log(Level.INFO, String.format(Locale.ROOT,
+                "replayed %d of %d commands in %.3f s (%.1f/s), lost %d"
+                + "\n\tcommand->final: %s",
+                sent, count, sendTime / 1e9, sent * 1e9 / Math.max(1, sendTime), lost,
+                (measured > 0) ? String.format(Locale.ROOT,
+                        "p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                        latencies[(int) (measured * 0.5)] / 1e6,
+                        latencies[(int) (measured * 0.9)] / 1e6,
+                        latencies[(int) (measured * 0.99)] / 1e6,
+                        latencies[measured - 1] / 1e6) : "no data"));
+        return result;
+    }
+
+    @Override
+    public void handleStatusMessage(StatusMessage message) {
+        long now = System.nanoTime();
+        String status = message.getStatus();
+        TaskRecord record = mOpenTasks.get(message.getTaskID());
+        if (record == null) {
+            return;
+        }
+        record.add(status);
+
+        if (status.equals("finished") || status.equals("rejected")) {
+            // store the result before the task is removed, so it is visible
+            // to the sending thread once the task is no longer open
+            mLatencies[record.mIndex] = now - record.mSent;
+            mSequences[record.mIndex] = record.getSequence();
+            if (mOpenTasks.remove(message.getTaskID(), record) && mPermits != null) {
+                mPermits.release();
+            }
+        }
+    }
+
+    //==========================================================================
+    // evaluation
+    //==========================================================================
+    /**
+     * Creates a baseline from the statuses which were recorded in the
+     * journal. It contains no latencies.
+     *
+     * @return the recorded status sequences
+     */
+    public Properties getRecordedBaseline() {
+        Properties baseline = new Properties();
+        baseline.setProperty("tasks", String.valueOf(mRecordedSequences.length));
+        for (int i = 0; i < mRecordedSequences.length; i++) {
+            baseline.setProperty("status." + i, mRecordedSequences[i]);
+        }
+        return baseline;
+    }
+
+    /**
+     * Compares a result with a baseline. The latencies are only compared if
+     * the baseline contains them.
+     *
+     * @param baseline the baseline
+     * @param result the result of {@link #run(ClientTransport, double)}
+     * @param maxMismatches the number of differing status sequences which is
+     * still accepted
+     * @param tolerance the accepted relative latency increase
+     * @param toleranceMs the accepted absolute latency increase in
+     * milliseconds
+     * @return a description of each regression, or an empty list if there is
+     * none
+     * @throws IllegalArgumentException if the baseline belongs to a different
+     * session
+     */
+    public static List<String> compare(Properties baseline, Properties result,
+            int maxMismatches, double tolerance, double toleranceMs)
+            throws IllegalArgumentException {
+        ArrayList<String> regressions = new ArrayList<String>();
+
+        String tasks = result.getProperty("tasks");
+        if (!tasks.equals(baseline.getProperty("tasks"))) {
+            throw new IllegalArgumentException("the baseline contains "
+                    + baseline.getProperty("tasks") + " tasks instead of " + tasks);
+        }
+
+        int count = Integer.parseInt(tasks);
+        int mismatches = 0;
+        for (int i = 0; i < count; i++) {
+            String expected = baseline.getProperty("status." + i, "");
+            String actual = result.getProperty("status." + i, "");
+            if (!expected.equals(actual)) {
+                mismatches++;
+                cLogger.log(Level.FINE, "task {0}: expected \"{1}\", received \"{2}\"",
+                        new Object[]{i, expected, actual});
+            }
+        }
+        if (mismatches > maxMismatches) {
+            regressions.add(mismatches + " of " + count + " status sequences differ");
+        }
+
+        for (int p : cPercentiles) {
+            String key = "latency.p" + p;
+            if (baseline.getProperty(key) == null || result.getProperty(key) == null) {
+                continue;
+            }
+            long expected = Long.parseLong(baseline.getProperty(key));
+            long actual = Long.parseLong(result.getProperty(key));
+            double limit = expected * (1 + tolerance) + toleranceMs * 1000;
+            if (actual > limit) {
+                regressions.add(String.format(Locale.ROOT,
+                        "p%d latency %.3f ms exceeds baseline %.3f ms (limit %.3f ms)",
+                        p, actual / 1e3, expected / 1e3, limit / 1e3));
+            }
+        }
+        return regressions;
+    }
+
+    //==========================================================================
+    // main
+    //==========================================================================
+    /**
+     * Main method of the replay tool. Exits with code 0 if there is no
+     * regression, 1 if there is one, and 2 if the replay could not be run.
+     *
+     * @param args the command line arguments, containing only the path to the
+     * configuration file
+     */
+    public static void main(String[] args) {
+        System.exit(replay(args));
+    }
+
+    private static int replay(String[] args) {
+        if (args.length < 1) {
+            cLogger.log(Level.SEVERE, "usage: JournalReplay <config file>");
+            return 2;
+        }
+
+        Properties config = loadProperties(args[0]);
+        if (config == null) {
+            return 2;
+        }
+
+        //load the session -----------------------------------------------------
+        String journalPath = config.getProperty("replay.journal");
+        if (journalPath == null || journalPath.isEmpty()) {
+            cLogger.log(Level.SEVERE, "missing parameter in configuration: replay.journal");
+            return 2;
+        }
+        File directory = new File(journalPath);
+        String session = config.getProperty("replay.session");
+        if (session == null || session.isEmpty()) {
+            List<String> sessions = JournalReader.listSessions(directory);
+            if (sessions.isEmpty()) {
+                cLogger.log(Level.SEVERE, "no journal sessions found in {0}", directory);
+                return 2;
+            }
+            session = sessions.get(sessions.size() - 1);
+        }
+
+        JournalReplay replay;
+        try {
+            JournalReader reader = new JournalReader(directory, session);
+            try {
+                replay = new JournalReplay(reader.readAll());
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not read journal: {0}", e.toString());
+            return 2;
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.SEVERE, "could not replay session {0}: {1}",
+                    new Object[]{session, iae.getMessage()});
+            return 2;
+        }
+        cLogger.log(Level.INFO, "loaded {0} commands of session {1}, recorded in {2} ms",
+                new Object[]{replay.getCommandCount(), session, replay.getRecordedDuration()});
+
+        Properties baseline;
+        String baselinePath = config.getProperty("replay.baseline");
+        if (baselinePath != null && !baselinePath.isEmpty()) {
+            baseline = loadProperties(baselinePath);
+            if (baseline == null) {
+                return 2;
+            }
+        } else {
+            baseline = replay.getRecordedBaseline();
+        }
+
+        //run ------------------------------------------------------------------
+        RobotEngineRemoteApplication app = null;
+        ClientTransport client = null;
+        try {
+            String speedValue = config.getProperty("replay.speed", "original").trim();
+            double speed = speedValue.equals("original") ? 1
+                    : speedValue.equals("max") ? 0 : Double.parseDouble(speedValue);
+            if (speed < 0) {
+                throw new IllegalArgumentException("invalid speed: " + speedValue);
+            }
+            replay.setConcurrency(Integer.parseInt(config.getProperty("replay.concurrency", "16")));
+            replay.setTimeout(Long.parseLong(config.getProperty("replay.timeout", "5000")));
+            int maxMismatches = Integer.parseInt(config.getProperty("replay.maxMismatches", "0"));
+            double tolerance = Double.parseDouble(config.getProperty("replay.tolerance", "0.2"));
+            double toleranceMs = Double.parseDouble(config.getProperty("replay.toleranceMs", "1"));
+
+            String launchPath = config.getProperty("replay.launch");
+            if (launchPath != null && !launchPath.isEmpty()) {
+                app = new RobotEngineRemoteApplication();
+                if (!app.launch(launchPath)) {
+                    cLogger.log(Level.SEVERE, "could not launch the RobotEngine application");
+                    return 2;
+                }
+            }
+
+            client = Transports.get(config.getProperty("network.transport",
+                    Transports.DEFAULT_TRANSPORT)).createClient(replay, config);
+            client.start();
+            if (!client.isConnected()) {
+                cLogger.log(Level.SEVERE, "could not connect to the RobotEngine");
+                return 2;
+            }
+
+            Properties result = replay.run(client, speed);
+
+            String savePath = config.getProperty("replay.saveBaseline");
+            if (savePath != null && !savePath.isEmpty()) {
+                FileOutputStream stream = new FileOutputStream(savePath);
+                try {
+                    result.store(stream, "replay of journal session " + session);
+                } finally {
+                    stream.close();
+                }
+                cLogger.log(Level.INFO, "saved baseline: {0}", savePath);
+            }
+
+            List<String> regressions = compare(baseline, result, maxMismatches,
+                    tolerance, toleranceMs);
+            if (regressions.isEmpty()) {
+                cLogger.log(Level.INFO, "no regressions compared to {0}",
+                        (baselinePath != null && !baselinePath.isEmpty())
+                        ? baselinePath : "the journal");
+                return 0;
+            }
+            for (String regression : regressions) {
+                cLogger.log(Level.SEVERE, "regression: {0}", regression);
+            }
+            return 1;
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.SEVERE, "invalid configuration: {0}", iae.toString());
+            return 2;
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not save baseline: {0}", e.toString());
+            return 2;
+        } catch (InterruptedException ie) {
+            cLogger.log(Level.WARNING, "interrupted");
+            return 2;
+        } finally {
+            if (client != null) {
+                client.abort();
+            }
+            if (app != null) {
+                app.shutdown();
+            }
+        }
+    }
+
+    private static Properties loadProperties(String path) {
+        Properties properties = new Properties();
+        try {
+            FileInputStream stream = new FileInputStream(path);
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not load {0}: {1}",
+                    new Object[]{path, e.toString()});
+            return null;
+        }
+        return properties;
+    }
+}
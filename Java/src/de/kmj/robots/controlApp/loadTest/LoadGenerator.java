@@ -0,0 +1,484 @@
+package de.kmj.robots.controlApp.loadTest;
+
+import de.kmj.robots.controlApp.automation.AutomationPool;
+import de.kmj.robots.controlApp.automation.AutomationThread;
+import de.kmj.robots.controlApp.commandPool.Category;
+import de.kmj.robots.controlApp.commandPool.CommandPool;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.MultiplexedMessageClient;
+import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.StatusMessageHandler;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A headless closed-loop load generator for a remote RobotEngine.
+ * <p>
+ * The generator sends the commands of a CommandPool or AutomationPool file
+ * over and over to a {@link de.kmj.robots.RobotEngineRemoteApplication},
+ * keeping at most a fixed number of tasks open at the same time and
+ * optionally limiting the send rate. For every task, it records the latency
+ * from sending the command to receiving "started" and to receiving the final
+ * status.
+ * <p>
+ * Several rates can be given, which are then run one after the other for
+ * finding the point at which the server saturates. Together with the
+ * {@link StubRobotEngine}, this measures the overhead of the messaging
+ * without a robot.
+ * <p>
+ * To run this application, a configuration file with the following
+ * parameters is required:
+ * <ul>
+ * <li>load.pool: the path of the command pool (".commands") or automation
+ * pool (".automation") file</li>
+ * </ul>
+ * Optional parameters:
+ * <ul>
+ * <li>network.localIP: the local IP address (default: "127.0.0.1")</li>
+ * <li>network.remoteIP: the IP address of the RobotEngine application
+ * (default: "127.0.0.1")</li>
+ * <li>network.remotePort: the port of the RobotEngine application
+ * (default: "1241")</li>
+ * <li>network.bufferSize: the size of the receive buffer
+ * (default: "4096")</li>
+ * <li>network.binary: "true" for sending the commands in the binary
+ * encoding (default: "false")</li>
+ * <li>network.reliable: "true" for sending the commands with acknowledgements
+ * and retransmission, see {@link de.kmj.robots.messaging.ReliableDelivery}
+ * (default: "false")</li>
+ * <li>load.concurrency: the maximum number of open tasks (default: "16")</li>
+ * <li>load.rate: the maximum number of commands per second, or a comma
+ * separated list of rates which are run one after the other; "0" means
+ * unlimited (default: "0")</li>
+ * <li>load.duration: the number of seconds per rate (default: "10")</li>
+ * <li>load.timeout: the number of milliseconds after which an open task is
+ * counted as lost (default: "5000")</li>
+ * <li>load.output: the path of a CSV file which receives one line per task
+ * (default: none)</li>
+ * </ul>
+ *
+ * @author Kathrin Janowski
+ */
+public class LoadGenerator implements StatusMessageHandler {
+
+    private static final Logger cLogger = Logger.getLogger(LoadGenerator.class.getName());
+
+    /** Prefix of the generated task IDs. */
+    private static final String TASK_PREFIX = "load";
+
+    /**
+     * The measurements of a single task.
+     */
+    private static class TaskRecord {
+
+        final String mTaskID;
+        final String mType;
+        final long mSent;
+        volatile long mStarted;
+        volatile long mEnded;
+        volatile String mStatus;
+
+        TaskRecord(String taskID, String type, long sent) {
+            mTaskID = taskID;
+            mType = type;
+            mSent = sent;
+            mStarted = -1;
+            mEnded = -1;
+            mStatus = null;
+        }
+    }
+
+    private final MultiplexedMessageClient mClient;
+
+    private final List<CommandMessage> mCommands;
+
+    /** The open tasks. */
+    private final ConcurrentHashMap<String, TaskRecord> mOpenTasks;
+
+    /** The tasks which have ended during the current run. */
+    private final ConcurrentLinkedQueue<TaskRecord> mEndedTasks;
+
+    /** One permit per task which may still be opened. */
+    private Semaphore mPermits;
+
+    private int mConcurrency;
+    private long mTimeout;
+    private PrintWriter mOutput;
+
+    private long mSequence;
+
+    /**
+     * Creates a load generator.
+     *
+     * @param client the connected client
+     * @param commands the commands to send in turn
+     * @throws IllegalArgumentException if there are no commands
+     */
+    public LoadGenerator(MultiplexedMessageClient client, List<CommandMessage> commands)
+            throws IllegalArgumentException {
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("no commands to send");
+        }
+
+        mClient = client;
+        mCommands = new ArrayList<CommandMessage>(commands);
+        mOpenTasks = new ConcurrentHashMap<String, TaskRecord>();
+        mEndedTasks = new ConcurrentLinkedQueue<TaskRecord>();
+        mConcurrency = 16;
+        mTimeout = 5000;
+        mOutput = null;
+        mSequence = 0;
+    }
+
+    //==========================================================================
+    // configuration
+    //==========================================================================
+    /**
+     * @param concurrency the maximum number of open tasks
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setConcurrency(int concurrency) throws IllegalArgumentException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("invalid concurrency: " + concurrency);
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * @param timeout the number of milliseconds after which an open task is
+     * counted as lost
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("invalid timeout: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
+    /**
+     * @param output receives one CSV line per task, or null
+     */
+    public void setOutput(PrintWriter output) {
+        mOutput = output;
+        if (output != null) {
+            output.println("rate;taskID;type;status;started_us;ended_us");
+        }
+    }
+
+    //==========================================================================
+    // running
+    //==========================================================================
+    /**
+     * Sends commands for the given time and waits for the open tasks.
+     *
+     * @param rate the maximum number of commands per second, or 0 for
+     * sending as fast as the open tasks allow
+     * @param duration the sending time in milliseconds
+     * @return the summary of the run
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public String run(double rate, long duration) throws InterruptedException {
+        mPermits = new Semaphore(mConcurrency);
+        mEndedTasks.clear();
+
+        long interval = (rate > 0) ? (long) (1000000000L / rate) : 0;
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.MILLISECONDS.toNanos(duration);
+        long nextSend = begin;
+        long nextSweep = begin;
+        int sent = 0;
+        int lost = 0;
+
+        while (System.nanoTime() < end) {
+            if (!mPermits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                long now = System.nanoTime();
+                if (now >= nextSweep) {
+                    lost += expireTasks(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(mTimeout) / 4;
+                }
+                continue;
+            }
+
+            if (interval > 0) {
+                long wait = nextSend - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                nextSend += interval;
+            }
+
+            CommandMessage template = mCommands.get((int) (mSequence % mCommands.size()));
+            String taskID = TASK_PREFIX + mSequence++;
+            CommandMessage cmd = new CommandMessage(taskID, template);
+
+            TaskRecord record = new TaskRecord(taskID, cmd.getCommandType(), System.nanoTime());
+            mOpenTasks.put(taskID, record);
+            if (mClient.sendCommandMessage(cmd, this)) {
+                sent++;
+            } else {
+                mOpenTasks.remove(taskID);
+                mPermits.release();
+            }
+        }
+        long sendTime = System.nanoTime() - begin;
+
+        //wait for the remaining tasks
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeout);
+        while (!mOpenTasks.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        lost += expireTasks(Long.MAX_VALUE);
+
+        return summarize(rate, sent, lost, sendTime);
+    }
+
+    /**
+     * Counts the tasks as lost which have been open for too long.
+     *
+     * @param now the current time in nanoseconds, or Long.MAX_VALUE for
+     * dropping all open tasks
+     * @return the number of lost tasks
+     */
+    private int expireTasks(long now) {
+        int lost = 0;
+        long timeout = TimeUnit.MILLISECONDS.toNanos(mTimeout);
+        Iterator<TaskRecord> it = mOpenTasks.values().iterator();
+        while (it.hasNext()) {
+            TaskRecord record = it.next();
+            if (now == Long.MAX_VALUE || now - record.mSent > timeout) {
+                if (mOpenTasks.remove(record.mTaskID, record)) {
+                    mClient.removeHandler(record.mTaskID);
+                    record.mStatus = "lost";
+                    mEndedTasks.add(record);
+                    mPermits.release();
+                    lost++;
+                }
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public void handleStatusMessage(StatusMessage message) {
+        long now = System.nanoTime();
+        String status = message.getStatus();
+
+        if (status.equals("finished") || status.equals("rejected")) {
+            TaskRecord record = mOpenTasks.remove(message.getTaskID());
+            if (record == null) {
+                return;
+            }
+            record.mEnded = now;
+            record.mStatus = status;
+            mEndedTasks.add(record);
+            mPermits.release();
+        } else if (status.equals("started")) {
+            TaskRecord record = mOpenTasks.get(message.getTaskID());
+            if (record != null && record.mStarted < 0) {
+                record.mStarted = now;
+            }
+        }
+    }
+
+    //==========================================================================
+    // evaluation
+    //==========================================================================
+    private String summarize(double rate, int sent, int lost, long sendTime) {
+        long[] started = new long[mEndedTasks.size()];
+        long[] ended = new long[mEndedTasks.size()];
+        int startedCount = 0;
+        int endedCount = 0;
+        int finished = 0;
+        int rejected = 0;
+
+        for (TaskRecord record : mEndedTasks) {
+            if (record.mStarted >= 0) {
+                started[startedCount++] = record.mStarted - record.mSent;
+            }
+            if (record.mEnded >= 0) {
+                ended[endedCount++] = record.mEnded - record.mSent;
+            }
+            if ("finished".equals(record.mStatus)) {
+                finished++;
+            } else if ("rejected".equals(record.mStatus)) {
+                rejected++;
+            }
+
+            if (mOutput != null) {
+                mOutput.printf(Locale.ROOT, "%.1f;%s;%s;%s;%d;%d%n", rate,
+                        record.mTaskID, record.mType, record.mStatus,
+                        (record.mStarted >= 0) ? (record.mStarted - record.mSent) / 1000 : -1,
+                        (record.mEnded >= 0) ? (record.mEnded - record.mSent) / 1000 : -1);
+            }
+        }
+        if (mOutput != null) {
+            mOutput.flush();
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT,
+                "rate %s: sent %d (%.1f/s), finished %d, rejected %d, lost %d",
+                (rate > 0) ? String.format(Locale.ROOT, "%.1f/s", rate) : "unlimited",
+                sent, sent * 1e9 / Math.max(1, sendTime), finished, rejected, lost));
+        builder.append("\n\tcommand->started:  ").append(percentiles(started, startedCount));
+        builder.append("\n\tcommand->finished: ").append(percentiles(ended, endedCount));
+        return builder.toString();
+    }
+
+    private static String percentiles(long[] latencies, int count) {
+        if (count == 0) {
+            return "no data";
+        }
+        Arrays.sort(latencies, 0, count);
+        return String.format(Locale.ROOT,
+                "p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms",
+                latencies[(int) (count * 0.5)] / 1e6,
+                latencies[(int) (count * 0.9)] / 1e6,
+                latencies[(int) (count * 0.99)] / 1e6,
+                latencies[count - 1] / 1e6);
+    }
+
+    //==========================================================================
+    // loading the commands
+    //==========================================================================
+    /**
+     * Loads all commands from a command pool or automation pool file.
+     *
+     * @param file a ".automation" file or a command pool file
+     * @return the commands, or an empty list if the file could not be loaded
+     */
+    public static List<CommandMessage> loadCommands(File file) {
+        ArrayList<CommandMessage> commands = new ArrayList<CommandMessage>();
+
+        if (file.getName().endsWith(".automation")) {
+            AutomationPool pool = new AutomationPool();
+            if (pool.loadFromFile(file)) {
+                for (AutomationThread thread : pool.getThreads()) {
+                    for (Object cmd : thread.getCommands()) {
+                        commands.add((CommandMessage) cmd);
+                    }
+                }
+            }
+        } else {
+            CommandPool pool = new CommandPool();
+            if (pool.loadFromFile(file)) {
+                collectCommands(pool.getRootCategory(), commands);
+            }
+        }
+        return commands;
+    }
+
+    private static void collectCommands(Category category, List<CommandMessage> commands) {
+        commands.addAll(Arrays.asList(category.getCommands()));
+        for (Category subcategory : category.getSubcategories()) {
+            collectCommands(subcategory, commands);
+        }
+    }
+
+    //==========================================================================
+    // main
+    //==========================================================================
+    /**
+     * Main method of the load generator.
+     *
+     * @param args the command line arguments, containing only the path to the
+     * configuration file
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            cLogger.log(Level.SEVERE, "usage: LoadGenerator <config file>");
+            return;
+        }
+
+        Properties config = new Properties();
+        try {
+            FileInputStream stream = new FileInputStream(args[0]);
+            config.load(stream);
+            stream.close();
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not load configuration: {0}", e.toString());
+            return;
+        }
+
+        String poolPath = config.getProperty("load.pool");
+        if (poolPath == null || poolPath.isEmpty()) {
+            cLogger.log(Level.SEVERE, "missing parameter in configuration: load.pool");
+            return;
+        }
+        List<CommandMessage> commands = loadCommands(new File(poolPath));
+        if (commands.isEmpty()) {
+            cLogger.log(Level.SEVERE, "no commands found in {0}", poolPath);
+            return;
+        }
+        cLogger.log(Level.INFO, "loaded {0} commands from {1}",
+                new Object[]{commands.size(), poolPath});
+
+        MultiplexedMessageClient client = null;
+        PrintWriter output = null;
+        try {
+            client = new MultiplexedMessageClient(
+                    Integer.parseInt(config.getProperty("network.bufferSize", "4096")),
+                    config.getProperty("network.localIP", "127.0.0.1"),
+                    config.getProperty("network.remoteIP", "127.0.0.1"),
+                    Integer.parseInt(config.getProperty("network.remotePort", "1241")));
+            client.setBinaryEncoding(Boolean.parseBoolean(
+                    config.getProperty("network.binary", "false")));
+            client.setReliable(Boolean.parseBoolean(
+                    config.getProperty("network.reliable", "false")));
+            client.start();
+            if (!client.isConnected()) {
+                cLogger.log(Level.SEVERE, "could not connect to the RobotEngine");
+                return;
+            }
+
+            LoadGenerator generator = new LoadGenerator(client, commands);
+            generator.setConcurrency(Integer.parseInt(config.getProperty("load.concurrency", "16")));
+            generator.setTimeout(Long.parseLong(config.getProperty("load.timeout", "5000")));
+
+            String outputPath = config.getProperty("load.output");
+            if (outputPath != null && !outputPath.isEmpty()) {
+                output = new PrintWriter(new OutputStreamWriter(
+                        new FileOutputStream(outputPath), "UTF-8"));
+                generator.setOutput(output);
+            }
+
+            long duration = Long.parseLong(config.getProperty("load.duration", "10")) * 1000L;
+            String[] rates = config.getProperty("load.rate", "0").split(",");
+            for (String rate : rates) {
+                String summary = generator.run(Double.parseDouble(rate.trim()), duration);
+                cLogger.log(Level.INFO, summary);
+            }
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.SEVERE, "invalid configuration: {0}", iae.toString());
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not open output file: {0}", e.toString());
+        } catch (InterruptedException ie) {
+            cLogger.log(Level.WARNING, "interrupted");
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            if (client != null) {
+                client.abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package de.kmj.robots.controlApp.loadTest;
+
+import de.kmj.robots.RobotEngine;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.StatusMessage;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A RobotEngine without a robot, for measuring the messaging overhead.
+ * <p>
+ * Every command is accepted: the engine sends "started" immediately and
+ * "finished" either immediately as well or after a modelled execution time.
+ * <p>
+ * Optional engine parameters:
+ * <ul>
+ * <li>stub.delay: the execution time of every command in milliseconds
+ * (default: "0")</li>
+ * <li>stub.delay.&lt;type&gt;: the execution time for a specific command
+ * type, overriding stub.delay</li>
+ * <li>stub.msPerChar: additional milliseconds per character of the "text"
+ * parameter, for modelling speech (default: "0")</li>
+ * <li>stub.jitter: the maximum random deviation from the execution time in
+ * milliseconds (default: "0")</li>
+ * <li>stub.threads: the number of threads which send the delayed "finished"
+ * messages (default: "1")</li>
+ * </ul>
+ * Without a configuration file, all commands finish instantly.
+ *
+ * @author Kathrin Janowski
+ */
+public class StubRobotEngine extends RobotEngine {
+
+    private static final Logger cLogger = Logger.getLogger(StubRobotEngine.class.getName());
+
+    private final Random mRandom = new Random();
+
+    /** Sends the delayed "finished" messages. */
+    private ScheduledExecutorService mTimer;
+
+    private long mDefaultDelay;
+    private long mMsPerChar;
+    private int mJitter;
+
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mFinishedCount = new AtomicLong();
+
+    @Override
+    public void start(String configPath) {
+        if (configPath == null || configPath.isEmpty() || !loadConfig(configPath)) {
+            cLogger.log(Level.INFO, "no stub configuration -> all commands finish instantly");
+            mEngineConfig = new Properties();
+        }
+
+        int threads = 1;
+        try {
+            mDefaultDelay = Long.parseLong(mEngineConfig.getProperty("stub.delay", "0"));
+            mMsPerChar = Long.parseLong(mEngineConfig.getProperty("stub.msPerChar", "0"));
+            mJitter = Integer.parseInt(mEngineConfig.getProperty("stub.jitter", "0"));
+            threads = Integer.parseInt(mEngineConfig.getProperty("stub.threads", "1"));
+        } catch (NumberFormatException nfe) {
+            cLogger.log(Level.WARNING, "invalid stub configuration: {0}", nfe.toString());
+        }
+
+        mTimer = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StubRobotEngine");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        cLogger.log(Level.INFO, "stub engine started, default delay: {0} ms", mDefaultDelay);
+    }
+
+    @Override
+    public void stop() {
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+        }
+        cLogger.log(Level.INFO, "stub engine stopped after {0} commands, {1} finished",
+                new Object[]{mCommandCount.get(), mFinishedCount.get()});
+    }
+
+    @Override
+    public void executeCommand(CommandMessage command) {
+        mCommandCount.incrementAndGet();
+        final String taskID = command.getTaskID();
+
+        sendStatusMessage(new StatusMessage(taskID, "started"));
+
+        long delay = getDelay(command);
+        if (delay <= 0) {
+            finish(taskID);
+            return;
+        }
+
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                finish(taskID);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param command the command
+     * @return the modelled execution time in milliseconds
+     */
+    private long getDelay(CommandMessage command) {
+        long delay = mDefaultDelay;
+        String typeDelay = mEngineConfig.getProperty("stub.delay." + command.getCommandType());
+        if (typeDelay != null) {
+            try {
+                delay = Long.parseLong(typeDelay);
+            } catch (NumberFormatException nfe) {
+                cLogger.log(Level.FINE, "invalid delay for type {0}: {1}",
+                        new Object[]{command.getCommandType(), typeDelay});
+            }
+        }
+
+        String text = command.getParam("text");
+        if (text != null) {
+            delay += mMsPerChar * text.length();
+        }
+
+        if (mJitter > 0) {
+            synchronized (mRandom) {
+                delay += mRandom.nextInt(2 * mJitter + 1) - mJitter;
+            }
+        }
+        return delay;
+    }
+
+    private void finish(String taskID) {
+        mFinishedCount.incrementAndGet();
+        sendStatusMessage(new StatusMessage(taskID, "finished"));
+    }
+
+    /**
+     * @return the number of received commands
+     */
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    /**
+     * @return the number of finished commands
+     */
+    public long getFinishedCount() {
+        return mFinishedCount.get();
+    }
+}
@@ -0,0 +1,502 @@
+package de.kmj.robots.messaging;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * A compact binary encoding for CommandMessages and StatusMessages.
+ * <p>
+ * The XML representation remains the default protocol. The binary encoding
+ * is an optional alternative for clients which send large or frequent
+ * messages. {@link de.kmj.robots.messaging.MessageServer} and
+ * {@link de.kmj.robots.messaging.MessageClient} detect it per packet by the
+ * leading magic byte, which can never start a UTF-8 encoded XML document.
+ * <p>
+ * Packet layout (all integers big-endian):
+ * <pre>
+ * byte    magic (0xB7)
+ * byte    kind (1 = command, 2 = status)
+ * int     payload length in bytes
+ * string  task ID
+ * string  command type or status label
+ * varint  number of attributes
+ * per attribute:
+ *   varint  name index: 0 = literal name follows, n = well-known name n-1
+ *   string  literal name (only if the index is 0)
+ *   string  value
+ *
+ * string := varint byte count, UTF-8 bytes
+ * </pre>
+ * The table of well-known names may only be extended at the end.
+ *
+ * @author Kathrin Janowski
+ */
+public final class BinaryMessageCodec {
+
+    /**
+     * The first byte of every binary message.
+     */
+    public static final byte MAGIC = (byte) 0xB7;
+
+    /**
+     * Kind identifier for CommandMessages.
+     */
+    public static final byte KIND_COMMAND = 1;
+
+    /**
+     * Kind identifier for StatusMessages.
+     */
+    public static final byte KIND_STATUS = 2;
+
+    /**
+     * The size of the header (magic, kind and payload length).
+     */
+    private static final int HEADER_SIZE = 6;
+
+    /**
+     * Attribute names which are encoded as a single byte.
+     */
+    private static final String[] cWellKnownNames = new String[]{
+        "task", "type", "status", "x", "y", "z", "time", "speed",
+        "text", "name", "id", "lipSync", "reason", "angle",
+        "red", "green", "blue", "color", "language", "volume",
+        "pitch", "rate", "channel", "seq"
+    };
+
+    /**
+     * The indices of the well-known names.
+     */
+    private static final HashMap<String, Integer> cNameIndices = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < cWellKnownNames.length; i++) {
+            cNameIndices.put(cWellKnownNames[i], i);
+        }
+    }
+
+    /**
+     * Scratch space for decoding strings.
+     */
+    private static final ThreadLocal<char[]> cChars = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[256];
+        }
+    };
+
+    private BinaryMessageCodec() {
+    }
+
+    //==========================================================================
+    // detection
+    //==========================================================================
+    /**
+     * Checks whether the remaining bytes of the buffer contain a binary
+     * message. The buffer's position is not modified.
+     *
+     * @param packet the received bytes
+     * @return true for a binary message, false for anything else
+     */
+    public static boolean isBinary(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE
+                && packet.get(packet.position()) == MAGIC;
+    }
+
+    //==========================================================================
+    // encoding
+    //==========================================================================
+    /**
+     * Encodes a CommandMessage.
+     *
+     * @param command the command message
+     * @return the binary representation
+     */
+    public static byte[] toBytes(CommandMessage command) {
+        int size = encodedLength(command.getTaskID(), command.getCommandType(),
+                command.getParameterMap());
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        encode(command, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a StatusMessage.
+     *
+     * @param status the status message
+     * @return the binary representation
+     */
+    public static byte[] toBytes(StatusMessage status) {
+        int size = encodedLength(status.getTaskID(), status.getStatus(),
+                status.getParameterMap());
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        encode(status, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a CommandMessage into the given buffer, starting at its current
+     * position.
+     *
+     * @param command the command message
+     * @param target the buffer which receives the message
+     * @return true on success, false if the buffer is too small
+     */
+    public static boolean encode(CommandMessage command, ByteBuffer target) {
+        return encode(KIND_COMMAND, command.getTaskID(),
+                command.getCommandType(), command.getParameterMap(), target);
+    }
+
+    /**
+     * Encodes a StatusMessage into the given buffer, starting at its current
+     * position.
+     *
+     * @param status the status message
+     * @param target the buffer which receives the message
+     * @return true on success, false if the buffer is too small
+     */
+    public static boolean encode(StatusMessage status, ByteBuffer target) {
+        return encode(KIND_STATUS, status.getTaskID(), status.getStatus(),
+                status.getParameterMap(), target);
+    }
+
+    private static boolean encode(byte kind, String taskID, String label,
+            ParameterMap attributes, ByteBuffer target) {
+        int start = target.position();
+        try {
+            target.put(MAGIC);
+            target.put(kind);
+            target.putInt(0); // payload length, filled in below
+
+            putString(taskID, target);
+            putString(label, target);
+
+            int count = attributes.size();
+            putVarInt(count, target);
+            for (int i = 0; i < count; i++) {
+                String name = attributes.keyAt(i);
+                int index = indexOfName(name);
+                putVarInt(index + 1, target);
+                if (index < 0) {
+                    putString(name, target);
+                }
+                putString(attributes.valueAt(i), target);
+            }
+
+            target.putInt(start + 2, target.position() - start - HEADER_SIZE);
+            return true;
+        } catch (BufferOverflowException e) {
+            target.position(start);
+            return false;
+        }
+    }
+
+    private static int encodedLength(String taskID, String label,
+            ParameterMap attributes) {
+        int count = attributes.size();
+        int size = HEADER_SIZE + stringLength(taskID) + stringLength(label)
+                + varIntLength(count);
+        for (int i = 0; i < count; i++) {
+            String name = attributes.keyAt(i);
+            int index = indexOfName(name);
+            size += varIntLength(index + 1);
+            if (index < 0) {
+                size += stringLength(name);
+            }
+            size += stringLength(attributes.valueAt(i));
+        }
+        return size;
+    }
+
+    //==========================================================================
+    // decoding
+    //==========================================================================
+    /**
+     * Decodes a CommandMessage from the remaining bytes of the buffer.
+     * The buffer's position is not modified.
+     *
+     * @param packet the received bytes
+     * @return the command message
+     * @throws IllegalArgumentException if the bytes don't contain a valid
+     * binary CommandMessage
+     */
+    public static CommandMessage decodeCommand(ByteBuffer packet)
+            throws IllegalArgumentException {
+        ByteBuffer input = openPayload(packet, KIND_COMMAND);
+        try {
+            CommandMessage command = new CommandMessage(getString(input), getString(input));
+            int count = getVarInt(input);
+            for (int i = 0; i < count; i++) {
+                String name = getName(input);
+                command.addParameter(name, getString(input));
+            }
+            checkConsumed(input);
+            return command;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated binary message");
+        }
+    }
+
+    /**
+     * Decodes a StatusMessage from the remaining bytes of the buffer.
+     * The buffer's position is not modified.
+     *
+     * @param packet the received bytes
+     * @return the status message
+     * @throws IllegalArgumentException if the bytes don't contain a valid
+     * binary StatusMessage
+     */
+    public static StatusMessage decodeStatus(ByteBuffer packet)
+            throws IllegalArgumentException {
+        ByteBuffer input = openPayload(packet, KIND_STATUS);
+        try {
+            StatusMessage status = new StatusMessage(getString(input), getString(input));
+            int count = getVarInt(input);
+            for (int i = 0; i < count; i++) {
+                String name = getName(input);
+                status.addDetail(name, getString(input));
+            }
+            checkConsumed(input);
+            return status;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated binary message");
+        }
+    }
+
+    private static ByteBuffer openPayload(ByteBuffer packet, byte kind) {
+        if (!isBinary(packet)) {
+            throw new IllegalArgumentException("not a binary message");
+        }
+
+        ByteBuffer input = packet.duplicate();
+        input.position(packet.position() + 1);
+        byte actualKind = input.get();
+        if (actualKind != kind) {
+            throw new IllegalArgumentException("unexpected message kind: " + actualKind);
+        }
+
+        int length = input.getInt();
+        if (length != input.remaining()) {
+            throw new IllegalArgumentException("binary message length mismatch: expected "
+                    + length + " bytes, received " + input.remaining());
+        }
+        return input;
+    }
+
+    private static void checkConsumed(ByteBuffer input) {
+        if (input.hasRemaining()) {
+            throw new IllegalArgumentException("unexpected data after binary message");
+        }
+    }
+
+    private static String getName(ByteBuffer input) {
+        int index = getVarInt(input);
+        if (index == 0) {
+            return getString(input);
+        }
+        if (index > cWellKnownNames.length) {
+            throw new IllegalArgumentException("unknown attribute name index: " + index);
+        }
+        return cWellKnownNames[index - 1];
+    }
+
+    //==========================================================================
+    // well-known names
+    //==========================================================================
+    /**
+     * @param name an attribute name
+     * @return the index of the name in the table, or -1
+     */
+    private static int indexOfName(String name) {
+        Integer index = cNameIndices.get(name);
+        return (index != null) ? index : -1;
+    }
+
+    /**
+     * Replaces a well-known name by the constant from the table, so all
+     * messages share the same string.
+     *
+     * @param name an attribute name
+     * @return the constant if the name is well-known, otherwise the name
+     */
+    static String internName(String name) {
+        int index = indexOfName(name);
+        return (index >= 0) ? cWellKnownNames[index] : name;
+    }
+
+    /**
+     * Looks up a well-known name in its ASCII representation, without
+     * creating a string.
+     *
+     * @param input the buffer which contains the name
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @return the constant from the table, or null if the name is not
+     * well-known
+     */
+    static String findName(ByteBuffer input, int start, int end) {
+        int length = end - start;
+        for (String name : cWellKnownNames) {
+            if (name.length() == length) {
+                int i = 0;
+                while (i < length && input.get(start + i) == name.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    //==========================================================================
+    // primitives
+    //==========================================================================
+    private static void putVarInt(int value, ByteBuffer target) {
+        while ((value & ~0x7F) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer input) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = input.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("invalid length in binary message");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("invalid length in binary message");
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int utf8Length(String str) {
+        int length = 0;
+        int count = str.length();
+        for (int i = 0; i < count; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int stringLength(String str) {
+        int length = utf8Length(str);
+        return varIntLength(length) + length;
+    }
+
+    private static void putString(String str, ByteBuffer target) {
+        putVarInt(utf8Length(str), target);
+
+        int count = str.length();
+        for (int i = 0; i < count; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                target.put((byte) c);
+            } else if (c < 0x800) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                target.put((byte) (0xF0 | (cp >> 18)));
+                target.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                target.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer input) {
+        int length = getVarInt(input);
+        if (length > input.remaining()) {
+            throw new IllegalArgumentException("truncated binary message");
+        }
+
+        char[] chars = cChars.get();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            cChars.set(chars);
+        }
+
+        int end = input.position() + length;
+        int count = 0;
+        while (input.position() < end) {
+            int b = input.get() & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                int c = ((b & 0x1F) << 6) | continuation(input, end);
+                if (c < 0x80) {
+                    throw new IllegalArgumentException("overlong UTF-8 in binary message");
+                }
+                chars[count++] = (char) c;
+            } else if ((b & 0xF0) == 0xE0) {
+                int c = ((b & 0x0F) << 12) | (continuation(input, end) << 6);
+                c |= continuation(input, end);
+                if (c < 0x800) {
+                    throw new IllegalArgumentException("overlong UTF-8 in binary message");
+                }
+                chars[count++] = (char) c;
+            } else if ((b & 0xF8) == 0xF0) {
+                int cp = ((b & 0x07) << 18) | (continuation(input, end) << 12);
+                cp |= continuation(input, end) << 6;
+                cp |= continuation(input, end);
+                if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    throw new IllegalArgumentException("overlong UTF-8 in binary message");
+                }
+                if (cp > Character.MAX_CODE_POINT) {
+                    throw new IllegalArgumentException("invalid UTF-8 in binary message");
+                }
+                // surrogate pair, computed by hand for Java 6
+                cp -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                chars[count++] = (char) (Character.MIN_HIGH_SURROGATE + (cp >>> 10));
+                chars[count++] = (char) (Character.MIN_LOW_SURROGATE + (cp & 0x3FF));
+            } else {
+                throw new IllegalArgumentException("invalid UTF-8 in binary message");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static int continuation(ByteBuffer input, int end) {
+        if (input.position() >= end) {
+            throw new IllegalArgumentException("invalid UTF-8 in binary message");
+        }
+        int b = input.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) {
+            throw new IllegalArgumentException("invalid UTF-8 in binary message");
+        }
+        return b & 0x3F;
+    }
+}
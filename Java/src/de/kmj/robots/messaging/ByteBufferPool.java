@@ -0,0 +1,106 @@
+package de.kmj.robots.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of direct ByteBuffers with a fixed capacity.
+ * <p>
+ * Used by the channel-based transport of the
+ * {@link de.kmj.robots.messaging.MessageServer} for receiving datagrams
+ * without allocating a new buffer for every packet.
+ *
+ * @author Kathrin Janowski
+ */
+public class ByteBufferPool {
+
+    /**
+     * The buffers which are currently available.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> mBuffers;
+
+    /**
+     * The number of buffers which are currently available.
+     */
+    private final AtomicInteger mAvailable;
+
+    /**
+     * The capacity of each buffer.
+     */
+    private final int mBufferSize;
+
+    /**
+     * The maximum number of buffers kept for re-use.
+     */
+    private final int mMaxPooled;
+
+    /**
+     * Creates an empty pool. Buffers are allocated on demand.
+     *
+     * @param bufferSize the capacity of each buffer
+     * @param maxPooled the maximum number of buffers kept for re-use
+     * @throws IllegalArgumentException if one of the values is not positive
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled)
+            throws IllegalArgumentException {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException(
+                    "buffer size and pool size must be positive");
+        }
+
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+        mBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        mAvailable = new AtomicInteger(0);
+    }
+
+    /**
+     * Takes a cleared buffer from the pool or allocates a new one if the pool
+     * is empty.
+     *
+     * @return a direct buffer with the configured capacity
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(mBufferSize);
+        }
+
+        mAvailable.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. If the pool is already full, the buffer is
+     * left to the garbage collector.
+     *
+     * @param buffer the buffer which is no longer used by the caller
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) {
+            return;
+        }
+
+        if (mAvailable.incrementAndGet() <= mMaxPooled) {
+            mBuffers.offer(buffer);
+        } else {
+            mAvailable.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the capacity of each buffer
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return the number of buffers which are currently available for re-use
+     */
+    public int getAvailable() {
+        return mAvailable.get();
+    }
+}
@@ -0,0 +1,47 @@
+package de.kmj.robots.messaging;
+
+/**
+ * The control application side of a connection to a RobotEngine.
+ * <p>
+ * A client transport sends CommandMessages to the RobotEngine and passes the
+ * returning StatusMessages to its
+ * {@link de.kmj.robots.messaging.StatusMessageHandler}. Implementations are
+ * created by a {@link de.kmj.robots.messaging.TransportProvider}.
+ *
+ * @see de.kmj.robots.messaging.MessageClient
+ * @see de.kmj.robots.messaging.InProcessClient
+ * @author Kathrin Janowski
+ */
+public interface ClientTransport {
+
+    /**
+     * Connects to the RobotEngine and starts receiving status messages.
+     */
+    public void start();
+
+    /**
+     * Stops receiving status messages and closes the connection.
+     */
+    public void abort();
+
+    /**
+     * Waits until the receiving loop has terminated after {@link #abort()}.
+     * Returns at once if the transport has not been started.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void awaitTermination() throws InterruptedException;
+
+    /**
+     * @return true if the client is connected to the RobotEngine
+     */
+    public boolean isConnected();
+
+    /**
+     * Sends a command message to the RobotEngine.
+     *
+     * @param command the command message to send
+     * @return true on success, false on failure
+     */
+    public boolean sendCommandMessage(CommandMessage command);
+}
@@ -0,0 +1,364 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.EngineMetrics;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps only the newest command for continuously updated targets.
+ * <p>
+ * A tracker which streams "gaze", "pose" or "facs" commands sends a new
+ * target long before the robot has reached the previous one. If every command
+ * is executed in order, the robot follows an ever older target. This class
+ * holds one slot per command type and actuator, identified by the command
+ * parameter "id" (or by the type alone if there is no such parameter). A new
+ * command replaces the one in its slot, and the replaced command is rejected
+ * with the reason "superseded". A command "stopX" empties the slots of type
+ * "x" in the same way before it is passed on.
+ * <p>
+ * The commands of all other types are passed on to the CommandMessageHandler
+ * immediately, on the calling thread.
+ * <p>
+ * The coalesced commands can be consumed in two ways:
+ * <ul>
+ * <li>push: after {@link #start()}, one thread per coalesced type takes the
+ * newest command whenever the previous one has been handled, and passes it
+ * to the CommandMessageHandler</li>
+ * <li>pull: without calling start(), the RobotEngine fetches the newest
+ * command with {@link #poll(String, String)} or
+ * {@link #take(String, long)} whenever the actuator is ready</li>
+ * </ul>
+ * All methods are thread-safe.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandCoalescer implements CommandMessageHandler {
+
+    private static final Logger cLogger = Logger.getLogger(CommandCoalescer.class.getName());
+
+    /**
+     * The command types which are coalesced by default.
+     */
+    public static final String[] DEFAULT_TYPES = new String[]{"gaze", "pose", "facs"};
+
+    /**
+     * The command parameter which identifies the actuator.
+     */
+    public static final String ID_PARAM = "id";
+
+    /**
+     * Handles the passed on commands.
+     */
+    private final CommandMessageHandler mCommandHandler;
+
+    /**
+     * Receives the rejections of superseded commands.
+     */
+    private final StatusMessageHandler mStatusHandler;
+
+    /**
+     * The newest command per type and actuator.
+     */
+    private final ConcurrentHashMap<String, CommandMessage> mSlots;
+
+    /**
+     * The lane of each coalesced command type.
+     */
+    private final Map<String, Lane> mLanes;
+
+    /**
+     * Counts the superseded commands, may be null.
+     */
+    private EngineMetrics mMetrics;
+
+    /**
+     * Creates a coalescer for the default command types.
+     *
+     * @param commandHandler handles the commands which are passed on
+     * @param statusHandler receives the rejections of superseded commands,
+     * may be null
+     */
+    public CommandCoalescer(CommandMessageHandler commandHandler,
+            StatusMessageHandler statusHandler) {
+        this(commandHandler, statusHandler, DEFAULT_TYPES);
+    }
+
+    /**
+     * Creates a coalescer. The delivery threads for the push mode are started
+     * by {@link #start()}.
+     *
+     * @param commandHandler handles the commands which are passed on
+     * @param statusHandler receives the rejections of superseded commands,
+     * may be null
+     * @param commandTypes the command types which are coalesced
+     * @throws IllegalArgumentException if no command type is given
+     */
+    public CommandCoalescer(CommandMessageHandler commandHandler,
+            StatusMessageHandler statusHandler, String... commandTypes)
+            throws IllegalArgumentException {
+        if (commandTypes.length == 0) {
+            throw new IllegalArgumentException("no command types to coalesce");
+        }
+
+        mCommandHandler = commandHandler;
+        mStatusHandler = statusHandler;
+        mSlots = new ConcurrentHashMap<String, CommandMessage>();
+
+        HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+        for (String type : commandTypes) {
+            lanes.put(type, new Lane(type));
+        }
+        mLanes = Collections.unmodifiableMap(lanes);
+    }
+
+    /**
+     * Sets the metrics which count the superseded commands.
+     *
+     * @param metrics the metrics, or null for disabling them
+     */
+    public void setMetrics(EngineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Starts one delivery thread per coalesced command type.
+     */
+    public void start() {
+        for (Lane lane : mLanes.values()) {
+            lane.start();
+        }
+        cLogger.log(Level.INFO, "coalescing command types {0}", mLanes.keySet());
+    }
+
+    /**
+     * Stops the delivery threads. Commands which are still waiting are
+     * discarded.
+     */
+    public void abort() {
+        for (Lane lane : mLanes.values()) {
+            lane.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all delivery threads have terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void join() throws InterruptedException {
+        for (Lane lane : mLanes.values()) {
+            if (lane.isAlive()) {
+                lane.join();
+            }
+        }
+    }
+
+    /**
+     * @param commandType a command type
+     * @return true if the commands of that type are coalesced
+     */
+    public boolean isCoalesced(String commandType) {
+        return mLanes.containsKey(commandType);
+    }
+
+    /**
+     * @return the number of commands which are waiting in their slots
+     */
+    public int getPendingCount() {
+        return mSlots.size();
+    }
+
+    //==========================================================================
+    // input
+    //==========================================================================
+    /**
+     * Stores a coalesced command in its slot, or passes any other command on.
+     * Never blocks for coalesced commands.
+     *
+     * @param message the command
+     */
+    @Override
+    public void handleCommandMessage(CommandMessage message) {
+        String type = message.getCommandType();
+        Lane lane = mLanes.get(type);
+
+        if (lane != null) {
+            String key = getSlotKey(type, message.getParam(ID_PARAM));
+            CommandMessage previous = mSlots.put(key, message);
+            if (previous == null) {
+                lane.mReady.offer(key);
+            } else {
+                supersede(previous);
+            }
+            return;
+        }
+
+        if (type.length() > 4 && type.startsWith("stop")) {
+            String stoppedType = Character.toLowerCase(type.charAt(4)) + type.substring(5);
+            if (mLanes.containsKey(stoppedType)) {
+                discard(stoppedType, message.getParam(ID_PARAM));
+            }
+        }
+        mCommandHandler.handleCommandMessage(message);
+    }
+
+    //==========================================================================
+    // output
+    //==========================================================================
+    /**
+     * Removes the newest command for an actuator from its slot.
+     *
+     * @param commandType the command type
+     * @param id the actuator ID, or null for commands without an ID
+     * @return the newest command, or null if there is none
+     */
+    public CommandMessage poll(String commandType, String id) {
+        return mSlots.remove(getSlotKey(commandType, id));
+    }
+
+    /**
+     * Waits for a new command of the given type and removes it from its slot.
+     * The actuators of that type are served in the order in which their slots
+     * were filled.
+     *
+     * @param commandType the command type
+     * @param timeout the maximum waiting time in milliseconds
+     * @return the newest command of an actuator, or null if the time has
+     * elapsed
+     * @throws IllegalArgumentException if the type is not coalesced
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public CommandMessage take(String commandType, long timeout)
+            throws IllegalArgumentException, InterruptedException {
+        Lane lane = mLanes.get(commandType);
+        if (lane == null) {
+            throw new IllegalArgumentException("command type is not coalesced: " + commandType);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            String key = lane.mReady.poll(remaining, TimeUnit.NANOSECONDS);
+            if (key == null) {
+                return null;
+            }
+            // null if the slot has been emptied by poll() or a stop command
+            CommandMessage command = mSlots.remove(key);
+            if (command != null) {
+                return command;
+            }
+        }
+    }
+
+    //==========================================================================
+    // internal
+    //==========================================================================
+    private static String getSlotKey(String commandType, String id) {
+        return (id == null) ? commandType : commandType + "#" + id;
+    }
+
+    /**
+     * Empties the slots of a command type.
+     *
+     * @param commandType the command type
+     * @param id the actuator ID, or null for all actuators
+     */
+    private void discard(String commandType, String id) {
+        if (id != null) {
+            CommandMessage previous = mSlots.remove(getSlotKey(commandType, id));
+            if (previous != null) {
+                supersede(previous);
+            }
+            return;
+        }
+
+        String prefix = commandType + "#";
+        Iterator<Map.Entry<String, CommandMessage>> it = mSlots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CommandMessage> entry = it.next();
+            String key = entry.getKey();
+            if (key.equals(commandType) || key.startsWith(prefix)) {
+                CommandMessage previous = entry.getValue();
+                if (mSlots.remove(key, previous)) {
+                    supersede(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects a command which will not be executed.
+     *
+     * @param command the command
+     */
+    private void supersede(CommandMessage command) {
+        if (cLogger.isLoggable(Level.FINE)) {
+            cLogger.log(Level.FINE, "task \"{0}\" was superseded", command.getTaskID());
+        }
+
+        StatusMessage rejection = new StatusMessage(command.getTaskID(), "rejected");
+        rejection.addDetail("reason", "superseded");
+        if (mMetrics != null) {
+            mMetrics.commandSuperseded();
+            mMetrics.statusSent(rejection);
+        }
+        if (mStatusHandler != null) {
+            mStatusHandler.handleStatusMessage(rejection);
+        }
+    }
+
+    //==========================================================================
+    // delivery thread
+    //==========================================================================
+    /**
+     * Passes the newest commands of one type on, one at a time.
+     */
+    private class Lane extends Thread {
+
+        private final String mType;
+
+        /**
+         * The keys of the slots which have been filled.
+         */
+        private final BlockingQueue<String> mReady;
+
+        Lane(String type) {
+            super("CommandCoalescer-" + type);
+            setDaemon(true);
+
+            mType = type;
+            mReady = new LinkedBlockingQueue<String>();
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                CommandMessage command;
+                try {
+                    // null if the slot has been emptied by poll() or a stop command
+                    command = mSlots.remove(mReady.take());
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                if (command == null) {
+                    continue;
+                }
+
+                try {
+                    mCommandHandler.handleCommandMessage(command);
+                } catch (RuntimeException e) {
+                    cLogger.log(Level.SEVERE, "could not handle command: {0}", e.toString());
+                }
+            }
+            cLogger.log(Level.FINE, "coalescing lane \"{0}\" stopped", mType);
+        }
+    }
+}
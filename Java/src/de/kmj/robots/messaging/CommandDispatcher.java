@@ -0,0 +1,203 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.EngineMetrics;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decouples the reception of CommandMessages from their execution.
+ * <p>
+ * The {@link de.kmj.robots.messaging.MessageServer} calls its
+ * CommandMessageHandler on the receiving thread, so a slow handler delays
+ * every following packet. The dispatcher hands each command to one of several
+ * worker threads instead. Each worker has a bounded queue and the worker is
+ * chosen by the task ID, so all commands of the same task are executed in the
+ * order in which they were received.
+ * <p>
+ * If the queue of a worker is full, the command is rejected with the reason
+ * "overloaded" instead of blocking the receiver.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandDispatcher implements CommandMessageHandler {
+
+    private static final Logger cLogger = Logger.getLogger(CommandDispatcher.class.getName());
+
+    /**
+     * Executes the commands.
+     */
+    private final CommandMessageHandler mCommandHandler;
+
+    /**
+     * Receives the rejections for commands which could not be queued.
+     */
+    private final StatusMessageHandler mStatusHandler;
+
+    /**
+     * The worker threads.
+     */
+    private final Worker[] mWorkers;
+
+    /**
+     * Counts the rejected commands, may be null.
+     */
+    private EngineMetrics mMetrics;
+
+    /**
+     * Creates a dispatcher. The worker threads are started by
+     * {@link #start()}.
+     *
+     * @param commandHandler executes the commands
+     * @param statusHandler receives the rejections of commands which could
+     * not be queued, may be null
+     * @param workerCount the number of worker threads
+     * @param queueSize the maximum number of waiting commands per worker
+     * @throws IllegalArgumentException if workerCount or queueSize is not
+     * positive
+     */
+    public CommandDispatcher(CommandMessageHandler commandHandler,
+            StatusMessageHandler statusHandler,
+            int workerCount, int queueSize)
+            throws IllegalArgumentException {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("worker count must be positive: " + workerCount);
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queue size must be positive: " + queueSize);
+        }
+
+        mCommandHandler = commandHandler;
+        mStatusHandler = statusHandler;
+
+        mWorkers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Worker(i, queueSize);
+        }
+    }
+
+    /**
+     * Sets the metrics which count the commands that were rejected because
+     * of overload.
+     *
+     * @param metrics the metrics, or null for disabling them
+     */
+    public void setMetrics(EngineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+        cLogger.log(Level.INFO, "started {0} dispatch workers", mWorkers.length);
+    }
+
+    /**
+     * Stops the worker threads. Commands which are still queued are
+     * discarded.
+     */
+    public void abort() {
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all worker threads have terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void join() throws InterruptedException {
+        for (Worker worker : mWorkers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Queues a command for execution. Never blocks.
+     *
+     * @param message the command to execute
+     */
+    @Override
+    public void handleCommandMessage(CommandMessage message) {
+        Worker worker = mWorkers[(message.getTaskID().hashCode() & 0x7FFFFFFF) % mWorkers.length];
+
+        if (!worker.mQueue.offer(message)) {
+            cLogger.log(Level.WARNING, "dispatch queue {0} is full, rejecting task \"{1}\"",
+                    new Object[]{worker.mIndex, message.getTaskID()});
+
+            StatusMessage rejection = new StatusMessage(message.getTaskID(), "rejected");
+            rejection.addDetail("reason", "overloaded");
+            if (mMetrics != null) {
+                mMetrics.packetDropped();
+                mMetrics.statusSent(rejection);
+            }
+            if (mStatusHandler != null) {
+                mStatusHandler.handleStatusMessage(rejection);
+            }
+        }
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * @return the number of commands which are currently waiting
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.mQueue.size();
+        }
+        return count;
+    }
+
+    //==========================================================================
+    // worker thread
+    //==========================================================================
+    /**
+     * Executes the commands from one queue in order.
+     */
+    private class Worker extends Thread {
+
+        private final int mIndex;
+
+        private final BlockingQueue<CommandMessage> mQueue;
+
+        Worker(int index, int queueSize) {
+            super("CommandDispatcher-" + index);
+            setDaemon(true);
+
+            mIndex = index;
+            mQueue = new ArrayBlockingQueue<CommandMessage>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                CommandMessage command;
+                try {
+                    command = mQueue.take();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+
+                try {
+                    mCommandHandler.handleCommandMessage(command);
+                } catch (RuntimeException e) {
+                    cLogger.log(Level.SEVERE, "could not handle command: {0}", e.toString());
+                }
+            }
+            cLogger.log(Level.FINE, "dispatch worker {0} stopped", mIndex);
+        }
+    }
+}
@@ -1,17 +1,11 @@
 package de.kmj.robots.messaging;
 
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeMap;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
 
-import java.io.StringWriter;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 
 /**
@@ -45,7 +39,7 @@ public class CommandMessage extends XMLMessage{
     /**
      * The optional set of command parameters.
      */
-    private TreeMap<String, String> mCommandParams;
+    private ParameterMap mCommandParams;
 
     /**
      * Creates a CommandMessage with the given task ID and command type.
@@ -67,7 +61,27 @@ public class CommandMessage extends XMLMessage{
         mTaskID = taskID;
         mCommandType = type;
 
-        mCommandParams = new TreeMap<String, String>();
+        mCommandParams = new ParameterMap();
+    }
+
+    /**
+     * Creates a copy of a CommandMessage with a different task ID.
+     *
+     * @param taskID the task identifier of the copy
+     * @param template the message whose type and parameters are copied
+     * @throws IllegalArgumentException if the taskID is null
+     */
+    public CommandMessage(String taskID, CommandMessage template)
+            throws IllegalArgumentException {
+        super();
+        if (taskID == null) {
+            throw new IllegalArgumentException(
+                    "CommandMessage requires at least a task ID and command type");
+        }
+
+        mTaskID = taskID;
+        mCommandType = template.mCommandType;
+        mCommandParams = new ParameterMap(template.mCommandParams);
     }
 
     /**
@@ -82,6 +96,19 @@ public class CommandMessage extends XMLMessage{
         parseDocument(messageStr);
     }    
 
+    /**
+     * Creates a CommandMessage by parsing its UTF-8 encoded XML representation.
+     * The position of the buffer is not modified.
+     *
+     * @param messageBytes the remaining bytes contain the message data
+     * @throws IllegalArgumentException if the taskID or the command type is
+     * missing
+     */
+    public CommandMessage(ByteBuffer messageBytes) throws IllegalArgumentException {
+        super();
+        parseBytes(messageBytes);
+    }
+
     /**
      * Creates a CommandMessage by parsing an individual XML node.
      *
@@ -91,59 +118,55 @@ public class CommandMessage extends XMLMessage{
      */
     public CommandMessage(Node messageNode){
         super();
-        createDocument();
-        mDocument.appendChild(messageNode);
-        parseMessageContent();
+        parseNode(messageNode);
     }
 
     
     @Override
-    protected void parseMessageContent()
+    protected String getElementName()
     {
-        if(mDocument==null)
-        {
-            cLogger.log(Level.SEVERE, "Can't parse command content: The document was not created yet!");
-            return;
-        }
-        
-        
-        NodeList cmdElements = mDocument.getElementsByTagName("command");
-        if(cmdElements.getLength()==0)
+        return "command";
+    }
+    
+    @Override
+    protected void clearMessageContent()
+    {
+        mTaskID = null;
+        mCommandType = null;
+        mCommandParams = new ParameterMap();
+    }
+    
+    @Override
+    protected void readAttribute(String name, String value)
+    {
+        if (name.equals("task")) {
+            mTaskID = value;
+        } else if (name.equals("type")) {
+            mCommandType = value;
+        } else //arbitrary command parameters
         {
-            cLogger.log(Level.SEVERE, "No <command> element in the XML message!");
-            return;
+            mCommandParams.put(name, value);
         }
-        
-        //------------------------------------------------------------------
-        // parse all attributes
-        //------------------------------------------------------------------
-        Element cmdNode = (Element)cmdElements.item(0);
-        mCommandParams = new TreeMap<String, String>();
-
-        NamedNodeMap attributes = cmdNode.getAttributes();
-        int attrCount = attributes.getLength();
-        for (int i = 0; i < attrCount; i++) {
-            Node attr = attributes.item(i);
-            String attrName = attr.getNodeName();
-            String attrValue = attr.getNodeValue();
-
-            if (attrName.equals("task")) {
-                mTaskID = attrValue;
-            } else if (attrName.equals("type")) {
-                mCommandType = attrValue;
-            } else //arbitrary command parameters
-            {
-                mCommandParams.put(attrName, attrValue);
-            }
-        }
-        
-        // validate the message
+    }
+    
+    @Override
+    protected void validateMessageContent() throws IllegalArgumentException
+    {
         if (mTaskID == null || mCommandType == null) {
             throw new IllegalArgumentException(
                     "CommandMessage requires at least a task ID and command type");
         }
     }
 
+    @Override
+    boolean writeMessage(MessageWriter writer)
+    {
+        writer.begin(getElementName())
+                .attributes("task", mTaskID, "type", mCommandType, mCommandParams)
+                .end();
+        return true;
+    }
+
     @Override
     public Element createMessageElement(Document doc){
         
@@ -151,9 +174,8 @@ public class CommandMessage extends XMLMessage{
         cmdElem.setAttribute("task", mTaskID);
         cmdElem.setAttribute("type", mCommandType);
             
-        Set<Entry<String, String>> params = mCommandParams.entrySet();
-        for (Entry<String, String> param : params)
-            cmdElem.setAttribute(param.getKey(), param.getValue());
+        for (int i = 0; i < mCommandParams.size(); i++)
+            cmdElem.setAttribute(mCommandParams.keyAt(i), mCommandParams.valueAt(i));
         
         return cmdElem;
     }
@@ -170,7 +192,18 @@ public class CommandMessage extends XMLMessage{
         return mCommandType;
     }
 
-    public TreeMap<String, String> getCommandParams() {
+    /**
+     * @return the command parameters, sorted by name; changes are applied
+     * to this message
+     */
+    public NavigableMap<String, String> getCommandParams() {
+        return mCommandParams;
+    }
+
+    /**
+     * @return the command parameters, for reading them by index
+     */
+    ParameterMap getParameterMap() {
         return mCommandParams;
     }
 
@@ -0,0 +1,146 @@
+package de.kmj.robots.messaging;
+
+import java.net.SocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client transport for control applications which run in the same JVM as
+ * the RobotEngine.
+ * <p>
+ * Commands are handed directly to the running
+ * {@link de.kmj.robots.messaging.InProcessServer} with the same channel name,
+ * without serialization. The returning StatusMessages are passed to the
+ * StatusMessageHandler on the receiving thread of this client.
+ *
+ * @see de.kmj.robots.messaging.InProcessTransportProvider
+ * @author Kathrin Janowski
+ */
+public class InProcessClient extends InProcessEndpoint<StatusMessage>
+        implements ClientTransport {
+
+    private static final Logger cLogger = Logger.getLogger(InProcessClient.class.getName());
+
+    /**
+     * Identifies a client in the
+     * {@link de.kmj.robots.messaging.TaskAddressRegistry} of the server.
+     */
+    static final class Address extends SocketAddress {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The client, not serialized because it is only valid within this
+         * JVM.
+         */
+        private final transient InProcessClient mClient;
+
+        Address(InProcessClient client) {
+            mClient = client;
+        }
+
+        /**
+         * @return the client, or null if this address was deserialized
+         */
+        InProcessClient getClient() {
+            return mClient;
+        }
+
+        @Override
+        public String toString() {
+            if (mClient == null) {
+                return "inprocess:?";
+            }
+            return "inprocess:" + mClient.getChannel() + "@"
+                    + Integer.toHexString(System.identityHashCode(mClient));
+        }
+    }
+
+    private final String mChannel;
+
+    /**
+     * The address under which the server registers the tasks of this client.
+     */
+    private final Address mAddress;
+
+    /**
+     * Handles all incoming status messages.
+     */
+    private final StatusMessageHandler mStatusHandler;
+
+    /**
+     * Creates a client.
+     *
+     * @param handler receives the status messages
+     * @param channel the channel name of the server
+     */
+    public InProcessClient(StatusMessageHandler handler, String channel) {
+        super("InProcessClient-" + channel);
+        mChannel = channel;
+        mStatusHandler = handler;
+        mAddress = new Address(this);
+    }
+
+    /**
+     * @return the channel name
+     */
+    public String getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return the address under which the server registers the tasks of this
+     * client
+     */
+    Address getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void start() {
+        startReceiving();
+        if (InProcessServer.lookup(mChannel) == null) {
+            cLogger.log(Level.WARNING, "no server on channel \"{0}\" yet", mChannel);
+        }
+    }
+
+    @Override
+    public void abort() {
+        cLogger.log(Level.INFO, "closing in-process client...");
+        stopReceiving();
+
+        InProcessServer server = InProcessServer.lookup(mChannel);
+        if (server != null) {
+            server.removeClient(this);
+        }
+    }
+
+    /**
+     * @return true if this client is started and a server is running on its
+     * channel
+     */
+    @Override
+    public boolean isConnected() {
+        InProcessServer server = InProcessServer.lookup(mChannel);
+        return isReceiving() && (server != null) && server.isReceiving();
+    }
+
+    @Override
+    public boolean sendCommandMessage(CommandMessage command) {
+        InProcessServer server = InProcessServer.lookup(mChannel);
+        if (server == null || !isReceiving()) {
+            cLogger.log(Level.WARNING, "could not send because the client is not connected");
+            return false;
+        }
+
+        if (cLogger.isLoggable(Level.FINE)) {
+            cLogger.log(Level.FINE, "sending: {0}", command);
+        }
+        return server.receive(command, this);
+    }
+
+    @Override
+    void deliver(StatusMessage status, long sentAt) {
+        mStatusHandler.handleStatusMessage(status);
+    }
+}
@@ -0,0 +1,143 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.RobotThreadFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The receiving side of an in-process connection: a lock-free queue of
+ * messages and a thread which passes them to a handler.
+ * <p>
+ * The messages are handed over as objects, without any serialization.
+ * Senders must therefore not modify a message after sending it.
+ *
+ * @param <T> the message type
+ * @author Kathrin Janowski
+ */
+abstract class InProcessEndpoint<T> implements Runnable {
+
+    private static final Logger cLogger = Logger.getLogger(InProcessEndpoint.class.getName());
+
+    /**
+     * A queued message and the time at which it was sent.
+     */
+    static final class Envelope<T> {
+
+        final T mMessage;
+        final long mSentAt;
+
+        Envelope(T message, long sentAt) {
+            mMessage = message;
+            mSentAt = sentAt;
+        }
+    }
+
+    private final String mName;
+
+    private final ConcurrentLinkedQueue<Envelope<T>> mQueue;
+
+    private volatile Thread mThread;
+
+    private volatile boolean mRunning;
+
+    /**
+     * @param name the name of the receiving thread
+     */
+    InProcessEndpoint(String name) {
+        mName = name;
+        mQueue = new ConcurrentLinkedQueue<Envelope<T>>();
+        mRunning = false;
+    }
+
+    /**
+     * Starts the receiving thread.
+     */
+    synchronized void startReceiving() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = RobotThreadFactory.newThread(mName, true, this);
+        mThread.start();
+    }
+
+    /**
+     * Stops the receiving thread. Messages which are still queued are
+     * discarded.
+     */
+    void stopReceiving() {
+        mRunning = false;
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Waits until the receiving thread has terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void awaitTermination() throws InterruptedException {
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return true if messages are accepted
+     */
+    boolean isReceiving() {
+        return mRunning;
+    }
+
+    /**
+     * Queues a message and wakes up the receiving thread. Never blocks.
+     *
+     * @param message the message
+     * @return true if the message was queued, false if the endpoint is
+     * stopped
+     */
+    boolean offer(T message) {
+        if (!mRunning) {
+            return false;
+        }
+        mQueue.offer(new Envelope<T>(message, System.nanoTime()));
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Handles a received message on the receiving thread.
+     *
+     * @param message the message
+     * @param sentAt the time at which the message was queued, from
+     * {@link System#nanoTime()}
+     */
+    abstract void deliver(T message, long sentAt);
+
+    @Override
+    public final void run() {
+        while (mRunning) {
+            Envelope<T> envelope = mQueue.poll();
+            if (envelope == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            try {
+                deliver(envelope.mMessage, envelope.mSentAt);
+            } catch (RuntimeException e) {
+                cLogger.log(Level.SEVERE, "could not handle message: {0}", e.toString());
+            }
+        }
+        mQueue.clear();
+        cLogger.log(Level.FINE, "{0} stopped", mName);
+    }
+}
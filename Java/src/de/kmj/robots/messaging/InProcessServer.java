@@ -0,0 +1,232 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.EngineMetrics;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A server transport for control applications which run in the same JVM as
+ * the RobotEngine, e.g. in simulations and automated tests.
+ * <p>
+ * The server is registered under a channel name while it is running.
+ * {@link de.kmj.robots.messaging.InProcessClient}s with the same channel name
+ * put their CommandMessages directly into the lock-free queue of the server,
+ * and the StatusMessages are put into the queue of the client which has sent
+ * the command of the same task. The messages are neither serialized nor
+ * copied, so they must not be modified after sending.
+ * <p>
+ * The clients of the open tasks are kept in a
+ * {@link de.kmj.robots.messaging.TaskAddressRegistry}, so the tasks which
+ * never end are evicted like those of the
+ * {@link de.kmj.robots.messaging.MessageServer}.
+ * <p>
+ * The {@link #getStatusFanOut() status fan-out} supports local observers, but
+ * no remote subscribers.
+ *
+ * @see de.kmj.robots.messaging.InProcessTransportProvider
+ * @author Kathrin Janowski
+ */
+public class InProcessServer extends InProcessEndpoint<CommandMessage>
+        implements ServerTransport {
+
+    private static final Logger cLogger = Logger.getLogger(InProcessServer.class.getName());
+
+    /**
+     * The running servers by channel name.
+     */
+    private static final ConcurrentHashMap<String, InProcessServer> cServers
+            = new ConcurrentHashMap<String, InProcessServer>();
+
+    private final String mChannel;
+
+    /**
+     * Handles all incoming commands.
+     */
+    private final CommandMessageHandler mCommandHandler;
+
+    /**
+     * The client of each open task.
+     */
+    private final TaskAddressRegistry mClients;
+
+    /**
+     * Collects latencies and counters, may be null.
+     */
+    private EngineMetrics mMetrics;
+
+    /**
+     * Passes the statuses on to the observers.
+     */
+    private final StatusFanOut mFanOut;
+
+    /**
+     * Records the messages, may be null.
+     */
+    private volatile MessageJournal mJournal;
+
+    /**
+     * Creates a server.
+     *
+     * @param handler receives the commands
+     * @param channel the channel name which the clients use
+     */
+    public InProcessServer(CommandMessageHandler handler, String channel) {
+        super("InProcessServer-" + channel);
+        mChannel = channel;
+        mCommandHandler = handler;
+        mClients = new TaskAddressRegistry();
+        mFanOut = new StatusFanOut("StatusFanOut-" + channel, null);
+    }
+
+    /**
+     * Looks up the running server of a channel.
+     *
+     * @param channel the channel name
+     * @return the server, or null if there is none
+     */
+    static InProcessServer lookup(String channel) {
+        return cServers.get(channel);
+    }
+
+    /**
+     * @return the channel name
+     */
+    public String getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return the registry which associates task IDs with clients
+     */
+    public TaskAddressRegistry getTaskAddressRegistry() {
+        return mClients;
+    }
+
+    //==========================================================================
+    // ServerTransport
+    //==========================================================================
+    /**
+     * Registers the server under its channel name and starts receiving.
+     *
+     * @throws IllegalStateException if another server is running on the same
+     * channel
+     */
+    @Override
+    public void start() throws IllegalStateException {
+        InProcessServer previous = cServers.putIfAbsent(mChannel, this);
+        if (previous != null && previous != this) {
+            throw new IllegalStateException("channel \"" + mChannel
+                    + "\" is already used by another server");
+        }
+        startReceiving();
+        cLogger.log(Level.INFO, "in-process server ready: channel \"{0}\"", mChannel);
+    }
+
+    @Override
+    public void abort() {
+        cLogger.log(Level.INFO, "closing in-process server...");
+        cServers.remove(mChannel, this);
+        stopReceiving();
+        mClients.clear();
+        mFanOut.close();
+    }
+
+    @Override
+    public boolean sendStatusMessage(StatusMessage status) {
+        String taskID = status.getTaskID();
+        String st = status.getStatus();
+
+        MessageJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(status, System.nanoTime());
+        }
+
+        TaskAddressRegistry.Entry entry = mClients.lookup(taskID);
+        if (entry != null && (st.equals("finished") || st.equals("rejected"))) {
+            mClients.remove(taskID);
+        }
+        InProcessClient client = (entry != null)
+                ? ((InProcessClient.Address) entry.getAddress()).getClient() : null;
+        mFanOut.publish(status, null);
+
+        if (client == null) {
+            if (mMetrics != null) {
+                mMetrics.unknownClient();
+            }
+            cLogger.log(Level.SEVERE, "no client for task ID \"{0}\"", taskID);
+            return false;
+        }
+
+        if (cLogger.isLoggable(Level.FINE)) {
+            cLogger.log(Level.FINE, "sending: {0}", status);
+        }
+        return client.offer(status);
+    }
+
+    @Override
+    public void setMetrics(EngineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    @Override
+    public void setJournal(MessageJournal journal) {
+        mJournal = journal;
+    }
+
+    @Override
+    public StatusFanOut getStatusFanOut() {
+        return mFanOut;
+    }
+
+    @Override
+    public void setLogLevel(Level level) {
+        try {
+            cLogger.setLevel(level);
+        } catch (SecurityException se) {
+            cLogger.log(Level.SEVERE, "could not change log level: {0}", se.getMessage());
+        }
+    }
+
+    //==========================================================================
+    // receiving
+    //==========================================================================
+    /**
+     * Queues a command from a client.
+     *
+     * @param command the command
+     * @param client the client which receives the status messages of the task
+     * @return true if the command was queued, false if the server is stopped
+     */
+    boolean receive(CommandMessage command, InProcessClient client) {
+        if (!isReceiving()) {
+            return false;
+        }
+        mClients.register(command.getTaskID(), client.getAddress(), false);
+        if (mMetrics != null) {
+            mMetrics.packetReceived();
+        }
+        return offer(command);
+    }
+
+    /**
+     * Forgets the open tasks of a client which has been closed.
+     *
+     * @param client the client
+     */
+    void removeClient(InProcessClient client) {
+        mClients.removeAddress(client.getAddress());
+    }
+
+    @Override
+    void deliver(CommandMessage command, long sentAt) {
+        if (mMetrics != null) {
+            mMetrics.commandParsed(command.getTaskID(), sentAt);
+        }
+        MessageJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(command, sentAt);
+        }
+        mCommandHandler.handleCommandMessage(command);
+    }
+}
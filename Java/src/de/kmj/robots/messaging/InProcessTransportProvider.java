@@ -0,0 +1,55 @@
+package de.kmj.robots.messaging;
+
+import java.util.Properties;
+
+/**
+ * Provides the in-process connection of {@link InProcessServer} and
+ * {@link InProcessClient}, which passes the message objects through
+ * lock-free queues instead of serializing them.
+ * <p>
+ * Server and client parameter:
+ * <ul>
+ * <li>network.channel: the name which connects the clients with the server
+ * (default: "default")</li>
+ * </ul>
+ * Server parameters:
+ * <ul>
+ * <li>network.taskTTL: the number of seconds after which the client of an
+ * unfinished task is forgotten (default: "600")</li>
+ * <li>network.maxTasks: the maximum number of unfinished tasks whose clients
+ * are kept (default: "10000")</li>
+ * </ul>
+ *
+ * @author Kathrin Janowski
+ */
+public class InProcessTransportProvider implements TransportProvider {
+
+    /**
+     * The name of this provider.
+     */
+    public static final String NAME = "inprocess";
+
+    /**
+     * The default channel name.
+     */
+    public static final String DEFAULT_CHANNEL = "default";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public ServerTransport createServer(CommandMessageHandler handler, Properties config) {
+        InProcessServer server = new InProcessServer(handler,
+                config.getProperty("network.channel", DEFAULT_CHANNEL));
+        UdpTransportProvider.configure(server.getTaskAddressRegistry(), config);
+        return server;
+    }
+
+    @Override
+    public ClientTransport createClient(StatusMessageHandler handler, Properties config) {
+        return new InProcessClient(handler,
+                config.getProperty("network.channel", DEFAULT_CHANNEL));
+    }
+}
@@ -0,0 +1,92 @@
+package de.kmj.robots.messaging;
+
+/**
+ * A message from a {@link de.kmj.robots.messaging.MessageJournal}, either a
+ * received CommandMessage or a sent StatusMessage.
+ *
+ * @see de.kmj.robots.messaging.JournalReader
+ * @author Kathrin Janowski
+ */
+public class JournalEntry {
+
+    private final long mTimestamp;
+    private final long mTime;
+    private final CommandMessage mCommand;
+    private final StatusMessage mStatus;
+
+    /**
+     * Creates an entry for a received command.
+     *
+     * @param timestamp the time of reception from System.nanoTime()
+     * @param time the wall clock time of reception in milliseconds
+     * @param command the command message
+     */
+    public JournalEntry(long timestamp, long time, CommandMessage command) {
+        mTimestamp = timestamp;
+        mTime = time;
+        mCommand = command;
+        mStatus = null;
+    }
+
+    /**
+     * Creates an entry for a sent status.
+     *
+     * @param timestamp the time of sending from System.nanoTime()
+     * @param time the wall clock time of sending in milliseconds
+     * @param status the status message
+     */
+    public JournalEntry(long timestamp, long time, StatusMessage status) {
+        mTimestamp = timestamp;
+        mTime = time;
+        mCommand = null;
+        mStatus = status;
+    }
+
+    /**
+     * @return the time of reception or sending from System.nanoTime(), which
+     * can only be compared to other timestamps of the same session
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the wall clock time of reception or sending in milliseconds
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return true for a received command, false for a sent status
+     */
+    public boolean isCommand() {
+        return mCommand != null;
+    }
+
+    /**
+     * @return the command message, or null if this is a status
+     */
+    public CommandMessage getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * @return the status message, or null if this is a command
+     */
+    public StatusMessage getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return the task ID of the message
+     */
+    public String getTaskID() {
+        return (mCommand != null) ? mCommand.getTaskID() : mStatus.getTaskID();
+    }
+
+    @Override
+    public String toString() {
+        return mTimestamp + " " + ((mCommand != null) ? mCommand : mStatus);
+    }
+}
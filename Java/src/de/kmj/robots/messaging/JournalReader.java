@@ -0,0 +1,245 @@
+package de.kmj.robots.messaging;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the messages of a {@link de.kmj.robots.messaging.MessageJournal}
+ * session in the order in which they were recorded, across all of its
+ * segments.
+ * <p>
+ * Example:
+ * <pre>
+ * JournalReader reader = new JournalReader(directory, session);
+ * JournalEntry entry;
+ * while ((entry = reader.next()) != null) {
+ *     ...
+ * }
+ * reader.close();
+ * </pre>
+ * <p>
+ * When the recording process crashed, the last record may be incomplete. A
+ * short or invalid record in the last segment is therefore treated as the end
+ * of the journal. In earlier segments, it is reported as corrupt.
+ *
+ * @author Kathrin Janowski
+ */
+public class JournalReader {
+
+    private static final Logger cLogger = Logger.getLogger(JournalReader.class.getName());
+
+    /**
+     * The size of the message header (magic, kind and payload length) of the
+     * binary encoding.
+     */
+    private static final int MESSAGE_HEADER_SIZE = 6;
+
+    private static final int RECORD_MIN_SIZE
+            = MessageJournal.RECORD_HEADER_SIZE + MESSAGE_HEADER_SIZE;
+
+    private final File[] mSegments;
+    private int mSegmentIndex;
+
+    /**
+     * The current segment, or null before the first and after the last one.
+     */
+    private MappedByteBuffer mBuffer;
+    private long mSegmentTime;
+    private long mSegmentTimestamp;
+
+    /**
+     * Opens a journal session.
+     *
+     * @param directory the directory of the segment files
+     * @param session the session name, see
+     * {@link MessageJournal#getSession()}
+     * @throws IOException if there are no segments of that session
+     */
+    public JournalReader(File directory, final String session) throws IOException {
+        mSegments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(session + ".")
+                        && name.endsWith(MessageJournal.FILE_EXTENSION);
+            }
+        });
+        if (mSegments == null || mSegments.length == 0) {
+            throw new IOException("no journal segments of session \"" + session
+                    + "\" in " + directory);
+        }
+        Arrays.sort(mSegments);
+        mSegmentIndex = 0;
+        mBuffer = null;
+    }
+
+    /**
+     * Lists the journal sessions in a directory.
+     *
+     * @param directory the directory of the segment files
+     * @return the session names in alphabetical order, which is also the
+     * chronological order of sessions with the same journal name
+     */
+    public static List<String> listSessions(File directory) {
+        TreeSet<String> sessions = new TreeSet<String>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(MessageJournal.FILE_EXTENSION)) {
+                    int end = name.lastIndexOf('.', name.length()
+                            - MessageJournal.FILE_EXTENSION.length() - 1);
+                    if (end > 0) {
+                        sessions.add(name.substring(0, end));
+                    }
+                }
+            }
+        }
+        return new ArrayList<String>(sessions);
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @return the next message, or null after the last one
+     * @throws IOException if a segment could not be read or is corrupt
+     */
+    public JournalEntry next() throws IOException {
+        while (true) {
+            if (mBuffer == null) {
+                if (mSegmentIndex >= mSegments.length) {
+                    return null;
+                }
+                openSegment(mSegments[mSegmentIndex++]);
+                continue;
+            }
+
+            int start = mBuffer.position();
+            if (mBuffer.remaining() < RECORD_MIN_SIZE
+                    || mBuffer.get(start + MessageJournal.RECORD_HEADER_SIZE)
+                    != BinaryMessageCodec.MAGIC) {
+                // end of the recorded part
+                mBuffer = null;
+                continue;
+            }
+
+            long timestamp = mBuffer.getLong(start);
+            int messageStart = start + MessageJournal.RECORD_HEADER_SIZE;
+            byte kind = mBuffer.get(messageStart + 1);
+            int end = messageStart + MESSAGE_HEADER_SIZE + mBuffer.getInt(messageStart + 2);
+            if (end < messageStart || end > mBuffer.limit()) {
+                return invalid(start);
+            }
+
+            ByteBuffer message = mBuffer.duplicate();
+            message.position(messageStart);
+            message.limit(end);
+            mBuffer.position(end);
+
+            long time = mSegmentTime + (timestamp - mSegmentTimestamp) / 1000000L;
+            try {
+                if (kind == BinaryMessageCodec.KIND_COMMAND) {
+                    return new JournalEntry(timestamp, time,
+                            BinaryMessageCodec.decodeCommand(message));
+                } else if (kind == BinaryMessageCodec.KIND_STATUS) {
+                    return new JournalEntry(timestamp, time,
+                            BinaryMessageCodec.decodeStatus(message));
+                }
+            } catch (IllegalArgumentException iae) {
+                return invalid(start);
+            }
+            return invalid(start);
+        }
+    }
+
+    /**
+     * Reads all remaining messages.
+     *
+     * @return the messages
+     * @throws IOException if a segment could not be read or is corrupt
+     */
+    public List<JournalEntry> readAll() throws IOException {
+        ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+        JournalEntry entry;
+        while ((entry = next()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Stops reading.
+     */
+    public void close() {
+        mBuffer = null;
+        mSegmentIndex = mSegments.length;
+    }
+
+    //==========================================================================
+    // internal
+    //==========================================================================
+    private void openSegment(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        if (mSegmentIndex == mSegments.length
+                && (mBuffer.remaining() < MessageJournal.SEGMENT_HEADER_SIZE
+                || mBuffer.getInt(0) == 0)) {
+            // created, but the header was never written
+            cLogger.log(Level.WARNING, "empty journal segment {0}, "
+                    + "treated as the end of the journal", segment);
+            mBuffer = null;
+            return;
+        }
+        if (mBuffer.remaining() < MessageJournal.SEGMENT_HEADER_SIZE
+                || mBuffer.getInt() != MessageJournal.SEGMENT_MAGIC) {
+            mBuffer = null;
+            throw new IOException("not a journal segment: " + segment);
+        }
+        short version = mBuffer.getShort();
+        if (version != MessageJournal.VERSION) {
+            mBuffer = null;
+            throw new IOException("unsupported journal version " + version + ": " + segment);
+        }
+        mBuffer.getShort();
+        mSegmentTime = mBuffer.getLong();
+        mSegmentTimestamp = mBuffer.getLong();
+    }
+
+    /**
+     * Handles an invalid record. In the last segment, this is the torn end of
+     * a crashed recording, so reading stops there.
+     *
+     * @param position the start of the record
+     * @return null at the end of the last segment
+     * @throws IOException if the record is not at the end of the last segment
+     */
+    private JournalEntry invalid(int position) throws IOException {
+        if (mSegmentIndex < mSegments.length) {
+            throw corrupt(position);
+        }
+        cLogger.log(Level.WARNING, "incomplete journal record in {0} at byte {1}, "
+                + "treated as the end of the journal",
+                new Object[]{mSegments[mSegmentIndex - 1], position});
+        mBuffer = null;
+        return null;
+    }
+
+    private IOException corrupt(int position) {
+        return new IOException("corrupt journal record in "
+                + mSegments[mSegmentIndex - 1] + " at byte " + position);
+    }
+}
@@ -1,9 +1,12 @@
 package de.kmj.robots.messaging;
 
+import de.kmj.robots.util.RobotThreadFactory;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -13,13 +16,23 @@ import java.util.logging.Logger;
 /**
  * A UDP client which sends CommandMessages to the server and listens for
  * returning StatusMessages.
+ * <p>
+ * Commands are sent as XML by default. {@link #setBinaryEncoding(boolean)}
+ * switches to the compact {@link de.kmj.robots.messaging.BinaryMessageCodec
+ * binary encoding}. Incoming status messages are accepted in either format.
+ * <p>
+ * By default, commands are sent once and may get lost.
+ * {@link #setReliable(boolean)} enables acknowledgements and retransmission
+ * via a {@link de.kmj.robots.messaging.ReliableDelivery}.
  *
  * @see de.kmj.robots.messaging.MessageServer
  * @author Kathrin Janowski
  */
-public class MessageClient extends Thread {
+public class MessageClient extends Thread implements ClientTransport {
 
     private static final Logger cLogger = Logger.getLogger(MessageClient.class.getName());
+    
+    private static final Charset cCharset = Charset.forName("UTF-8");
 
     /**
      * Handles all incoming status messages.
@@ -64,10 +77,27 @@ public class MessageClient extends Thread {
      */
     private final int mBufferSize;
 
+    /**
+     * Flag for sending commands in the binary encoding instead of XML.
+     */
+    private volatile boolean mBinaryEncoding;
+
+    /**
+     * Retransmits unacknowledged commands, or null if commands are only sent
+     * once.
+     */
+    private volatile ReliableDelivery mReliable;
+
+    /**
+     * The virtual thread which runs the receiving loop, or null if the loop
+     * runs on this thread.
+     */
+    private volatile Thread mVirtualThread;
+
     /**
      * Run flag.
      */
-    private boolean mRunning;
+    private volatile boolean mRunning;
 
     public MessageClient(StatusMessageHandler handler, String bufferSize,
             String localIP, String localPort,
@@ -109,6 +139,7 @@ public class MessageClient extends Thread {
         mLocalAddr = new InetSocketAddress(mLocalIP, mLocalPort);
         mRemoteAddr = new InetSocketAddress(mRemoteIP, mRemotePort);
 
+        mBinaryEncoding = false;
         mRunning = false;
     }
 
@@ -130,6 +161,7 @@ public class MessageClient extends Thread {
         mLocalAddr = new InetSocketAddress(mLocalIP, mLocalPort);
         mRemoteAddr = new InetSocketAddress(mRemoteIP, mRemotePort);
 
+        mBinaryEncoding = false;
         mRunning = false;
     }
 
@@ -149,8 +181,14 @@ public class MessageClient extends Thread {
 
                 mClientSocket.connect(mRemoteAddr);
             }
-            // Start the server thread
-            super.start();
+            // Start the receiving thread
+            mRunning = true;
+            if (RobotThreadFactory.isVirtual()) {
+                mVirtualThread = RobotThreadFactory.newThread(getName(), false, this);
+                mVirtualThread.start();
+            } else {
+                super.start();
+            }
         } catch (final Exception e) {
             cLogger.log(Level.SEVERE, "error in socket connection: {0}",
                             e.toString());
@@ -175,14 +213,112 @@ public class MessageClient extends Thread {
      */
     public void abort() {
         cLogger.log(Level.INFO, "closing client socket...");
+        mRunning = false;
         interrupt();
 
+        ReliableDelivery reliable = mReliable;
+        if (reliable != null) {
+            reliable.close();
+        }
+
         // close the socket 
         if (mClientSocket != null && !mClientSocket.isClosed()) {
             mClientSocket.close();
         }
     }
 
+    /**
+     * Chooses the encoding of outgoing commands.
+     *
+     * @param binary true for the compact binary encoding, false for XML
+     */
+    public void setBinaryEncoding(boolean binary) {
+        mBinaryEncoding = binary;
+    }
+
+    /**
+     * @return true if commands are sent in the binary encoding
+     */
+    public boolean getBinaryEncoding() {
+        return mBinaryEncoding;
+    }
+
+    /**
+     * Enables or disables acknowledgements and retransmission of commands.
+     * <p>
+     * In reliable mode, the status handler receives a "rejected" status with
+     * the detail reason="timeout" for every command which is not acknowledged
+     * after the last retransmission. This status is passed to the handler on
+     * a timer thread.
+     *
+     * @param reliable true for the reliable mode, false for sending each
+     * command only once
+     */
+    public synchronized void setReliable(boolean reliable) {
+        if (reliable && mReliable == null) {
+            mReliable = new ReliableDelivery(new ReliableDelivery.Sender() {
+                @Override
+                public boolean sendCommand(CommandMessage command) {
+                    return sendOnce(command);
+                }
+            }, mStatusHandler);
+        } else if (!reliable && mReliable != null) {
+            mReliable.close();
+            mReliable = null;
+        }
+    }
+
+    /**
+     * @return the retransmission settings, or null if the reliable mode is
+     * disabled
+     */
+    public ReliableDelivery getReliableDelivery() {
+        return mReliable;
+    }
+
+    /**
+     * Waits until the receiving loop has terminated, also when it runs on a
+     * virtual thread. Unlike join(), this works in both thread modes.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        getLoopThread().join();
+    }
+
+    /**
+     * Interrupts the receiving loop, also when it runs on a virtual thread.
+     */
+    @Override
+    public void interrupt() {
+        super.interrupt();
+        Thread thread = mVirtualThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isInterrupted() {
+        Thread thread = mVirtualThread;
+        return (thread != null) ? thread.isInterrupted() : super.isInterrupted();
+    }
+
+    /**
+     * Returns the thread which runs the receiving loop. This is the client
+     * itself, unless virtual threads are enabled in
+     * {@link de.kmj.robots.util.RobotThreadFactory}. In that case, join() and
+     * isAlive() of the client don't refer to the loop, so use this thread or
+     * {@link #awaitTermination()} instead.
+     *
+     * @return the thread of the receiving loop
+     */
+    public Thread getLoopThread() {
+        Thread thread = mVirtualThread;
+        return (thread != null) ? thread : this;
+    }
+
     public void setLogLevel(Level level){
         try{
             cLogger.setLevel(level);
@@ -203,6 +339,17 @@ public class MessageClient extends Thread {
      * @return true on success, false on failure
      */
     private boolean sendString(final String message) {
+        return sendBytes(message.getBytes(cCharset), message);
+    }
+
+    /**
+     * Sends an encoded message to the RobotEngine application.
+     *
+     * @param buffer the encoded message
+     * @param message the message for the log
+     * @return true on success, false on failure
+     */
+    private boolean sendBytes(final byte[] buffer, final Object message) {
         if (mRemoteAddr == null) {
             cLogger.log(Level.WARNING, "could not send because client is unknown");
             return false;
@@ -210,15 +357,16 @@ public class MessageClient extends Thread {
 
         try {
             // create the UDP packet
-            final byte[] buffer = message.getBytes("UTF-8");
             final DatagramPacket packet
                     //        = new DatagramPacket(buffer, buffer.length);
                     = new DatagramPacket(buffer, buffer.length, mRemoteAddr);
 
             // send the UDP packet
-            cLogger.log(Level.INFO, "sending: {0}", message);
+            if (cLogger.isLoggable(Level.FINE)) {
+                cLogger.log(Level.FINE, "sending: {0}", message);
+            }
             mClientSocket.send(packet);
-            cLogger.log(Level.INFO, "message sent");
+            cLogger.finer("message sent");
             return true;
         } catch (final Exception e) {
             cLogger.log(Level.SEVERE, "could not send message: {0}", e.toString());
@@ -233,6 +381,23 @@ public class MessageClient extends Thread {
      * @return true on success, false on failure
      */
     public boolean sendCommandMessage(CommandMessage command) {
+        ReliableDelivery reliable = mReliable;
+        if (reliable != null) {
+            return reliable.send(command);
+        }
+        return sendOnce(command);
+    }
+
+    /**
+     * Sends a command message once in the chosen encoding.
+     *
+     * @param command the command message to send
+     * @return true on success, false on failure
+     */
+    private boolean sendOnce(CommandMessage command) {
+        if (mBinaryEncoding) {
+            return sendBytes(BinaryMessageCodec.toBytes(command), command);
+        }
         return sendString(command.toString());
     }
 
@@ -249,8 +414,9 @@ public class MessageClient extends Thread {
             mClientSocket.receive(packet);
 
             mRemoteAddr = packet.getSocketAddress();
-            cLogger.log(Level.INFO, "received packet from address {0}",
-                            mRemoteAddr.toString());
+            if (cLogger.isLoggable(Level.FINER)) {
+                cLogger.log(Level.FINER, "received packet from address {0}", mRemoteAddr);
+            }
 
             return Arrays.copyOf(buffer, packet.getLength());
         } catch (final Exception e) {
@@ -260,45 +426,29 @@ public class MessageClient extends Thread {
         }
     }
 
-    /**
-     * Receives a string over the socket.
-     *
-     * @return the message string, or null on failure
-     */
-    private String recvString() {
-        try {
-            final byte[] buffer = recvBytes();
-            // check the buffer content
-            if (buffer != null) {
-                // convert to string
-                final String message
-                        = new String(buffer, 0, buffer.length, "UTF-8");
-                return message;
-            }
-        } catch (final Exception e) {
-            cLogger.log(Level.SEVERE, "could not receive String message: {0}",
-                            e.toString());
-        }
-        return null;
-    }
-
     /**
      * Receives a status message over the socket.
      *
      * @return the message string, or null on failure
      */
     private StatusMessage recvStatus() {
+        final byte[] buffer = recvBytes();
+        if (buffer == null) {
+            return null;
+        }
+
+        final ByteBuffer message = ByteBuffer.wrap(buffer);
         try {
-            final String msgString = recvString();
-
-            try {
-                StatusMessage status = new StatusMessage(msgString);
-                return status;
-            } catch (IllegalArgumentException iae) {
-                cLogger.log(Level.SEVERE, "could not parse status message: {0}"
-                                + "\nraw message string: {1}",
-                                new Object[]{iae.toString(), msgString});
+            if (BinaryMessageCodec.isBinary(message)) {
+                return BinaryMessageCodec.decodeStatus(message);
             }
+            // parse directly from the received bytes
+            return new StatusMessage(message);
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.SEVERE, "could not parse status message: {0}"
+                            + "\nraw message string: {1}",
+                            new Object[]{iae.toString(),
+                                new String(buffer, cCharset)});
         } catch (final Exception e) {
             cLogger.log(Level.SEVERE, "could not receive status message: {0}",
                             e.toString());
@@ -311,12 +461,12 @@ public class MessageClient extends Thread {
      */
     @Override
     public final void run() {
-        mRunning = true;
-
         while (mRunning) {
             // receive a new message
             final StatusMessage status = recvStatus();
-            if (status != null) {
+            final ReliableDelivery reliable = mReliable;
+            if (status != null
+                    && (reliable == null || reliable.handleStatus(status))) {
                 // handle the event --------------------------------------------
                 mStatusHandler.handleStatusMessage(status);
             }
@@ -0,0 +1,358 @@
+package de.kmj.robots.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only record of all CommandMessages which a server transport has
+ * received and all StatusMessages which it has sent, for analyzing a session
+ * afterwards.
+ * <p>
+ * The messages are written in the
+ * {@link de.kmj.robots.messaging.BinaryMessageCodec binary encoding} directly
+ * into memory-mapped segment files, so recording a message neither allocates
+ * a byte array nor calls the operating system. When a segment is full, the
+ * next one is created. The files of one journal are named
+ * "&lt;session&gt;.00001.journal", "&lt;session&gt;.00002.journal" and so on,
+ * where the session name consists of the journal name and the creation time.
+ * If a session of that name exists already, e.g. because another journal was
+ * started in the same second, a counter is appended to the session name.
+ * Segment files are only ever created new, never overwritten.
+ * <p>
+ * Segment layout (all integers big-endian):
+ * <pre>
+ * int     magic ("RJNL")
+ * short   format version (1)
+ * short   reserved
+ * long    wall clock time of the segment creation in milliseconds
+ * long    System.nanoTime() at the segment creation
+ * per record:
+ *   long    System.nanoTime() of the reception or sending
+ *   bytes   the message in the binary encoding
+ * </pre>
+ * The rest of a segment is filled with zeros. Use
+ * {@link de.kmj.robots.messaging.JournalReader} for reading the records.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @see de.kmj.robots.messaging.ServerTransport#setJournal(MessageJournal)
+ * @author Kathrin Janowski
+ */
+public class MessageJournal {
+
+    private static final Logger cLogger = Logger.getLogger(MessageJournal.class.getName());
+
+    /**
+     * The extension of the segment files.
+     */
+    public static final String FILE_EXTENSION = ".journal";
+
+    /**
+     * The first four bytes of every segment.
+     */
+    public static final int SEGMENT_MAGIC = 0x524A4E4C;
+
+    /**
+     * The current format version.
+     */
+    public static final short VERSION = 1;
+
+    /**
+     * Default size of a segment in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The size of the segment header.
+     */
+    static final int SEGMENT_HEADER_SIZE = 24;
+
+    /**
+     * The size of the timestamp in front of each message.
+     */
+    static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The maximum number of attempts to find an unused session name.
+     */
+    private static final int MAX_SESSION_ATTEMPTS = 1000;
+
+    private final File mDirectory;
+    private final String mSession;
+    private final int mSegmentSize;
+
+    /**
+     * The current segment, or null after closing or a failure.
+     */
+    private MappedByteBuffer mBuffer;
+    private File mSegmentFile;
+    private int mSegmentIndex;
+
+    private long mRecordCount;
+    private long mDroppedCount;
+
+    /**
+     * Creates a journal and its first segment.
+     *
+     * @param directory the directory for the segment files, which is created
+     * if necessary
+     * @param name the journal name, e.g. "session"
+     * @param segmentSize the size of a segment in bytes
+     * @throws IllegalArgumentException if the segment size is too small
+     * @throws IOException if the first segment could not be created
+     */
+    public MessageJournal(File directory, String name, int segmentSize)
+            throws IllegalArgumentException, IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create journal directory " + directory);
+        }
+
+        mDirectory = directory;
+        mSession = createSession(directory, name + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()));
+        mSegmentSize = segmentSize;
+        mSegmentIndex = 0;
+
+        openSegment();
+        cLogger.log(Level.INFO, "journal ready: {0}", mSegmentFile);
+    }
+
+    //==========================================================================
+    // information
+    //==========================================================================
+    /**
+     * @return the directory of the segment files
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return the session name, which is the common prefix of the segment
+     * files
+     */
+    public String getSession() {
+        return mSession;
+    }
+
+    /**
+     * @return the number of segments which have been created
+     */
+    public synchronized int getSegmentCount() {
+        return mSegmentIndex;
+    }
+
+    /**
+     * @return the number of recorded messages
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the number of messages which could not be recorded
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    //==========================================================================
+    // recording
+    //==========================================================================
+    /**
+     * Appends a received command.
+     *
+     * @param command the command message
+     * @param timestamp the time of reception from System.nanoTime()
+     * @return true on success, false if the journal is closed or the message
+     * doesn't fit into a segment
+     */
+    public synchronized boolean record(CommandMessage command, long timestamp) {
+        if (tryAppend(command, null, timestamp)
+                || (roll() && tryAppend(command, null, timestamp))) {
+            return true;
+        }
+        dropped(command.getTaskID());
+        return false;
+    }
+
+    /**
+     * Appends a sent status.
+     *
+     * @param status the status message
+     * @param timestamp the time of sending from System.nanoTime()
+     * @return true on success, false if the journal is closed or the message
+     * doesn't fit into a segment
+     */
+    public synchronized boolean record(StatusMessage status, long timestamp) {
+        if (tryAppend(null, status, timestamp)
+                || (roll() && tryAppend(null, status, timestamp))) {
+            return true;
+        }
+        dropped(status.getTaskID());
+        return false;
+    }
+
+    /**
+     * Writes the recorded messages of the current segment to the disk.
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Writes the recorded messages to the disk and closes the journal. The
+     * unused rest of the last segment is cut off if the operating system
+     * allows it. Windows refuses this while the segment is still mapped, in
+     * which case the file keeps its size; the reader stops at the zeros.
+     */
+    public synchronized void close() {
+        if (mBuffer == null) {
+            return;
+        }
+        mBuffer.force();
+        int length = mBuffer.position();
+        mBuffer = null;
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(mSegmentFile, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            cLogger.log(Level.WARNING, "could not truncate {0}: {1}",
+                    new Object[]{mSegmentFile, e.toString()});
+        }
+        cLogger.log(Level.INFO, "journal closed: {0} messages in {1} segments",
+                new Object[]{mRecordCount, mSegmentIndex});
+    }
+
+    //==========================================================================
+    // internal
+    //==========================================================================
+    /**
+     * Encodes a message into the current segment.
+     *
+     * @param command the command, or null
+     * @param status the status, or null
+     * @param timestamp the timestamp
+     * @return true on success, false if the segment is full or closed
+     */
+    private boolean tryAppend(CommandMessage command, StatusMessage status, long timestamp) {
+        if (mBuffer == null || mBuffer.remaining() <= RECORD_HEADER_SIZE) {
+            return false;
+        }
+
+        int start = mBuffer.position();
+        mBuffer.position(start + RECORD_HEADER_SIZE);
+        boolean written = (command != null)
+                ? BinaryMessageCodec.encode(command, mBuffer)
+                : BinaryMessageCodec.encode(status, mBuffer);
+        if (!written) {
+            // clear the partial message, so the reader stops here
+            mBuffer.put(start + RECORD_HEADER_SIZE, (byte) 0);
+            mBuffer.position(start);
+            return false;
+        }
+
+        mBuffer.putLong(start, timestamp);
+        mRecordCount++;
+        return true;
+    }
+
+    /**
+     * Closes the current segment and opens the next one.
+     *
+     * @return true on success, false if the journal is closed, the current
+     * segment is still empty or the next segment could not be created
+     */
+    private boolean roll() {
+        if (mBuffer == null || mBuffer.position() == SEGMENT_HEADER_SIZE) {
+            return false;
+        }
+        mBuffer.force();
+        mBuffer = null;
+
+        try {
+            openSegment();
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not create journal segment: {0}"
+                    + "\n\t-> recording stopped", e.toString());
+            return false;
+        }
+        cLogger.log(Level.FINE, "next journal segment: {0}", mSegmentFile);
+        return true;
+    }
+
+    /**
+     * Reserves an unused session name by creating its first segment file.
+     *
+     * @param directory the directory for the segment files
+     * @param base the preferred session name
+     * @return the base name, or the base name with a counter if that session
+     * exists already
+     * @throws IOException if no unused session name was found
+     */
+    private static String createSession(File directory, String base) throws IOException {
+        String session = base;
+        for (int attempt = 2; !segmentFile(directory, session, 1).createNewFile(); attempt++) {
+            if (attempt > MAX_SESSION_ATTEMPTS) {
+                throw new IOException("could not create a new journal session " + base
+                        + " in " + directory);
+            }
+            session = base + "-" + attempt;
+        }
+        return session;
+    }
+
+    private static File segmentFile(File directory, String session, int index) {
+        return new File(directory, String.format(Locale.ROOT, "%s.%05d%s",
+                session, index, FILE_EXTENSION));
+    }
+
+    private void openSegment() throws IOException {
+        mSegmentIndex++;
+        mSegmentFile = segmentFile(mDirectory, mSession, mSegmentIndex);
+        // the first segment was created by createSession()
+        if (mSegmentIndex > 1 && !mSegmentFile.createNewFile()) {
+            throw new IOException("journal segment exists already: " + mSegmentFile);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mSegmentFile, "rw");
+        try {
+            // the mapping stays valid after closing the file
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        } finally {
+            file.close();
+        }
+
+        mBuffer.putInt(SEGMENT_MAGIC);
+        mBuffer.putShort(VERSION);
+        mBuffer.putShort((short) 0);
+        mBuffer.putLong(System.currentTimeMillis());
+        mBuffer.putLong(System.nanoTime());
+    }
+
+    private void dropped(String taskID) {
+        mDroppedCount++;
+        if (mBuffer != null) {
+            cLogger.log(Level.WARNING, "could not record message of task \"{0}\": "
+                    + "larger than a journal segment", taskID);
+        }
+    }
+}
@@ -0,0 +1,589 @@
+package de.kmj.robots.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A minimal pull parser for messages which consist of a single XML element
+ * with attributes, e.g. <code>&lt;command task="t1" type="speech"/&gt;</code>.
+ * <p>
+ * The scanner reads the attributes straight from the UTF-8 encoded bytes
+ * without building a DOM. It only accepts this simple structure: an optional
+ * XML declaration, comments and processing instructions, and one empty root
+ * element with the expected name. Everything else (child elements, text
+ * content, DTDs, other encodings, malformed input) makes
+ * {@link #scan(ByteBuffer, String)} return false, in which case the caller
+ * falls back to the full DOM parser.
+ * <p>
+ * Instances are not thread-safe. Use {@link #getInstance()} to obtain the
+ * scanner of the current thread.
+ *
+ * @author Kathrin Janowski
+ */
+final class MessageScanner {
+
+    private static final Charset cUTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageScanner> cInstances
+            = new ThreadLocal<MessageScanner>() {
+                @Override
+                protected MessageScanner initialValue() {
+                    return new MessageScanner();
+                }
+            };
+
+    /**
+     * The input which is currently scanned.
+     */
+    private ByteBuffer mInput;
+
+    /**
+     * The current read position within the input.
+     */
+    private int mPos;
+
+    /**
+     * The end of the input.
+     */
+    private int mLimit;
+
+    /**
+     * The attribute names found by the last successful scan.
+     */
+    private String[] mNames;
+
+    /**
+     * The attribute values found by the last successful scan.
+     */
+    private String[] mValues;
+
+    /**
+     * The number of attributes found by the last successful scan.
+     */
+    private int mCount;
+
+    /**
+     * Holds the decoded bytes of the current attribute value.
+     */
+    private byte[] mValueBytes;
+
+    /**
+     * Holds the characters of the current ASCII attribute value.
+     */
+    private char[] mValueChars;
+
+    /**
+     * Strict decoder for values which contain non-ASCII characters.
+     */
+    private final CharsetDecoder mDecoder;
+
+    private MessageScanner() {
+        mNames = new String[8];
+        mValues = new String[8];
+        mValueBytes = new byte[256];
+        mValueChars = new char[256];
+        mDecoder = cUTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    /**
+     * @return the scanner of the current thread
+     */
+    static MessageScanner getInstance() {
+        return cInstances.get();
+    }
+
+    /**
+     * Scans a message from the remaining bytes of the given buffer. The
+     * buffer's position is not modified.
+     *
+     * @param input the UTF-8 encoded message
+     * @param elementName the expected name of the message element
+     * @return true if the message was read completely, false if it must be
+     * parsed with the DOM parser instead
+     */
+    boolean scan(ByteBuffer input, String elementName) {
+        mInput = input;
+        mPos = input.position();
+        mLimit = input.limit();
+        mCount = 0;
+
+        try {
+            return scanMessage(elementName);
+        } finally {
+            mInput = null;
+        }
+    }
+
+    /**
+     * @return the number of attributes found by the last successful scan
+     */
+    int getAttributeCount() {
+        return mCount;
+    }
+
+    /**
+     * @param index the attribute index
+     * @return the name of the attribute
+     */
+    String getAttributeName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @param index the attribute index
+     * @return the value of the attribute
+     */
+    String getAttributeValue(int index) {
+        return mValues[index];
+    }
+
+    //==========================================================================
+    // document structure
+    //==========================================================================
+    private boolean scanMessage(String elementName) {
+        // byte order mark
+        if (mLimit - mPos >= 3 && peek(0) == (byte) 0xEF
+                && peek(1) == (byte) 0xBB && peek(2) == (byte) 0xBF) {
+            mPos += 3;
+        }
+
+        // XML declaration
+        if (startsWith("<?xml") && isWhitespace(peek(5))) {
+            if (!scanDeclaration()) {
+                return false;
+            }
+        }
+
+        if (!skipMisc()) {
+            return false;
+        }
+
+        // root element
+        if (!startsWith("<")) {
+            return false;
+        }
+        mPos++;
+        if (!matchName(elementName)) {
+            return false;
+        }
+
+        boolean closed = false;
+        while (!closed) {
+            boolean separated = skipWhitespace();
+            if (mPos >= mLimit) {
+                return false;
+            }
+
+            byte b = mInput.get(mPos);
+            if (b == '/') {
+                if (peek(1) != '>') {
+                    return false;
+                }
+                mPos += 2;
+                closed = true;
+            } else if (b == '>') {
+                mPos++;
+                // only an immediate end tag is supported
+                skipWhitespace();
+                if (!startsWith("</")) {
+                    return false;
+                }
+                mPos += 2;
+                if (!matchName(elementName)) {
+                    return false;
+                }
+                skipWhitespace();
+                if (!startsWith(">")) {
+                    return false;
+                }
+                mPos++;
+                closed = true;
+            } else {
+                if (!separated || !scanAttribute()) {
+                    return false;
+                }
+            }
+        }
+
+        if (!skipMisc()) {
+            return false;
+        }
+        return mPos == mLimit;
+    }
+
+    /**
+     * Reads the XML declaration and checks that the encoding is UTF-8.
+     */
+    private boolean scanDeclaration() {
+        int end = indexOf("?>", mPos);
+        if (end < 0) {
+            return false;
+        }
+
+        int enc = indexOf("encoding", mPos);
+        if (enc >= 0 && enc < end) {
+            mPos = enc + 8;
+            skipWhitespace();
+            if (!startsWith("=")) {
+                return false;
+            }
+            mPos++;
+            skipWhitespace();
+            byte quote = peek(0);
+            if (quote != '"' && quote != '\'') {
+                return false;
+            }
+            int start = mPos + 1;
+            int stop = start;
+            while (stop < end && mInput.get(stop) != quote) {
+                stop++;
+            }
+            if (!equalsIgnoreCase(start, stop, "UTF-8")
+                    && !equalsIgnoreCase(start, stop, "UTF8")) {
+                return false;
+            }
+        }
+
+        mPos = end + 2;
+        return true;
+    }
+
+    /**
+     * Skips whitespace, comments and processing instructions.
+     */
+    private boolean skipMisc() {
+        while (true) {
+            skipWhitespace();
+            if (startsWith("<!--")) {
+                int end = indexOf("-->", mPos + 4);
+                if (end < 0) {
+                    return false;
+                }
+                mPos = end + 3;
+            } else if (startsWith("<?")) {
+                int end = indexOf("?>", mPos + 2);
+                if (end < 0) {
+                    return false;
+                }
+                mPos = end + 2;
+            } else {
+                return true;
+            }
+        }
+    }
+
+    //==========================================================================
+    // attributes
+    //==========================================================================
+    private boolean scanAttribute() {
+        // name -----------------------------------------------------------------
+        int nameStart = mPos;
+        while (mPos < mLimit && isNameChar(mInput.get(mPos))) {
+            mPos++;
+        }
+        if (mPos == nameStart || isDigitOrDash(mInput.get(nameStart))) {
+            return false;
+        }
+        int nameEnd = mPos;
+
+        skipWhitespace();
+        if (!startsWith("=")) {
+            return false;
+        }
+        mPos++;
+        skipWhitespace();
+
+        // value ----------------------------------------------------------------
+        if (mPos >= mLimit) {
+            return false;
+        }
+        byte quote = mInput.get(mPos);
+        if (quote != '"' && quote != '\'') {
+            return false;
+        }
+        mPos++;
+
+        String value = scanValue(quote);
+        if (value == null) {
+            return false;
+        }
+
+        String name = createName(nameStart, nameEnd);
+        for (int i = 0; i < mCount; i++) {
+            if (mNames[i].equals(name)) {
+                return false; // duplicate attribute
+            }
+        }
+
+        if (mCount == mNames.length) {
+            String[] names = new String[mCount * 2];
+            String[] values = new String[mCount * 2];
+            System.arraycopy(mNames, 0, names, 0, mCount);
+            System.arraycopy(mValues, 0, values, 0, mCount);
+            mNames = names;
+            mValues = values;
+        }
+        mNames[mCount] = name;
+        mValues[mCount] = value;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Reads an attribute value up to the closing quote, resolving entity and
+     * character references and normalizing whitespace like an XML parser.
+     *
+     * @return the value, or null if it can't be handled by this scanner
+     */
+    private String scanValue(byte quote) {
+        int length = 0;
+        boolean ascii = true;
+
+        while (true) {
+            if (mPos >= mLimit) {
+                return null;
+            }
+
+            byte b = mInput.get(mPos++);
+            if (b == quote) {
+                break;
+            }
+
+            if (length + 4 > mValueBytes.length) {
+                byte[] grown = new byte[mValueBytes.length * 2];
+                System.arraycopy(mValueBytes, 0, grown, 0, length);
+                mValueBytes = grown;
+            }
+
+            if (b == '<') {
+                return null;
+            } else if (b == '&') {
+                int codePoint = scanReference();
+                if (codePoint < 0) {
+                    return null;
+                }
+                if (codePoint >= 0x80) {
+                    ascii = false;
+                }
+                length = appendUTF8(codePoint, length);
+            } else if (b == '\r') {
+                // line end normalization: "\r\n" and "\r" become one space
+                if (mPos < mLimit && mInput.get(mPos) == '\n') {
+                    mPos++;
+                }
+                mValueBytes[length++] = ' ';
+            } else if (b == '\n' || b == '\t') {
+                mValueBytes[length++] = ' ';
+            } else {
+                if (b < 0) {
+                    ascii = false;
+                } else if (b < 0x20) {
+                    return null;
+                }
+                mValueBytes[length++] = b;
+            }
+        }
+
+        if (ascii) {
+            if (length > mValueChars.length) {
+                mValueChars = new char[Math.max(length, mValueChars.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                mValueChars[i] = (char) mValueBytes[i];
+            }
+            return new String(mValueChars, 0, length);
+        }
+
+        // strict decoding so that malformed input is left to the DOM parser
+        CharBuffer chars = CharBuffer.allocate(length);
+        mDecoder.reset();
+        CoderResult result = mDecoder.decode(
+                ByteBuffer.wrap(mValueBytes, 0, length), chars, true);
+        if (result.isError()) {
+            return null;
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * Reads an entity or character reference after the '&amp;'.
+     *
+     * @return the referenced code point, or -1 if it is not supported
+     */
+    private int scanReference() {
+        int end = mPos;
+        while (end < mLimit && end - mPos < 10 && mInput.get(end) != ';') {
+            end++;
+        }
+        if (end >= mLimit || mInput.get(end) != ';') {
+            return -1;
+        }
+
+        int codePoint = -1;
+        if (mInput.get(mPos) == '#') {
+            int radix = 10;
+            int start = mPos + 1;
+            if (start < end && mInput.get(start) == 'x') {
+                radix = 16;
+                start++;
+            }
+            if (start == end) {
+                return -1;
+            }
+            codePoint = 0;
+            for (int i = start; i < end; i++) {
+                int digit = Character.digit((char) mInput.get(i), radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+            }
+            if (codePoint > Character.MAX_CODE_POINT
+                    || (codePoint < 0x20 && codePoint != '\t'
+                        && codePoint != '\n' && codePoint != '\r')
+                    || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                return -1;
+            }
+        } else if (matches(mPos, end, "amp")) {
+            codePoint = '&';
+        } else if (matches(mPos, end, "lt")) {
+            codePoint = '<';
+        } else if (matches(mPos, end, "gt")) {
+            codePoint = '>';
+        } else if (matches(mPos, end, "quot")) {
+            codePoint = '"';
+        } else if (matches(mPos, end, "apos")) {
+            codePoint = '\'';
+        }
+
+        mPos = end + 1;
+        return codePoint;
+    }
+
+    private int appendUTF8(int codePoint, int length) {
+        byte[] out = mValueBytes;
+        if (codePoint < 0x80) {
+            out[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            out[length++] = (byte) (0xC0 | (codePoint >> 6));
+            out[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            out[length++] = (byte) (0xE0 | (codePoint >> 12));
+            out[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            out[length++] = (byte) (0xF0 | (codePoint >> 18));
+            out[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            out[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+
+    private String createName(int start, int end) {
+        String wellKnown = BinaryMessageCodec.findName(mInput, start, end);
+        if (wellKnown != null) {
+            return wellKnown;
+        }
+
+        int length = end - start;
+        if (length > mValueChars.length) {
+            mValueChars = new char[length];
+        }
+        for (int i = 0; i < length; i++) {
+            mValueChars[i] = (char) mInput.get(start + i);
+        }
+        return new String(mValueChars, 0, length);
+    }
+
+    //==========================================================================
+    // low-level helpers
+    //==========================================================================
+    private byte peek(int offset) {
+        int idx = mPos + offset;
+        if (idx >= mLimit) {
+            return 0;
+        }
+        return mInput.get(idx);
+    }
+
+    private boolean skipWhitespace() {
+        int start = mPos;
+        while (mPos < mLimit && isWhitespace(mInput.get(mPos))) {
+            mPos++;
+        }
+        return mPos > start;
+    }
+
+    private boolean startsWith(String ascii) {
+        return matches(mPos, Math.min(mLimit, mPos + ascii.length()), ascii);
+    }
+
+    private boolean matchName(String name) {
+        int end = mPos + name.length();
+        if (end > mLimit || !matches(mPos, end, name)) {
+            return false;
+        }
+        if (end < mLimit && isNameChar(mInput.get(end))) {
+            return false;
+        }
+        mPos = end;
+        return true;
+    }
+
+    private boolean matches(int start, int end, String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (mInput.get(start + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(int start, int end, String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            char c = (char) mInput.get(start + i);
+            if (Character.toUpperCase(c) != Character.toUpperCase(ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String ascii, int from) {
+        int last = mLimit - ascii.length();
+        for (int i = from; i <= last; i++) {
+            if (matches(i, i + ascii.length(), ascii)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean isNameChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+                || (b >= '0' && b <= '9')
+                || b == '_' || b == '-' || b == '.' || b == ':';
+    }
+
+    private static boolean isDigitOrDash(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '.';
+    }
+}
@@ -1,11 +1,18 @@
 package de.kmj.robots.messaging;
 
+import de.kmj.robots.util.EngineMetrics;
+import de.kmj.robots.util.RobotThreadFactory;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.TreeMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -14,14 +21,45 @@ import java.util.logging.Logger;
 /**
  * A UDP server which receives CommandMessages and returns StatusMessages to the
  * last known sender.
+ * <p>
+ * By default, the server uses a classic {@link java.net.DatagramSocket}.
+ * Alternatively, {@link #setUseChannel(boolean)} switches to a
+ * {@link java.nio.channels.DatagramChannel} which receives into pooled direct
+ * buffers and parses them without allocating a new byte array per packet.
+ * <p>
+ * Each received packet may contain either an XML message or a message in the
+ * {@link de.kmj.robots.messaging.BinaryMessageCodec binary encoding}. Status
+ * messages are returned in the same encoding as the command of their task.
+ * <p>
+ * Commands from a {@link de.kmj.robots.messaging.ReliableDelivery reliable}
+ * client carry a sequence number. The server acknowledges each of them with a
+ * StatusMessage "received", removes the sequence number and ignores
+ * retransmissions of commands which it has already received.
+ * <p>
+ * A control application which sends a command of type
+ * {@value de.kmj.robots.messaging.StatusFanOut#SUBSCRIBE_TYPE} receives the
+ * StatusMessages of all tasks from then on, in the encoding of that command,
+ * until it sends a command of type
+ * {@value de.kmj.robots.messaging.StatusFanOut#UNSUBSCRIBE_TYPE} or stops
+ * renewing the subscription by subscribing again. Both
+ * commands are answered with "finished" and are not passed to the command
+ * handler. See {@link de.kmj.robots.messaging.StatusFanOut} for details.
  *
  * @see de.kmj.robots.messaging.MessageClient
  * @author Kathrin Janowski
  */
-public class MessageServer extends Thread {
+public class MessageServer extends Thread implements ServerTransport {
 
     private static final Logger cLogger = Logger.getLogger(MessageServer.class.getName());
     
+    private static final Charset cCharset = Charset.forName("UTF-8");
+
+    /**
+     * Default number of received sequence numbers which are remembered for
+     * detecting retransmissions.
+     */
+    public static final int DEFAULT_DUPLICATE_WINDOW = 4096;
+    
     /**
      * Handles all incoming commands.
      */
@@ -32,6 +70,21 @@ public class MessageServer extends Thread {
      */
     private DatagramSocket mServerSocket;
 
+    /**
+     * Channel for connecting to the control application, if enabled.
+     */
+    private DatagramChannel mServerChannel;
+
+    /**
+     * Flag for using the DatagramChannel instead of the DatagramSocket.
+     */
+    private boolean mUseChannel;
+
+    /**
+     * The receive buffers for the channel mode.
+     */
+    private ByteBufferPool mBufferPool;
+
     /**
      * IP address of the machine on which the RobotEngine is running.
      */
@@ -46,19 +99,52 @@ public class MessageServer extends Thread {
     private final SocketAddress mLocalAddr;
 
     /**
-     * Remote socket address for connecting to the control application.
+     * Remote socket addresses for connecting to the control applications,
+     * by task ID.
      */
-    private TreeMap<String, SocketAddress> mRemoteAddrs;
+    private final TaskAddressRegistry mRemoteAddrs;
 
     /**
      * Size of the message buffer.
      */
     private final int mBufferSize;
 
+    /**
+     * Collects latencies and counters, may be null.
+     */
+    private EngineMetrics mMetrics;
+
+    /**
+     * The sender and sequence number of the last reliable command, by task
+     * ID. Only accessed by the receiving thread.
+     */
+    private Map<String, String> mReceivedSeqs;
+
+    /**
+     * The maximum size of {@link #mReceivedSeqs}.
+     */
+    private volatile int mDuplicateWindow = DEFAULT_DUPLICATE_WINDOW;
+
+    /**
+     * Passes the statuses on to the observers and subscribers.
+     */
+    private final StatusFanOut mFanOut;
+
+    /**
+     * Records the messages, may be null.
+     */
+    private volatile MessageJournal mJournal;
+
+    /**
+     * The virtual thread which runs the receiving loop, or null if the loop
+     * runs on this thread.
+     */
+    private volatile Thread mVirtualThread;
+
     /**
      * Run flag.
      */
-    private boolean mRunning;
+    private volatile boolean mRunning;
 
     public MessageServer(CommandMessageHandler handler, String bufferSize,
             String localIP, String localPort)
@@ -85,8 +171,11 @@ public class MessageServer extends Thread {
         //----------------------------------------------------------------------
         // The UDP server connection
         mLocalAddr = new InetSocketAddress(mLocalIP, mLocalPort);
-        mRemoteAddrs = new TreeMap<String, SocketAddress>();
+        mRemoteAddrs = new TaskAddressRegistry();
+
+        mFanOut = createFanOut();
 
+        mUseChannel = false;
         mRunning = false;
     }
 
@@ -102,26 +191,159 @@ public class MessageServer extends Thread {
         //----------------------------------------------------------------------
         // The UDP server connection
         mLocalAddr = new InetSocketAddress(mLocalIP, mLocalPort);
-        mRemoteAddrs = new TreeMap<String, SocketAddress>();
+        mRemoteAddrs = new TaskAddressRegistry();
 
+        mFanOut = createFanOut();
+
+        mUseChannel = false;
         mRunning = false;
     }
 
+    /**
+     * Creates the status fan-out which sends to the remote subscribers over
+     * the server socket or channel.
+     *
+     * @return the fan-out
+     */
+    private StatusFanOut createFanOut() {
+        return new StatusFanOut("StatusFanOut", new StatusFanOut.Sender() {
+            @Override
+            public void send(byte[] bytes, SocketAddress address) throws IOException {
+                if (mServerChannel != null) {
+                    mServerChannel.send(ByteBuffer.wrap(bytes), address);
+                } else {
+                    mServerSocket.send(new DatagramPacket(bytes, bytes.length, address));
+                }
+            }
+        });
+    }
+
+    /**
+     * Chooses between the DatagramSocket (default) and the DatagramChannel
+     * transport. Must be called before {@link #start()}.
+     *
+     * @param useChannel true for receiving via a DatagramChannel with pooled
+     * direct buffers, false for the classic DatagramSocket
+     */
+    public void setUseChannel(boolean useChannel) {
+        if (getLoopThread().isAlive()) {
+            cLogger.log(Level.WARNING, "can't change the transport while the server is running");
+            return;
+        }
+        mUseChannel = useChannel;
+    }
+
+    /**
+     * @return true if the server receives via a DatagramChannel
+     */
+    public boolean getUseChannel() {
+        return mUseChannel;
+    }
+
+    /**
+     * @return the registry which associates task IDs with client addresses
+     */
+    public TaskAddressRegistry getTaskAddressRegistry() {
+        return mRemoteAddrs;
+    }
+
+    /**
+     * Sets the metrics which record the receive and parse times and count
+     * failures. Must be called before {@link #start()}.
+     *
+     * @param metrics the metrics, or null for disabling them
+     */
+    public void setMetrics(EngineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the metrics, or null if they are disabled
+     */
+    public EngineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public void setJournal(MessageJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * @return the journal which records the messages, or null
+     */
+    public MessageJournal getJournal() {
+        return mJournal;
+    }
+
+    @Override
+    public StatusFanOut getStatusFanOut() {
+        return mFanOut;
+    }
+
+    /**
+     * Sets the number of received sequence numbers which are remembered for
+     * detecting retransmitted commands. Must be called before
+     * {@link #start()}.
+     *
+     * @param window the number of task IDs
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setDuplicateWindow(int window) throws IllegalArgumentException {
+        if (window <= 0) {
+            throw new IllegalArgumentException("invalid duplicate window: " + window);
+        }
+        mDuplicateWindow = window;
+    }
+
+    /**
+     * @return the number of received sequence numbers which are remembered
+     */
+    public int getDuplicateWindow() {
+        return mDuplicateWindow;
+    }
+
     /**
      * Starts listening for command messages on the socket.
      */
     @Override
     public void start() {
+        final int window = mDuplicateWindow;
+        mReceivedSeqs = new LinkedHashMap<String, String>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > window;
+            }
+        };
+
         try {
 
-            // create the server socket
-            mServerSocket = new DatagramSocket(mLocalAddr);
+            if (mUseChannel) {
+                // create the server channel
+                mServerChannel = DatagramChannel.open();
+                mServerChannel.socket().bind(mLocalAddr);
+                mServerSocket = mServerChannel.socket();
+
+                mBufferPool = new ByteBufferPool(mBufferSize, 4);
 
-            cLogger.log(Level.INFO, "server socket ready: local address {0}",
-                            mLocalAddr);
+                cLogger.log(Level.INFO, "server channel ready: local address {0}",
+                                mLocalAddr);
+            } else {
+                // create the server socket
+                mServerSocket = new DatagramSocket(mLocalAddr);
 
-            // Start the server thread
-            super.start();
+                cLogger.log(Level.INFO, "server socket ready: local address {0}",
+                                mLocalAddr);
+            }
+
+            // Start the receiving thread
+            mRunning = true;
+            if (RobotThreadFactory.isVirtual()) {
+                mVirtualThread = RobotThreadFactory.newThread(getName(), false, this);
+                mVirtualThread.start();
+            } else {
+                super.start();
+            }
         } catch (final Exception e) {
             cLogger.log(Level.SEVERE, "error in socket connection: {0}",
                             e.toString());
@@ -133,13 +355,65 @@ public class MessageServer extends Thread {
      */
     public void abort() {
         cLogger.log(Level.INFO, "closing server socket...");
+        mRunning = false;
         interrupt();
+        mFanOut.close();
 
         // close the socket 
+        if (mServerChannel != null && mServerChannel.isOpen()) {
+            try {
+                mServerChannel.close();
+            } catch (IOException e) {
+                cLogger.log(Level.WARNING, "could not close server channel: {0}",
+                                e.toString());
+            }
+        }
         if (mServerSocket != null && !mServerSocket.isClosed()) {
             mServerSocket.close();
         }
+    }
+
+    /**
+     * Waits until the receiving loop has terminated, also when it runs on a
+     * virtual thread. Unlike join(), this works in both thread modes.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    @Override
+    public void awaitTermination() throws InterruptedException {
+        getLoopThread().join();
+    }
 
+    /**
+     * Interrupts the receiving loop, also when it runs on a virtual thread.
+     */
+    @Override
+    public void interrupt() {
+        super.interrupt();
+        Thread thread = mVirtualThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isInterrupted() {
+        Thread thread = mVirtualThread;
+        return (thread != null) ? thread.isInterrupted() : super.isInterrupted();
+    }
+
+    /**
+     * Returns the thread which runs the receiving loop. This is the server
+     * itself, unless virtual threads are enabled in
+     * {@link de.kmj.robots.util.RobotThreadFactory}. In that case, join() and
+     * isAlive() of the server don't refer to the loop, so use this thread or
+     * {@link #awaitTermination()} instead.
+     *
+     * @return the thread of the receiving loop
+     */
+    public Thread getLoopThread() {
+        Thread thread = mVirtualThread;
+        return (thread != null) ? thread : this;
     }
 
     public void setLogLevel(Level level){
@@ -163,46 +437,99 @@ public class MessageServer extends Thread {
      */
     public boolean sendStatusMessage(StatusMessage status) {
         
+        MessageJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(status, System.nanoTime());
+        }
+
         //get the receiver of that message -------------------------------------
-        if (mRemoteAddrs.isEmpty()) {
-            cLogger.log(Level.WARNING, "could not send because there are no known clients");
+        TaskAddressRegistry.Entry client = mRemoteAddrs.lookup(status.getTaskID());
+        mFanOut.publish(status, (client == null) ? null : client.getAddress());
+        if(client == null)
+        {
+            if (mMetrics != null) {
+                mMetrics.unknownClient();
+            }
+            if (mRemoteAddrs.isEmpty()) {
+                cLogger.log(Level.WARNING, "could not send because there are no known clients");
+            } else {
+                cLogger.log(Level.SEVERE, "no client for task ID \"{0}\"", status.getTaskID());
+            }
             return false;
         }
 
-        SocketAddress addr = mRemoteAddrs.get(status.getTaskID());
-        if(addr == null)
-        {
-            cLogger.log(Level.SEVERE, "no client for task ID \"{0}\"", status.getTaskID());
+        if (!sendTo(status, client.getAddress(), client.isBinary())) {
             return false;
         }
         
+        //clear client address if the status is "finished" or "rejected"
+        String st = status.getStatus();
+        if(st.equals("finished")||st.equals("rejected"))
+            mRemoteAddrs.remove(status.getTaskID());
+        return true;
+    }
+
+
+    /**
+     * Sends a status message to the given address.
+     *
+     * @param status the status message to send
+     * @param addr the address of the control application
+     * @param binary true for the binary encoding, false for XML
+     * @return true on success, false on failure
+     */
+    private boolean sendTo(StatusMessage status, SocketAddress addr, boolean binary) {
         //send the UDP packet --------------------------------------------------
-        String message = status.toString();
         try {
-            // create the UDP packet
-            final byte[] buffer = message.getBytes("UTF-8");
-            final DatagramPacket packet
-                    //        = new DatagramPacket(buffer, buffer.length);
-                    = new DatagramPacket(buffer, buffer.length, addr);
-
-            // send the UDP packet
-            cLogger.log(Level.INFO, "sending: {0}", message);
-            mServerSocket.send(packet);
-            cLogger.log(Level.INFO, "message sent");
+            if (cLogger.isLoggable(Level.FINE)) {
+                cLogger.log(Level.FINE, "sending: {0}", status);
+            }
+            if (mServerChannel != null) {
+                // serialize directly into a pooled buffer
+                final ByteBuffer buffer = mBufferPool.acquire();
+                try {
+                    boolean written = binary
+                            ? BinaryMessageCodec.encode(status, buffer)
+                            : status.writeTo(buffer);
+                    if (!written) {
+                        if (mMetrics != null) {
+                            mMetrics.packetDropped();
+                        }
+                        cLogger.log(Level.SEVERE, "could not send message: "
+                                + "exceeds the buffer size of {0} bytes", mBufferSize);
+                        return false;
+                    }
+                    buffer.flip();
+                    mServerChannel.send(buffer, addr);
+                } finally {
+                    mBufferPool.release(buffer);
+                }
+            } else {
+                // create the UDP packet
+                final byte[] buffer = binary
+                        ? BinaryMessageCodec.toBytes(status)
+                        : status.toString().getBytes(cCharset);
+                final DatagramPacket packet
+                        //        = new DatagramPacket(buffer, buffer.length);
+                        = new DatagramPacket(buffer, buffer.length, addr);
+                mServerSocket.send(packet);
+            }
+            cLogger.finer("message sent");
         } catch (IOException e) {
+            if (mMetrics != null) {
+                mMetrics.packetDropped();
+            }
             cLogger.log(Level.SEVERE, "could not send message: {0}", e.toString());
             return false;
         } catch(IllegalArgumentException e){
+            if (mMetrics != null) {
+                mMetrics.packetDropped();
+            }
             cLogger.log(Level.SEVERE, "could not send message: {0}", e.toString());
-            cLogger.log(Level.SEVERE, "destination address: ", addr.toString());
+            cLogger.log(Level.SEVERE, "destination address: {0}", addr);
             
             return false;
         }
-        
-        //clear client address if the status is "finished" or "rejected"
-        String st = status.getStatus();
-        if(st.equals("finished")||st.equals("rejected"))
-            mRemoteAddrs.remove(status.getTaskID());
         return true;
     }
 
@@ -214,59 +541,184 @@ public class MessageServer extends Thread {
      */
     private CommandMessage recvCommand() {
         
-        final byte[] buffer = new byte[mBufferSize];
         SocketAddress addr;
-        String message;
+        ByteBuffer message;
+        ByteBuffer pooled = null;
+        long receivedAt;
         
-        //receive from socket --------------------------------------------------
         try {
-            final DatagramPacket packet
-                    = new DatagramPacket(buffer, buffer.length);
-            mServerSocket.receive(packet);
-
+            if (mServerChannel != null) {
+                //receive from channel -----------------------------------------
+                pooled = mBufferPool.acquire();
+                addr = mServerChannel.receive(pooled);
+                if (addr == null) {
+                    mBufferPool.release(pooled);
+                    return null;
+                }
+                pooled.flip();
+                message = pooled;
+            } else {
+                //receive from socket ------------------------------------------
+                final byte[] buffer = new byte[mBufferSize];
+                final DatagramPacket packet
+                        = new DatagramPacket(buffer, buffer.length);
+                mServerSocket.receive(packet);
+
+                addr = packet.getSocketAddress();
+                message = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            }
+            receivedAt = System.nanoTime();
+            if (mMetrics != null) {
+                mMetrics.packetReceived();
+            }
             
-            addr = packet.getSocketAddress();
-            cLogger.log(Level.INFO, "received packet from address {0}",
-                            addr.toString());
-
-            // convert to string
-            message = new String(buffer, 0, packet.getLength(), "UTF-8");
+            if (cLogger.isLoggable(Level.FINER)) {
+                cLogger.log(Level.FINER, "received packet from address {0}", addr);
+            }
 
+        } catch (final ClosedChannelException e) {
+            cLogger.log(Level.FINE, "server channel closed");
+            if (pooled != null) {
+                mBufferPool.release(pooled);
+            }
+            mRunning = false;
+            return null;
         } catch (final IOException e) {
+            if (mMetrics != null && !isInterrupted()) {
+                mMetrics.packetDropped();
+            }
             cLogger.log(Level.SEVERE, "could not receive string message: {0}",
                             e.toString());
+            if (pooled != null) {
+                mBufferPool.release(pooled);
+            }
             return null;
         }
 
+        //parse the command directly from the received bytes
+        try {
+            return parseCommand(message, addr, receivedAt);
+        } finally {
+            if (pooled != null) {
+                mBufferPool.release(pooled);
+            }
+        }
+    }
+
+    /**
+     * Parses a received command message and stores the sender's address.
+     *
+     * @param message the received bytes
+     * @param addr the sender's address
+     * @param receivedAt the time of reception in nanoseconds
+     * @return the command message, or null on failure
+     */
+    private CommandMessage parseCommand(ByteBuffer message, SocketAddress addr,
+            long receivedAt) {
+        
         //parse the command message --------------------------------------------
         CommandMessage command;
+        boolean binary = BinaryMessageCodec.isBinary(message);
         try {
-            command = new CommandMessage(message);
+            if (binary) {
+                command = BinaryMessageCodec.decodeCommand(message);
+            } else {
+                command = new CommandMessage(message);
+            }
         } catch (IllegalArgumentException iae) {
-            cLogger.log(Level.SEVERE, "could not parse command message: {0}"
+            if (mMetrics != null) {
+                mMetrics.parseFailed();
+            }
+            if (binary) {
+                cLogger.log(Level.SEVERE, "could not parse binary command message: {0}",
+                                iae.toString());
+            } else {
+                cLogger.log(Level.SEVERE, "could not parse command message: {0}"
                                 + "\nraw message string: [{1}]",
-                                new Object[]{iae.toString(), message});
+                                new Object[]{iae.toString(),
+                                    cCharset.decode(message.duplicate()).toString()});
+            }
             return null;
         } catch (final Exception e) {
+            if (mMetrics != null) {
+                mMetrics.parseFailed();
+            }
             cLogger.log(Level.SEVERE, "could not receive command message: {0}",
                             e.toString());
             return null;
         }
 
+        //acknowledge reliable commands and drop retransmissions
+        String seq = command.getParam(ReliableDelivery.SEQ_PARAM);
+        if (seq != null) {
+            command.removeParameter(ReliableDelivery.SEQ_PARAM);
+            if (!acknowledge(command.getTaskID(), seq, addr, binary)) {
+                return null;
+            }
+        }
         
+        MessageJournal journal = mJournal;
+        if (journal != null) {
+            journal.record(command, receivedAt);
+        }
+
+        //answer subscriptions here instead of passing them to the engine
+        String type = command.getCommandType();
+        if (type.equals(StatusFanOut.SUBSCRIBE_TYPE)) {
+            sendTo(new StatusMessage(command.getTaskID(),
+                    mFanOut.subscribe(addr, binary) ? "finished" : "rejected"),
+                    addr, binary);
+            return null;
+        } else if (type.equals(StatusFanOut.UNSUBSCRIBE_TYPE)) {
+            mFanOut.unsubscribe(addr);
+            sendTo(new StatusMessage(command.getTaskID(), "finished"), addr, binary);
+            return null;
+        }
+
         //store client address for status message association
-        mRemoteAddrs.put(command.getTaskID(), addr);
-        
+        mRemoteAddrs.register(command.getTaskID(), addr, binary);
+
+        if (mMetrics != null) {
+            mMetrics.commandParsed(command.getTaskID(), receivedAt);
+        }
         return command;
     }
 
+    /**
+     * Sends the "received" status for a reliable command and checks whether
+     * the command is a retransmission.
+     *
+     * @param taskID the task ID
+     * @param seq the sequence number
+     * @param addr the sender's address
+     * @param binary true if the command was received in the binary encoding
+     * @return true for a new command, false for a retransmission
+     */
+    private boolean acknowledge(String taskID, String seq, SocketAddress addr,
+            boolean binary) {
+        String key = addr + "#" + seq;
+        String previous = mReceivedSeqs.put(taskID, key);
+
+        StatusMessage ack = new StatusMessage(taskID, ReliableDelivery.RECEIVED_STATUS);
+        ack.addDetail(ReliableDelivery.SEQ_PARAM, seq);
+        sendTo(ack, addr, binary);
+
+        if (key.equals(previous)) {
+            if (mMetrics != null) {
+                mMetrics.duplicateReceived();
+            }
+            cLogger.log(Level.FINE, "ignoring retransmitted command for task \"{0}\"",
+                    taskID);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Listens for incoming CommandMessages.
      */
     @Override
     public final void run() {
-        mRunning = true;
-
         while (mRunning) {
             // receive a new message
             final CommandMessage cmd = recvCommand();
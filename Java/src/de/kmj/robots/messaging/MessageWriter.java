@@ -0,0 +1,225 @@
+package de.kmj.robots.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Serializes a single-element message directly into a reusable
+ * StringBuilder.
+ * <p>
+ * The output is identical to what the default
+ * {@link javax.xml.transform.Transformer} produces for the message's DOM:
+ * the same XML declaration, attributes in name order and the same escaping
+ * of attribute values. Creating a Transformer and a Document for every
+ * outgoing message is therefore not necessary.
+ * <p>
+ * Instances are not thread-safe. Use {@link #getInstance()} to obtain the
+ * writer of the current thread.
+ *
+ * @author Kathrin Janowski
+ */
+final class MessageWriter {
+
+    private static final String cDeclaration
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
+    private static final ThreadLocal<MessageWriter> cInstances
+            = new ThreadLocal<MessageWriter>() {
+                @Override
+                protected MessageWriter initialValue() {
+                    return new MessageWriter();
+                }
+            };
+
+    /**
+     * Holds the message which is currently written.
+     */
+    private final StringBuilder mBuilder;
+
+    /**
+     * Encodes the message for {@link #encode(ByteBuffer)}.
+     */
+    private final CharsetEncoder mEncoder;
+
+    private MessageWriter() {
+        mBuilder = new StringBuilder(256);
+        mEncoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return the writer of the current thread
+     */
+    static MessageWriter getInstance() {
+        return cInstances.get();
+    }
+
+    /**
+     * Starts a new message and writes the XML declaration and the start of
+     * the element.
+     *
+     * @param elementName the name of the message element
+     * @return this writer
+     */
+    MessageWriter begin(String elementName) {
+        if (mBuilder.capacity() > 65536) {
+            mBuilder.setLength(0);
+            mBuilder.trimToSize();
+        }
+        mBuilder.setLength(0);
+        mBuilder.append(cDeclaration);
+        mBuilder.append('<').append(elementName);
+        return this;
+    }
+
+    /**
+     * Writes the two fixed attributes and the optional ones in name order.
+     *
+     * @param name1 the name of the first fixed attribute
+     * @param value1 the value of the first fixed attribute
+     * @param name2 the name of the second fixed attribute
+     * @param value2 the value of the second fixed attribute
+     * @param sortedAttributes the optional attributes, sorted by name
+     * @return this writer
+     */
+    MessageWriter attributes(String name1, String value1,
+            String name2, String value2,
+            ParameterMap sortedAttributes) {
+
+        // the fixed attributes in name order
+        if (name2.compareTo(name1) < 0) {
+            String name = name1;
+            String value = value1;
+            name1 = name2;
+            value1 = value2;
+            name2 = name;
+            value2 = value;
+        }
+
+        boolean first = true;
+        boolean second = true;
+        int count = sortedAttributes.size();
+        for (int i = 0; i < count; i++) {
+            String name = sortedAttributes.keyAt(i);
+            String value = sortedAttributes.valueAt(i);
+            if (first) {
+                int cmp = name1.compareTo(name);
+                if (cmp < 0) {
+                    attribute(name1, value1);
+                    first = false;
+                } else if (cmp == 0) {
+                    // an optional attribute with the same name replaces it
+                    attribute(name, value);
+                    first = false;
+                    continue;
+                }
+            }
+            if (!first && second) {
+                int cmp = name2.compareTo(name);
+                if (cmp < 0) {
+                    attribute(name2, value2);
+                    second = false;
+                } else if (cmp == 0) {
+                    attribute(name, value);
+                    second = false;
+                    continue;
+                }
+            }
+            attribute(name, value);
+        }
+
+        if (first) {
+            attribute(name1, value1);
+        }
+        if (second) {
+            attribute(name2, value2);
+        }
+        return this;
+    }
+
+    /**
+     * Writes one attribute with an escaped value.
+     *
+     * @param name the attribute name
+     * @param value the attribute value
+     * @return this writer
+     */
+    MessageWriter attribute(String name, String value) {
+        StringBuilder out = mBuilder;
+        out.append(' ').append(name).append("=\"");
+
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        // keeps \n, \r and \t from being normalized to spaces
+                        out.append("&#").append((int) c).append(';');
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length
+                            && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        out.append("&#")
+                                .append(Character.toCodePoint(c, value.charAt(i + 1)))
+                                .append(';');
+                        i++;
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+
+        out.append('"');
+        return this;
+    }
+
+    /**
+     * Closes the message element.
+     *
+     * @return this writer
+     */
+    MessageWriter end() {
+        mBuilder.append("/>");
+        return this;
+    }
+
+    /**
+     * @return the message as a String
+     */
+    @Override
+    public String toString() {
+        return mBuilder.toString();
+    }
+
+    /**
+     * Encodes the message as UTF-8 into the given buffer, starting at its
+     * current position.
+     *
+     * @param target the buffer which receives the encoded message
+     * @return true on success, false if the buffer is too small
+     */
+    boolean encode(ByteBuffer target) {
+        mEncoder.reset();
+        CoderResult result = mEncoder.encode(CharBuffer.wrap(mBuilder), target, true);
+        if (result.isOverflow()) {
+            return false;
+        }
+        return !mEncoder.flush(target).isOverflow();
+    }
+}
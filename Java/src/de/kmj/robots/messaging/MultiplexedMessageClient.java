@@ -0,0 +1,505 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.RobotThreadFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A UDP client which lets many senders share one DatagramChannel.
+ * <p>
+ * Unlike the {@link de.kmj.robots.messaging.MessageClient}, which has one
+ * socket, one port and one receiving thread per StatusMessageHandler, this
+ * client registers a StatusMessageHandler for every command it sends and
+ * forwards the returning StatusMessages to the handler of their task ID.
+ * The handler is removed when the task is finished or rejected.
+ * <p>
+ * If the final status of a task is lost, its handler is removed once it has
+ * not received any status for the configured handler timeout. The expired
+ * handlers are removed while sending, at most once per tenth of the timeout.
+ * In the reliable mode with a task timeout, the handler receives a "rejected"
+ * status instead.
+ * <p>
+ * Since all senders share the same task ID namespace, each of them must use
+ * unique task IDs, for example by prefixing them with its own name.
+ * <p>
+ * {@link #setReliable(boolean)} enables acknowledgements and retransmission
+ * via a {@link de.kmj.robots.messaging.ReliableDelivery}. The "rejected"
+ * statuses of commands which time out are passed to the handler of their
+ * task like any other status.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @see de.kmj.robots.messaging.MessageServer
+ * @author Kathrin Janowski
+ */
+public class MultiplexedMessageClient implements Runnable {
+
+    private static final Logger cLogger = Logger.getLogger(MultiplexedMessageClient.class.getName());
+
+    private static final Charset cCharset = Charset.forName("UTF-8");
+
+    /**
+     * Default time after which the handler of a task without any status is
+     * removed: 10 minutes.
+     */
+    public static final long DEFAULT_HANDLER_TIMEOUT = 600000L;
+
+    /**
+     * The handler of one open task.
+     */
+    private static final class Registration {
+
+        final StatusMessageHandler mHandler;
+
+        /**
+         * The time of the registration or the last status in terms of
+         * System.nanoTime().
+         */
+        volatile long mLastAccess;
+
+        Registration(StatusMessageHandler handler, long now) {
+            mHandler = handler;
+            mLastAccess = now;
+        }
+    }
+
+    /**
+     * The handler for each open task.
+     */
+    private final ConcurrentHashMap<String, Registration> mHandlers;
+
+    /**
+     * Time after which unused handlers are removed, in milliseconds.
+     */
+    private volatile long mHandlerTimeout;
+
+    /**
+     * The time from which the next removal of expired handlers is due.
+     */
+    private final AtomicLong mNextSweep;
+
+    /**
+     * Receives the StatusMessages of unknown tasks, may be null.
+     */
+    private volatile StatusMessageHandler mDefaultHandler;
+
+    /**
+     * Channel for connecting to the RobotEngine application.
+     */
+    private DatagramChannel mChannel;
+
+    /**
+     * Local socket address. Port 0 lets the system choose a free port.
+     */
+    private final SocketAddress mLocalAddr;
+
+    /**
+     * Remote socket address of the RobotEngine application.
+     */
+    private final SocketAddress mRemoteAddr;
+
+    /**
+     * Size of the message buffer.
+     */
+    private final int mBufferSize;
+
+    /**
+     * Flag for sending commands in the binary encoding instead of XML.
+     */
+    private volatile boolean mBinaryEncoding;
+
+    /**
+     * Retransmits unacknowledged commands, or null if commands are only sent
+     * once.
+     */
+    private volatile ReliableDelivery mReliable;
+
+    /**
+     * The receiving thread.
+     */
+    private Thread mThread;
+
+    /**
+     * Run flag.
+     */
+    private volatile boolean mRunning;
+
+    /**
+     * Creates a client which is bound to a port chosen by the system.
+     *
+     * @param bufferSize the size of the receive buffer
+     * @param localIP the local IP address
+     * @param remoteIP the IP address of the RobotEngine application
+     * @param remotePort the port of the RobotEngine application
+     */
+    public MultiplexedMessageClient(int bufferSize, String localIP,
+            String remoteIP, int remotePort) {
+        this(bufferSize, localIP, 0, remoteIP, remotePort);
+    }
+
+    /**
+     * Creates a client.
+     *
+     * @param bufferSize the size of the receive buffer
+     * @param localIP the local IP address
+     * @param localPort the local port, or 0 for a port chosen by the system
+     * @param remoteIP the IP address of the RobotEngine application
+     * @param remotePort the port of the RobotEngine application
+     */
+    public MultiplexedMessageClient(int bufferSize, String localIP, int localPort,
+            String remoteIP, int remotePort) {
+        mBufferSize = bufferSize;
+        mLocalAddr = new InetSocketAddress(localIP, localPort);
+        mRemoteAddr = new InetSocketAddress(remoteIP, remotePort);
+        mHandlers = new ConcurrentHashMap<String, Registration>();
+        mHandlerTimeout = DEFAULT_HANDLER_TIMEOUT;
+        mNextSweep = new AtomicLong(System.nanoTime() + DEFAULT_HANDLER_TIMEOUT * 100000L);
+        mDefaultHandler = null;
+        mBinaryEncoding = false;
+        mRunning = false;
+    }
+
+    //==========================================================================
+    // connection
+    //==========================================================================
+    /**
+     * Opens the channel and starts listening for status messages.
+     */
+    public synchronized void start() {
+        try {
+            mChannel = DatagramChannel.open();
+            mChannel.socket().bind(mLocalAddr);
+            mChannel.connect(mRemoteAddr);
+
+            cLogger.log(Level.INFO, "multiplexed client ready: local address {0}",
+                    mChannel.socket().getLocalSocketAddress());
+
+            mRunning = true;
+            mThread = RobotThreadFactory.newThread("MultiplexedMessageClient", true, this);
+            mThread.start();
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "error in channel connection: {0}", e.toString());
+        }
+    }
+
+    /**
+     * @return true if the client is connected to the server, otherwise false
+     */
+    public synchronized boolean isConnected() {
+        return (mChannel != null) && mChannel.isConnected();
+    }
+
+    /**
+     * @return the local port, or -1 if the client is not started
+     */
+    public synchronized int getLocalPort() {
+        return (mChannel == null) ? -1 : mChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the receiving thread and closes the channel.
+     */
+    public synchronized void abort() {
+        cLogger.log(Level.INFO, "closing multiplexed client...");
+        mRunning = false;
+
+        if (mReliable != null) {
+            mReliable.close();
+        }
+
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                cLogger.log(Level.WARNING, "could not close channel: {0}", e.toString());
+            }
+        }
+        mHandlers.clear();
+    }
+
+    /**
+     * Waits until the receiving thread has terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    //==========================================================================
+    // configuration
+    //==========================================================================
+    /**
+     * Chooses the encoding of outgoing commands.
+     *
+     * @param binary true for the compact binary encoding, false for XML
+     */
+    public void setBinaryEncoding(boolean binary) {
+        mBinaryEncoding = binary;
+    }
+
+    /**
+     * Enables or disables acknowledgements and retransmission of commands.
+     *
+     * @param reliable true for the reliable mode, false for sending each
+     * command only once
+     */
+    public synchronized void setReliable(boolean reliable) {
+        if (reliable && mReliable == null) {
+            mReliable = new ReliableDelivery(new ReliableDelivery.Sender() {
+                @Override
+                public boolean sendCommand(CommandMessage command) {
+                    return sendOnce(command);
+                }
+            }, new StatusMessageHandler() {
+                @Override
+                public void handleStatusMessage(StatusMessage message) {
+                    dispatch(message);
+                }
+            });
+        } else if (!reliable && mReliable != null) {
+            mReliable.close();
+            mReliable = null;
+        }
+    }
+
+    /**
+     * @return the retransmission settings, or null if the reliable mode is
+     * disabled
+     */
+    public ReliableDelivery getReliableDelivery() {
+        return mReliable;
+    }
+
+    /**
+     * @param handler receives the StatusMessages of tasks without a
+     * registered handler, may be null
+     */
+    public void setDefaultHandler(StatusMessageHandler handler) {
+        mDefaultHandler = handler;
+    }
+
+    /**
+     * @param timeout the time in milliseconds after which the handler of a
+     * task without any status is removed
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setHandlerTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("handler timeout must be positive: " + timeout);
+        }
+        mHandlerTimeout = timeout;
+        mNextSweep.set(System.nanoTime() + timeout * 100000L);
+    }
+
+    /**
+     * @return the time in milliseconds after which the handler of a task
+     * without any status is removed
+     */
+    public long getHandlerTimeout() {
+        return mHandlerTimeout;
+    }
+
+    /**
+     * @return the number of tasks which are waiting for their final status
+     */
+    public int getOpenTaskCount() {
+        return mHandlers.size();
+    }
+
+    //==========================================================================
+    // sending
+    //==========================================================================
+    /**
+     * Sends a command and registers the handler for its status messages.
+     *
+     * @param command the command message to send
+     * @param handler receives the status messages of the command's task
+     * @return true on success, false on failure
+     */
+    public boolean sendCommandMessage(CommandMessage command, StatusMessageHandler handler) {
+        if (!isConnected()) {
+            cLogger.log(Level.WARNING, "could not send because the client is not connected");
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long nextSweep = mNextSweep.get();
+        if (now - nextSweep >= 0
+                && mNextSweep.compareAndSet(nextSweep, now + mHandlerTimeout * 100000L)) {
+            removeExpiredHandlers(now);
+        }
+
+        String taskID = command.getTaskID();
+        Registration registration = new Registration(handler, now);
+        Registration previous = mHandlers.put(taskID, registration);
+        if (previous != null && previous.mHandler != handler) {
+            cLogger.log(Level.WARNING, "task ID \"{0}\" is already used by another handler",
+                    taskID);
+        }
+
+        ReliableDelivery reliable = mReliable;
+        boolean sent = (reliable != null) ? reliable.send(command) : sendOnce(command);
+        if (!sent) {
+            mHandlers.remove(taskID, registration);
+        }
+        return sent;
+    }
+
+    /**
+     * Removes the handlers which have not received any status within the
+     * handler timeout.
+     */
+    private void removeExpiredHandlers(long now) {
+        long timeout = mHandlerTimeout * 1000000L;
+        int count = 0;
+        Iterator<Map.Entry<String, Registration>> iter = mHandlers.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Registration> mapping = iter.next();
+            if (now - mapping.getValue().mLastAccess > timeout
+                    && mHandlers.remove(mapping.getKey(), mapping.getValue())) {
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            cLogger.log(Level.WARNING, "removed the handlers of {0} tasks without a final status",
+                    count);
+        }
+    }
+
+    /**
+     * Sends a command message once in the chosen encoding.
+     *
+     * @param command the command message to send
+     * @return true on success, false on failure
+     */
+    private boolean sendOnce(CommandMessage command) {
+        DatagramChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+        }
+        if (channel == null) {
+            return false;
+        }
+
+        try {
+            byte[] bytes = mBinaryEncoding
+                    ? BinaryMessageCodec.toBytes(command)
+                    : command.toString().getBytes(cCharset);
+            if (cLogger.isLoggable(Level.FINE)) {
+                cLogger.log(Level.FINE, "sending: {0}", command);
+            }
+            channel.write(ByteBuffer.wrap(bytes));
+            return true;
+        } catch (IOException e) {
+            cLogger.log(Level.SEVERE, "could not send message: {0}", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Stops forwarding the status messages of a task.
+     *
+     * @param taskID the task ID
+     */
+    public void removeHandler(String taskID) {
+        mHandlers.remove(taskID);
+    }
+
+    //==========================================================================
+    // receiving
+    //==========================================================================
+    /**
+     * Listens for incoming StatusMessages and forwards them to the handler of
+     * their task.
+     */
+    @Override
+    public void run() {
+        DatagramChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(mBufferSize);
+
+        while (mRunning) {
+            buffer.clear();
+            try {
+                channel.read(buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // e.g. ICMP port unreachable while the server is not running
+                cLogger.log(Level.FINE, "could not receive status message: {0}", e.toString());
+                continue;
+            }
+            buffer.flip();
+
+            StatusMessage status;
+            try {
+                if (BinaryMessageCodec.isBinary(buffer)) {
+                    status = BinaryMessageCodec.decodeStatus(buffer);
+                } else {
+                    status = new StatusMessage(buffer);
+                }
+            } catch (IllegalArgumentException iae) {
+                cLogger.log(Level.SEVERE, "could not parse status message: {0}", iae.toString());
+                continue;
+            }
+
+            ReliableDelivery reliable = mReliable;
+            if (reliable == null || reliable.handleStatus(status)) {
+                dispatch(status);
+            }
+        }
+
+        cLogger.log(Level.INFO, "stopped");
+    }
+
+    private void dispatch(StatusMessage status) {
+        String taskID = status.getTaskID();
+        String st = status.getStatus();
+
+        Registration registration;
+        if (st.equals("finished") || st.equals("rejected")) {
+            registration = mHandlers.remove(taskID);
+        } else {
+            registration = mHandlers.get(taskID);
+            if (registration != null) {
+                registration.mLastAccess = System.nanoTime();
+            }
+        }
+
+        StatusMessageHandler handler = (registration != null) ? registration.mHandler : null;
+        if (handler == null) {
+            handler = mDefaultHandler;
+        }
+        if (handler == null) {
+            cLogger.log(Level.FINE, "no handler for task ID \"{0}\"", taskID);
+            return;
+        }
+
+        try {
+            handler.handleStatusMessage(status);
+        } catch (RuntimeException e) {
+            cLogger.log(Level.SEVERE, "could not handle status message: {0}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,1123 @@
+package de.kmj.robots.messaging;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * The parameters of a CommandMessage or the details of a StatusMessage.
+ * <p>
+ * Like the TreeMap which was used before, this map keeps its entries sorted
+ * by name, so iterating over them and writing them as XML attributes yields
+ * the same order. Most messages have fewer than ten entries, so they are
+ * stored in two sorted arrays instead of one tree node per entry, and looked
+ * up by binary search. A map without entries does not allocate any arrays.
+ * <p>
+ * It is a {@link java.util.NavigableMap} with the natural order of the names,
+ * like the TreeMap, so sub-maps, descending views and the navigation methods
+ * can be used as before. The views are backed by the map.
+ * <p>
+ * Names which are in the table of well-known names of the
+ * {@link de.kmj.robots.messaging.BinaryMessageCodec} are replaced by the
+ * constant from that table, so the parameters of many parsed messages share
+ * the same name strings.
+ * <p>
+ * The entries can also be read by index with {@link #keyAt(int)} and
+ * {@link #valueAt(int)}, which doesn't create an iterator. Null names are not
+ * allowed, null values are. This class is not thread-safe.
+ *
+ * @author Kathrin Janowski
+ */
+public final class ParameterMap extends AbstractMap<String, String>
+        implements NavigableMap<String, String> {
+
+    private static final String[] cEmpty = new String[0];
+
+    /**
+     * The capacity of the arrays when the first entry is added.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The names in ascending order.
+     */
+    private String[] mKeys;
+
+    /**
+     * The values in the order of their names.
+     */
+    private String[] mValues;
+
+    private int mSize;
+
+    /**
+     * Incremented by every structural change, for failing fast in iterators.
+     */
+    private int mModCount;
+
+    /**
+     * The entry set, created on demand.
+     */
+    private Set<Map.Entry<String, String>> mEntrySet;
+
+    /**
+     * A view of the whole map, which implements the navigation methods.
+     */
+    private SubMap mFullView;
+
+    /**
+     * Creates an empty map.
+     */
+    public ParameterMap() {
+        mKeys = cEmpty;
+        mValues = cEmpty;
+        mSize = 0;
+    }
+
+    /**
+     * Creates a copy of another map.
+     *
+     * @param other the map to copy
+     */
+    public ParameterMap(ParameterMap other) {
+        mSize = other.mSize;
+        if (mSize == 0) {
+            mKeys = cEmpty;
+            mValues = cEmpty;
+        } else {
+            mKeys = new String[mSize];
+            mValues = new String[mSize];
+            System.arraycopy(other.mKeys, 0, mKeys, 0, mSize);
+            System.arraycopy(other.mValues, 0, mValues, 0, mSize);
+        }
+    }
+
+    //==========================================================================
+    // indexed access
+    //==========================================================================
+    /**
+     * @param index the position of an entry, from 0 to size()-1
+     * @return the name of that entry
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public String keyAt(int index) throws IndexOutOfBoundsException {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    /**
+     * @param index the position of an entry, from 0 to size()-1
+     * @return the value of that entry
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public String valueAt(int index) throws IndexOutOfBoundsException {
+        checkIndex(index);
+        return mValues[index];
+    }
+
+    //==========================================================================
+    // Map
+    //==========================================================================
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof String) && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String) key);
+        return (index >= 0) ? mValues[index] : null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("parameter name is null");
+        }
+
+        // fast path for names which are added in ascending order
+        int index = (mSize == 0 || mKeys[mSize - 1].compareTo(key) < 0)
+                ? -(mSize + 1)
+                : indexOf(key);
+        if (index >= 0) {
+            String previous = mValues[index];
+            mValues[index] = value;
+            return previous;
+        }
+
+        index = -(index + 1);
+        if (mSize == mKeys.length) {
+            int capacity = (mSize == 0) ? INITIAL_CAPACITY : mSize * 2;
+            String[] keys = new String[capacity];
+            String[] values = new String[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            mKeys = keys;
+            mValues = values;
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+        mKeys[index] = BinaryMessageCodec.internName(key);
+        mValues[index] = value;
+        mSize++;
+        mModCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        int index = indexOf((String) key);
+        if (index < 0) {
+            return null;
+        }
+        String previous = mValues[index];
+        removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mValues[i] = null;
+        }
+        mSize = 0;
+        mModCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new EntrySet(null);
+        }
+        return mEntrySet;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return navigableKeySet();
+    }
+
+    //==========================================================================
+    // NavigableMap
+    //==========================================================================
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    @Override
+    public String firstKey() {
+        return fullView().firstKey();
+    }
+
+    @Override
+    public String lastKey() {
+        return fullView().lastKey();
+    }
+
+    @Override
+    public Map.Entry<String, String> firstEntry() {
+        return fullView().firstEntry();
+    }
+
+    @Override
+    public Map.Entry<String, String> lastEntry() {
+        return fullView().lastEntry();
+    }
+
+    @Override
+    public Map.Entry<String, String> pollFirstEntry() {
+        return fullView().pollFirstEntry();
+    }
+
+    @Override
+    public Map.Entry<String, String> pollLastEntry() {
+        return fullView().pollLastEntry();
+    }
+
+    @Override
+    public Map.Entry<String, String> lowerEntry(String key) {
+        return fullView().lowerEntry(key);
+    }
+
+    @Override
+    public String lowerKey(String key) {
+        return fullView().lowerKey(key);
+    }
+
+    @Override
+    public Map.Entry<String, String> floorEntry(String key) {
+        return fullView().floorEntry(key);
+    }
+
+    @Override
+    public String floorKey(String key) {
+        return fullView().floorKey(key);
+    }
+
+    @Override
+    public Map.Entry<String, String> ceilingEntry(String key) {
+        return fullView().ceilingEntry(key);
+    }
+
+    @Override
+    public String ceilingKey(String key) {
+        return fullView().ceilingKey(key);
+    }
+
+    @Override
+    public Map.Entry<String, String> higherEntry(String key) {
+        return fullView().higherEntry(key);
+    }
+
+    @Override
+    public String higherKey(String key) {
+        return fullView().higherKey(key);
+    }
+
+    @Override
+    public NavigableMap<String, String> descendingMap() {
+        return fullView().descendingMap();
+    }
+
+    @Override
+    public NavigableSet<String> navigableKeySet() {
+        return new KeySet(this);
+    }
+
+    @Override
+    public NavigableSet<String> descendingKeySet() {
+        return fullView().descendingKeySet();
+    }
+
+    @Override
+    public NavigableMap<String, String> subMap(String fromKey, boolean fromInclusive,
+            String toKey, boolean toInclusive) {
+        return fullView().subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<String, String> headMap(String toKey, boolean inclusive) {
+        return fullView().headMap(toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<String, String> tailMap(String fromKey, boolean inclusive) {
+        return fullView().tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public SortedMap<String, String> subMap(String fromKey, String toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<String, String> headMap(String toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<String, String> tailMap(String fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    //==========================================================================
+    // internal
+    //==========================================================================
+    private SubMap fullView() {
+        if (mFullView == null) {
+            mFullView = new SubMap(null, false, null, false, false);
+        }
+        return mFullView;
+    }
+
+    /**
+     * @param key a name
+     * @return the index of the name, or -(insertion point + 1) if it is not
+     * contained
+     */
+    private int indexOf(String key) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            String midKey = mKeys[mid];
+            int cmp = (midKey == key) ? 0 : midKey.compareTo(key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @param key a name
+     * @param inclusive whether the name itself is accepted
+     * @return the index of the first name which is greater than (or equal to)
+     * the given one, or size() if there is none
+     */
+    private int ceilingIndex(String key, boolean inclusive) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            return inclusive ? index : index + 1;
+        }
+        return -(index + 1);
+    }
+
+    /**
+     * @param key a name
+     * @param inclusive whether the name itself is accepted
+     * @return the index of the last name which is less than (or equal to) the
+     * given one, or -1 if there is none
+     */
+    private int floorIndex(String key, boolean inclusive) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            return inclusive ? index : index - 1;
+        }
+        return -(index + 1) - 1;
+    }
+
+    private void removeAt(int index) {
+        int moved = mSize - index - 1;
+        System.arraycopy(mKeys, index + 1, mKeys, index, moved);
+        System.arraycopy(mValues, index + 1, mValues, index, moved);
+        mSize--;
+        mKeys[mSize] = null;
+        mValues[mSize] = null;
+        mModCount++;
+    }
+
+    private void removeRange(int from, int to) {
+        int removed = to - from;
+        System.arraycopy(mKeys, to, mKeys, from, mSize - to);
+        System.arraycopy(mValues, to, mValues, from, mSize - to);
+        for (int i = mSize - removed; i < mSize; i++) {
+            mKeys[i] = null;
+            mValues[i] = null;
+        }
+        mSize -= removed;
+        mModCount++;
+    }
+
+    private Map.Entry<String, String> snapshot(int index) {
+        return (index < 0) ? null
+                : new AbstractMap.SimpleImmutableEntry<String, String>(mKeys[index], mValues[index]);
+    }
+
+    private String keyOrNull(int index) {
+        return (index < 0) ? null : mKeys[index];
+    }
+
+    private void checkIndex(int index) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+
+    /**
+     * The entries of the map or of a view, backed by the map.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+        /**
+         * The view, or null for the whole map.
+         */
+        private final SubMap mRange;
+
+        EntrySet(SubMap range) {
+            mRange = range;
+        }
+
+        @Override
+        public int size() {
+            return (mRange == null) ? mSize : mRange.size();
+        }
+
+        @Override
+        public void clear() {
+            if (mRange == null) {
+                ParameterMap.this.clear();
+            } else {
+                mRange.clear();
+            }
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return (mRange == null)
+                    ? new EntryIterator(0, mSize, false)
+                    : new EntryIterator(mRange.start(), mRange.end(), mRange.mDescending);
+        }
+    }
+
+    /**
+     * Iterates over a range of entries in ascending or descending order.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private final boolean mDescending;
+        private final int mLow;
+        private int mHigh;
+        private int mNext;
+        private int mLast;
+        private int mExpectedModCount;
+
+        /**
+         * @param low the first index of the range
+         * @param high the index after the end of the range
+         * @param descending true for iterating from the end
+         */
+        EntryIterator(int low, int high, boolean descending) {
+            mDescending = descending;
+            mLow = low;
+            mHigh = high;
+            mNext = descending ? high - 1 : low;
+            mLast = -1;
+            mExpectedModCount = mModCount;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mDescending ? mNext >= mLow : mNext < mHigh;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLast = mNext;
+            mNext += mDescending ? -1 : 1;
+            return new Entry(mLast);
+        }
+
+        @Override
+        public void remove() {
+            if (mLast < 0) {
+                throw new IllegalStateException();
+            }
+            if (mModCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(mLast);
+            if (!mDescending) {
+                // the following entries have moved down by one
+                mNext = mLast;
+                mHigh--;
+            }
+            mLast = -1;
+            mExpectedModCount = mModCount;
+        }
+    }
+
+    /**
+     * A range of the map between two optional bounds, in ascending or
+     * descending order, like the views of a TreeMap. The indices of the range
+     * are looked up again for every operation, so the view reflects all
+     * changes of the map.
+     */
+    private final class SubMap extends AbstractMap<String, String>
+            implements NavigableMap<String, String> {
+
+        /**
+         * The lower bound, or null if the range starts at the first entry.
+         */
+        private final String mLow;
+        private final boolean mLowInclusive;
+
+        /**
+         * The upper bound, or null if the range ends at the last entry.
+         */
+        private final String mHigh;
+        private final boolean mHighInclusive;
+
+        private final boolean mDescending;
+
+        SubMap(String low, boolean lowInclusive, String high, boolean highInclusive,
+                boolean descending) {
+            mLow = low;
+            mLowInclusive = lowInclusive;
+            mHigh = high;
+            mHighInclusive = highInclusive;
+            mDescending = descending;
+        }
+
+        //----------------------------------------------------------------------
+        // range
+        //----------------------------------------------------------------------
+        /**
+         * @return the index of the first entry in the range
+         */
+        int start() {
+            return (mLow == null) ? 0 : ceilingIndex(mLow, mLowInclusive);
+        }
+
+        /**
+         * @return the index after the last entry in the range
+         */
+        int end() {
+            return (mHigh == null) ? mSize : floorIndex(mHigh, mHighInclusive) + 1;
+        }
+
+        private boolean tooLow(String key) {
+            if (mLow == null) {
+                return false;
+            }
+            int cmp = key.compareTo(mLow);
+            return cmp < 0 || (cmp == 0 && !mLowInclusive);
+        }
+
+        private boolean tooHigh(String key) {
+            if (mHigh == null) {
+                return false;
+            }
+            int cmp = key.compareTo(mHigh);
+            return cmp > 0 || (cmp == 0 && !mHighInclusive);
+        }
+
+        private boolean inRange(Object key) {
+            return (key instanceof String)
+                    && !tooLow((String) key) && !tooHigh((String) key);
+        }
+
+        /**
+         * @return the index of the last entry before (or at) the key within
+         * the range in ascending order, or -1
+         */
+        private int lowerIndex(String key, boolean inclusive) {
+            int index = Math.min(floorIndex(key, inclusive), end() - 1);
+            return (index >= start()) ? index : -1;
+        }
+
+        /**
+         * @return the index of the first entry after (or at) the key within
+         * the range in ascending order, or -1
+         */
+        private int higherIndex(String key, boolean inclusive) {
+            int index = Math.max(ceilingIndex(key, inclusive), start());
+            return (index < end()) ? index : -1;
+        }
+
+        private int firstIndex() {
+            int start = start();
+            int end = end();
+            if (start >= end) {
+                return -1;
+            }
+            return mDescending ? end - 1 : start;
+        }
+
+        private int lastIndex() {
+            int start = start();
+            int end = end();
+            if (start >= end) {
+                return -1;
+            }
+            return mDescending ? start : end - 1;
+        }
+
+        /**
+         * @return true if the key can be a bound of a view within this range;
+         * an exclusive bound may also be equal to an exclusive bound of this
+         * range
+         */
+        private boolean isValidBound(String key, boolean inclusive) {
+            if (key == null) {
+                return true;
+            }
+            if (inclusive) {
+                return !tooLow(key) && !tooHigh(key);
+            }
+            return (mLow == null || key.compareTo(mLow) >= 0)
+                    && (mHigh == null || key.compareTo(mHigh) <= 0);
+        }
+
+        /**
+         * Creates a view between new bounds in ascending order, which must be
+         * within this range.
+         */
+        private NavigableMap<String, String> range(String low, boolean lowInclusive,
+                String high, boolean highInclusive) {
+            if (!isValidBound(low, lowInclusive) || !isValidBound(high, highInclusive)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            if (low != null && high != null && low.compareTo(high) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return new SubMap(low, lowInclusive, high, highInclusive, mDescending);
+        }
+
+        //----------------------------------------------------------------------
+        // Map
+        //----------------------------------------------------------------------
+        @Override
+        public int size() {
+            return Math.max(0, end() - start());
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && ParameterMap.this.containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return inRange(key) ? ParameterMap.this.get(key) : null;
+        }
+
+        @Override
+        public String put(String key, String value) {
+            if (key != null && !inRange(key)) {
+                throw new IllegalArgumentException("key out of range: " + key);
+            }
+            return ParameterMap.this.put(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            return inRange(key) ? ParameterMap.this.remove(key) : null;
+        }
+
+        @Override
+        public void clear() {
+            int start = start();
+            int end = end();
+            if (start < end) {
+                removeRange(start, end);
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            return new EntrySet(this);
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return navigableKeySet();
+        }
+
+        //----------------------------------------------------------------------
+        // NavigableMap
+        //----------------------------------------------------------------------
+        @Override
+        public Comparator<? super String> comparator() {
+            return mDescending ? Collections.<String>reverseOrder() : null;
+        }
+
+        @Override
+        public String firstKey() {
+            int index = firstIndex();
+            if (index < 0) {
+                throw new NoSuchElementException();
+            }
+            return mKeys[index];
+        }
+
+        @Override
+        public String lastKey() {
+            int index = lastIndex();
+            if (index < 0) {
+                throw new NoSuchElementException();
+            }
+            return mKeys[index];
+        }
+
+        @Override
+        public Map.Entry<String, String> firstEntry() {
+            return snapshot(firstIndex());
+        }
+
+        @Override
+        public Map.Entry<String, String> lastEntry() {
+            return snapshot(lastIndex());
+        }
+
+        @Override
+        public Map.Entry<String, String> pollFirstEntry() {
+            int index = firstIndex();
+            Map.Entry<String, String> entry = snapshot(index);
+            if (index >= 0) {
+                removeAt(index);
+            }
+            return entry;
+        }
+
+        @Override
+        public Map.Entry<String, String> pollLastEntry() {
+            int index = lastIndex();
+            Map.Entry<String, String> entry = snapshot(index);
+            if (index >= 0) {
+                removeAt(index);
+            }
+            return entry;
+        }
+
+        @Override
+        public Map.Entry<String, String> lowerEntry(String key) {
+            return snapshot(mDescending ? higherIndex(key, false) : lowerIndex(key, false));
+        }
+
+        @Override
+        public String lowerKey(String key) {
+            return keyOrNull(mDescending ? higherIndex(key, false) : lowerIndex(key, false));
+        }
+
+        @Override
+        public Map.Entry<String, String> floorEntry(String key) {
+            return snapshot(mDescending ? higherIndex(key, true) : lowerIndex(key, true));
+        }
+
+        @Override
+        public String floorKey(String key) {
+            return keyOrNull(mDescending ? higherIndex(key, true) : lowerIndex(key, true));
+        }
+
+        @Override
+        public Map.Entry<String, String> ceilingEntry(String key) {
+            return snapshot(mDescending ? lowerIndex(key, true) : higherIndex(key, true));
+        }
+
+        @Override
+        public String ceilingKey(String key) {
+            return keyOrNull(mDescending ? lowerIndex(key, true) : higherIndex(key, true));
+        }
+
+        @Override
+        public Map.Entry<String, String> higherEntry(String key) {
+            return snapshot(mDescending ? lowerIndex(key, false) : higherIndex(key, false));
+        }
+
+        @Override
+        public String higherKey(String key) {
+            return keyOrNull(mDescending ? lowerIndex(key, false) : higherIndex(key, false));
+        }
+
+        @Override
+        public NavigableMap<String, String> descendingMap() {
+            return new SubMap(mLow, mLowInclusive, mHigh, mHighInclusive, !mDescending);
+        }
+
+        @Override
+        public NavigableSet<String> navigableKeySet() {
+            return new KeySet(this);
+        }
+
+        @Override
+        public NavigableSet<String> descendingKeySet() {
+            return new KeySet(descendingMap());
+        }
+
+        @Override
+        public NavigableMap<String, String> subMap(String fromKey, boolean fromInclusive,
+                String toKey, boolean toInclusive) {
+            if (fromKey == null || toKey == null) {
+                throw new NullPointerException();
+            }
+            return mDescending
+                    ? range(toKey, toInclusive, fromKey, fromInclusive)
+                    : range(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        @Override
+        public NavigableMap<String, String> headMap(String toKey, boolean inclusive) {
+            if (toKey == null) {
+                throw new NullPointerException();
+            }
+            return mDescending
+                    ? range(toKey, inclusive, mHigh, mHighInclusive)
+                    : range(mLow, mLowInclusive, toKey, inclusive);
+        }
+
+        @Override
+        public NavigableMap<String, String> tailMap(String fromKey, boolean inclusive) {
+            if (fromKey == null) {
+                throw new NullPointerException();
+            }
+            return mDescending
+                    ? range(mLow, mLowInclusive, fromKey, inclusive)
+                    : range(fromKey, inclusive, mHigh, mHighInclusive);
+        }
+
+        @Override
+        public SortedMap<String, String> subMap(String fromKey, String toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedMap<String, String> headMap(String toKey) {
+            return headMap(toKey, false);
+        }
+
+        @Override
+        public SortedMap<String, String> tailMap(String fromKey) {
+            return tailMap(fromKey, true);
+        }
+    }
+
+    /**
+     * The names of the map or of a view, backed by the map.
+     */
+    private static final class KeySet extends AbstractSet<String>
+            implements NavigableSet<String> {
+
+        private final NavigableMap<String, String> mMap;
+
+        KeySet(NavigableMap<String, String> map) {
+            mMap = map;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<Map.Entry<String, String>> entries = mMap.entrySet().iterator();
+            return new Iterator<String>() {
+
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return entries.next().getKey();
+                }
+
+                @Override
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<String> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return mMap.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mMap.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return mMap.containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!mMap.containsKey(o)) {
+                return false;
+            }
+            mMap.remove(o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            mMap.clear();
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return mMap.comparator();
+        }
+
+        @Override
+        public String first() {
+            return mMap.firstKey();
+        }
+
+        @Override
+        public String last() {
+            return mMap.lastKey();
+        }
+
+        @Override
+        public String lower(String e) {
+            return mMap.lowerKey(e);
+        }
+
+        @Override
+        public String floor(String e) {
+            return mMap.floorKey(e);
+        }
+
+        @Override
+        public String ceiling(String e) {
+            return mMap.ceilingKey(e);
+        }
+
+        @Override
+        public String higher(String e) {
+            return mMap.higherKey(e);
+        }
+
+        @Override
+        public String pollFirst() {
+            Map.Entry<String, String> entry = mMap.pollFirstEntry();
+            return (entry == null) ? null : entry.getKey();
+        }
+
+        @Override
+        public String pollLast() {
+            Map.Entry<String, String> entry = mMap.pollLastEntry();
+            return (entry == null) ? null : entry.getKey();
+        }
+
+        @Override
+        public NavigableSet<String> descendingSet() {
+            return new KeySet(mMap.descendingMap());
+        }
+
+        @Override
+        public NavigableSet<String> subSet(String fromElement, boolean fromInclusive,
+                String toElement, boolean toInclusive) {
+            return new KeySet(mMap.subMap(fromElement, fromInclusive, toElement, toInclusive));
+        }
+
+        @Override
+        public NavigableSet<String> headSet(String toElement, boolean inclusive) {
+            return new KeySet(mMap.headMap(toElement, inclusive));
+        }
+
+        @Override
+        public NavigableSet<String> tailSet(String fromElement, boolean inclusive) {
+            return new KeySet(mMap.tailMap(fromElement, inclusive));
+        }
+
+        @Override
+        public SortedSet<String> subSet(String fromElement, String toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+
+        @Override
+        public SortedSet<String> headSet(String toElement) {
+            return headSet(toElement, false);
+        }
+
+        @Override
+        public SortedSet<String> tailSet(String fromElement) {
+            return tailSet(fromElement, true);
+        }
+    }
+
+    /**
+     * An entry which reads and writes its value through the map, like the
+     * entries of a TreeMap.
+     */
+    private final class Entry implements Map.Entry<String, String> {
+
+        private final String mKey;
+
+        /**
+         * The last known position of the entry.
+         */
+        private int mIndex;
+
+        Entry(int index) {
+            mKey = mKeys[index];
+            mIndex = index;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public String getValue() {
+            return locate() ? mValues[mIndex] : null;
+        }
+
+        @Override
+        public String setValue(String value) {
+            if (!locate()) {
+                throw new IllegalStateException("entry was removed: " + mKey);
+            }
+            String previous = mValues[mIndex];
+            mValues[mIndex] = value;
+            return previous;
+        }
+
+        /**
+         * Finds the entry again if the map has been changed.
+         *
+         * @return true if the entry is still contained
+         */
+        private boolean locate() {
+            if (mIndex < mSize && mKeys[mIndex] == mKey) {
+                return true;
+            }
+            mIndex = indexOf(mKey);
+            return mIndex >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            String value = getValue();
+            return mKey.equals(other.getKey())
+                    && ((value == null) ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            String value = getValue();
+            return mKey.hashCode() ^ ((value == null) ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return mKey + "=" + getValue();
+        }
+    }
+}
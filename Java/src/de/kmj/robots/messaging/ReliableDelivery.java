@@ -0,0 +1,460 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.RobotThreadFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds acknowledgements and retransmission to the sending of CommandMessages
+ * over UDP.
+ * <p>
+ * Every command is sent with an additional parameter {@link #SEQ_PARAM}, which
+ * holds a sequence number of this sender. The
+ * {@link de.kmj.robots.messaging.MessageServer} acknowledges the command with
+ * a StatusMessage "received" which contains the same sequence number, and
+ * ignores repeated commands with the same task ID and sequence number.
+ * <p>
+ * If neither the acknowledgement nor any other status of the task arrives
+ * in time, the command is sent again, with the waiting time doubled after
+ * each attempt. After the last attempt, a StatusMessage "rejected" with the
+ * detail reason="timeout" is passed to the status handler. Optionally, the
+ * same happens for tasks which have been acknowledged but not finished within
+ * a given time.
+ * <p>
+ * The "received" statuses are consumed by {@link #handleStatus(StatusMessage)}
+ * and are not passed on. Note that the synthesized "rejected" statuses are
+ * passed to the handler on the timer thread of this object, not on the
+ * receiving thread of the client.
+ * <p>
+ * The timers of a task are cancelled as soon as they are no longer needed,
+ * and the cancelled timers are purged regularly, so the timer queue doesn't
+ * grow at high command rates.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @see de.kmj.robots.messaging.MessageClient#setReliable(boolean)
+ * @see de.kmj.robots.messaging.MultiplexedMessageClient#setReliable(boolean)
+ * @author Kathrin Janowski
+ */
+public class ReliableDelivery {
+
+    private static final Logger cLogger = Logger.getLogger(ReliableDelivery.class.getName());
+
+    /**
+     * The name of the command parameter and status detail which contains the
+     * sequence number.
+     */
+    public static final String SEQ_PARAM = "seq";
+
+    /**
+     * The status which acknowledges the reception of a command.
+     */
+    public static final String RECEIVED_STATUS = "received";
+
+    /**
+     * Default waiting time before the first retransmission in milliseconds.
+     */
+    public static final long DEFAULT_RETRANSMIT_DELAY = 50;
+
+    /**
+     * Default number of retransmissions before a task is rejected.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /**
+     * Maximum number of timed out task IDs whose late statuses are dropped.
+     */
+    private static final int MAX_TIMED_OUT_TASKS = 1024;
+
+    /**
+     * The number of cancelled timers after which the timer queue is purged.
+     */
+    static final int PURGE_INTERVAL = 256;
+
+    /**
+     * Sends the encoded commands.
+     */
+    public interface Sender {
+
+        /**
+         * Sends a command once.
+         *
+         * @param command the command message, including the sequence number
+         * @return true on success, false on failure
+         */
+        boolean sendCommand(CommandMessage command);
+    }
+
+    /**
+     * A command which is waiting for its acknowledgement or final status.
+     */
+    private final class PendingCommand implements Runnable {
+
+        final CommandMessage mCommand;
+        final String mSeq;
+        volatile boolean mAcknowledged;
+        int mRetries;
+        long mDelay;
+
+        /**
+         * The next retransmission and the task timeout, or null.
+         */
+        volatile ScheduledFuture<?> mRetransmit;
+        volatile ScheduledFuture<?> mTimeout;
+
+        PendingCommand(CommandMessage command, String seq, long delay) {
+            mCommand = command;
+            mSeq = seq;
+            mAcknowledged = false;
+            mRetries = 0;
+            mDelay = delay;
+        }
+
+        /**
+         * Retransmits the command or gives up.
+         */
+        @Override
+        public void run() {
+            if (mAcknowledged || mPending.get(mCommand.getTaskID()) != this) {
+                return;
+            }
+
+            if (mRetries >= mMaxRetries) {
+                timeout(this, "no acknowledgement after {1} retransmissions");
+                return;
+            }
+
+            mRetries++;
+            mDelay *= 2;
+            if (cLogger.isLoggable(Level.FINE)) {
+                cLogger.log(Level.FINE, "retransmitting task \"{0}\" (attempt {1})",
+                        new Object[]{mCommand.getTaskID(), mRetries + 1});
+            }
+            mSender.sendCommand(mCommand);
+            mRetransmit = schedule(this, mDelay);
+            if (mAcknowledged) {
+                // acknowledged while rescheduling
+                cancel(mRetransmit);
+            }
+        }
+    }
+
+    private final Sender mSender;
+
+    /**
+     * Receives the synthesized "rejected" statuses.
+     */
+    private final StatusMessageHandler mTimeoutHandler;
+
+    /**
+     * The commands which are not acknowledged yet, or not finished yet if
+     * the task timeout is enabled, by task ID.
+     */
+    private final ConcurrentHashMap<String, PendingCommand> mPending;
+
+    /**
+     * The IDs of the tasks which have timed out recently.
+     */
+    private final Map<String, Boolean> mTimedOut;
+
+    /**
+     * The next sequence number. Starts at a random value, so a restarted
+     * sender doesn't collide with the duplicate filter of the server.
+     */
+    private final AtomicLong mSequence;
+
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /**
+     * The number of cancelled timers since the last purge.
+     */
+    private final AtomicInteger mCancelCount;
+
+    private volatile long mRetransmitDelay;
+    private volatile int mMaxRetries;
+    private volatile long mTaskTimeout;
+
+    /**
+     * Creates a reliable sender with the default settings and no task
+     * timeout.
+     *
+     * @param sender sends the commands
+     * @param timeoutHandler receives the "rejected" statuses of the tasks
+     * which have timed out
+     */
+    public ReliableDelivery(Sender sender, StatusMessageHandler timeoutHandler) {
+        mSender = sender;
+        mTimeoutHandler = timeoutHandler;
+        mPending = new ConcurrentHashMap<String, PendingCommand>();
+        mTimedOut = new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Boolean> eldest) {
+                return size() > MAX_TIMED_OUT_TASKS;
+            }
+        };
+        mSequence = new AtomicLong(new Random().nextInt(Integer.MAX_VALUE));
+
+        mRetransmitDelay = DEFAULT_RETRANSMIT_DELAY;
+        mMaxRetries = DEFAULT_MAX_RETRIES;
+        mTaskTimeout = 0;
+
+        mTimer = new ScheduledThreadPoolExecutor(1,
+                new RobotThreadFactory("ReliableDelivery", true));
+        mCancelCount = new AtomicInteger();
+    }
+
+    //==========================================================================
+    // configuration
+    //==========================================================================
+    /**
+     * @param delay the waiting time before the first retransmission in
+     * milliseconds, which is doubled after each retransmission
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public void setRetransmitDelay(long delay) throws IllegalArgumentException {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("invalid retransmit delay: " + delay);
+        }
+        mRetransmitDelay = delay;
+    }
+
+    /**
+     * @return the waiting time before the first retransmission in
+     * milliseconds
+     */
+    public long getRetransmitDelay() {
+        return mRetransmitDelay;
+    }
+
+    /**
+     * @param retries the number of retransmissions before a task is rejected
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void setMaxRetries(int retries) throws IllegalArgumentException {
+        if (retries < 0) {
+            throw new IllegalArgumentException("invalid number of retries: " + retries);
+        }
+        mMaxRetries = retries;
+    }
+
+    /**
+     * @return the number of retransmissions before a task is rejected
+     */
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * Sets the time after which an acknowledged task is rejected if it has
+     * neither finished nor been rejected by the server.
+     *
+     * @param timeout the time in milliseconds, or 0 for waiting forever
+     * @throws IllegalArgumentException if the value is negative
+     */
+    public void setTaskTimeout(long timeout) throws IllegalArgumentException {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("invalid task timeout: " + timeout);
+        }
+        mTaskTimeout = timeout;
+    }
+
+    /**
+     * @return the task timeout in milliseconds, or 0 if it is disabled
+     */
+    public long getTaskTimeout() {
+        return mTaskTimeout;
+    }
+
+    /**
+     * @return the number of tasks which are waiting for their acknowledgement
+     * or final status
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the number of timers in the queue, including cancelled ones
+     * which have not been purged yet
+     */
+    int getTimerCount() {
+        return mTimer.getQueue().size();
+    }
+
+    //==========================================================================
+    // sending and receiving
+    //==========================================================================
+    /**
+     * Sends a command and schedules its retransmission. The given command is
+     * not modified; a copy with the sequence number is sent instead.
+     *
+     * @param command the command message to send
+     * @return true on success, false if the first attempt failed
+     */
+    public boolean send(CommandMessage command) {
+        String taskID = command.getTaskID();
+        String seq = Long.toString(mSequence.getAndIncrement());
+
+        CommandMessage copy = new CommandMessage(taskID, command);
+        copy.addParameter(SEQ_PARAM, seq);
+
+        PendingCommand pending = new PendingCommand(copy, seq, mRetransmitDelay);
+        mPending.put(taskID, pending);
+        synchronized (mTimedOut) {
+            mTimedOut.remove(taskID);
+        }
+
+        if (!mSender.sendCommand(copy)) {
+            mPending.remove(taskID, pending);
+            return false;
+        }
+        pending.mRetransmit = schedule(pending, pending.mDelay);
+
+        final long taskTimeout = mTaskTimeout;
+        if (taskTimeout > 0) {
+            final PendingCommand task = pending;
+            pending.mTimeout = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPending.get(task.mCommand.getTaskID()) == task) {
+                        timeout(task, "not finished after {2} ms");
+                    }
+                }
+            }, taskTimeout);
+        }
+        return true;
+    }
+
+    /**
+     * Processes a received status message.
+     *
+     * @param status the status message
+     * @return true if the status should be passed on to the handler, false if
+     * it is an acknowledgement or belongs to a task which has timed out
+     */
+    public boolean handleStatus(StatusMessage status) {
+        String taskID = status.getTaskID();
+        String st = status.getStatus();
+        PendingCommand pending = mPending.get(taskID);
+
+        if (st.equals(RECEIVED_STATUS)) {
+            if (pending != null && pending.mSeq.equals(status.getDetail(SEQ_PARAM))) {
+                acknowledge(pending);
+            }
+            return false;
+        }
+
+        if (pending != null) {
+            if (st.equals("finished") || st.equals("rejected")) {
+                acknowledge(pending);
+                mPending.remove(taskID, pending);
+                cancel(pending.mTimeout);
+            } else {
+                acknowledge(pending);
+            }
+            return true;
+        }
+
+        synchronized (mTimedOut) {
+            if (mTimedOut.containsKey(taskID)) {
+                cLogger.log(Level.FINE, "dropping late status \"{0}\" of task \"{1}\"",
+                        new Object[]{st, taskID});
+                if (st.equals("finished") || st.equals("rejected")) {
+                    mTimedOut.remove(taskID);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the retransmissions without rejecting the pending tasks.
+     */
+    public void close() {
+        mTimer.shutdownNow();
+        mPending.clear();
+    }
+
+    //==========================================================================
+    // internal
+    //==========================================================================
+    private void acknowledge(PendingCommand pending) {
+        if (!pending.mAcknowledged) {
+            pending.mAcknowledged = true;
+            cancel(pending.mRetransmit);
+        }
+        if (mTaskTimeout <= 0) {
+            mPending.remove(pending.mCommand.getTaskID(), pending);
+        }
+    }
+
+    /**
+     * @return the scheduled timer, or null if this object is closed
+     */
+    private ScheduledFuture<?> schedule(Runnable task, long delay) {
+        try {
+            return mTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // closed
+            return null;
+        }
+    }
+
+    /**
+     * Cancels a timer. The cancelled timers stay in the queue until they are
+     * due, so the queue is purged after every {@value #PURGE_INTERVAL}
+     * cancellations.
+     *
+     * @param timer the timer, or null
+     */
+    private void cancel(ScheduledFuture<?> timer) {
+        if (timer != null && timer.cancel(false)
+                && mCancelCount.incrementAndGet() >= PURGE_INTERVAL) {
+            mCancelCount.set(0);
+            mTimer.purge();
+        }
+    }
+
+    /**
+     * Gives up on a task and passes a "rejected" status to the handler.
+     *
+     * @param pending the task
+     * @param logMessage the log message, with the task ID as {0}, the number
+     * of retries as {1} and the task timeout as {2}
+     */
+    private void timeout(PendingCommand pending, String logMessage) {
+        String taskID = pending.mCommand.getTaskID();
+        if (!mPending.remove(taskID, pending)) {
+            return;
+        }
+        pending.mAcknowledged = true;
+        cancel(pending.mRetransmit);
+        cancel(pending.mTimeout);
+        synchronized (mTimedOut) {
+            mTimedOut.put(taskID, Boolean.TRUE);
+        }
+
+        cLogger.log(Level.WARNING, "task \"{0}\" timed out: " + logMessage,
+                new Object[]{taskID, pending.mRetries, mTaskTimeout});
+
+        StatusMessage rejected = new StatusMessage(taskID, "rejected");
+        rejected.addDetail("reason", "timeout");
+        try {
+            mTimeoutHandler.handleStatusMessage(rejected);
+        } catch (RuntimeException e) {
+            cLogger.log(Level.SEVERE, "could not handle status message: {0}", e.toString());
+        }
+    }
+}
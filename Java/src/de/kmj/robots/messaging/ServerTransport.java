@@ -0,0 +1,77 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.EngineMetrics;
+import java.util.logging.Level;
+
+/**
+ * The RobotEngine side of a connection to control applications.
+ * <p>
+ * A server transport passes every received CommandMessage to its
+ * {@link de.kmj.robots.messaging.CommandMessageHandler} and returns each
+ * StatusMessage to the client which has sent the command of the same task.
+ * In addition, every StatusMessage is passed to the observers of its
+ * {@link de.kmj.robots.messaging.StatusFanOut}.
+ * Implementations are created by a
+ * {@link de.kmj.robots.messaging.TransportProvider}.
+ *
+ * @see de.kmj.robots.messaging.MessageServer
+ * @see de.kmj.robots.messaging.InProcessServer
+ * @author Kathrin Janowski
+ */
+public interface ServerTransport {
+
+    /**
+     * Starts receiving commands.
+     */
+    public void start();
+
+    /**
+     * Stops receiving commands and closes the connection.
+     */
+    public void abort();
+
+    /**
+     * Waits until the receiving loop has terminated after {@link #abort()}.
+     * Returns at once if the transport has not been started.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void awaitTermination() throws InterruptedException;
+
+    /**
+     * Sends a status message to the client of its task.
+     *
+     * @param status the status message to send
+     * @return true on success, false on failure
+     */
+    public boolean sendStatusMessage(StatusMessage status);
+
+    /**
+     * Sets the metrics which record the receive times and count failures.
+     * Must be called before {@link #start()}.
+     *
+     * @param metrics the metrics, or null for disabling them
+     */
+    public void setMetrics(EngineMetrics metrics);
+
+    /**
+     * Returns the fan-out which passes every sent StatusMessage on to
+     * additional observers.
+     *
+     * @return the fan-out of this transport
+     */
+    public StatusFanOut getStatusFanOut();
+
+    /**
+     * Sets the journal which records every received CommandMessage and every
+     * sent StatusMessage.
+     *
+     * @param journal the journal, or null for disabling the recording
+     */
+    public void setJournal(MessageJournal journal);
+
+    /**
+     * @param level the log level of this transport
+     */
+    public void setLogLevel(Level level);
+}
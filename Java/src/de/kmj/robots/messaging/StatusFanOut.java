@@ -0,0 +1,424 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.RobotThreadFactory;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Passes every StatusMessage of a {@link ServerTransport} on to observers,
+ * in addition to the client of its task.
+ * <p>
+ * There are two kinds of observers:
+ * <ul>
+ * <li>local StatusMessageHandlers, e.g. a recorder in the same JVM, added
+ * with {@link #addObserver(StatusMessageHandler)}</li>
+ * <li>remote subscribers, e.g. a dashboard, added with
+ * {@link #subscribe(SocketAddress, boolean)}; the MessageServer does this
+ * when it receives a command of type {@value #SUBSCRIBE_TYPE}</li>
+ * </ul>
+ * The statuses are queued and passed on by a background thread, so the
+ * sender is never delayed by slow observers. The thread takes up to
+ * {@value #BATCH_SIZE} statuses at once and sends all of them to one
+ * subscriber before the next. Each status is encoded at most once per
+ * encoding, and the same bytes are sent to every subscriber which uses that
+ * encoding. A subscriber does not receive the statuses of its own tasks
+ * twice.
+ * <p>
+ * At most {@value #MAX_QUEUE_SIZE} statuses are queued. When the observers
+ * can't keep up, the oldest queued statuses are dropped.
+ * <p>
+ * UDP subscribers which disappear are not noticed by the sender, so a
+ * subscription expires after {@link #setSubscriptionTimeout(long) a timeout}
+ * (default: {@value #DEFAULT_SUBSCRIPTION_TIMEOUT} ms) unless the subscriber
+ * renews it by subscribing again. Subscribers are also removed when sending
+ * to them fails.
+ * <p>
+ * When there are no observers, {@link #publish(StatusMessage, SocketAddress)}
+ * returns immediately.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Kathrin Janowski
+ */
+public class StatusFanOut implements Runnable {
+
+    private static final Logger cLogger = Logger.getLogger(StatusFanOut.class.getName());
+
+    private static final Charset cCharset = Charset.forName("UTF-8");
+
+    /**
+     * The command type which subscribes the sender to all status messages.
+     */
+    public static final String SUBSCRIBE_TYPE = "subscribe";
+
+    /**
+     * The command type which ends a subscription.
+     */
+    public static final String UNSUBSCRIBE_TYPE = "unsubscribe";
+
+    /**
+     * The maximum number of statuses which are passed on together.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * The maximum number of queued statuses.
+     */
+    public static final int MAX_QUEUE_SIZE = 4096;
+
+    /**
+     * The default time after which a subscription expires, in milliseconds.
+     */
+    public static final long DEFAULT_SUBSCRIPTION_TIMEOUT = 300000L;
+
+    /**
+     * Minimum time between two warnings about dropped statuses.
+     */
+    private static final long WARNING_INTERVAL = 60000000000L;
+
+    /**
+     * Sends encoded statuses to a subscriber.
+     */
+    public interface Sender {
+
+        /**
+         * Sends an encoded status message.
+         *
+         * @param bytes the encoded message
+         * @param address the address of the subscriber
+         * @throws IOException if the message could not be sent
+         */
+        void send(byte[] bytes, SocketAddress address) throws IOException;
+    }
+
+    /**
+     * A remote subscriber.
+     */
+    private static final class Subscriber {
+
+        final SocketAddress mAddress;
+        final boolean mBinary;
+
+        /**
+         * The expiry time in terms of System.nanoTime().
+         */
+        final long mExpires;
+
+        Subscriber(SocketAddress address, boolean binary, long expires) {
+            mAddress = address;
+            mBinary = binary;
+            mExpires = expires;
+        }
+    }
+
+    /**
+     * A queued status, its encodings and the address which has already
+     * received it.
+     */
+    private static final class Entry {
+
+        final StatusMessage mStatus;
+        final SocketAddress mTaskAddress;
+        byte[] mXML;
+        byte[] mBinary;
+
+        Entry(StatusMessage status, SocketAddress taskAddress) {
+            mStatus = status;
+            mTaskAddress = taskAddress;
+        }
+
+        byte[] getBytes(boolean binary) {
+            if (binary) {
+                if (mBinary == null) {
+                    mBinary = BinaryMessageCodec.toBytes(mStatus);
+                }
+                return mBinary;
+            }
+            if (mXML == null) {
+                mXML = mStatus.toString().getBytes(cCharset);
+            }
+            return mXML;
+        }
+    }
+
+    private final String mName;
+
+    /**
+     * Sends to the remote subscribers, may be null.
+     */
+    private final Sender mSender;
+
+    private final CopyOnWriteArrayList<StatusMessageHandler> mObservers;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers;
+
+    private final ConcurrentLinkedQueue<Entry> mQueue;
+    private final AtomicInteger mQueueSize;
+
+    private final AtomicLong mDroppedCount;
+    private final AtomicLong mLastWarning;
+
+    private volatile long mSubscriptionTimeout;
+
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * Creates a fan-out. The background thread is started with the first
+     * observer.
+     *
+     * @param name the name of the background thread
+     * @param sender sends to the remote subscribers, or null if the transport
+     * doesn't support remote subscribers
+     */
+    public StatusFanOut(String name, Sender sender) {
+        mName = name;
+        mSender = sender;
+        mObservers = new CopyOnWriteArrayList<StatusMessageHandler>();
+        mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+        mQueue = new ConcurrentLinkedQueue<Entry>();
+        mQueueSize = new AtomicInteger();
+        mDroppedCount = new AtomicLong();
+        mLastWarning = new AtomicLong(System.nanoTime() - WARNING_INTERVAL);
+        mSubscriptionTimeout = DEFAULT_SUBSCRIPTION_TIMEOUT;
+        mRunning = true;
+    }
+
+    //==========================================================================
+    // observers
+    //==========================================================================
+    /**
+     * Adds a local observer.
+     *
+     * @param observer receives every status message on the background thread
+     */
+    public void addObserver(StatusMessageHandler observer) {
+        mObservers.addIfAbsent(observer);
+        ensureStarted();
+    }
+
+    /**
+     * @param observer the local observer to remove
+     */
+    public void removeObserver(StatusMessageHandler observer) {
+        mObservers.remove(observer);
+    }
+
+    /**
+     * Adds a remote subscriber, or renews its subscription and changes its
+     * encoding.
+     *
+     * @param address the address of the subscriber
+     * @param binary true for sending the statuses in the binary encoding,
+     * false for XML
+     * @return true on success, false if the transport doesn't support remote
+     * subscribers
+     */
+    public synchronized boolean subscribe(SocketAddress address, boolean binary) {
+        if (mSender == null) {
+            return false;
+        }
+        boolean renewed = remove(address);
+        mSubscribers.add(new Subscriber(address, binary,
+                System.nanoTime() + mSubscriptionTimeout * 1000000L));
+        if (!renewed) {
+            cLogger.log(Level.INFO, "new status subscriber: {0}", address);
+        }
+        ensureStarted();
+        return true;
+    }
+
+    /**
+     * Removes a remote subscriber.
+     *
+     * @param address the address of the subscriber
+     * @return true if it was subscribed
+     */
+    public synchronized boolean unsubscribe(SocketAddress address) {
+        if (remove(address)) {
+            cLogger.log(Level.INFO, "removed status subscriber: {0}", address);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean remove(SocketAddress address) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mAddress.equals(address)) {
+                mSubscribers.remove(subscriber);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the time after which a subscription expires unless it is renewed.
+     * Applies to the subscriptions which are made or renewed afterwards.
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    public void setSubscriptionTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("invalid subscription timeout: " + timeout);
+        }
+        mSubscriptionTimeout = timeout;
+    }
+
+    /**
+     * @return the time after which a subscription expires, in milliseconds
+     */
+    public long getSubscriptionTimeout() {
+        return mSubscriptionTimeout;
+    }
+
+    /**
+     * @return the number of statuses which were dropped because the queue was
+     * full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of local observers and remote subscribers
+     */
+    public int getObserverCount() {
+        return mObservers.size() + mSubscribers.size();
+    }
+
+    //==========================================================================
+    // publishing
+    //==========================================================================
+    /**
+     * Queues a status for all observers. Never blocks. If the queue is full,
+     * the oldest queued status is dropped.
+     *
+     * @param status the status message
+     * @param taskAddress the address of the client which has already
+     * received the status, or null
+     */
+    public void publish(StatusMessage status, SocketAddress taskAddress) {
+        if (mObservers.isEmpty() && mSubscribers.isEmpty()) {
+            return;
+        }
+        mQueue.offer(new Entry(status, taskAddress));
+        if (mQueueSize.incrementAndGet() > MAX_QUEUE_SIZE && mQueue.poll() != null) {
+            mQueueSize.decrementAndGet();
+            dropped();
+        }
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the background thread. Queued statuses are discarded.
+     */
+    public synchronized void close() {
+        mRunning = false;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+        mObservers.clear();
+        mSubscribers.clear();
+    }
+
+    private void dropped() {
+        long dropped = mDroppedCount.incrementAndGet();
+        long now = System.nanoTime();
+        long last = mLastWarning.get();
+        if (now - last >= WARNING_INTERVAL && mLastWarning.compareAndSet(last, now)) {
+            cLogger.log(Level.WARNING, "{0}: status queue is full, {1} statuses dropped so far",
+                    new Object[]{mName, dropped});
+        }
+    }
+
+    /**
+     * Removes the subscribers whose subscription has expired.
+     */
+    private void removeExpired() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mExpires - now <= 0) {
+                synchronized (this) {
+                    if (mSubscribers.remove(subscriber)) {
+                        cLogger.log(Level.INFO, "status subscription expired: {0}",
+                                subscriber.mAddress);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void ensureStarted() {
+        if (mThread == null && mRunning) {
+            mThread = RobotThreadFactory.newThread(mName, true, this);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Passes the queued statuses on in batches.
+     */
+    @Override
+    public void run() {
+        ArrayList<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+
+        while (mRunning) {
+            Entry entry;
+            while (batch.size() < BATCH_SIZE && (entry = mQueue.poll()) != null) {
+                mQueueSize.decrementAndGet();
+                batch.add(entry);
+            }
+            if (batch.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            for (StatusMessageHandler observer : mObservers) {
+                for (Entry queued : batch) {
+                    try {
+                        observer.handleStatusMessage(queued.mStatus);
+                    } catch (RuntimeException e) {
+                        cLogger.log(Level.SEVERE, "could not handle status message: {0}",
+                                e.toString());
+                    }
+                }
+            }
+
+            removeExpired();
+            for (Subscriber subscriber : mSubscribers) {
+                try {
+                    for (Entry queued : batch) {
+                        if (!subscriber.mAddress.equals(queued.mTaskAddress)) {
+                            mSender.send(queued.getBytes(subscriber.mBinary), subscriber.mAddress);
+                        }
+                    }
+                } catch (IOException e) {
+                    cLogger.log(Level.WARNING, "could not send to subscriber {0}: {1}",
+                            new Object[]{subscriber.mAddress, e.toString()});
+                    unsubscribe(subscriber.mAddress);
+                } catch (IllegalArgumentException e) {
+                    cLogger.log(Level.WARNING, "could not send to subscriber {0}: {1}",
+                            new Object[]{subscriber.mAddress, e.toString()});
+                    unsubscribe(subscriber.mAddress);
+                }
+            }
+            batch.clear();
+        }
+        mQueue.clear();
+        mQueueSize.set(0);
+        cLogger.log(Level.FINE, "{0} stopped", mName);
+    }
+}
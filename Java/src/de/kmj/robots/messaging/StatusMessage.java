@@ -1,34 +1,11 @@
 package de.kmj.robots.messaging;
 
-import static de.kmj.robots.messaging.XMLMessage.cLogger;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.TreeMap;
-
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * The data structure for messages sent from the robot to the control
@@ -58,7 +35,7 @@ public class StatusMessage extends XMLMessage{
     /**
      * The optional set of status details.
      */
-    private TreeMap<String, String> mStatusDetails;
+    private ParameterMap mStatusDetails;
 
     /**
      * Creates a StatusMessage with the given task ID and status label.
@@ -82,7 +59,7 @@ public class StatusMessage extends XMLMessage{
         mTaskID = taskID;
         mStatus = status;
 
-        mStatusDetails = new TreeMap<String, String>();
+        mStatusDetails = new ParameterMap();
     }
 
     /**
@@ -104,6 +81,26 @@ public class StatusMessage extends XMLMessage{
         }
     }
 
+    /**
+     * Creates a StatusMessage by parsing its UTF-8 encoded XML representation.
+     * The position of the buffer is not modified.
+     *
+     * @param messageBytes the remaining bytes contain the message data
+     * @throws IllegalArgumentException if the taskID or the status label is
+     * missing
+     */
+    public StatusMessage(ByteBuffer messageBytes) throws IllegalArgumentException {
+        
+        super();
+        parseBytes(messageBytes);
+
+        // validate the message
+        if (mTaskID == null || mStatus == null) {
+            throw new IllegalArgumentException(
+                    "StatusMessage requires at least a task ID and status label");
+        }
+    }
+
     /**
      * Creates a StatusMessage by parsing an individual XML node.
      *
@@ -113,53 +110,40 @@ public class StatusMessage extends XMLMessage{
      */
     public StatusMessage(Node messageNode){
         super();
-        createDocument();
-        mDocument.appendChild(messageNode);
-        parseMessageContent();
+        parseNode(messageNode);
     }
     
     
     @Override
-    protected void parseMessageContent()
+    protected String getElementName()
     {
-        if(mDocument==null)
-        {
-            cLogger.log(Level.SEVERE, "Can't parse status content: The document was not created yet!");
-            return;
-        }
-        
-        
-        NodeList statusElements = mDocument.getElementsByTagName("status");
-        if(statusElements.getLength()==0)
+        return "status";
+    }
+    
+    @Override
+    protected void clearMessageContent()
+    {
+        mTaskID = null;
+        mStatus = null;
+        mStatusDetails = new ParameterMap();
+    }
+    
+    @Override
+    protected void readAttribute(String name, String value)
+    {
+        if (name.equals("task")) {
+            mTaskID = value;
+        } else if (name.equals("status")) {
+            mStatus = value;
+        } else //arbitrary status details
         {
-            cLogger.log(Level.SEVERE, "No <status> element in the XML message!");
-            return;
-        }
-        
-        //------------------------------------------------------------------
-        // parse all attributes
-        //------------------------------------------------------------------
-        Element statusNode = (Element)statusElements.item(0);
-        mStatusDetails = new TreeMap<String, String>();
-
-        NamedNodeMap attributes = statusNode.getAttributes();
-        int attrCount = attributes.getLength();
-        for (int i = 0; i < attrCount; i++) {
-            Node attr = attributes.item(i);
-            String attrName = attr.getNodeName();
-            String attrValue = attr.getNodeValue();
-
-            if (attrName.equals("task")) {
-                mTaskID = attrValue;
-            } else if (attrName.equals("status")) {
-                mStatus = attrValue;
-            } else //arbitrary status details
-            {
-                mStatusDetails.put(attrName, attrValue);
-            }
+            mStatusDetails.put(name, value);
         }
-        
-        // validate the message
+    }
+    
+    @Override
+    protected void validateMessageContent() throws IllegalArgumentException
+    {
         if (mTaskID == null || mStatus == null) {
             throw new IllegalArgumentException(
                     "StatusMessage requires at least a task ID and status label");
@@ -168,15 +152,23 @@ public class StatusMessage extends XMLMessage{
 
     
     
+    @Override
+    boolean writeMessage(MessageWriter writer)
+    {
+        writer.begin(getElementName())
+                .attributes("task", mTaskID, "status", mStatus, mStatusDetails)
+                .end();
+        return true;
+    }
+
     @Override
     public Element createMessageElement(Document doc){
         Element statusElem = doc.createElement("status");
         statusElem.setAttribute("task", mTaskID);
         statusElem.setAttribute("status", mStatus);
             
-        Set<Entry<String, String>> params = mStatusDetails.entrySet();
-        for (Entry<String, String> param : params)
-            statusElem.setAttribute(param.getKey(), param.getValue());
+        for (int i = 0; i < mStatusDetails.size(); i++)
+            statusElem.setAttribute(mStatusDetails.keyAt(i), mStatusDetails.valueAt(i));
         
         return statusElem;
     }
@@ -195,7 +187,18 @@ public class StatusMessage extends XMLMessage{
         return mStatus;
     }
 
-    public TreeMap<String, String> getStatusDetails() {
+    /**
+     * @return the status details, sorted by name; changes are applied
+     * to this message
+     */
+    public NavigableMap<String, String> getStatusDetails() {
+        return mStatusDetails;
+    }
+
+    /**
+     * @return the status details, for reading them by index
+     */
+    ParameterMap getParameterMap() {
         return mStatusDetails;
     }
 
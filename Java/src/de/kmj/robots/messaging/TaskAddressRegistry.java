@@ -0,0 +1,427 @@
+package de.kmj.robots.messaging;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Associates task IDs with the address of the client which sent them.
+ * <p>
+ * The {@link de.kmj.robots.messaging.MessageServer} registers the sender of
+ * every command and looks it up again whenever a status message for that task
+ * is sent, possibly from a different thread. Entries are removed when the task
+ * is finished or rejected. Tasks which never end are evicted once they have not
+ * been used for the configured time-to-live, and the number of entries is
+ * limited by a size cap.
+ * <p>
+ * Registrations and lookups don't take a common lock, so the receiving thread
+ * and the threads which send statuses don't wait for each other. Each lookup
+ * only updates the access time of its entry. The evictions are done by a sweep
+ * over all entries, which runs during a registration when a tenth of the
+ * time-to-live has passed since the last sweep or when the size cap is
+ * exceeded. A sweep at the size cap removes the least recently used tenth of
+ * the entries, so the sweeps stay rare at a high command rate. While one
+ * thread sweeps, the others don't wait for it, so the size cap may be exceeded
+ * briefly.
+ * <p>
+ * All times are taken from System.nanoTime(), so changes of the wall clock
+ * don't affect the time-to-live.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Kathrin Janowski
+ */
+public class TaskAddressRegistry {
+
+    private static final Logger cLogger = Logger.getLogger(TaskAddressRegistry.class.getName());
+
+    /**
+     * Default time-to-live for unused entries: 10 minutes.
+     */
+    public static final long DEFAULT_TTL = 600000L;
+
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_MAX_TASKS = 10000;
+
+    /**
+     * Minimum interval between two warnings about evictions due to the size
+     * cap: 1 minute, in nanoseconds.
+     */
+    private static final long WARNING_INTERVAL = 60000000000L;
+
+    /**
+     * The client address of one task.
+     */
+    public static final class Entry {
+
+        private final SocketAddress mAddress;
+        private final boolean mBinary;
+        private volatile long mLastAccess;
+
+        /**
+         * The order of the last access, for finding the least recently used
+         * entries even if the clock has not advanced in between.
+         */
+        private volatile long mAccessOrder;
+
+        Entry(SocketAddress address, boolean binary, long now, long order) {
+            mAddress = address;
+            mBinary = binary;
+            mLastAccess = now;
+            mAccessOrder = order;
+        }
+
+        /**
+         * @return the address of the client which sent the task
+         */
+        public SocketAddress getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return true if the task's command was sent in the binary encoding
+         */
+        public boolean isBinary() {
+            return mBinary;
+        }
+
+        /**
+         * @return the time of the last registration or lookup in terms of
+         * System.nanoTime()
+         */
+        public long getLastAccess() {
+            return mLastAccess;
+        }
+    }
+
+    /**
+     * The entries by task ID.
+     */
+    private final ConcurrentHashMap<String, Entry> mEntries;
+
+    /**
+     * Counts the accesses for the access order of the entries.
+     */
+    private final AtomicLong mAccessCount;
+
+    /**
+     * Time-to-live for unused entries in milliseconds.
+     */
+    private volatile long mTTL;
+
+    /**
+     * Maximum number of entries.
+     */
+    private volatile int mMaxTasks;
+
+    /**
+     * Allows only one sweep at a time.
+     */
+    private final ReentrantLock mSweepLock;
+
+    /**
+     * The time from which the next regular sweep is due.
+     */
+    private volatile long mNextSweep;
+
+    /**
+     * Time of the last warning about evictions due to the size cap, and the
+     * number of such evictions since then. Guarded by mSweepLock.
+     */
+    private long mLastWarning;
+    private int mUnreportedEvictions;
+
+    private final AtomicLong mHits;
+    private final AtomicLong mMisses;
+    private final AtomicLong mEvictions;
+
+    /**
+     * Creates a registry with the default time-to-live and size cap.
+     */
+    public TaskAddressRegistry() {
+        this(DEFAULT_TTL, DEFAULT_MAX_TASKS);
+    }
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param ttl the time-to-live of unused entries in milliseconds
+     * @param maxTasks the maximum number of entries
+     * @throws IllegalArgumentException if one of the values is not positive
+     */
+    public TaskAddressRegistry(long ttl, int maxTasks)
+            throws IllegalArgumentException {
+        mEntries = new ConcurrentHashMap<String, Entry>();
+        mAccessCount = new AtomicLong();
+        mSweepLock = new ReentrantLock();
+        mLastWarning = System.nanoTime() - WARNING_INTERVAL;
+        mUnreportedEvictions = 0;
+        mHits = new AtomicLong();
+        mMisses = new AtomicLong();
+        mEvictions = new AtomicLong();
+
+        setTTL(ttl);
+        setMaxTasks(maxTasks);
+        mNextSweep = System.nanoTime() + sweepInterval();
+    }
+
+    //==========================================================================
+    // configuration
+    //==========================================================================
+    /**
+     * @param ttl the time-to-live of unused entries in milliseconds
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public final void setTTL(long ttl) throws IllegalArgumentException {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("task TTL must be positive: " + ttl);
+        }
+        mTTL = ttl;
+    }
+
+    /**
+     * @return the time-to-live of unused entries in milliseconds
+     */
+    public long getTTL() {
+        return mTTL;
+    }
+
+    /**
+     * @param maxTasks the maximum number of entries
+     * @throws IllegalArgumentException if the value is not positive
+     */
+    public final void setMaxTasks(int maxTasks) throws IllegalArgumentException {
+        if (maxTasks <= 0) {
+            throw new IllegalArgumentException("maximum task count must be positive: " + maxTasks);
+        }
+        mMaxTasks = maxTasks;
+    }
+
+    /**
+     * @return the maximum number of entries
+     */
+    public int getMaxTasks() {
+        return mMaxTasks;
+    }
+
+    //==========================================================================
+    // access
+    //==========================================================================
+    /**
+     * Stores the client address of a task, replacing any previous entry.
+     *
+     * @param taskID the task ID
+     * @param address the address of the client
+     * @param binary true if the command was sent in the binary encoding
+     */
+    public void register(String taskID, SocketAddress address, boolean binary) {
+        long now = System.nanoTime();
+        mEntries.put(taskID, new Entry(address, binary, now, mAccessCount.incrementAndGet()));
+
+        if ((now - mNextSweep >= 0 || mEntries.size() > mMaxTasks) && mSweepLock.tryLock()) {
+            try {
+                sweep(now);
+            } finally {
+                mSweepLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Looks up the client address of a task.
+     *
+     * @param taskID the task ID
+     * @return the entry, or null if the task is unknown
+     */
+    public Entry lookup(String taskID) {
+        Entry entry = mEntries.get(taskID);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        entry.mLastAccess = System.nanoTime();
+        entry.mAccessOrder = mAccessCount.incrementAndGet();
+        mHits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Removes the entry of a task.
+     *
+     * @param taskID the task ID
+     */
+    public void remove(String taskID) {
+        mEntries.remove(taskID);
+    }
+
+    /**
+     * Removes the entries of all tasks of a client.
+     *
+     * @param address the address of the client
+     * @return the number of removed entries
+     */
+    public int removeAddress(SocketAddress address) {
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> mapping = iter.next();
+            if (mapping.getValue().mAddress.equals(address)
+                    && mEntries.remove(mapping.getKey(), mapping.getValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @return true if there are no entries
+     */
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * @return the current number of entries
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    //==========================================================================
+    // eviction
+    //==========================================================================
+    /**
+     * Removes all entries which have not been used within the time-to-live.
+     * Called automatically by {@link #register(String, SocketAddress, boolean)}.
+     *
+     * @return the number of removed entries
+     */
+    public int evictExpired() {
+        mSweepLock.lock();
+        try {
+            return evictExpired(System.nanoTime());
+        } finally {
+            mSweepLock.unlock();
+        }
+    }
+
+    private long sweepInterval() {
+        return mTTL * 100000L;
+    }
+
+    /**
+     * Removes the expired entries and then the least recently used ones if
+     * the size cap is still exceeded. Must be called while holding
+     * mSweepLock.
+     */
+    private void sweep(long now) {
+        mNextSweep = now + sweepInterval();
+        evictExpired(now);
+        if (mEntries.size() > mMaxTasks) {
+            evictOverflow(now);
+        }
+    }
+
+    /**
+     * Must be called while holding mSweepLock.
+     */
+    private int evictExpired(long now) {
+        long ttl = mTTL * 1000000L;
+        int count = 0;
+        Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Entry> mapping = iter.next();
+            if (now - mapping.getValue().mLastAccess > ttl
+                    && mEntries.remove(mapping.getKey(), mapping.getValue())) {
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            mEvictions.addAndGet(count);
+            cLogger.log(Level.FINE, "evicted {0} expired task addresses", count);
+        }
+        return count;
+    }
+
+    /**
+     * Removes the least recently used entries, so that a tenth of the size
+     * cap is free again. Must be called while holding mSweepLock.
+     */
+    private void evictOverflow(long now) {
+        int maxTasks = mMaxTasks;
+        Entry[] entries = mEntries.values().toArray(new Entry[0]);
+        int count = entries.length - (maxTasks - maxTasks / 10);
+        if (count <= 0) {
+            return;
+        }
+
+        long[] orders = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            orders[i] = entries[i].mAccessOrder;
+        }
+        Arrays.sort(orders);
+        long limit = orders[count - 1];
+
+        Iterator<Map.Entry<String, Entry>> iter = mEntries.entrySet().iterator();
+        while (count > 0 && iter.hasNext()) {
+            Map.Entry<String, Entry> mapping = iter.next();
+            if (mapping.getValue().mAccessOrder <= limit
+                    && mEntries.remove(mapping.getKey(), mapping.getValue())) {
+                count--;
+                mEvictions.incrementAndGet();
+                mUnreportedEvictions++;
+                cLogger.log(Level.FINE, "too many open tasks, evicted task \"{0}\"",
+                        mapping.getKey());
+            }
+        }
+
+        if (now - mLastWarning >= WARNING_INTERVAL) {
+            cLogger.log(Level.WARNING, "too many open tasks, evicted {0} task addresses"
+                    + " (limit: {1})", new Object[]{mUnreportedEvictions, maxTasks});
+            mLastWarning = now;
+            mUnreportedEvictions = 0;
+        }
+    }
+
+    //==========================================================================
+    // statistics
+    //==========================================================================
+    /**
+     * @return the number of successful lookups
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the number of lookups for unknown tasks
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the number of entries which were removed because they expired or
+     * exceeded the size cap
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+}
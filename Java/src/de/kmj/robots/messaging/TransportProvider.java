@@ -0,0 +1,48 @@
+package de.kmj.robots.messaging;
+
+import java.util.Properties;
+
+/**
+ * Creates the server and client side of one kind of connection between a
+ * RobotEngine and its control applications.
+ * <p>
+ * The built-in providers are "udp" and "inprocess". Additional providers can
+ * be registered with {@link Transports#register(TransportProvider)} or via a
+ * file <code>META-INF/services/de.kmj.robots.messaging.TransportProvider</code>
+ * which lists the implementing classes.
+ *
+ * @see de.kmj.robots.messaging.Transports
+ * @author Kathrin Janowski
+ */
+public interface TransportProvider {
+
+    /**
+     * @return the name under which this provider is selected, e.g. in the
+     * application parameter "network.transport"
+     */
+    public String getName();
+
+    /**
+     * Creates the RobotEngine side of a connection. The server is not started
+     * yet.
+     *
+     * @param handler receives the commands
+     * @param config the connection parameters, e.g. "network.localPort"
+     * @return the server transport
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public ServerTransport createServer(CommandMessageHandler handler, Properties config)
+            throws IllegalArgumentException;
+
+    /**
+     * Creates the control application side of a connection. The client is not
+     * started yet.
+     *
+     * @param handler receives the status messages
+     * @param config the connection parameters, e.g. "network.remotePort"
+     * @return the client transport
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public ClientTransport createClient(StatusMessageHandler handler, Properties config)
+            throws IllegalArgumentException;
+}
@@ -0,0 +1,86 @@
+package de.kmj.robots.messaging;
+
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The registry of all {@link de.kmj.robots.messaging.TransportProvider}s.
+ * <p>
+ * It contains the built-in providers "udp" ({@link UdpTransportProvider}) and
+ * "inprocess" ({@link InProcessTransportProvider}), the providers which are
+ * listed in <code>META-INF/services</code> files on the class path, and the
+ * providers which are registered at runtime.
+ *
+ * @author Kathrin Janowski
+ */
+public final class Transports {
+
+    private static final Logger cLogger = Logger.getLogger(Transports.class.getName());
+
+    /**
+     * The name of the default provider.
+     */
+    public static final String DEFAULT_TRANSPORT = UdpTransportProvider.NAME;
+
+    /**
+     * The providers by name.
+     */
+    private static final ConcurrentHashMap<String, TransportProvider> cProviders
+            = new ConcurrentHashMap<String, TransportProvider>();
+
+    static {
+        register(new UdpTransportProvider());
+        register(new InProcessTransportProvider());
+
+        try {
+            for (TransportProvider provider : ServiceLoader.load(TransportProvider.class)) {
+                register(provider);
+            }
+        } catch (ServiceConfigurationError e) {
+            cLogger.log(Level.WARNING, "could not load transport providers: {0}", e.toString());
+        }
+    }
+
+    private Transports() {
+    }
+
+    /**
+     * Adds a provider, replacing any provider with the same name.
+     *
+     * @param provider the provider
+     */
+    public static void register(TransportProvider provider) {
+        TransportProvider previous = cProviders.put(provider.getName(), provider);
+        if (previous != null && previous != provider) {
+            cLogger.log(Level.FINE, "replaced transport provider \"{0}\"", provider.getName());
+        }
+    }
+
+    /**
+     * Looks up a provider.
+     *
+     * @param name the provider name, e.g. "udp" or "inprocess"
+     * @return the provider
+     * @throws IllegalArgumentException if there is no provider with that name
+     */
+    public static TransportProvider get(String name) throws IllegalArgumentException {
+        TransportProvider provider = cProviders.get(name);
+        if (provider == null) {
+            throw new IllegalArgumentException("unknown transport \"" + name
+                    + "\", available: " + getNames());
+        }
+        return provider;
+    }
+
+    /**
+     * @return the names of all registered providers
+     */
+    public static Set<String> getNames() {
+        return new TreeSet<String>(cProviders.keySet());
+    }
+}
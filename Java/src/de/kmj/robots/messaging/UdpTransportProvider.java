@@ -0,0 +1,113 @@
+package de.kmj.robots.messaging;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Provides the UDP connection of {@link MessageServer} and
+ * {@link MessageClient}.
+ * <p>
+ * Server parameters:
+ * <ul>
+ * <li>network.localIP, network.localPort: the address on which the commands
+ * are received (default: "127.0.0.1", "1241")</li>
+ * <li>network.bufferSize: the size of the message buffer (default: "4096")</li>
+ * <li>network.useChannel: "true" for receiving via a DatagramChannel
+ * (default: "false")</li>
+ * <li>network.taskTTL: the number of seconds after which the client address
+ * of an unfinished task is forgotten (default: "600")</li>
+ * <li>network.maxTasks: the maximum number of unfinished tasks whose client
+ * addresses are kept (default: "10000")</li>
+ * <li>network.duplicateWindow: the number of task IDs whose last sequence
+ * number is remembered (default: "4096")</li>
+ * </ul>
+ * Client parameters:
+ * <ul>
+ * <li>network.localIP, network.localPort: the address on which the status
+ * messages are received (default: "127.0.0.1", "1242")</li>
+ * <li>network.remoteIP, network.remotePort: the address of the RobotEngine
+ * application (default: "127.0.0.1", "1241")</li>
+ * <li>network.bufferSize: the size of the message buffer (default: "4096")</li>
+ * <li>network.binary: "true" for sending the commands in the binary encoding
+ * (default: "false")</li>
+ * <li>network.reliable: "true" for acknowledgements and retransmission
+ * (default: "false")</li>
+ * </ul>
+ *
+ * @author Kathrin Janowski
+ */
+public class UdpTransportProvider implements TransportProvider {
+
+    private static final Logger cLogger = Logger.getLogger(UdpTransportProvider.class.getName());
+
+    /**
+     * The name of this provider.
+     */
+    public static final String NAME = "udp";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public ServerTransport createServer(CommandMessageHandler handler, Properties config)
+            throws IllegalArgumentException {
+        MessageServer server = new MessageServer(handler,
+                config.getProperty("network.bufferSize", "4096"),
+                config.getProperty("network.localIP", "127.0.0.1"),
+                config.getProperty("network.localPort", "1241"));
+        server.setUseChannel(Boolean.parseBoolean(
+                config.getProperty("network.useChannel", "false")));
+
+        configure(server.getTaskAddressRegistry(), config);
+
+        String duplicateWindow = config.getProperty("network.duplicateWindow",
+                Integer.toString(MessageServer.DEFAULT_DUPLICATE_WINDOW));
+        try {
+            server.setDuplicateWindow(Integer.parseInt(duplicateWindow));
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.WARNING, "invalid duplicate window: {0}"
+                    + "\n\t-> using size {1}",
+                    new Object[]{iae.toString(), server.getDuplicateWindow()});
+        }
+        return server;
+    }
+
+    /**
+     * Applies the parameters "network.taskTTL" and "network.maxTasks" to the
+     * task registry of a server.
+     *
+     * @param registry the registry
+     * @param config the configuration
+     */
+    static void configure(TaskAddressRegistry registry, Properties config) {
+        String taskTTL = config.getProperty("network.taskTTL", "600");
+        String maxTasks = config.getProperty("network.maxTasks", "10000");
+        try {
+            registry.setTTL(Long.parseLong(taskTTL) * 1000L);
+            registry.setMaxTasks(Integer.parseInt(maxTasks));
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.WARNING, "invalid task registry configuration: {0}"
+                    + "\n\t-> using TTL {1} ms and size {2}",
+                    new Object[]{iae.toString(), registry.getTTL(), registry.getMaxTasks()});
+        }
+    }
+
+    @Override
+    public ClientTransport createClient(StatusMessageHandler handler, Properties config)
+            throws IllegalArgumentException {
+        MessageClient client = new MessageClient(handler,
+                config.getProperty("network.bufferSize", "4096"),
+                config.getProperty("network.localIP", "127.0.0.1"),
+                config.getProperty("network.localPort", "1242"),
+                config.getProperty("network.remoteIP", "127.0.0.1"),
+                config.getProperty("network.remotePort", "1241"));
+        client.setBinaryEncoding(Boolean.parseBoolean(
+                config.getProperty("network.binary", "false")));
+        client.setReliable(Boolean.parseBoolean(
+                config.getProperty("network.reliable", "false")));
+        return client;
+    }
+}
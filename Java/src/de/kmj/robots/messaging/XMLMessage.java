@@ -8,7 +8,8 @@ package de.kmj.robots.messaging;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.DocumentBuilder;
@@ -25,11 +26,17 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /**
  * A basic XML-based message for the communication between a RobotEngine
  * and a control application.
+ * <p>
+ * Incoming messages are read by a streaming {@link MessageScanner} which fills
+ * the message fields directly from the received bytes. The DOM parser is only
+ * used as a fallback for messages with a more complex structure, and the
+ * {@link org.w3c.dom.Document} is only created when it is requested.
  * 
  * @author Kathrin Janowski
  */
@@ -40,6 +47,8 @@ public abstract class XMLMessage {
     protected static final DocumentBuilderFactory cBuilderFactory = DocumentBuilderFactory.newInstance();
     protected static final TransformerFactory cTransformerFactory = TransformerFactory.newInstance();
     
+    protected static final Charset cCharset = Charset.forName("UTF-8");
+    
     protected Document mDocument;
     
     public XMLMessage(){
@@ -51,16 +60,59 @@ public abstract class XMLMessage {
      * @param messageStr contains the message data in XML syntax
      */
     protected void parseDocument(String messageStr){
+        if(messageStr == null)
+            throw new IllegalArgumentException("no message string");
+        
+        parseBytes(ByteBuffer.wrap(messageStr.getBytes(cCharset)));
+    }
+    
+    /**
+     * Reads the message from UTF-8 encoded bytes.
+     * 
+     * Simple messages are scanned directly without building a Document.
+     * Everything else is passed on to the DOM parser.
+     * The position of the buffer is not modified.
+     * 
+     * @param message the remaining bytes contain the message data in XML syntax
+     */
+    protected void parseBytes(ByteBuffer message){
+        
+        // fast path: single element with attributes -----------------------
+        MessageScanner scanner = MessageScanner.getInstance();
+        if(scanner.scan(message, getElementName()))
+        {
+            mDocument = null;
+            clearMessageContent();
+            
+            int count = scanner.getAttributeCount();
+            for(int i=0; i<count; i++)
+                readAttribute(scanner.getAttributeName(i), scanner.getAttributeValue(i));
+            
+            validateMessageContent();
+            return;
+        }
+        
+        // fallback: DOM parser ---------------------------------------------
+        byte[] bytes;
+        int offset;
+        if(message.hasArray())
+        {
+            bytes = message.array();
+            offset = message.arrayOffset()+message.position();
+        }
+        else{
+            bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            offset = 0;
+        }
+        
         try {
-            // read the XML string ----------------------------------
-            final ByteArrayInputStream stream = new ByteArrayInputStream(messageStr.getBytes("UTF-8"));
+            final ByteArrayInputStream stream = new ByteArrayInputStream(bytes, offset, message.remaining());
             final DocumentBuilder builder = cBuilderFactory.newDocumentBuilder();
             mDocument = builder.parse(stream);
             
             // parse the content string -----------------------------
             parseMessageContent();
-        } catch (UnsupportedEncodingException ex) {
-            throw new IllegalArgumentException("UTF-8 input not supported");
         } catch (SAXException ex) {
             throw new IllegalArgumentException("invalid XML syntax");
         } catch (ParserConfigurationException ex) {
@@ -73,6 +125,24 @@ public abstract class XMLMessage {
     }
     
     
+    /**
+     * Parses the message data from an XML element.
+     * The element may belong to another document, e.g. a command pool file,
+     * so a copy of it is imported into the message's own document.
+     * @param messageNode the XML element which contains the message data
+     */
+    protected void parseNode(Node messageNode){
+        try {
+            final DocumentBuilder builder = cBuilderFactory.newDocumentBuilder();
+            mDocument = builder.newDocument();
+            mDocument.appendChild(mDocument.importNode(messageNode, true));
+            parseMessageContent();
+        } catch (ParserConfigurationException ex) {
+            Logger.getLogger(CommandMessage.class.getName()).log(Level.SEVERE,
+                    "invalid parser configuration: {0}", ex.toString());
+        }
+    }
+    
     /**
      * Creates the XML representation of the message data.
      */
@@ -91,6 +161,18 @@ public abstract class XMLMessage {
     
     
     
+    /**
+     * Returns the XML document of this message.
+     * The document is created on first access.
+     * @return the XML representation of the message data
+     */
+    public Document getDocument(){
+        if(mDocument == null)
+            createDocument();
+        
+        return mDocument;
+    }
+    
     /**
      * Creates an XML-formatted string representation of the message data.
      * Used for transmission between a RobotEngine and a control application.
@@ -98,6 +180,53 @@ public abstract class XMLMessage {
      */
     @Override
     public String toString() {
+        MessageWriter msgWriter = MessageWriter.getInstance();
+        if(writeMessage(msgWriter))
+            return msgWriter.toString();
+        
+        return transformDocument();
+    }
+    
+    /**
+     * Writes the UTF-8 encoded XML representation of the message data
+     * into the given buffer, starting at its current position.
+     * @param target the buffer which receives the message
+     * @return true on success, false if the buffer is too small
+     */
+    public boolean writeTo(ByteBuffer target) {
+        MessageWriter msgWriter = MessageWriter.getInstance();
+        if(writeMessage(msgWriter))
+            return msgWriter.encode(target);
+        
+        String message = transformDocument();
+        if(message == null)
+            return false;
+        
+        byte[] bytes = message.getBytes(cCharset);
+        if(bytes.length > target.remaining())
+            return false;
+        
+        target.put(bytes);
+        return true;
+    }
+    
+    /**
+     * Writes the message element directly, without a Document.
+     * 
+     * The default implementation returns false, which makes toString() fall
+     * back to transforming the Document.
+     * @param writer the writer which receives the message element
+     * @return true if the message was written, otherwise false
+     */
+    boolean writeMessage(MessageWriter writer) {
+        return false;
+    }
+    
+    /**
+     * Serializes the message's Document with a Transformer.
+     * @return the message in XML syntax, or null on failure
+     */
+    private String transformDocument() {
         if(mDocument == null)
             createDocument();
         
@@ -126,7 +255,59 @@ public abstract class XMLMessage {
     /**
      * Reads the message content from the XML document.
      */
-    protected abstract void parseMessageContent();
+    protected void parseMessageContent()
+    {
+        if(mDocument==null)
+        {
+            cLogger.log(Level.SEVERE, "Can't parse message content: The document was not created yet!");
+            return;
+        }
+        
+        NodeList elements = mDocument.getElementsByTagName(getElementName());
+        if(elements.getLength()==0)
+        {
+            cLogger.log(Level.SEVERE, "No <{0}> element in the XML message!", getElementName());
+            return;
+        }
+        
+        //------------------------------------------------------------------
+        // parse all attributes
+        //------------------------------------------------------------------
+        Element msgNode = (Element)elements.item(0);
+        clearMessageContent();
+        
+        NamedNodeMap attributes = msgNode.getAttributes();
+        int attrCount = attributes.getLength();
+        for (int i = 0; i < attrCount; i++) {
+            Node attr = attributes.item(i);
+            readAttribute(attr.getNodeName(), attr.getNodeValue());
+        }
+        
+        validateMessageContent();
+    }
+    
+    /**
+     * @return the name of the XML element which contains the message data
+     */
+    protected abstract String getElementName();
+    
+    /**
+     * Resets the message content before it is read from XML.
+     */
+    protected abstract void clearMessageContent();
+    
+    /**
+     * Stores one attribute of the message element.
+     * @param name the attribute name
+     * @param value the attribute value
+     */
+    protected abstract void readAttribute(String name, String value);
+    
+    /**
+     * Checks that all required attributes have been read.
+     * @throws IllegalArgumentException if a required attribute is missing
+     */
+    protected abstract void validateMessageContent() throws IllegalArgumentException;
     
     /**
      * Creates an XML Element from the message.
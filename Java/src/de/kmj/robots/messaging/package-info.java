@@ -34,6 +34,14 @@
  * The classes {@link de.hcm.robots.messaging.MessageServer} and
  * {@link de.hcm.robots.messaging.MessageClient} can be used to establish a UDP
  * connection between a RobotEngine (server) and an arbitrary control
- * application (client).
+ * application (client). They are the "udp" provider of the transport SPI
+ * ({@link de.kmj.robots.messaging.ServerTransport},
+ * {@link de.kmj.robots.messaging.ClientTransport},
+ * {@link de.kmj.robots.messaging.TransportProvider}), which also contains an
+ * "inprocess" provider for control applications in the same JVM.
+ * <p>
+ * Every server transport can record the received commands and sent statuses
+ * in a {@link de.kmj.robots.messaging.MessageJournal}, which is read with a
+ * {@link de.kmj.robots.messaging.JournalReader}.
  */
 package de.kmj.robots.messaging;
@@ -0,0 +1,242 @@
+package de.kmj.robots.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Moves the output of another {@link java.util.logging.Handler} to a
+ * background thread.
+ * <p>
+ * A {@link java.util.logging.ConsoleHandler} writes and flushes every record
+ * on the thread which logged it, so a slow console delays the sending and
+ * receiving of messages. This handler only puts the record into a bounded
+ * ring buffer. A daemon thread takes the records out in batches, passes them
+ * to the wrapped handler and flushes it once per batch.
+ * <p>
+ * If the buffer is full, the record is dropped instead of blocking the
+ * logging thread. The number of dropped records is reported in the output.
+ * <p>
+ * The level and formatter of this handler are passed on to the wrapped
+ * handler, so it can be combined with the {@link BasicLogFormatter} via
+ * {@link #setFormatter(java.util.logging.Formatter)}. The time of logging is
+ * passed on to its timestamp column. Note that the source class and method of
+ * a record are not inferred on the logging thread; use a formatter which
+ * doesn't need them.
+ *
+ * @author Kathrin Janowski
+ */
+public class AsyncLogHandler extends Handler implements Runnable {
+
+    /**
+     * Default capacity of the ring buffer.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Maximum number of records which are written before each flush.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * A buffered record and the time at which it was logged.
+     */
+    private static final class TimedRecord {
+
+        final LogRecord mRecord;
+        final long mTime;
+
+        TimedRecord(LogRecord record, long time) {
+            mRecord = record;
+            mTime = time;
+        }
+    }
+
+    /**
+     * The handler which writes the records.
+     */
+    private final Handler mTarget;
+
+    /**
+     * The ring buffer.
+     */
+    private final ArrayBlockingQueue<TimedRecord> mBuffer;
+
+    /**
+     * The number of records which were dropped because the buffer was full.
+     */
+    private final AtomicLong mDroppedCount;
+
+    /**
+     * The writing thread.
+     */
+    private final Thread mThread;
+
+    /**
+     * Run flag.
+     */
+    private volatile boolean mRunning;
+
+    /**
+     * Creates a handler with the default capacity and starts its thread.
+     *
+     * @param target the handler which writes the records
+     */
+    public AsyncLogHandler(Handler target) {
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a handler and starts its thread.
+     *
+     * @param target the handler which writes the records
+     * @param capacity the maximum number of records which wait for output
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public AsyncLogHandler(Handler target, int capacity) throws IllegalArgumentException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        mTarget = target;
+        mBuffer = new ArrayBlockingQueue<TimedRecord>(capacity);
+        mDroppedCount = new AtomicLong();
+
+        super.setLevel(target.getLevel());
+        if (target.getFormatter() != null) {
+            super.setFormatter(target.getFormatter());
+        }
+
+        mRunning = true;
+        mThread = new Thread(this, "AsyncLogHandler");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Replaces all handlers of a logger with asynchronous wrappers.
+     *
+     * @param logger the logger, e.g. the root logger with name ""
+     * @param capacity the buffer capacity of each wrapper
+     */
+    public static void wrapHandlers(Logger logger, int capacity) {
+        for (Handler handler : logger.getHandlers()) {
+            if (!(handler instanceof AsyncLogHandler)) {
+                logger.removeHandler(handler);
+                logger.addHandler(new AsyncLogHandler(handler, capacity));
+            }
+        }
+    }
+
+    /**
+     * @return the number of records which were dropped because the buffer
+     * was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the wrapped handler
+     */
+    public Handler getTarget() {
+        return mTarget;
+    }
+
+    //==========================================================================
+    // Handler
+    //==========================================================================
+    @Override
+    public void publish(LogRecord record) {
+        if (!mRunning || !isLoggable(record)) {
+            return;
+        }
+        if (!mBuffer.offer(new TimedRecord(record, System.nanoTime()))) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Does nothing, because the records are flushed after each batch.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Writes the remaining records, stops the thread and closes the wrapped
+     * handler.
+     */
+    @Override
+    public void close() throws SecurityException {
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mTarget.close();
+    }
+
+    @Override
+    public synchronized void setLevel(Level newLevel) throws SecurityException {
+        super.setLevel(newLevel);
+        mTarget.setLevel(newLevel);
+    }
+
+    @Override
+    public synchronized void setFormatter(Formatter newFormatter) throws SecurityException {
+        super.setFormatter(newFormatter);
+        mTarget.setFormatter(newFormatter);
+    }
+
+    //==========================================================================
+    // writing
+    //==========================================================================
+    /**
+     * Writes the buffered records in batches.
+     */
+    @Override
+    public void run() {
+        ArrayList<TimedRecord> batch = new ArrayList<TimedRecord>(BATCH_SIZE);
+        long reportedDrops = 0;
+
+        while (mRunning || !mBuffer.isEmpty()) {
+            try {
+                TimedRecord first = mBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException ie) {
+                //stopped -> write what is left
+                mRunning = false;
+            }
+            mBuffer.drainTo(batch, BATCH_SIZE - batch.size());
+
+            long drops = mDroppedCount.get();
+            if (drops != reportedDrops) {
+                LogRecord report = new LogRecord(Level.WARNING,
+                        "dropped " + (drops - reportedDrops) + " log records");
+                report.setLoggerName(AsyncLogHandler.class.getName());
+                mTarget.publish(report);
+                reportedDrops = drops;
+            }
+
+            for (TimedRecord timed : batch) {
+                BasicLogFormatter.setRecordTime(timed.mTime);
+                mTarget.publish(timed.mRecord);
+            }
+            BasicLogFormatter.setRecordTime(0);
+            mTarget.flush();
+            batch.clear();
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package de.kmj.robots.util;
 
-import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
@@ -10,28 +10,149 @@ import java.util.logging.LogRecord;
  *
  * The output String has the pattern
  * <code>[&lt;short class name&gt;] &lt;level&gt;: &lt;message&gt;</code>.
+ * <p>
+ * Optionally, each line starts with a timestamp column in seconds with
+ * microsecond resolution. It is taken from {@link System#nanoTime()}, counted
+ * from the loading of this class, so it is monotonic and can be compared with
+ * measured latencies.
+ * <p>
+ * The short logger names are cached and each line is assembled in a
+ * StringBuilder which is kept per thread, so only the resulting String is
+ * allocated for messages without parameters.
  *
  * @author Kathrin Janowski
  */
 public class BasicLogFormatter extends Formatter {
 
+    /**
+     * The origin of the timestamps.
+     */
+    private static final long cOrigin = System.nanoTime();
+
+    /**
+     * Builders which are larger than this are not kept.
+     */
+    private static final int MAX_BUILDER_CAPACITY = 8192;
+
+    /**
+     * The short names by logger name.
+     */
+    private static final ConcurrentHashMap<String, String> cShortNames
+            = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The line builder of each thread.
+     */
+    private static final ThreadLocal<StringBuilder> cBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * The time of the next record which is formatted on each thread, or 0.
+     */
+    private static final ThreadLocal<long[]> cRecordTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Flag for writing the timestamp column.
+     */
+    private final boolean mTimestamps;
+
+    /**
+     * Creates a formatter without timestamps.
+     */
     public BasicLogFormatter() {
+        this(false);
+    }
+
+    /**
+     * Creates a formatter.
+     *
+     * @param timestamps true for starting each line with a monotonic timestamp
+     */
+    public BasicLogFormatter(boolean timestamps) {
         super();
+        mTimestamps = timestamps;
+    }
+
+    /**
+     * Sets the time of the next record which is formatted on the calling
+     * thread. Handlers which format a record on another thread than the one
+     * which logged it call this, so the timestamp column shows the time of
+     * logging instead of the time of output.
+     *
+     * @param nanos the time of logging from {@link System#nanoTime()}
+     */
+    public static void setRecordTime(long nanos) {
+        cRecordTime.get()[0] = nanos;
     }
 
     @Override
     public String format(LogRecord record) {
-        String fullMessage = formatMessage(record);
+        StringBuilder builder = cBuilder.get();
+        builder.setLength(0);
 
-        String shortName = record.getLoggerName();
-        int dotIdx = shortName.lastIndexOf(".");
-        if ((dotIdx > -1) && (shortName.length() > dotIdx)) {
-            shortName = shortName.substring(dotIdx + 1);
+        if (mTimestamps) {
+            long[] recordTime = cRecordTime.get();
+            long nanos = (recordTime[0] != 0) ? recordTime[0] : System.nanoTime();
+            recordTime[0] = 0;
+            appendTimestamp(builder, nanos - cOrigin);
+            builder.append(' ');
         }
 
-        String output = String.format(Locale.US, "[%s] %s: %s\n", shortName, record.getLevel().getName(), fullMessage);
+        builder.append('[').append(getShortName(record.getLoggerName())).append("] ");
+        builder.append(record.getLevel().getName()).append(": ");
+        builder.append(formatMessage(record)).append('\n');
 
+        String output = builder.toString();
+        if (builder.capacity() > MAX_BUILDER_CAPACITY) {
+            cBuilder.remove();
+        }
         return output;
     }
 
+    /**
+     * Returns the part of the logger name after the last dot.
+     *
+     * @param loggerName the full logger name, may be null
+     * @return the cached short name
+     */
+    private static String getShortName(String loggerName) {
+        if (loggerName == null) {
+            return "";
+        }
+
+        String shortName = cShortNames.get(loggerName);
+        if (shortName == null) {
+            int dotIdx = loggerName.lastIndexOf('.');
+            shortName = (dotIdx > -1) ? loggerName.substring(dotIdx + 1) : loggerName;
+            cShortNames.put(loggerName, shortName);
+        }
+        return shortName;
+    }
+
+    /**
+     * Appends a time as seconds with six decimals.
+     *
+     * @param builder the target
+     * @param nanos the time in nanoseconds
+     */
+    private static void appendTimestamp(StringBuilder builder, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        builder.append(micros / 1000000).append('.');
+
+        long fraction = micros % 1000000;
+        for (long digit = 100000; digit > fraction && digit > 1; digit /= 10) {
+            builder.append('0');
+        }
+        builder.append(fraction);
+    }
+
 }
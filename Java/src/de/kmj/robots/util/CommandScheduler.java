@@ -0,0 +1,575 @@
+package de.kmj.robots.util;
+
+import de.kmj.robots.RobotEngine;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.StatusMessage;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes CommandMessages one after another, ordered by priority and then by
+ * arrival.
+ * <p>
+ * This is the generic successor of {@link FIFOSpeechScheduler}. Instead of a
+ * SpeechTask, it schedules arbitrary CommandMessages and passes each of them
+ * to the {@link CommandSink} registered for its command type. This way, the
+ * same scheduling can be used for speech, audio files or animations. Engines
+ * which need to run several modalities in parallel create one scheduler per
+ * modality.
+ * <p>
+ * Commands are submitted to a lock-free queue and consumed by a single
+ * scheduling thread, which parks while there is nothing to do. No monitor is
+ * held while a sink is called.
+ * <p>
+ * The scheduling of each command can be controlled with these optional
+ * parameters:
+ * <ul>
+ * <li>priority: an integer, higher values are executed first (default: 0).
+ * Commands with the same priority are executed in the order of arrival.</li>
+ * <li>policy: "enqueue" for waiting until all commands with the same or a
+ * higher priority have finished (default), or "bargeIn" for canceling the
+ * current command unless that one has a higher priority. A barge-in command
+ * is executed before the waiting commands of the same priority. The canceled
+ * command finishes with the reason "interrupted" and the remaining commands
+ * stay queued.</li>
+ * <li>deadline: the maximum number of milliseconds between the arrival of
+ * the command and the start of its execution. Commands which are still
+ * waiting after their deadline are rejected with the reason "stale".</li>
+ * </ul>
+ * <p>
+ * To use this class in your RobotEngine, do the following:
+ * <ul>
+ * <li>Register a CommandSink for each command type which should be
+ * scheduled and call {@link #start()}.</li>
+ * <li>Pass the commands to {@link #submit(CommandMessage)}.</li>
+ * <li>When the robot starts or stops executing the current command, call
+ * {@link #updateState(boolean)}. This sends the "started" and "finished"
+ * status messages and releases the next command.</li>
+ * <li>When your RobotEngine processes a "stop" command, call
+ * {@link #clearPending()} and optionally {@link #cancelCurrent()}.</li>
+ * </ul>
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandScheduler implements Runnable {
+
+    private static final Logger cLogger = Logger.getLogger(CommandScheduler.class.getName());
+
+    /**
+     * Value of the "policy" parameter for queuing a command.
+     */
+    public static final String POLICY_ENQUEUE = "enqueue";
+
+    /**
+     * Value of the "policy" parameter for interrupting the current command.
+     */
+    public static final String POLICY_BARGE_IN = "bargeIn";
+
+    /**
+     * Executes the commands of one type on a specific robot.
+     */
+    public interface CommandSink {
+
+        /**
+         * Starts the execution of a command. Should return as soon as the
+         * command was passed to the robot. When the robot has finished, the
+         * engine calls {@link CommandScheduler#updateState(boolean)}.
+         *
+         * @param command the command which is ready to be executed
+         */
+        public void execute(CommandMessage command);
+
+        /**
+         * Aborts the execution of a command which was previously passed to
+         * {@link #execute(CommandMessage)}.
+         *
+         * @param command the command to abort
+         */
+        public void cancel(CommandMessage command);
+    }
+
+    /**
+     * A submitted command with its scheduling parameters.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        /**
+         * Marks the point in the submission order at which the pending
+         * commands are cleared.
+         */
+        static final Entry CLEAR = new Entry(null, 0, false, false, 0, 0);
+
+        final CommandMessage mCommand;
+        final int mPriority;
+        final boolean mBargeIn;
+        final boolean mHasDeadline;
+
+        /**
+         * The deadline in terms of {@link System#nanoTime()}, which is not
+         * affected by changes of the wall clock. Only valid if mHasDeadline
+         * is set.
+         */
+        final long mDeadline;
+        final long mSequence;
+
+        /**
+         * The reason which is added to the "finished" message, if any.
+         */
+        volatile String mFinishReason;
+
+        Entry(CommandMessage command, int priority, boolean bargeIn,
+                boolean hasDeadline, long deadline, long sequence) {
+            mCommand = command;
+            mPriority = priority;
+            mBargeIn = bargeIn;
+            mHasDeadline = hasDeadline;
+            mDeadline = deadline;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority > other.mPriority) ? -1 : 1;
+            }
+            if (mBargeIn != other.mBargeIn) {
+                return mBargeIn ? -1 : 1;
+            }
+            if (mSequence != other.mSequence) {
+                return (mSequence < other.mSequence) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The RobotEngine instance.
+     */
+    protected final RobotEngine mEngine;
+
+    /**
+     * The name of the scheduling thread.
+     */
+    private final String mName;
+
+    /**
+     * The sink for each command type.
+     */
+    private final Map<String, CommandSink> mSinks;
+
+    /**
+     * The submitted commands which have not been seen by the scheduling thread
+     * yet.
+     */
+    private final ConcurrentLinkedQueue<Entry> mInbox;
+
+    /**
+     * The commands which are waiting for execution. Only accessed by the
+     * scheduling thread.
+     */
+    private final PriorityQueue<Entry> mPending;
+
+    /**
+     * The number of commands in the inbox and the pending queue.
+     */
+    private final AtomicInteger mPendingCount;
+
+    /**
+     * The command which is currently executed, or null.
+     */
+    private final AtomicReference<Entry> mCurrent;
+
+    /**
+     * Counter for the order of arrival.
+     */
+    private final AtomicLong mSequence;
+
+    /**
+     * The scheduling thread.
+     */
+    private volatile Thread mThread;
+
+    /**
+     * Run flag.
+     */
+    private volatile boolean mRunning;
+
+    //==========================================================================
+    // construction
+    //==========================================================================
+    /**
+     * Constructor.
+     *
+     * @param engine the surrounding RobotEngine instance
+     * @param name the name of the scheduling thread
+     */
+    public CommandScheduler(RobotEngine engine, String name) {
+        mEngine = engine;
+        mName = name;
+        mSinks = new ConcurrentHashMap<String, CommandSink>();
+        mInbox = new ConcurrentLinkedQueue<Entry>();
+        mPending = new PriorityQueue<Entry>();
+        mPendingCount = new AtomicInteger();
+        mCurrent = new AtomicReference<Entry>();
+        mSequence = new AtomicLong();
+        mRunning = false;
+    }
+
+    /**
+     * Registers the sink which executes the commands of a type.
+     *
+     * @param commandType the command type
+     * @param sink the sink for that type
+     */
+    public void registerSink(String commandType, CommandSink sink) {
+        mSinks.put(commandType, sink);
+    }
+
+    //==========================================================================
+    // starting and stopping
+    //==========================================================================
+    /**
+     * Starts the scheduling thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            cLogger.log(Level.WARNING, "scheduler \"{0}\" was already started", mName);
+            return;
+        }
+        mRunning = true;
+        mThread = RobotThreadFactory.newThread(mName, true, this);
+        mThread.start();
+    }
+
+    /**
+     * Stops the scheduling thread. The current command is not canceled.
+     */
+    public void abort() {
+        mRunning = false;
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until the scheduling thread has terminated.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void join() throws InterruptedException {
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    //==========================================================================
+    // scheduling
+    //==========================================================================
+    /**
+     * Enqueues a command. Commands without a registered sink or with invalid
+     * scheduling parameters are rejected.
+     *
+     * @param command the command
+     * @return true if the command was enqueued, false if it was rejected
+     */
+    public boolean submit(CommandMessage command) {
+        if (!mSinks.containsKey(command.getCommandType())) {
+            cLogger.log(Level.WARNING, "no sink for command type \"{0}\"",
+                    command.getCommandType());
+            sendStatus(command.getTaskID(), "rejected",
+                    "unknown command type: " + command.getCommandType());
+            return false;
+        }
+
+        Entry entry;
+        try {
+            entry = createEntry(command);
+        } catch (IllegalArgumentException iae) {
+            cLogger.log(Level.WARNING, "invalid scheduling parameters for task {0}: {1}",
+                    new Object[]{command.getTaskID(), iae.getMessage()});
+            sendStatus(command.getTaskID(), "rejected", iae.getMessage());
+            return false;
+        }
+
+        if (cLogger.isLoggable(Level.FINE)) {
+            cLogger.log(Level.FINE, "enqueueing task {0} with priority {1}",
+                    new Object[]{command.getTaskID(), entry.mPriority});
+        }
+        mPendingCount.incrementAndGet();
+        mInbox.offer(entry);
+        wakeUp();
+        return true;
+    }
+
+    private Entry createEntry(CommandMessage command) throws IllegalArgumentException {
+        int priority = 0;
+        String value = command.getParam("priority");
+        if (value != null) {
+            try {
+                priority = Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("invalid priority: " + value);
+            }
+        }
+
+        boolean bargeIn = false;
+        value = command.getParam("policy");
+        if (value != null) {
+            if (value.equals(POLICY_BARGE_IN)) {
+                bargeIn = true;
+            } else if (!value.equals(POLICY_ENQUEUE)) {
+                throw new IllegalArgumentException("invalid policy: " + value);
+            }
+        }
+
+        boolean hasDeadline = false;
+        long deadline = 0;
+        value = command.getParam("deadline");
+        if (value != null) {
+            try {
+                long delay = Long.parseLong(value.trim());
+                if (delay < 0) {
+                    throw new NumberFormatException();
+                }
+                hasDeadline = true;
+                deadline = System.nanoTime() + delay * 1000000L;
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("invalid deadline: " + value);
+            }
+        }
+
+        return new Entry(command, priority, bargeIn, hasDeadline, deadline,
+                mSequence.getAndIncrement());
+    }
+
+    /**
+     * @return the ID of the task which is currently executed, or null
+     */
+    public String getCurrentTaskID() {
+        Entry current = mCurrent.get();
+        return (current == null) ? null : current.mCommand.getTaskID();
+    }
+
+    /**
+     * @return the number of commands which are waiting for execution
+     */
+    public int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * Reports a change of the robot's activity for the current command.
+     * <p>
+     * When the robot becomes active, a "started" message is sent. When it
+     * becomes inactive, a "finished" message is sent and the next command is
+     * released.
+     *
+     * @param active true if the robot started executing the current command,
+     * false if it has finished
+     */
+    public void updateState(boolean active) {
+        if (active) {
+            Entry current = mCurrent.get();
+            if (current != null) {
+                sendStatus(current.mCommand.getTaskID(), "started", null);
+            }
+        } else {
+            clearFinishedTask();
+        }
+    }
+
+    /**
+     * Sends the "finished" message for the current command and releases the
+     * next one.
+     */
+    public void clearFinishedTask() {
+        Entry current = mCurrent.getAndSet(null);
+        if (current != null) {
+            sendStatus(current.mCommand.getTaskID(), "finished", current.mFinishReason);
+            wakeUp();
+        }
+    }
+
+    /**
+     * Removes all commands which were submitted before this call. Each of
+     * them is rejected with the reason "canceled".
+     * <p>
+     * The commands are removed by the scheduling thread, so the rejections
+     * are sent asynchronously.
+     */
+    public void clearPending() {
+        mInbox.offer(Entry.CLEAR);
+        wakeUp();
+    }
+
+    /**
+     * Asks the sink of the current command to abort it. The command is
+     * finished with the reason "canceled" as soon as the engine reports it via
+     * {@link #updateState(boolean)}.
+     *
+     * @return true if there was a current command
+     */
+    public boolean cancelCurrent() {
+        return cancel(mCurrent.get(), "canceled");
+    }
+
+    private boolean cancel(Entry entry, String reason) {
+        if (entry == null) {
+            return false;
+        }
+
+        entry.mFinishReason = reason;
+        CommandSink sink = mSinks.get(entry.mCommand.getCommandType());
+        if (sink != null) {
+            sink.cancel(entry.mCommand);
+        }
+        return true;
+    }
+
+    /**
+     * The scheduling loop.
+     *
+     * Passes the next command to its sink after the previous one has
+     * finished.
+     */
+    @Override
+    public void run() {
+        cLogger.log(Level.FINE, "starting scheduling loop...");
+
+        while (mRunning && !Thread.currentThread().isInterrupted()) {
+            drainInbox();
+            long nextDelay = dropStale();
+
+            Entry next = null;
+            if (mCurrent.get() == null) {
+                next = mPending.poll();
+            }
+
+            if (next == null) {
+                if (nextDelay < 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, Math.max(nextDelay, 1));
+                }
+                continue;
+            }
+
+            mPendingCount.decrementAndGet();
+            mCurrent.set(next);
+            if (cLogger.isLoggable(Level.FINER)) {
+                cLogger.log(Level.FINER, "executing: {0}", next.mCommand);
+            }
+
+            try {
+                mSinks.get(next.mCommand.getCommandType()).execute(next.mCommand);
+            } catch (RuntimeException e) {
+                cLogger.log(Level.SEVERE, "could not execute task {0}: {1}",
+                        new Object[]{next.mCommand.getTaskID(), e.toString()});
+                if (mCurrent.compareAndSet(next, null)) {
+                    sendStatus(next.mCommand.getTaskID(), "rejected", e.toString());
+                }
+            }
+        }
+
+        cLogger.log(Level.FINE, "stopped");
+    }
+
+    /**
+     * Moves the submitted commands into the priority queue and applies the
+     * barge-in and clear requests in the order of submission.
+     */
+    private void drainInbox() {
+        Entry entry;
+        while ((entry = mInbox.poll()) != null) {
+            if (entry == Entry.CLEAR) {
+                rejectAll("canceled");
+                continue;
+            }
+
+            mPending.add(entry);
+            if (entry.mBargeIn) {
+                Entry current = mCurrent.get();
+                if (current != null && current.mFinishReason == null
+                        && current.mPriority <= entry.mPriority) {
+                    if (cLogger.isLoggable(Level.FINE)) {
+                        cLogger.log(Level.FINE, "task {0} interrupts task {1}",
+                                new Object[]{entry.mCommand.getTaskID(),
+                                    current.mCommand.getTaskID()});
+                    }
+                    cancel(current, "interrupted");
+                }
+            }
+        }
+    }
+
+    /**
+     * Rejects the commands whose deadline has passed.
+     *
+     * @return the number of nanoseconds until the earliest remaining
+     * deadline, or -1 if there is none
+     */
+    private long dropStale() {
+        long now = System.nanoTime();
+        long nextDelay = -1;
+
+        Iterator<Entry> iter = mPending.iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (!entry.mHasDeadline) {
+                continue;
+            }
+
+            // compare the difference, since nanoTime() may overflow
+            long delay = entry.mDeadline - now;
+            if (delay <= 0) {
+                iter.remove();
+                mPendingCount.decrementAndGet();
+                cLogger.log(Level.FINE, "dropping stale task {0}", entry.mCommand.getTaskID());
+                sendStatus(entry.mCommand.getTaskID(), "rejected", "stale");
+            } else if (nextDelay < 0 || delay < nextDelay) {
+                nextDelay = delay;
+            }
+        }
+        return nextDelay;
+    }
+
+    private void rejectAll(String reason) {
+        int count = 0;
+        Entry entry;
+        while ((entry = mPending.poll()) != null) {
+            mPendingCount.decrementAndGet();
+            sendStatus(entry.mCommand.getTaskID(), "rejected", reason);
+            count++;
+        }
+
+        if (cLogger.isLoggable(Level.FINE)) {
+            cLogger.log(Level.FINE, "cleared {0} pending tasks", count);
+        }
+    }
+
+    private void wakeUp() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void sendStatus(String taskID, String status, String reason) {
+        StatusMessage statusMsg = new StatusMessage(taskID, status);
+        if (reason != null) {
+            statusMsg.addDetail("reason", reason);
+        }
+        mEngine.sendStatusMessage(statusMsg);
+    }
+}
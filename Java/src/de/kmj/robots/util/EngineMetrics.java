@@ -0,0 +1,441 @@
+package de.kmj.robots.util;
+
+import de.kmj.robots.messaging.StatusMessage;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects latencies and counters of the command handling.
+ * <p>
+ * The {@link de.kmj.robots.messaging.MessageServer} reports received packets,
+ * parsed commands and failures, the
+ * {@link de.kmj.robots.RobotEngineRemoteApplication} reports the return of
+ * {@link de.kmj.robots.RobotEngine#executeCommand}, and the
+ * {@link de.kmj.robots.RobotEngine} reports every status message it sends.
+ * From these events, three latencies are recorded in
+ * {@link LatencyHistogram}s:
+ * <ul>
+ * <li>receive to parse: from receiving the packet to the parsed command</li>
+ * <li>parse to execute: from the parsed command to the return of
+ * executeCommand(), including the time in a dispatch queue</li>
+ * <li>command to finished: from the parsed command to its "finished"
+ * status</li>
+ * </ul>
+ * The values can be read via JMX after calling {@link #register(String)},
+ * and written to the log periodically after calling
+ * {@link #startLogging(long)}.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Kathrin Janowski
+ */
+public class EngineMetrics implements EngineMetricsMBean {
+
+    private static final Logger cLogger = Logger.getLogger(EngineMetrics.class.getName());
+
+    /**
+     * The default JMX object name.
+     */
+    public static final String DEFAULT_OBJECT_NAME = "de.kmj.robots:type=EngineMetrics";
+
+    /**
+     * The maximum number of open tasks whose parse time is kept.
+     */
+    private static final int MAX_OPEN_TASKS = 10000;
+
+    /**
+     * Time after which an open task is no longer tracked: 10 minutes.
+     */
+    private static final long OPEN_TASK_TTL = TimeUnit.MINUTES.toNanos(10);
+
+    /**
+     * Minimum time between two evictions when the open tasks are full:
+     * 1 minute.
+     */
+    private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final LatencyHistogram mReceiveToParse;
+    private final LatencyHistogram mParseToExecute;
+    private final LatencyHistogram mCommandToFinished;
+
+    private final AtomicLong mReceivedCount;
+    private final AtomicLong mParseFailureCount;
+    private final AtomicLong mUnknownClientCount;
+    private final AtomicLong mDroppedPacketCount;
+    private final AtomicLong mDuplicateCount;
+    private final AtomicLong mSupersededCount;
+
+    /**
+     * The time at which the command of each open task was parsed.
+     */
+    private final ConcurrentHashMap<String, Long> mParseTimes;
+
+    /**
+     * The earliest time for the next eviction of stale tasks.
+     */
+    private final AtomicLong mNextEviction;
+
+    /**
+     * The name under which this object is registered, or null.
+     */
+    private ObjectName mObjectName;
+
+    /**
+     * Writes the periodic snapshots, or null.
+     */
+    private ScheduledExecutorService mLogTimer;
+
+    /**
+     * Creates an empty set of metrics.
+     */
+    public EngineMetrics() {
+        mReceiveToParse = new LatencyHistogram();
+        mParseToExecute = new LatencyHistogram();
+        mCommandToFinished = new LatencyHistogram();
+
+        mReceivedCount = new AtomicLong();
+        mParseFailureCount = new AtomicLong();
+        mUnknownClientCount = new AtomicLong();
+        mDroppedPacketCount = new AtomicLong();
+        mDuplicateCount = new AtomicLong();
+        mSupersededCount = new AtomicLong();
+
+        mParseTimes = new ConcurrentHashMap<String, Long>();
+        mNextEviction = new AtomicLong(System.nanoTime());
+    }
+
+    //==========================================================================
+    // events
+    //==========================================================================
+    /**
+     * Counts a received packet.
+     */
+    public void packetReceived() {
+        mReceivedCount.incrementAndGet();
+    }
+
+    /**
+     * Records the time for parsing a command and starts tracking its task.
+     *
+     * @param taskID the task ID of the command
+     * @param receivedNanos the time at which the packet was received, taken
+     * from {@link System#nanoTime()}
+     */
+    public void commandParsed(String taskID, long receivedNanos) {
+        long now = System.nanoTime();
+        mReceiveToParse.record(now - receivedNanos);
+
+        if (mParseTimes.size() >= MAX_OPEN_TASKS) {
+            long next = mNextEviction.get();
+            if (now - next >= 0 && mNextEviction.compareAndSet(next, now + EVICTION_INTERVAL)) {
+                evictStaleTasks();
+            }
+        }
+        if (mParseTimes.size() < MAX_OPEN_TASKS) {
+            mParseTimes.put(taskID, now);
+        }
+    }
+
+    /**
+     * Counts a packet which could not be parsed.
+     */
+    public void parseFailed() {
+        mParseFailureCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the time at which the command of a task was parsed. Must be
+     * called before the command is executed, because the task may already be
+     * finished when RobotEngine.executeCommand() returns.
+     *
+     * @param taskID the task ID
+     * @return the time from {@link System#nanoTime()}, or -1 if the task is
+     * not tracked
+     */
+    public long getParseTime(String taskID) {
+        Long parsed = mParseTimes.get(taskID);
+        return (parsed == null) ? -1 : parsed;
+    }
+
+    /**
+     * Records the time until RobotEngine.executeCommand() has returned.
+     *
+     * @param parseTime the result of {@link #getParseTime(String)} before
+     * the command was executed
+     */
+    public void commandExecuted(long parseTime) {
+        if (parseTime >= 0) {
+            mParseToExecute.recordSince(parseTime);
+        }
+    }
+
+    /**
+     * Records the time until the task has finished, and stops tracking the
+     * task when it is finished or rejected.
+     *
+     * @param status the status message which is sent
+     */
+    public void statusSent(StatusMessage status) {
+        String st = status.getStatus();
+        if (st.equals("finished")) {
+            Long parsed = mParseTimes.remove(status.getTaskID());
+            if (parsed != null) {
+                mCommandToFinished.recordSince(parsed);
+            }
+        } else if (st.equals("rejected")) {
+            mParseTimes.remove(status.getTaskID());
+        }
+    }
+
+    /**
+     * Counts a status message for a task without a known client.
+     */
+    public void unknownClient() {
+        mUnknownClientCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a packet which could not be received or sent, or a command which
+     * was rejected because of overload.
+     */
+    public void packetDropped() {
+        mDroppedPacketCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a retransmitted command which was ignored.
+     */
+    public void duplicateReceived() {
+        mDuplicateCount.incrementAndGet();
+    }
+
+    /**
+     * Counts a command which was replaced by a newer one before it was
+     * executed.
+     */
+    public void commandSuperseded() {
+        mSupersededCount.incrementAndGet();
+    }
+
+    //==========================================================================
+    // EngineMetricsMBean
+    //==========================================================================
+    @Override
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    @Override
+    public long getParseFailureCount() {
+        return mParseFailureCount.get();
+    }
+
+    @Override
+    public long getUnknownClientCount() {
+        return mUnknownClientCount.get();
+    }
+
+    @Override
+    public long getDroppedPacketCount() {
+        return mDroppedPacketCount.get();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return mDuplicateCount.get();
+    }
+
+    @Override
+    public long getSupersededCount() {
+        return mSupersededCount.get();
+    }
+
+    @Override
+    public int getOpenTaskCount() {
+        return mParseTimes.size();
+    }
+
+    @Override
+    public double getReceiveToParseMedian() {
+        return mReceiveToParse.getPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getReceiveToParse99thPercentile() {
+        return mReceiveToParse.getPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public double getParseToExecuteMedian() {
+        return mParseToExecute.getPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getParseToExecute99thPercentile() {
+        return mParseToExecute.getPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public double getCommandToFinishedMedian() {
+        return mCommandToFinished.getPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getCommandToFinished99thPercentile() {
+        return mCommandToFinished.getPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public String getSnapshot() {
+        return "received " + mReceivedCount.get()
+                + ", parse failures " + mParseFailureCount.get()
+                + ", unknown clients " + mUnknownClientCount.get()
+                + ", dropped " + mDroppedPacketCount.get()
+                + ", duplicates " + mDuplicateCount.get()
+                + ", superseded " + mSupersededCount.get()
+                + ", open tasks " + mParseTimes.size()
+                + "\n\treceive->parse:     " + mReceiveToParse
+                + "\n\tparse->execute:     " + mParseToExecute
+                + "\n\tcommand->finished:  " + mCommandToFinished;
+    }
+
+    @Override
+    public void reset() {
+        mReceiveToParse.reset();
+        mParseToExecute.reset();
+        mCommandToFinished.reset();
+        mReceivedCount.set(0);
+        mParseFailureCount.set(0);
+        mUnknownClientCount.set(0);
+        mDroppedPacketCount.set(0);
+        mDuplicateCount.set(0);
+        mSupersededCount.set(0);
+    }
+
+    //==========================================================================
+    // publishing
+    //==========================================================================
+    /**
+     * @return the histogram of the time from receiving a packet to the parsed
+     * command, in nanoseconds
+     */
+    public LatencyHistogram getReceiveToParse() {
+        return mReceiveToParse;
+    }
+
+    /**
+     * @return the histogram of the time from the parsed command to the return
+     * of executeCommand(), in nanoseconds
+     */
+    public LatencyHistogram getParseToExecute() {
+        return mParseToExecute;
+    }
+
+    /**
+     * @return the histogram of the time from the parsed command to its
+     * "finished" status, in nanoseconds
+     */
+    public LatencyHistogram getCommandToFinished() {
+        return mCommandToFinished;
+    }
+
+    /**
+     * Registers this object with the platform MBean server.
+     *
+     * @param objectName the JMX object name, e.g.
+     * {@link #DEFAULT_OBJECT_NAME}
+     * @return true on success, false on failure
+     */
+    public synchronized boolean register(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            mObjectName = name;
+            cLogger.log(Level.INFO, "metrics registered as {0}", objectName);
+            return true;
+        } catch (JMException e) {
+            cLogger.log(Level.WARNING, "could not register metrics: {0}", e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Starts writing a snapshot to the log at level INFO.
+     *
+     * @param period the time between two snapshots in milliseconds
+     * @throws IllegalArgumentException if the period is not positive
+     */
+    public synchronized void startLogging(long period) throws IllegalArgumentException {
+        if (period <= 0) {
+            throw new IllegalArgumentException("invalid logging period: " + period);
+        }
+        if (mLogTimer != null) {
+            mLogTimer.shutdownNow();
+        }
+
+        mLogTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EngineMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mLogTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                evictStaleTasks();
+                cLogger.log(Level.INFO, "metrics: {0}", getSnapshot());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic logging and removes this object from the MBean
+     * server.
+     */
+    public synchronized void close() {
+        if (mLogTimer != null) {
+            mLogTimer.shutdownNow();
+            mLogTimer = null;
+        }
+
+        if (mObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mObjectName);
+            } catch (JMException e) {
+                cLogger.log(Level.FINE, "could not unregister metrics: {0}", e.toString());
+            }
+            mObjectName = null;
+        }
+    }
+
+    /**
+     * Stops tracking the tasks which have been open for too long.
+     */
+    public void evictStaleTasks() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Long>> it = mParseTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() > OPEN_TASK_TTL) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package de.kmj.robots.util;
+
+/**
+ * The JMX management interface of {@link EngineMetrics}.
+ * <p>
+ * All latencies are given in microseconds.
+ *
+ * @author Kathrin Janowski
+ */
+public interface EngineMetricsMBean {
+
+    /**
+     * @return the number of received command packets
+     */
+    long getReceivedCount();
+
+    /**
+     * @return the number of received packets which could not be parsed
+     */
+    long getParseFailureCount();
+
+    /**
+     * @return the number of status messages for tasks without a known client
+     */
+    long getUnknownClientCount();
+
+    /**
+     * @return the number of packets which could not be received or sent, and
+     * of commands which were rejected because of overload
+     */
+    long getDroppedPacketCount();
+
+    /**
+     * @return the number of retransmitted commands which were ignored
+     */
+    long getDuplicateCount();
+
+    /**
+     * @return the number of commands which were replaced by a newer command
+     * for the same actuator before they were executed
+     */
+    long getSupersededCount();
+
+    /**
+     * @return the number of commands which have neither finished nor been
+     * rejected
+     */
+    int getOpenTaskCount();
+
+    /**
+     * @return the median time from receiving a packet to the parsed command
+     */
+    double getReceiveToParseMedian();
+
+    /**
+     * @return the 99th percentile of the time from receiving a packet to the
+     * parsed command
+     */
+    double getReceiveToParse99thPercentile();
+
+    /**
+     * @return the median time from the parsed command to the return of
+     * RobotEngine.executeCommand()
+     */
+    double getParseToExecuteMedian();
+
+    /**
+     * @return the 99th percentile of the time from the parsed command to the
+     * return of RobotEngine.executeCommand()
+     */
+    double getParseToExecute99thPercentile();
+
+    /**
+     * @return the median time from the parsed command to its "finished"
+     * status
+     */
+    double getCommandToFinishedMedian();
+
+    /**
+     * @return the 99th percentile of the time from the parsed command to its
+     * "finished" status
+     */
+    double getCommandToFinished99thPercentile();
+
+    /**
+     * @return a summary of all counters and latencies
+     */
+    String getSnapshot();
+
+    /**
+     * Sets all counters and latencies back to zero.
+     */
+    void reset();
+}
@@ -68,7 +68,10 @@ import java.util.logging.Logger;
  * </ul>
  *
  * @author Kathrin Janowski
+ * @deprecated use {@link CommandScheduler} instead, which schedules arbitrary
+ * CommandMessages without nested monitors
  */
+@Deprecated
 public abstract class FIFOSpeechScheduler extends Thread {
 
     /**
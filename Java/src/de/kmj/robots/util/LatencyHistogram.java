@@ -0,0 +1,209 @@
+package de.kmj.robots.util;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies in logarithmic buckets with a fixed relative precision.
+ * <p>
+ * Like an HdrHistogram, each power of two is split into a fixed number of
+ * linear sub-buckets, so every recorded value is known within about 3%
+ * regardless of its magnitude, from nanoseconds to hours. Recording is a
+ * single atomic increment without locks or allocation, so it can be used on
+ * the message handling path by several threads at once.
+ * <p>
+ * Percentiles are reported as the highest value of the bucket which
+ * contains them, so they are never lower than the actual value.
+ *
+ * @author Kathrin Janowski
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of bits for the linear sub-buckets of each power of two.
+     */
+    private static final int SUB_BITS = 5;
+
+    /**
+     * Number of linear sub-buckets of each power of two.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Number of buckets which cover all positive long values.
+     */
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    /**
+     * The number of recorded values per bucket.
+     */
+    private final AtomicLongArray mCounts;
+
+    private final AtomicLong mTotalCount;
+    private final AtomicLong mTotalSum;
+    private final AtomicLong mMax;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        mTotalCount = new AtomicLong();
+        mTotalSum = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    //==========================================================================
+    // recording
+    //==========================================================================
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value the latency, usually in nanoseconds
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(getIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotalSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Records the time since the given start.
+     *
+     * @param startNanos the start time, taken from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Removes all recorded values.
+     * Values which are recorded at the same time may be partially lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalSum.set(0);
+        mMax.set(0);
+    }
+
+    //==========================================================================
+    // evaluation
+    //==========================================================================
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * @return the highest recorded value, or 0 if there are none
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or 0 if there are none
+     */
+    public double getMean() {
+        long count = mTotalCount.get();
+        return (count == 0) ? 0.0 : (double) mTotalSum.get() / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded
+     * values lies.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value of the bucket which contains the percentile,
+     * or 0 if there are no values
+     * @throws IllegalArgumentException if the percentile is out of range
+     */
+    public long getPercentile(double percentile) throws IllegalArgumentException {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("invalid percentile: " + percentile);
+        }
+
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += mCounts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Creates a short summary of the recorded latencies.
+     *
+     * @param unit the unit of the recorded values
+     * @return the count, median, 99th percentile and maximum in microseconds
+     */
+    public String toString(TimeUnit unit) {
+        return String.format(Locale.ROOT,
+                "n=%d p50=%.1fus p99=%.1fus max=%.1fus",
+                getCount(),
+                unit.toNanos(getPercentile(50.0)) / 1000.0,
+                unit.toNanos(getPercentile(99.0)) / 1000.0,
+                unit.toNanos(getMax()) / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return toString(TimeUnit.NANOSECONDS);
+    }
+
+    //==========================================================================
+    // bucket arithmetic
+    //==========================================================================
+    /**
+     * @param value a value which is not negative
+     * @return the index of the bucket which contains the value
+     */
+    static int getIndex(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB_COUNT;
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    /**
+     * @param index a bucket index
+     * @return the highest value which falls into the bucket
+     */
+    static long getHighestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        long sub = (index - SUB_COUNT) % SUB_COUNT;
+        long lowest = (SUB_COUNT + sub) << shift;
+        return lowest + ((1L << shift) - 1);
+    }
+}
@@ -0,0 +1,137 @@
+package de.kmj.robots.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads for the receiving and scheduling loops of this library.
+ * <p>
+ * By default, these are ordinary platform threads. When the system property
+ * {@value #MODE_PROPERTY} is set to "virtual" and the Java runtime supports
+ * virtual threads (Java 21 or later), they are created with
+ * <code>Thread.ofVirtual()</code> instead. The blocking loops then no longer
+ * occupy a platform thread each while they wait, so thousands of clients and
+ * schedulers can run at the same time.
+ * <p>
+ * The virtual thread builder is accessed via reflection, so the library still
+ * compiles and runs on older Java versions, where the property is ignored.
+ * Note that virtual threads are always daemon threads.
+ * <p>
+ * Example: <code>java -Dde.kmj.robots.threads=virtual ...</code>
+ *
+ * @author Kathrin Janowski
+ */
+public class RobotThreadFactory implements ThreadFactory {
+
+    private static final Logger cLogger = Logger.getLogger(RobotThreadFactory.class.getName());
+
+    /**
+     * The system property which selects the thread mode.
+     */
+    public static final String MODE_PROPERTY = "de.kmj.robots.threads";
+
+    /**
+     * Thread.ofVirtual(), or null if virtual threads are not used.
+     */
+    private static final Method cOfVirtual;
+
+    /**
+     * Thread.Builder.name(String).
+     */
+    private static final Method cBuilderName;
+
+    /**
+     * Thread.Builder.unstarted(Runnable).
+     */
+    private static final Method cBuilderUnstarted;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+
+        if ("virtual".equalsIgnoreCase(System.getProperty(MODE_PROPERTY))) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                builderName = builderClass.getMethod("name", String.class);
+                builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+                cLogger.log(Level.INFO, "using virtual threads");
+            } catch (ClassNotFoundException e) {
+                cLogger.log(Level.WARNING, "virtual threads are not supported by this "
+                        + "Java runtime, using platform threads");
+                ofVirtual = null;
+            } catch (NoSuchMethodException e) {
+                cLogger.log(Level.WARNING, "virtual threads are not supported by this "
+                        + "Java runtime, using platform threads");
+                ofVirtual = null;
+            }
+        }
+
+        cOfVirtual = ofVirtual;
+        cBuilderName = builderName;
+        cBuilderUnstarted = builderUnstarted;
+    }
+
+    private final String mName;
+    private final boolean mDaemon;
+    private final AtomicInteger mCount;
+
+    /**
+     * Creates a factory for threads with the names "&lt;name&gt;-1",
+     * "&lt;name&gt;-2" and so on.
+     *
+     * @param name the base name of the threads
+     * @param daemon true for daemon threads; ignored for virtual threads,
+     * which are always daemon threads
+     */
+    public RobotThreadFactory(String name, boolean daemon) {
+        mName = name;
+        mDaemon = daemon;
+        mCount = new AtomicInteger();
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        return newThread(mName + "-" + mCount.incrementAndGet(), mDaemon, r);
+    }
+
+    /**
+     * @return true if new threads are virtual threads
+     */
+    public static boolean isVirtual() {
+        return cOfVirtual != null;
+    }
+
+    /**
+     * Creates a thread which is not started yet.
+     *
+     * @param name the thread name
+     * @param daemon true for a daemon thread; ignored for virtual threads,
+     * which are always daemon threads
+     * @param task the code which is run by the thread
+     * @return the new thread
+     */
+    public static Thread newThread(String name, boolean daemon, Runnable task) {
+        if (cOfVirtual != null) {
+            try {
+                Object builder = cOfVirtual.invoke(null);
+                builder = cBuilderName.invoke(builder, name);
+                return (Thread) cBuilderUnstarted.invoke(builder, task);
+            } catch (IllegalAccessException e) {
+                cLogger.log(Level.WARNING, "could not create virtual thread: {0}", e.toString());
+            } catch (InvocationTargetException e) {
+                cLogger.log(Level.WARNING, "could not create virtual thread: {0}",
+                        e.getCause().toString());
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
@@ -0,0 +1,135 @@
+package de.kmj.robots;
+
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.CommandMessageHandler;
+import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.StatusMessageHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that stop commands of a {@link CommandLaneRouter} cancel their lane
+ * instead of waiting behind the commands they are meant to stop.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandLaneRouterTest {
+
+    /**
+     * An engine which only collects its status messages.
+     */
+    private static class TestEngine extends RobotEngine {
+
+        @Override
+        public void start(String configPath) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void executeCommand(CommandMessage command) {
+        }
+    }
+
+    /**
+     * Blocks until it is interrupted and reports the outcome.
+     */
+    private class BlockingHandler implements CommandMessageHandler {
+
+        @Override
+        public void handleCommandMessage(CommandMessage message) {
+            mStarted.countDown();
+            try {
+                Thread.sleep(10000);
+                mStatuses.add(message.getTaskID() + ":finished");
+            } catch (InterruptedException e) {
+                mStatuses.add(message.getTaskID() + ":interrupted");
+            }
+            mDone.countDown();
+        }
+    }
+
+    private final List<String> mStatuses
+            = Collections.synchronizedList(new ArrayList<String>());
+    private CountDownLatch mStarted;
+    private CountDownLatch mDone;
+    private CommandLaneRouter mRouter;
+
+    @Before
+    public void setUp() {
+        mStarted = new CountDownLatch(1);
+        mDone = new CountDownLatch(1);
+
+        TestEngine engine = new TestEngine();
+        engine.setStatusMessageHandler(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                mStatuses.add(message.getTaskID() + ":" + message.getStatus());
+            }
+        });
+
+        mRouter = new CommandLaneRouter(engine);
+        mRouter.registerHandler("speech", new BlockingHandler());
+        mRouter.registerHandler("stopSpeech", new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                mStatuses.add(message.getTaskID() + ":stopped");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mRouter.shutdown();
+    }
+
+    @Test
+    public void stopCancelsLane() throws Exception {
+        assertEquals("speech", mRouter.getLane("stopSpeech"));
+
+        assertTrue(mRouter.route(new CommandMessage("s1", "speech")));
+        assertTrue(mRouter.route(new CommandMessage("s2", "speech")));
+        assertTrue(mRouter.route(new CommandMessage("s3", "speech")));
+        assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+
+        assertTrue(mRouter.route(new CommandMessage("stop", "stopSpeech")));
+        assertTrue(mDone.await(5, TimeUnit.SECONDS));
+
+        synchronized (mStatuses) {
+            assertTrue(mStatuses.toString(), mStatuses.contains("s1:interrupted"));
+            assertTrue(mStatuses.toString(), mStatuses.contains("s2:rejected"));
+            assertTrue(mStatuses.toString(), mStatuses.contains("s3:rejected"));
+            assertTrue(mStatuses.toString(), mStatuses.contains("stop:stopped"));
+        }
+    }
+
+    @Test
+    public void laneContinuesAfterStop() throws Exception {
+        mRouter.route(new CommandMessage("s1", "speech"));
+        assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+        mRouter.route(new CommandMessage("stop", "stopSpeech"));
+        assertTrue(mDone.await(5, TimeUnit.SECONDS));
+
+        // the next command runs normally and is not hit by the old interrupt
+        mStarted = new CountDownLatch(1);
+        mDone = new CountDownLatch(1);
+        mRouter.route(new CommandMessage("s2", "speech"));
+        assertTrue(mStarted.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, mDone.getCount());
+
+        mRouter.route(new CommandMessage("stop2", "stopSpeech"));
+        assertTrue(mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(mStatuses.contains("s2:interrupted"));
+    }
+}
@@ -0,0 +1,179 @@
+package de.kmj.robots.controlApp.loadTest;
+
+import de.kmj.robots.messaging.ClientTransport;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.JournalEntry;
+import de.kmj.robots.messaging.StatusFanOut;
+import de.kmj.robots.messaging.StatusMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Replays a recorded session against a fake transport and checks the
+ * comparison with the baseline.
+ *
+ * @author Kathrin Janowski
+ */
+public class JournalReplayTest {
+
+    /**
+     * Answers each command on the sending thread: "speech" is started and
+     * finished, "bad" is rejected and "lost" is never answered.
+     */
+    private static class FakeClient implements ClientTransport {
+
+        final JournalReplay mReplay;
+        final AtomicInteger mOpen = new AtomicInteger();
+        final List<String> mTaskIDs = new ArrayList<String>();
+        int mMaxOpen;
+
+        FakeClient(JournalReplay replay) {
+            mReplay = replay;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public void awaitTermination() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean sendCommandMessage(CommandMessage command) {
+            String taskID = command.getTaskID();
+            mTaskIDs.add(taskID);
+            mMaxOpen = Math.max(mMaxOpen, mOpen.incrementAndGet());
+            String type = command.getCommandType();
+            if (type.equals("speech")) {
+                mReplay.handleStatusMessage(new StatusMessage(taskID, "started"));
+                finish(taskID, "finished");
+            } else if (type.equals("bad")) {
+                finish(taskID, "rejected");
+            }
+            return true;
+        }
+
+        private void finish(String taskID, String status) {
+            mOpen.decrementAndGet();
+            mReplay.handleStatusMessage(new StatusMessage(taskID, status));
+        }
+    }
+
+    @Test
+    public void recordedBaseline() {
+        JournalReplay replay = new JournalReplay(session());
+        assertEquals(3, replay.getCommandCount());
+        assertEquals(3, replay.getRecordedDuration());
+
+        Properties baseline = replay.getRecordedBaseline();
+        assertEquals("3", baseline.getProperty("tasks"));
+        assertEquals("started,finished", baseline.getProperty("status.0"));
+        assertEquals("rejected", baseline.getProperty("status.1"));
+        assertEquals("started,finished", baseline.getProperty("status.2"));
+    }
+
+    @Test
+    public void replayMatchesRecording() throws Exception {
+        JournalReplay replay = new JournalReplay(session());
+        FakeClient client = new FakeClient(replay);
+        Properties result = replay.run(client, 0);
+
+        assertEquals("[replay0, replay1, replay2]", client.mTaskIDs.toString());
+        assertTrue(JournalReplay.compare(replay.getRecordedBaseline(), result, 0, 0.2, 1).isEmpty());
+        assertTrue(result.getProperty("latency.p50") != null);
+    }
+
+    @Test
+    public void lostTasks() throws Exception {
+        List<JournalEntry> entries = session();
+        entries.add(new JournalEntry(5000000L, 5L, new CommandMessage("t4", "lost")));
+        JournalReplay replay = new JournalReplay(entries);
+        replay.setTimeout(50);
+        replay.setConcurrency(2);
+        FakeClient client = new FakeClient(replay);
+        Properties result = replay.run(client, 0);
+
+        assertEquals("lost", result.getProperty("status.3"));
+        assertTrue(client.mMaxOpen <= 2);
+        assertEquals(1, JournalReplay.compare(replay.getRecordedBaseline(), result, 0, 0.2, 1).size());
+        assertTrue(JournalReplay.compare(replay.getRecordedBaseline(), result, 1, 0.2, 1).isEmpty());
+    }
+
+    @Test
+    public void latencyRegression() {
+        Properties baseline = result("10000");
+        assertTrue(JournalReplay.compare(baseline, result("12999"), 0, 0.2, 1).isEmpty());
+        List<String> regressions = JournalReplay.compare(baseline, result("13001"), 0, 0.2, 1);
+        assertEquals(1, regressions.size());
+        assertTrue(regressions.get(0), regressions.get(0).startsWith("p50"));
+
+        // a baseline from the journal has no latencies
+        baseline.remove("latency.p50");
+        assertTrue(JournalReplay.compare(baseline, result("13001"), 0, 0.2, 1).isEmpty());
+    }
+
+    @Test
+    public void differentSession() {
+        Properties baseline = result("1");
+        Properties result = result("1");
+        result.setProperty("tasks", "2");
+        try {
+            JournalReplay.compare(baseline, result, 0, 0.2, 1);
+            fail("accepted a baseline of another session");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noCommands() {
+        List<JournalEntry> entries = new ArrayList<JournalEntry>();
+        entries.add(new JournalEntry(0L, 0L, new CommandMessage("s", StatusFanOut.SUBSCRIBE_TYPE)));
+        new JournalReplay(entries);
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    /**
+     * A session with a subscription, which is skipped, and three commands,
+     * the last one reusing the task ID of the first.
+     */
+    private static List<JournalEntry> session() {
+        List<JournalEntry> entries = new ArrayList<JournalEntry>();
+        entries.add(new JournalEntry(0L, 0L, new CommandMessage("s", StatusFanOut.SUBSCRIBE_TYPE)));
+        entries.add(new JournalEntry(1000000L, 1L, new CommandMessage("t1", "speech")));
+        entries.add(new JournalEntry(1100000L, 1L, new StatusMessage("t1", "started")));
+        entries.add(new JournalEntry(2000000L, 2L, new CommandMessage("t2", "bad")));
+        entries.add(new JournalEntry(2100000L, 2L, new StatusMessage("t2", "rejected")));
+        entries.add(new JournalEntry(2500000L, 2L, new StatusMessage("t1", "finished")));
+        entries.add(new JournalEntry(4000000L, 4L, new CommandMessage("t1", "speech")));
+        entries.add(new JournalEntry(4100000L, 4L, new StatusMessage("t1", "started")));
+        entries.add(new JournalEntry(4200000L, 4L, new StatusMessage("t1", "finished")));
+        return entries;
+    }
+
+    private static Properties result(String p50) {
+        Properties result = new Properties();
+        result.setProperty("tasks", "1");
+        result.setProperty("status.0", "finished");
+        result.setProperty("latency.p50", p50);
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+package de.kmj.robots.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the string encoding of the {@link BinaryMessageCodec}.
+ *
+ * @author Kathrin Janowski
+ */
+public class BinaryMessageCodecTest {
+
+    @Test
+    public void roundTrip() {
+        String[] texts = new String[]{
+            "plain", "äöü €", "smile 😀 clef 𝄞", "lone \ud800 surrogate", ""
+        };
+        for (String text : texts) {
+            CommandMessage command = new CommandMessage("t1", "speak");
+            command.addParameter("text", text);
+            CommandMessage decoded = BinaryMessageCodec.decodeCommand(
+                    ByteBuffer.wrap(BinaryMessageCodec.toBytes(command)));
+            assertEquals(text, decoded.getParam("text"));
+
+            StatusMessage status = new StatusMessage(text + "x", "finished");
+            StatusMessage decodedStatus = BinaryMessageCodec.decodeStatus(
+                    ByteBuffer.wrap(BinaryMessageCodec.toBytes(status)));
+            assertEquals(text + "x", decodedStatus.getTaskID());
+        }
+    }
+
+    @Test
+    public void supplementaryCharacters() {
+        // U+1F600 and U+10FFFF
+        assertEquals("😀", decodeTaskID(0xF0, 0x9F, 0x98, 0x80));
+        assertEquals("\udbff\udfff", decodeTaskID(0xF4, 0x8F, 0xBF, 0xBF));
+    }
+
+    @Test
+    public void rejectsOverlongSequences() {
+        assertInvalid(0xC1, 0xBF);             // U+007F in 2 bytes
+        assertInvalid(0xE0, 0x9F, 0xBF);       // U+07FF in 3 bytes
+        assertInvalid(0xF0, 0x8F, 0xBF, 0xBF); // U+FFFF in 4 bytes
+        assertInvalid(0xF0, 0x80, 0x80, 0xC1); // bad continuation byte
+        assertInvalid(0xF4, 0x90, 0x80, 0x80); // above U+10FFFF
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static String decodeTaskID(int... taskBytes) {
+        return BinaryMessageCodec.decodeCommand(command(taskBytes)).getTaskID();
+    }
+
+    private static void assertInvalid(int... taskBytes) {
+        try {
+            BinaryMessageCodec.decodeCommand(command(taskBytes));
+            fail("accepted invalid UTF-8");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Builds a command with the given raw task ID bytes and the type "t".
+     */
+    private static ByteBuffer command(int... taskBytes) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(taskBytes.length);
+        for (int b : taskBytes) {
+            payload.write(b);
+        }
+        payload.write(1);
+        payload.write('t');
+        payload.write(0); // no parameters
+
+        ByteBuffer buffer = ByteBuffer.allocate(6 + payload.size());
+        buffer.put(BinaryMessageCodec.MAGIC);
+        buffer.put(BinaryMessageCodec.KIND_COMMAND);
+        buffer.putInt(payload.size());
+        buffer.put(payload.toByteArray());
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,175 @@
+package de.kmj.robots.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the slots of the {@link CommandCoalescer} in pull mode and the
+ * delivery in push mode.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandCoalescerTest {
+
+    /**
+     * The commands which were passed on and the statuses which were sent.
+     */
+    private final List<String> mPassed
+            = Collections.synchronizedList(new ArrayList<String>());
+    private final List<StatusMessage> mStatuses
+            = Collections.synchronizedList(new ArrayList<StatusMessage>());
+
+    private CommandCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mCoalescer = new CommandCoalescer(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                mPassed.add(message.getTaskID());
+            }
+        }, new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                mStatuses.add(message);
+            }
+        });
+    }
+
+    @Test
+    public void replaceSlot() {
+        mCoalescer.handleCommandMessage(command("g1", "gaze", "eyes"));
+        mCoalescer.handleCommandMessage(command("g2", "gaze", "eyes"));
+        mCoalescer.handleCommandMessage(command("g3", "gaze", "head"));
+        assertEquals(2, mCoalescer.getPendingCount());
+
+        assertEquals(1, mStatuses.size());
+        StatusMessage rejection = mStatuses.get(0);
+        assertEquals("g1", rejection.getTaskID());
+        assertEquals("rejected", rejection.getStatus());
+        assertEquals("superseded", rejection.getDetail("reason"));
+
+        assertEquals("g2", mCoalescer.poll("gaze", "eyes").getTaskID());
+        assertNull(mCoalescer.poll("gaze", "eyes"));
+        assertEquals("g3", mCoalescer.poll("gaze", "head").getTaskID());
+        assertTrue(mPassed.isEmpty());
+    }
+
+    @Test
+    public void stopAllActuators() {
+        mCoalescer.handleCommandMessage(command("g1", "gaze", "eyes"));
+        mCoalescer.handleCommandMessage(command("g2", "gaze", "head"));
+        mCoalescer.handleCommandMessage(command("g3", "gaze", null));
+        mCoalescer.handleCommandMessage(command("p1", "pose", "arm"));
+
+        mCoalescer.handleCommandMessage(command("s1", "stopGaze", null));
+        assertEquals(3, mStatuses.size());
+        assertEquals(1, mCoalescer.getPendingCount());
+        assertEquals("p1", mCoalescer.poll("pose", "arm").getTaskID());
+        assertEquals("[s1]", mPassed.toString());
+    }
+
+    @Test
+    public void stopOneActuator() {
+        mCoalescer.handleCommandMessage(command("g1", "gaze", "eyes"));
+        mCoalescer.handleCommandMessage(command("g2", "gaze", "head"));
+
+        mCoalescer.handleCommandMessage(command("s1", "stopGaze", "eyes"));
+        assertEquals(1, mStatuses.size());
+        assertEquals("g1", mStatuses.get(0).getTaskID());
+        assertNull(mCoalescer.poll("gaze", "eyes"));
+        assertEquals("g2", mCoalescer.poll("gaze", "head").getTaskID());
+        assertEquals("[s1]", mPassed.toString());
+    }
+
+    @Test
+    public void takeSkipsEmptiedSlots() throws Exception {
+        mCoalescer.handleCommandMessage(command("g1", "gaze", "eyes"));
+        mCoalescer.handleCommandMessage(command("g2", "gaze", "head"));
+        assertEquals("g1", mCoalescer.poll("gaze", "eyes").getTaskID());
+
+        assertEquals("g2", mCoalescer.take("gaze", 1000).getTaskID());
+        assertNull(mCoalescer.take("gaze", 50));
+
+        // a slot which was emptied and filled again is only served once
+        mCoalescer.handleCommandMessage(command("g3", "gaze", "eyes"));
+        assertEquals("g3", mCoalescer.take("gaze", 1000).getTaskID());
+        assertNull(mCoalescer.take("gaze", 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void takeUncoalescedType() throws Exception {
+        mCoalescer.take("speech", 0);
+    }
+
+    @Test
+    public void otherCommandsPassThrough() {
+        mCoalescer.handleCommandMessage(command("t1", "speech", null));
+        mCoalescer.handleCommandMessage(command("t2", "stopSpeech", null));
+        assertEquals("[t1, t2]", mPassed.toString());
+        assertEquals(0, mCoalescer.getPendingCount());
+        assertTrue(mStatuses.isEmpty());
+    }
+
+    @Test
+    public void pushMode() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        CommandCoalescer coalescer = new CommandCoalescer(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                mPassed.add(message.getTaskID());
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                done.countDown();
+            }
+        }, new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                mStatuses.add(message);
+            }
+        }, "gaze");
+        coalescer.start();
+        try {
+            coalescer.handleCommandMessage(command("g1", "gaze", null));
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            // while g1 is executed, only the newest of the others is kept
+            coalescer.handleCommandMessage(command("g2", "gaze", null));
+            coalescer.handleCommandMessage(command("g3", "gaze", null));
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals("[g1, g3]", mPassed.toString());
+            assertEquals(1, mStatuses.size());
+            assertEquals("g2", mStatuses.get(0).getTaskID());
+        } finally {
+            coalescer.abort();
+            coalescer.join();
+        }
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static CommandMessage command(String taskID, String type, String id) {
+        CommandMessage command = new CommandMessage(taskID, type);
+        if (id != null) {
+            command.addParameter(CommandCoalescer.ID_PARAM, id);
+        }
+        return command;
+    }
+}
@@ -0,0 +1,116 @@
+package de.kmj.robots.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ordering and the overload rejection of the
+ * {@link CommandDispatcher}.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandDispatcherTest {
+
+    private final List<String> mExecuted
+            = Collections.synchronizedList(new ArrayList<String>());
+    private final List<StatusMessage> mStatuses
+            = Collections.synchronizedList(new ArrayList<StatusMessage>());
+
+    private CommandDispatcher mDispatcher;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mDispatcher != null) {
+            mDispatcher.abort();
+            mDispatcher.join();
+        }
+    }
+
+    @Test
+    public void overloadRejection() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        mDispatcher = new CommandDispatcher(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                mExecuted.add(message.getCommandType());
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                done.countDown();
+            }
+        }, statusHandler(), 1, 2);
+        mDispatcher.start();
+
+        mDispatcher.handleCommandMessage(new CommandMessage("t1", "c1"));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        mDispatcher.handleCommandMessage(new CommandMessage("t2", "c2"));
+        mDispatcher.handleCommandMessage(new CommandMessage("t3", "c3"));
+        assertEquals(2, mDispatcher.getQueuedCount());
+
+        // the queue is full, so the receiving thread is not blocked
+        mDispatcher.handleCommandMessage(new CommandMessage("t4", "c4"));
+        assertEquals(1, mStatuses.size());
+        StatusMessage rejection = mStatuses.get(0);
+        assertEquals("t4", rejection.getTaskID());
+        assertEquals("rejected", rejection.getStatus());
+        assertEquals("overloaded", rejection.getDetail("reason"));
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[c1, c2, c3]", mExecuted.toString());
+    }
+
+    @Test
+    public void orderPerTask() throws Exception {
+        final CountDownLatch done = new CountDownLatch(100);
+        mDispatcher = new CommandDispatcher(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                if (message.getTaskID().equals("same")) {
+                    mExecuted.add(message.getCommandType());
+                }
+                done.countDown();
+            }
+        }, statusHandler(), 4, 100);
+        mDispatcher.start();
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            mDispatcher.handleCommandMessage(new CommandMessage("same", "c" + i));
+            mDispatcher.handleCommandMessage(new CommandMessage("other" + i, "x"));
+            expected.add("c" + i);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(expected, mExecuted);
+        assertTrue(mStatuses.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noWorkers() {
+        new CommandDispatcher(null, null, 0, 1);
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private StatusMessageHandler statusHandler() {
+        return new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                mStatuses.add(message);
+            }
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package de.kmj.robots.messaging;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the channel registration and the bounded client registry of the
+ * {@link InProcessServer}.
+ *
+ * @author Kathrin Janowski
+ */
+public class InProcessServerTest {
+
+    private static final CommandMessageHandler cIgnore = new CommandMessageHandler() {
+        @Override
+        public void handleCommandMessage(CommandMessage message) {
+        }
+    };
+
+    private InProcessServer mServer;
+
+    @Before
+    public void setUp() {
+        mServer = new InProcessServer(cIgnore, "test");
+        mServer.setLogLevel(Level.OFF);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.abort();
+        mServer.awaitTermination();
+    }
+
+    @Test
+    public void channelInUse() throws Exception {
+        InProcessServer other = new InProcessServer(cIgnore, "test");
+        try {
+            other.start();
+            fail("started a second server on the same channel");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(InProcessServer.lookup("test") == mServer);
+    }
+
+    @Test
+    public void statusReachesClient() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        InProcessClient client = new InProcessClient(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                finished.countDown();
+            }
+        }, "test");
+        client.start();
+        try {
+            assertTrue(client.sendCommandMessage(new CommandMessage("t1", "speech")));
+            assertEquals(1, mServer.getTaskAddressRegistry().size());
+            assertTrue(mServer.sendStatusMessage(new StatusMessage("t1", "finished")));
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertTrue(mServer.getTaskAddressRegistry().isEmpty());
+        } finally {
+            client.abort();
+            client.awaitTermination();
+        }
+    }
+
+    @Test
+    public void unfinishedTasksAreBounded() throws Exception {
+        mServer.getTaskAddressRegistry().setMaxTasks(100);
+        InProcessClient client = new InProcessClient(null, "test");
+        client.start();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                client.sendCommandMessage(new CommandMessage("t" + i, "speech"));
+            }
+            assertTrue(mServer.getTaskAddressRegistry().size() <= 100);
+
+            client.abort();
+            assertTrue(mServer.getTaskAddressRegistry().isEmpty());
+        } finally {
+            client.abort();
+            client.awaitTermination();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package de.kmj.robots.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records messages with a {@link MessageJournal} and reads them back with a
+ * {@link JournalReader}, including journals which were not closed properly.
+ *
+ * @author Kathrin Janowski
+ */
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(dir, "test", 4096);
+        CommandMessage command = new CommandMessage("t1", "speech");
+        command.addParameter("text", "Hello ä€😀");
+        assertTrue(journal.record(command, 100L));
+        assertTrue(journal.record(new StatusMessage("t1", "finished"), 200L));
+        journal.close();
+        assertEquals(2, journal.getRecordCount());
+        assertFalse(journal.record(command, 300L));
+
+        List<JournalEntry> entries = read(dir, journal.getSession());
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).isCommand());
+        assertEquals(100L, entries.get(0).getTimestamp());
+        assertEquals(command.getCommandParams(), entries.get(0).getCommand().getCommandParams());
+        assertFalse(entries.get(1).isCommand());
+        assertEquals("finished", entries.get(1).getStatus().getStatus());
+        assertEquals(200L, entries.get(1).getTimestamp());
+    }
+
+    @Test
+    public void segments() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(dir, "test", 1024);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(journal.record(new StatusMessage("task" + i, "started"), i));
+        }
+        CommandMessage huge = new CommandMessage("huge", "speech");
+        huge.addParameter("text", new String(new char[2000]).replace('\0', 'x'));
+        assertFalse(journal.record(huge, 0L));
+        journal.close();
+        assertTrue(journal.getSegmentCount() > 1);
+        assertEquals(1, journal.getDroppedCount());
+
+        List<JournalEntry> entries = read(dir, journal.getSession());
+        assertEquals(200, entries.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("task" + i, entries.get(i).getTaskID());
+        }
+    }
+
+    @Test
+    public void sameSecond() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal first = new MessageJournal(dir, "test", 1024);
+        MessageJournal second = new MessageJournal(dir, "test", 1024);
+        assertFalse(first.getSession().equals(second.getSession()));
+
+        first.record(new StatusMessage("a", "finished"), 1L);
+        second.record(new StatusMessage("b", "finished"), 2L);
+        first.close();
+        second.close();
+
+        assertEquals("a", read(dir, first.getSession()).get(0).getTaskID());
+        assertEquals("b", read(dir, second.getSession()).get(0).getTaskID());
+        assertEquals(2, JournalReader.listSessions(dir).size());
+    }
+
+    @Test
+    public void tornLastRecord() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(dir, "test", 1024);
+        journal.record(new StatusMessage("a", "finished"), 1L);
+        journal.record(new StatusMessage("b", "finished"), 2L);
+        journal.flush();
+        // simulates a crash: the journal is not closed, and the last record
+        // has a valid start but an invalid payload length
+        File segment = segmentFile(dir, journal.getSession(), 1);
+        long length = segment.length();
+        int end = findEnd(segment);
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(end);
+            file.writeLong(3L);
+            file.writeByte(BinaryMessageCodec.MAGIC);
+            file.writeByte(BinaryMessageCodec.KIND_STATUS);
+            file.writeInt(5000);
+        } finally {
+            file.close();
+        }
+        assertEquals(length, segment.length());
+
+        List<JournalEntry> entries = read(dir, journal.getSession());
+        assertEquals(2, entries.size());
+        assertEquals("b", entries.get(1).getTaskID());
+    }
+
+    @Test
+    public void corruptEarlierSegment() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(dir, "test", 1024);
+        for (int i = 0; i < 100; i++) {
+            journal.record(new StatusMessage("task" + i, "started"), i);
+        }
+        journal.close();
+        assertTrue(journal.getSegmentCount() > 1);
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(dir, journal.getSession(), 1), "rw");
+        try {
+            // the payload length of the first record
+            file.seek(MessageJournal.SEGMENT_HEADER_SIZE + MessageJournal.RECORD_HEADER_SIZE + 2);
+            file.writeInt(100000);
+        } finally {
+            file.close();
+        }
+
+        try {
+            read(dir, journal.getSession());
+            fail("accepted a corrupt segment");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void emptyLastSegment() throws Exception {
+        File dir = mFolder.getRoot();
+        MessageJournal journal = new MessageJournal(dir, "test", 1024);
+        journal.record(new StatusMessage("a", "finished"), 1L);
+        journal.close();
+        // a crash right after creating the next segment
+        assertTrue(segmentFile(dir, journal.getSession(), 2).createNewFile());
+
+        assertEquals(1, read(dir, journal.getSession()).size());
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static List<JournalEntry> read(File dir, String session) throws IOException {
+        JournalReader reader = new JournalReader(dir, session);
+        try {
+            return reader.readAll();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static File segmentFile(File dir, String session, int index) {
+        return new File(dir, String.format("%s.%05d%s", session, index,
+                MessageJournal.FILE_EXTENSION));
+    }
+
+    /**
+     * @return the position after the last record of a segment
+     */
+    private static int findEnd(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            int position = MessageJournal.SEGMENT_HEADER_SIZE;
+            while (true) {
+                file.seek(position + MessageJournal.RECORD_HEADER_SIZE);
+                if (file.readByte() != BinaryMessageCodec.MAGIC) {
+                    return position;
+                }
+                file.readByte();
+                position += MessageJournal.RECORD_HEADER_SIZE + 6 + file.readInt();
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package de.kmj.robots.messaging;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link MessageWriter} produces the same output as the
+ * Transformer which was used by {@link XMLMessage#toString()} before, and
+ * that this output is parsed back into the same message.
+ *
+ * @author Kathrin Janowski
+ */
+public class MessageWriterTest {
+
+    private static final Charset cCharset = Charset.forName("UTF-8");
+
+    /**
+     * Characters which need escaping, plus some plain ones.
+     */
+    private static final String cSpecialChars = "&<>\"'= \t\n\raZ09ä€";
+
+    /**
+     * Names which collide with the fixed attributes of both message types.
+     */
+    private static final String[] cNames = new String[]{
+        "task", "type", "status", "a", "speed", "text", "x", "zz", "target"
+    };
+
+    //==========================================================================
+    // fixed cases
+    //==========================================================================
+    @Test
+    public void plainCommand() throws Exception {
+        CommandMessage command = new CommandMessage("t1", "speak");
+        command.addParameter("text", "Hello world");
+        command.addParameter("speed", "1.0");
+        checkCommand(command);
+    }
+
+    @Test
+    public void plainStatus() throws Exception {
+        checkStatus(new StatusMessage("t1", "finished"));
+    }
+
+    @Test
+    public void escapedEntities() throws Exception {
+        CommandMessage command = new CommandMessage("a&b<c>", "say\"it\"");
+        command.addParameter("text", "<b>fish &amp; chips</b> 'quoted' \"double\"");
+        checkCommand(command);
+
+        StatusMessage status = new StatusMessage("x>y", "failed");
+        status.addDetail("reason", "a < b && c > d \"q\"");
+        checkStatus(status);
+    }
+
+    @Test
+    public void whitespaceControlCharacters() throws Exception {
+        CommandMessage command = new CommandMessage("t\t1", "speak");
+        command.addParameter("text", "line1\nline2\r\nindent\tend");
+        checkCommand(command);
+
+        StatusMessage status = new StatusMessage("t1", "started");
+        status.addDetail("lines", "\n\r\t");
+        checkStatus(status);
+    }
+
+    @Test
+    public void otherControlCharacters() throws Exception {
+        // not allowed in XML 1.0, so only the serialization is compared
+        CommandMessage command = new CommandMessage("t1", "speak");
+        command.addParameter("text", "bell\u0007 escape\u001b null\u0000 us\u001f");
+        assertSameAsTransformer(command);
+
+        StatusMessage status = new StatusMessage("t\u0001", "started");
+        status.addDetail("c", "\u0002\u0003");
+        assertSameAsTransformer(status);
+    }
+
+    @Test
+    public void supplementaryCharacters() throws Exception {
+        CommandMessage command = new CommandMessage("t😀", "speak");
+        command.addParameter("text", "smile 😀, clef 𝄞, cjk 𠀀");
+        checkCommand(command);
+
+        StatusMessage status = new StatusMessage("t1", "finished");
+        status.addDetail("emoji", "🤖");
+        checkStatus(status);
+    }
+
+    @Test
+    public void collidingCommandKeys() throws Exception {
+        CommandMessage command = new CommandMessage("t1", "speak");
+        command.addParameter("task", "other");
+        command.addParameter("type", "move");
+        command.addParameter("status", "s");
+        command.addParameter("a", "first");
+        command.addParameter("z", "last");
+        assertSameAsTransformer(command);
+
+        // the parameters replace the fixed attributes, as setAttribute() did
+        CommandMessage parsed = new CommandMessage(command.toString());
+        assertEquals("other", parsed.getTaskID());
+        assertEquals("move", parsed.getCommandType());
+        assertEquals(Arrays.asList("a", "status", "z"),
+                Arrays.asList(parsed.getCommandParams().keySet().toArray()));
+    }
+
+    @Test
+    public void collidingStatusKeys() throws Exception {
+        StatusMessage status = new StatusMessage("t1", "finished");
+        status.addDetail("status", "failed");
+        status.addDetail("task", "other");
+        status.addDetail("type", "t");
+        assertSameAsTransformer(status);
+
+        StatusMessage parsed = new StatusMessage(status.toString());
+        assertEquals("other", parsed.getTaskID());
+        assertEquals("failed", parsed.getStatus());
+        assertEquals(Arrays.asList("type"),
+                Arrays.asList(parsed.getStatusDetails().keySet().toArray()));
+    }
+
+    @Test
+    public void smallBuffer() throws Exception {
+        CommandMessage command = new CommandMessage("t1", "speak");
+        command.addParameter("text", "Hello world");
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        assertFalse(command.writeTo(buffer));
+    }
+
+    //==========================================================================
+    // random messages
+    //==========================================================================
+    @Test
+    public void randomMessages() throws Exception {
+        Random random = new Random(20261018L);
+        for (int i = 0; i < 2000; i++) {
+            CommandMessage command = new CommandMessage(randomText(random),
+                    randomText(random));
+            StatusMessage status = new StatusMessage(randomText(random),
+                    randomText(random));
+            int count = random.nextInt(6);
+            for (int j = 0; j < count; j++) {
+                String name = cNames[random.nextInt(cNames.length)];
+                command.addParameter(name, randomText(random));
+                status.addDetail(name, randomText(random));
+            }
+
+            assertSameAsTransformer(command);
+            assertSameAsTransformer(status);
+            assertRoundTrip(command);
+            assertRoundTrip(status);
+        }
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static void checkCommand(CommandMessage command) throws Exception {
+        assertSameAsTransformer(command);
+        assertRoundTrip(command);
+
+        CommandMessage parsed = new CommandMessage(command.toString());
+        assertEquals(command.getTaskID(), parsed.getTaskID());
+        assertEquals(command.getCommandType(), parsed.getCommandType());
+        assertEquals(command.getCommandParams(), parsed.getCommandParams());
+    }
+
+    private static void checkStatus(StatusMessage status) throws Exception {
+        assertSameAsTransformer(status);
+        assertRoundTrip(status);
+
+        StatusMessage parsed = new StatusMessage(status.toString());
+        assertEquals(status.getTaskID(), parsed.getTaskID());
+        assertEquals(status.getStatus(), parsed.getStatus());
+        assertEquals(status.getStatusDetails(), parsed.getStatusDetails());
+    }
+
+    /**
+     * Compares toString() and writeTo() with the output of the Transformer
+     * configuration which XMLMessage used before.
+     */
+    private static void assertSameAsTransformer(XMLMessage message) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(message.getDocument()), new StreamResult(writer));
+        String expected = writer.toString();
+
+        assertEquals(expected, message.toString());
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        assertTrue(message.writeTo(buffer));
+        buffer.flip();
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(expected.getBytes(cCharset), actual);
+    }
+
+    /**
+     * Parses the output as a string and as bytes and compares the
+     * serialization of the parsed messages, which contains all fields.
+     */
+    private static void assertRoundTrip(CommandMessage command) {
+        String text = command.toString();
+        assertEquals(text, new CommandMessage(text).toString());
+        assertEquals(text, new CommandMessage(ByteBuffer.wrap(text.getBytes(cCharset))).toString());
+        assertEquals(text, new CommandMessage(command.getDocument().getDocumentElement()).toString());
+    }
+
+    private static void assertRoundTrip(StatusMessage status) {
+        String text = status.toString();
+        assertEquals(text, new StatusMessage(text).toString());
+        assertEquals(text, new StatusMessage(ByteBuffer.wrap(text.getBytes(cCharset))).toString());
+        assertEquals(text, new StatusMessage(status.getDocument().getDocumentElement()).toString());
+    }
+
+    private static String randomText(Random random) {
+        int length = 1 + random.nextInt(12);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 5) {
+                text.append(cSpecialChars.charAt(random.nextInt(cSpecialChars.length())));
+            } else if (kind < 8) {
+                text.append((char) ('a' + random.nextInt(26)));
+            } else if (kind < 9) {
+                text.appendCodePoint(0x10000 + random.nextInt(0x10000));
+            } else {
+                text.append((char) (0x00a0 + random.nextInt(0x2000)));
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package de.kmj.robots.messaging;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the removal of handlers whose tasks never end in the
+ * {@link MultiplexedMessageClient}.
+ *
+ * @author Kathrin Janowski
+ */
+public class MultiplexedMessageClientTest {
+
+    private static final StatusMessageHandler cHandler = new StatusMessageHandler() {
+        @Override
+        public void handleStatusMessage(StatusMessage message) {
+        }
+    };
+
+    private DatagramSocket mServer;
+    private MultiplexedMessageClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        // the server never answers, so all final statuses are lost
+        mServer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        mClient = new MultiplexedMessageClient(1024, "127.0.0.1", "127.0.0.1",
+                mServer.getLocalPort());
+        mClient.start();
+        assertTrue(mClient.isConnected());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.abort();
+        mClient.join();
+        mServer.close();
+    }
+
+    @Test
+    public void lostFinalStatus() throws Exception {
+        mClient.setHandlerTimeout(50);
+        assertTrue(mClient.sendCommandMessage(new CommandMessage("t1", "speech"), cHandler));
+        assertTrue(mClient.sendCommandMessage(new CommandMessage("t2", "speech"), cHandler));
+        assertEquals(2, mClient.getOpenTaskCount());
+
+        Thread.sleep(100);
+        assertTrue(mClient.sendCommandMessage(new CommandMessage("t3", "speech"), cHandler));
+        assertEquals(1, mClient.getOpenTaskCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTimeout() {
+        mClient.setHandlerTimeout(0);
+    }
+}
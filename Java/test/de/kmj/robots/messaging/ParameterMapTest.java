@@ -0,0 +1,290 @@
+package de.kmj.robots.messaging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares a {@link ParameterMap} with a TreeMap under random operations,
+ * including the views and the navigation methods.
+ *
+ * @author Kathrin Janowski
+ */
+public class ParameterMapTest {
+
+    /**
+     * Includes well-known names, which are interned by put().
+     */
+    private static final String[] cKeys = new String[]{
+        "a", "b", "c", "d", "e", "f", "g", "speed", "text", "x", "y", "zz"
+    };
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(25L);
+        for (int round = 0; round < 200; round++) {
+            ParameterMap map = new ParameterMap();
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            for (int i = 0; i < 200; i++) {
+                apply(random, map, expected);
+                assertSameContent(expected, map);
+            }
+            assertSameContent(expected, new ParameterMap(map));
+        }
+    }
+
+    @Test
+    public void randomViews() {
+        Random random = new Random(2025L);
+        for (int round = 0; round < 2000; round++) {
+            ParameterMap map = new ParameterMap();
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            for (int i = 0; i < random.nextInt(cKeys.length); i++) {
+                String key = randomKey(random);
+                map.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+
+            NavigableMap<String, String> view = map;
+            NavigableMap<String, String> expectedView = expected;
+            int depth = 1 + random.nextInt(3);
+            for (int i = 0; i < depth; i++) {
+                List<NavigableMap<String, String>> views = createView(random, view, expectedView);
+                if (views == null) {
+                    break;
+                }
+                view = views.get(0);
+                expectedView = views.get(1);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                apply(random, view, expectedView);
+                assertSameContent(expectedView, view);
+                assertSameContent(expected, map);
+            }
+        }
+    }
+
+    @Test
+    public void iteratorRemove() {
+        Random random = new Random(7L);
+        for (int round = 0; round < 500; round++) {
+            ParameterMap map = new ParameterMap();
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            for (String key : cKeys) {
+                map.put(key, key);
+                expected.put(key, key);
+            }
+            boolean descending = random.nextBoolean();
+            Iterator<String> keys = descending
+                    ? map.descendingKeySet().iterator() : map.keySet().iterator();
+            Iterator<String> expectedKeys = descending
+                    ? expected.descendingKeySet().iterator() : expected.keySet().iterator();
+            while (expectedKeys.hasNext()) {
+                assertEquals(expectedKeys.next(), keys.next());
+                if (random.nextBoolean()) {
+                    keys.remove();
+                    expectedKeys.remove();
+                }
+            }
+            assertEquals(expectedKeys.hasNext(), keys.hasNext());
+            assertSameContent(expected, map);
+        }
+    }
+
+    @Test
+    public void liveEntries() {
+        ParameterMap map = new ParameterMap();
+        map.put("b", "1");
+        Map.Entry<String, String> entry = map.entrySet().iterator().next();
+        map.put("a", "0");
+        entry.setValue("2");
+        assertEquals("2", map.get("b"));
+        map.remove("b");
+        assertNull(entry.getValue());
+    }
+
+    @Test
+    public void internedNames() {
+        ParameterMap map = new ParameterMap();
+        map.put(new String("text"), "hello");
+        assertSame(BinaryMessageCodec.internName("text"), map.firstKey());
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    /**
+     * Applies the same random operation to both maps and compares the
+     * results.
+     */
+    private static void apply(Random random, NavigableMap<String, String> map,
+            NavigableMap<String, String> expected) {
+        String key = randomKey(random);
+        String value = "v" + random.nextInt(100);
+        switch (random.nextInt(16)) {
+            case 0:
+            case 1:
+            case 2:
+                assertEquals(call(expected, 0, key, value), call(map, 0, key, value));
+                break;
+            case 3:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            case 4:
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+                break;
+            case 5:
+                assertEquals(expected.lowerEntry(key), map.lowerEntry(key));
+                assertEquals(expected.lowerKey(key), map.lowerKey(key));
+                break;
+            case 6:
+                assertEquals(expected.floorEntry(key), map.floorEntry(key));
+                assertEquals(expected.floorKey(key), map.floorKey(key));
+                break;
+            case 7:
+                assertEquals(expected.ceilingEntry(key), map.ceilingEntry(key));
+                assertEquals(expected.ceilingKey(key), map.ceilingKey(key));
+                break;
+            case 8:
+                assertEquals(expected.higherEntry(key), map.higherEntry(key));
+                assertEquals(expected.higherKey(key), map.higherKey(key));
+                break;
+            case 9:
+                assertEquals(expected.firstEntry(), map.firstEntry());
+                assertEquals(expected.lastEntry(), map.lastEntry());
+                break;
+            case 10:
+                assertEquals(call(expected, 1, key, value), call(map, 1, key, value));
+                break;
+            case 11:
+                assertEquals(expected.pollFirstEntry(), map.pollFirstEntry());
+                break;
+            case 12:
+                assertEquals(expected.pollLastEntry(), map.pollLastEntry());
+                break;
+            case 13:
+                assertEquals(expected.keySet().remove(key), map.keySet().remove(key));
+                break;
+            case 14:
+                if (random.nextInt(4) == 0) {
+                    expected.clear();
+                    map.clear();
+                }
+                break;
+            default:
+                NavigableSet<String> keys = map.navigableKeySet();
+                NavigableSet<String> expectedKeys = expected.navigableKeySet();
+                assertEquals(expectedKeys.lower(key), keys.lower(key));
+                assertEquals(expectedKeys.ceiling(key), keys.ceiling(key));
+                assertEquals(list(expectedKeys.descendingIterator()),
+                        list(keys.descendingIterator()));
+        }
+    }
+
+    /**
+     * Calls put() or firstKey()/lastKey(), which may throw an exception.
+     *
+     * @return the result or the class of the exception
+     */
+    private static Object call(NavigableMap<String, String> map, int method,
+            String key, String value) {
+        try {
+            if (method == 0) {
+                return map.put(key, value);
+            }
+            return map.firstKey() + map.lastKey();
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /**
+     * Creates the same random view of both maps.
+     *
+     * @return the two views, or null if the bounds are not allowed
+     */
+    private static List<NavigableMap<String, String>> createView(Random random,
+            NavigableMap<String, String> map, NavigableMap<String, String> expected) {
+        String from = randomKey(random);
+        String to = randomKey(random);
+        boolean fromInclusive = random.nextBoolean();
+        boolean toInclusive = random.nextBoolean();
+
+        NavigableMap<String, String> view = null;
+        NavigableMap<String, String> expectedView = null;
+        RuntimeException expectedError = null;
+        int kind = random.nextInt(4);
+        try {
+            expectedView = createView(kind, expected, from, fromInclusive, to, toInclusive);
+        } catch (RuntimeException e) {
+            expectedError = e;
+        }
+        try {
+            view = createView(kind, map, from, fromInclusive, to, toInclusive);
+            if (expectedError != null) {
+                fail("expected " + expectedError);
+            }
+        } catch (RuntimeException e) {
+            if (expectedError == null) {
+                throw e;
+            }
+            assertEquals(expectedError.getClass(), e.getClass());
+            return null;
+        }
+        List<NavigableMap<String, String>> views = new ArrayList<NavigableMap<String, String>>(2);
+        views.add(view);
+        views.add(expectedView);
+        return views;
+    }
+
+    private static NavigableMap<String, String> createView(int kind,
+            NavigableMap<String, String> map, String from, boolean fromInclusive,
+            String to, boolean toInclusive) {
+        switch (kind) {
+            case 0:
+                return map.subMap(from, fromInclusive, to, toInclusive);
+            case 1:
+                return map.headMap(to, toInclusive);
+            case 2:
+                return map.tailMap(from, fromInclusive);
+            default:
+                return map.descendingMap();
+        }
+    }
+
+    private static void assertSameContent(NavigableMap<String, String> expected,
+            NavigableMap<String, String> map) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.isEmpty(), map.isEmpty());
+        assertEquals(list(expected.entrySet().iterator()), list(map.entrySet().iterator()));
+        assertEquals(list(expected.values().iterator()), list(map.values().iterator()));
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertEquals(expected.toString(), map.toString());
+    }
+
+    private static <T> List<T> list(Iterator<T> iterator) {
+        ArrayList<T> list = new ArrayList<T>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    private static String randomKey(Random random) {
+        return cKeys[random.nextInt(cKeys.length)];
+    }
+}
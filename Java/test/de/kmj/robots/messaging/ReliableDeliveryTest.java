@@ -0,0 +1,218 @@
+package de.kmj.robots.messaging;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the acknowledgements, retransmissions and timeouts of the
+ * {@link ReliableDelivery}, and the duplicate filter of the
+ * {@link MessageServer}.
+ *
+ * @author Kathrin Janowski
+ */
+public class ReliableDeliveryTest {
+
+    private static final Charset cCharset = Charset.forName("UTF-8");
+
+    /**
+     * The sent commands and their sending times in nanoseconds.
+     */
+    private final List<CommandMessage> mSent
+            = Collections.synchronizedList(new ArrayList<CommandMessage>());
+    private final List<Long> mSendTimes
+            = Collections.synchronizedList(new ArrayList<Long>());
+
+    /**
+     * The synthesized statuses.
+     */
+    private final List<StatusMessage> mRejected
+            = Collections.synchronizedList(new ArrayList<StatusMessage>());
+    private CountDownLatch mRejectedLatch;
+
+    private ReliableDelivery mDelivery;
+
+    @Before
+    public void setUp() {
+        mRejectedLatch = new CountDownLatch(1);
+        mDelivery = new ReliableDelivery(new ReliableDelivery.Sender() {
+            @Override
+            public boolean sendCommand(CommandMessage command) {
+                mSendTimes.add(System.nanoTime());
+                mSent.add(command);
+                return true;
+            }
+        }, new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                mRejected.add(message);
+                mRejectedLatch.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mDelivery.close();
+    }
+
+    @Test
+    public void acknowledgementBySeq() throws Exception {
+        mDelivery.setRetransmitDelay(100);
+        CommandMessage command = new CommandMessage("t1", "speech");
+        assertTrue(mDelivery.send(command));
+        assertEquals(null, command.getParam(ReliableDelivery.SEQ_PARAM));
+        String seq = mSent.get(0).getParam(ReliableDelivery.SEQ_PARAM);
+
+        // an acknowledgement of an earlier attempt doesn't count
+        assertFalse(mDelivery.handleStatus(received("t1", seq + "0")));
+        assertEquals(1, mDelivery.getPendingCount());
+
+        assertFalse(mDelivery.handleStatus(received("t1", seq)));
+        assertEquals(0, mDelivery.getPendingCount());
+
+        Thread.sleep(250);
+        assertEquals(1, mSent.size());
+        assertTrue(mDelivery.handleStatus(new StatusMessage("t1", "finished")));
+    }
+
+    @Test
+    public void retransmitBackoff() throws Exception {
+        mDelivery.setRetransmitDelay(20);
+        mDelivery.setMaxRetries(3);
+        mDelivery.send(new CommandMessage("t1", "speech"));
+        assertTrue(mRejectedLatch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(4, mSent.size());
+        String seq = mSent.get(0).getParam(ReliableDelivery.SEQ_PARAM);
+        long expected = 20;
+        for (int i = 1; i < 4; i++) {
+            assertEquals(seq, mSent.get(i).getParam(ReliableDelivery.SEQ_PARAM));
+            long interval = (mSendTimes.get(i) - mSendTimes.get(i - 1)) / 1000000L;
+            assertTrue("interval " + i + ": " + interval + " ms", interval >= expected);
+            expected *= 2;
+        }
+
+        StatusMessage rejected = mRejected.get(0);
+        assertEquals("t1", rejected.getTaskID());
+        assertEquals("rejected", rejected.getStatus());
+        assertEquals("timeout", rejected.getDetail("reason"));
+        assertEquals(0, mDelivery.getPendingCount());
+    }
+
+    @Test
+    public void lateStatusesAfterTimeout() throws Exception {
+        mDelivery.setRetransmitDelay(10);
+        mDelivery.setMaxRetries(0);
+        mDelivery.send(new CommandMessage("t1", "speech"));
+        assertTrue(mRejectedLatch.await(5, TimeUnit.SECONDS));
+
+        assertFalse(mDelivery.handleStatus(new StatusMessage("t1", "started")));
+        assertFalse(mDelivery.handleStatus(new StatusMessage("t1", "finished")));
+        // only the statuses up to the final one are dropped
+        assertTrue(mDelivery.handleStatus(new StatusMessage("t1", "finished")));
+        assertTrue(mDelivery.handleStatus(new StatusMessage("other", "finished")));
+    }
+
+    @Test
+    public void taskTimeout() throws Exception {
+        mDelivery.setTaskTimeout(50);
+        mDelivery.send(new CommandMessage("t1", "speech"));
+        String seq = mSent.get(0).getParam(ReliableDelivery.SEQ_PARAM);
+        mDelivery.handleStatus(received("t1", seq));
+        assertTrue(mDelivery.handleStatus(new StatusMessage("t1", "started")));
+        assertEquals(1, mDelivery.getPendingCount());
+
+        assertTrue(mRejectedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals("timeout", mRejected.get(0).getDetail("reason"));
+        assertEquals(1, mSent.size());
+        assertFalse(mDelivery.handleStatus(new StatusMessage("t1", "finished")));
+    }
+
+    @Test
+    public void timersAreCancelled() throws Exception {
+        mDelivery.setTaskTimeout(600000);
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            mDelivery.send(new CommandMessage("t" + i, "gaze"));
+            String seq = mSent.get(i).getParam(ReliableDelivery.SEQ_PARAM);
+            mDelivery.handleStatus(received("t" + i, seq));
+            mDelivery.handleStatus(new StatusMessage("t" + i, "finished"));
+        }
+        assertEquals(0, mDelivery.getPendingCount());
+        assertTrue("timers: " + mDelivery.getTimerCount(),
+                mDelivery.getTimerCount() <= ReliableDelivery.PURGE_INTERVAL);
+    }
+
+    @Test
+    public void serverDropsDuplicates() throws Exception {
+        final AtomicInteger handled = new AtomicInteger();
+        MessageServer server = new MessageServer(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+                handled.incrementAndGet();
+            }
+        }, 4096, "127.0.0.1", 47321);
+        server.setLogLevel(Level.OFF);
+        server.start();
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            socket.setSoTimeout(5000);
+            CommandMessage command = new CommandMessage("t1", "speech");
+            command.addParameter(ReliableDelivery.SEQ_PARAM, "7");
+            byte[] bytes = command.toString().getBytes(cCharset);
+            InetSocketAddress serverAddr = new InetSocketAddress("127.0.0.1", 47321);
+            for (int i = 0; i < 3; i++) {
+                socket.send(new DatagramPacket(bytes, bytes.length, serverAddr));
+                StatusMessage ack = receive(socket);
+                assertEquals(ReliableDelivery.RECEIVED_STATUS, ack.getStatus());
+                assertEquals("7", ack.getDetail(ReliableDelivery.SEQ_PARAM));
+            }
+
+            // a new attempt of the same task is passed on again
+            command.addParameter(ReliableDelivery.SEQ_PARAM, "8");
+            bytes = command.toString().getBytes(cCharset);
+            socket.send(new DatagramPacket(bytes, bytes.length, serverAddr));
+            assertEquals("8", receive(socket).getDetail(ReliableDelivery.SEQ_PARAM));
+
+            for (int i = 0; i < 100 && handled.get() < 2; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            assertEquals(2, handled.get());
+        } finally {
+            socket.close();
+            server.abort();
+            server.awaitTermination();
+        }
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static StatusMessage received(String taskID, String seq) {
+        StatusMessage ack = new StatusMessage(taskID, ReliableDelivery.RECEIVED_STATUS);
+        ack.addDetail(ReliableDelivery.SEQ_PARAM, seq);
+        return ack;
+    }
+
+    private static StatusMessage receive(DatagramSocket socket) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        socket.receive(packet);
+        return new StatusMessage(new String(packet.getData(), 0, packet.getLength(), cCharset));
+    }
+}
@@ -0,0 +1,112 @@
+package de.kmj.robots.messaging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the queue bound and the subscription timeout of the
+ * {@link StatusFanOut}.
+ *
+ * @author Kathrin Janowski
+ */
+public class StatusFanOutTest {
+
+    private static final SocketAddress cSubscriber = new InetSocketAddress("127.0.0.1", 7001);
+
+    private StatusFanOut mFanOut;
+
+    @After
+    public void tearDown() {
+        if (mFanOut != null) {
+            mFanOut.close();
+        }
+    }
+
+    @Test
+    public void subscriptionExpires() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        final CountDownLatch first = new CountDownLatch(1);
+        mFanOut = new StatusFanOut("test", new StatusFanOut.Sender() {
+            @Override
+            public void send(byte[] bytes, SocketAddress address) throws IOException {
+                sent.incrementAndGet();
+                first.countDown();
+            }
+        });
+        mFanOut.setSubscriptionTimeout(100);
+        mFanOut.subscribe(cSubscriber, false);
+
+        mFanOut.publish(new StatusMessage("t1", "finished"), null);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(200);
+        mFanOut.publish(new StatusMessage("t2", "finished"), null);
+        for (int i = 0; i < 100 && mFanOut.getObserverCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mFanOut.getObserverCount());
+        assertEquals(1, sent.get());
+    }
+
+    @Test
+    public void sendFailureRemovesSubscriber() throws Exception {
+        mFanOut = new StatusFanOut("test", new StatusFanOut.Sender() {
+            @Override
+            public void send(byte[] bytes, SocketAddress address) throws IOException {
+                throw new IOException("unreachable");
+            }
+        });
+        mFanOut.subscribe(cSubscriber, true);
+        mFanOut.publish(new StatusMessage("t1", "finished"), null);
+        for (int i = 0; i < 500 && mFanOut.getObserverCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mFanOut.getObserverCount());
+    }
+
+    @Test
+    public void queueDropsOldest() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final String[] last = new String[1];
+        mFanOut = new StatusFanOut("test", null);
+        mFanOut.addObserver(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                last[0] = message.getTaskID();
+                handled.incrementAndGet();
+            }
+        });
+
+        mFanOut.publish(new StatusMessage("first", "finished"), null);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+        int count = StatusFanOut.MAX_QUEUE_SIZE + 10;
+        for (int i = 0; i < count; i++) {
+            mFanOut.publish(new StatusMessage("t" + i, "finished"), null);
+        }
+        assertEquals(10, mFanOut.getDroppedCount());
+
+        release.countDown();
+        for (int i = 0; i < 500 && handled.get() < StatusFanOut.MAX_QUEUE_SIZE + 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(StatusFanOut.MAX_QUEUE_SIZE + 1, handled.get());
+        assertEquals("t" + (count - 1), last[0]);
+    }
+}
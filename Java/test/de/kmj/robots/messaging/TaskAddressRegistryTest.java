@@ -0,0 +1,104 @@
+package de.kmj.robots.messaging;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the eviction order of the {@link TaskAddressRegistry}.
+ *
+ * @author Kathrin Janowski
+ */
+public class TaskAddressRegistryTest {
+
+    private static final SocketAddress cAddress = new InetSocketAddress("127.0.0.1", 7000);
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        TaskAddressRegistry registry = new TaskAddressRegistry(600000L, 3);
+        registry.register("a", cAddress, false);
+        registry.register("b", cAddress, false);
+        registry.register("c", cAddress, true);
+
+        // "a" is used again, so "b" is the oldest one
+        assertNotNull(registry.lookup("a"));
+        registry.register("d", cAddress, false);
+
+        assertEquals(3, registry.size());
+        assertNull(registry.lookup("b"));
+        assertNotNull(registry.lookup("a"));
+        assertNotNull(registry.lookup("c"));
+        assertNotNull(registry.lookup("d"));
+        assertEquals(1, registry.getEvictionCount());
+    }
+
+    @Test
+    public void capHoldsUnderLoad() {
+        TaskAddressRegistry registry = new TaskAddressRegistry(600000L, 1000);
+        for (int i = 0; i < 100000; i++) {
+            registry.register("task" + i, cAddress, false);
+        }
+        // each sweep at the cap frees a tenth of it
+        assertTrue(registry.size() <= 1000);
+        assertTrue(registry.size() >= 900);
+        assertEquals(100000 - registry.size(), registry.getEvictionCount());
+        assertNotNull(registry.lookup("task99999"));
+        assertNotNull(registry.lookup("task99100"));
+        assertNull(registry.lookup("task98999"));
+    }
+
+    @Test
+    public void evictsExpired() throws Exception {
+        TaskAddressRegistry registry = new TaskAddressRegistry(50L, 100);
+        registry.register("old", cAddress, false);
+        registry.register("used", cAddress, false);
+        Thread.sleep(30);
+        assertNotNull(registry.lookup("used"));
+        Thread.sleep(30);
+
+        assertEquals(1, registry.evictExpired());
+        assertNull(registry.lookup("old"));
+        assertNotNull(registry.lookup("used"));
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        final TaskAddressRegistry registry = new TaskAddressRegistry(600000L, 500);
+        final Throwable[] error = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String prefix = "thread" + t + "-";
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            registry.register(prefix + i, cAddress, false);
+                            registry.lookup(prefix + (i / 2));
+                            if (i % 3 == 0) {
+                                registry.remove(prefix + i);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error[0]);
+
+        // the cap may be exceeded while another thread sweeps, but not after
+        // a registration without contention
+        registry.register("last", cAddress, false);
+        assertTrue(registry.size() <= 500);
+        assertNotNull(registry.lookup("last"));
+    }
+}
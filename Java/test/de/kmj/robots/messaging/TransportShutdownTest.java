@@ -0,0 +1,62 @@
+package de.kmj.robots.messaging;
+
+import de.kmj.robots.util.RobotThreadFactory;
+import java.util.logging.Level;
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that awaitTermination() of the UDP transports waits for the
+ * receiving loop. The test requests virtual threads, which are used on
+ * Java 21 or later if this class is the first to touch the
+ * {@link RobotThreadFactory}; otherwise the platform threads are checked.
+ *
+ * @author Kathrin Janowski
+ */
+public class TransportShutdownTest {
+
+    static {
+        System.setProperty(RobotThreadFactory.MODE_PROPERTY, "virtual");
+    }
+
+    @Test
+    public void serverAwaitsLoop() throws Exception {
+        MessageServer server = new MessageServer(new CommandMessageHandler() {
+            @Override
+            public void handleCommandMessage(CommandMessage message) {
+            }
+        }, 4096, "127.0.0.1", 47311);
+        server.setLogLevel(Level.OFF);
+        server.start();
+        Thread loop = server.getLoopThread();
+        assertTrue(loop.isAlive());
+        assertTrue(RobotThreadFactory.isVirtual() == (loop != server));
+
+        server.abort();
+        server.awaitTermination();
+        assertFalse(loop.isAlive());
+    }
+
+    @Test
+    public void clientAwaitsLoop() throws Exception {
+        MessageClient client = new MessageClient(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+            }
+        }, 4096, "127.0.0.1", 47312, "127.0.0.1", 47313);
+        client.setLogLevel(Level.OFF);
+        client.start();
+        Thread loop = client.getLoopThread();
+        assertTrue(loop.isAlive());
+
+        client.abort();
+        client.awaitTermination();
+        assertFalse(loop.isAlive());
+    }
+
+    @Test
+    public void awaitWithoutStart() throws Exception {
+        new MessageServer(null, 4096, "127.0.0.1", 47314).awaitTermination();
+    }
+}
@@ -0,0 +1,240 @@
+package de.kmj.robots.util;
+
+import de.kmj.robots.RobotEngine;
+import de.kmj.robots.messaging.CommandMessage;
+import de.kmj.robots.messaging.StatusMessage;
+import de.kmj.robots.messaging.StatusMessageHandler;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the order of execution, the cancellation and the priority,
+ * barge-in and deadline policies of the {@link CommandScheduler}.
+ *
+ * @author Kathrin Janowski
+ */
+public class CommandSchedulerTest {
+
+    /**
+     * An engine which only passes its status messages on.
+     */
+    private static class TestEngine extends RobotEngine {
+
+        @Override
+        public void start(String configPath) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void executeCommand(CommandMessage command) {
+        }
+    }
+
+    /**
+     * The executed and canceled task IDs, and the statuses as
+     * "taskID:status" or "taskID:status:reason".
+     */
+    private final BlockingQueue<String> mExecuted = new LinkedBlockingQueue<String>();
+    private final BlockingQueue<String> mCanceled = new LinkedBlockingQueue<String>();
+    private final BlockingQueue<String> mStatuses = new LinkedBlockingQueue<String>();
+
+    private CommandScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        TestEngine engine = new TestEngine();
+        engine.setStatusMessageHandler(new StatusMessageHandler() {
+            @Override
+            public void handleStatusMessage(StatusMessage message) {
+                String reason = message.getDetail("reason");
+                mStatuses.add(message.getTaskID() + ":" + message.getStatus()
+                        + ((reason != null) ? ":" + reason : ""));
+            }
+        });
+
+        mScheduler = new CommandScheduler(engine, "CommandSchedulerTest");
+        mScheduler.registerSink("speech", new CommandScheduler.CommandSink() {
+            @Override
+            public void execute(CommandMessage command) {
+                mExecuted.add(command.getTaskID());
+            }
+
+            @Override
+            public void cancel(CommandMessage command) {
+                mCanceled.add(command.getTaskID());
+            }
+        });
+        mScheduler.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.abort();
+        mScheduler.join();
+    }
+
+    @Test
+    public void fifoOrder() throws Exception {
+        mScheduler.submit(new CommandMessage("a", "speech"));
+        mScheduler.submit(new CommandMessage("b", "speech"));
+        mScheduler.submit(new CommandMessage("c", "speech"));
+        assertEquals("a", nextExecuted());
+        assertEquals("a", mScheduler.getCurrentTaskID());
+
+        mScheduler.updateState(true);
+        assertEquals("a:started", nextStatus());
+        // the next command waits until the current one has finished
+        assertNull(mExecuted.poll(100, TimeUnit.MILLISECONDS));
+
+        finishCurrent("a");
+        assertEquals("b", nextExecuted());
+        finishCurrent("b");
+        assertEquals("c", nextExecuted());
+        finishCurrent("c");
+        assertNull(mScheduler.getCurrentTaskID());
+    }
+
+    @Test
+    public void clearPending() throws Exception {
+        mScheduler.submit(new CommandMessage("a", "speech"));
+        assertEquals("a", nextExecuted());
+        mScheduler.submit(new CommandMessage("b", "speech"));
+        mScheduler.submit(new CommandMessage("c", "speech"));
+
+        mScheduler.clearPending();
+        assertEquals("b:rejected:canceled", nextStatus());
+        assertEquals("c:rejected:canceled", nextStatus());
+        assertEquals(0, mScheduler.getPendingCount());
+
+        mScheduler.cancelCurrent();
+        assertEquals("a", mCanceled.poll(5, TimeUnit.SECONDS));
+        mScheduler.updateState(false);
+        assertEquals("a:finished:canceled", nextStatus());
+        assertNull(mExecuted.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unknownCommandType() throws Exception {
+        assertFalse(mScheduler.submit(new CommandMessage("c", "dance")));
+        assertEquals("c:rejected:unknown command type: dance", nextStatus());
+        assertNull(mExecuted.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void priorityOrder() throws Exception {
+        mScheduler.submit(command("a", 0, null, -1));
+        assertEquals("a", nextExecuted());
+
+        mScheduler.submit(command("b", 0, null, -1));
+        mScheduler.submit(command("c", 5, null, -1));
+        mScheduler.submit(command("d", 0, null, -1));
+        mScheduler.submit(command("e", 5, null, -1));
+
+        finishCurrent("a");
+        assertEquals("c", nextExecuted());
+        finishCurrent("c");
+        assertEquals("e", nextExecuted());
+        finishCurrent("e");
+        assertEquals("b", nextExecuted());
+        finishCurrent("b");
+        assertEquals("d", nextExecuted());
+        assertNull(mCanceled.poll());
+    }
+
+    @Test
+    public void bargeIn() throws Exception {
+        mScheduler.submit(command("a", 0, null, -1));
+        assertEquals("a", nextExecuted());
+        mScheduler.submit(command("b", 0, null, -1));
+        mScheduler.submit(command("c", 0, CommandScheduler.POLICY_BARGE_IN, -1));
+
+        assertEquals("a", mCanceled.poll(5, TimeUnit.SECONDS));
+        mScheduler.updateState(false);
+        assertEquals("a:finished:interrupted", nextStatus());
+
+        // the barge-in command goes before the waiting one
+        assertEquals("c", nextExecuted());
+        finishCurrent("c");
+        assertEquals("b", nextExecuted());
+    }
+
+    @Test
+    public void noBargeInOverHigherPriority() throws Exception {
+        mScheduler.submit(command("a", 5, null, -1));
+        assertEquals("a", nextExecuted());
+        mScheduler.submit(command("b", 0, CommandScheduler.POLICY_BARGE_IN, -1));
+
+        assertNull(mCanceled.poll(100, TimeUnit.MILLISECONDS));
+        finishCurrent("a");
+        assertEquals("b", nextExecuted());
+    }
+
+    @Test
+    public void staleDeadline() throws Exception {
+        mScheduler.submit(command("a", 0, null, -1));
+        assertEquals("a", nextExecuted());
+        mScheduler.submit(command("b", 0, null, 50));
+        mScheduler.submit(command("c", 0, null, 60000));
+
+        // dropped while a is still running
+        assertEquals("b:rejected:stale", nextStatus());
+        assertEquals(1, mScheduler.getPendingCount());
+
+        finishCurrent("a");
+        assertEquals("c", nextExecuted());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void invalidParameters() throws Exception {
+        CommandMessage command = new CommandMessage("a", "speech");
+        command.addParameter("priority", "high");
+        assertFalse(mScheduler.submit(command));
+        assertEquals("a:rejected:invalid priority: high", nextStatus());
+
+        command = new CommandMessage("b", "speech");
+        command.addParameter("policy", "shout");
+        assertFalse(mScheduler.submit(command));
+        assertEquals("b:rejected:invalid policy: shout", nextStatus());
+        assertNull(mExecuted.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    //==========================================================================
+    // helpers
+    //==========================================================================
+    private static CommandMessage command(String taskID, int priority, String policy,
+            long deadline) {
+        CommandMessage command = new CommandMessage(taskID, "speech");
+        command.addParameter("priority", Integer.toString(priority));
+        if (policy != null) {
+            command.addParameter("policy", policy);
+        }
+        if (deadline >= 0) {
+            command.addParameter("deadline", Long.toString(deadline));
+        }
+        return command;
+    }
+
+    private String nextExecuted() throws InterruptedException {
+        return mExecuted.poll(5, TimeUnit.SECONDS);
+    }
+
+    private String nextStatus() throws InterruptedException {
+        return mStatuses.poll(5, TimeUnit.SECONDS);
+    }
+
+    private void finishCurrent(String taskID) throws InterruptedException {
+        mScheduler.updateState(false);
+        assertEquals(taskID + ":finished", nextStatus());
+    }
+}